@@ -83,6 +83,7 @@ public interface Constants {
     }
 
 	public static class ExceptionCodes {
+        public static final String access_not_recorded = "access_not_recorded";
         public static final String attachment_could_not_be_saved = "attachment_could_not_be_saved";
         public static final String active_task_required = "active_task_required";
         public static final String attachment_does_not_exist = "attachment_does_not_exist";
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters for a single cache, safe to update from any number of threads without
+ * locking. Callers load values themselves after a miss, so the load time of a key is measured
+ * from its miss to the put that follows -- misses that are never followed by a put are
+ * forgotten once too many of them pile up.
+ *
+ * @author James Renfro
+ */
+public class CacheCounters {
+
+    private static final int MAX_PENDING_LOADS = 1000;
+
+    private final String cacheName;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong totalLoadNanos = new AtomicLong();
+    private final ConcurrentMap<String, Long> pendingLoads = new ConcurrentHashMap<String, Long>();
+
+    public CacheCounters(String cacheName) {
+        this.cacheName = cacheName;
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss(String key) {
+        misses.incrementAndGet();
+        if (key == null)
+            return;
+        if (pendingLoads.size() >= MAX_PENDING_LOADS)
+            pendingLoads.clear();
+        pendingLoads.putIfAbsent(key, Long.valueOf(System.nanoTime()));
+    }
+
+    public void put(String key) {
+        puts.incrementAndGet();
+        Long start = key != null ? pendingLoads.remove(key) : null;
+        if (start != null) {
+            loads.incrementAndGet();
+            totalLoadNanos.addAndGet(System.nanoTime() - start.longValue());
+        }
+    }
+
+    public void evict(int count) {
+        evictions.addAndGet(count);
+    }
+
+    public CacheStatistics.Builder statistics() {
+        return new CacheStatistics.Builder(cacheName)
+                .hits(hits.get())
+                .misses(misses.get())
+                .puts(puts.get())
+                .evictions(evictions.get())
+                .loads(loads.get(), totalLoadNanos.get());
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.cache;
+
+import com.mongodb.*;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.MongoOperations;
+import piecework.common.ManyMapSet;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries cache evictions between the nodes of a cluster through a capped Mongo collection.
+ * Keys are collected as they are evicted locally and written out together, one document per
+ * flush, so a burst of evictions of the same key turns into a single entry. Every node tails
+ * the collection and evicts the keys published by other nodes from its own caches.
+ *
+ * Evictions are idempotent, so whenever the tailing cursor has to be reopened it's safe to
+ * replay events -- the only thing that matters is not missing any.
+ *
+ * @author James Renfro
+ */
+public class CacheInvalidationBus {
+
+    private static final Logger LOG = Logger.getLogger(CacheInvalidationBus.class);
+
+    private static final String AGENT_ID = "agentId";
+    private static final String EVENT_DATE = "eventDate";
+    private static final String KEYS = "keys";
+    private static final long RETRY_MILLIS = 1000l;
+
+    public interface Listener {
+
+        void evict(String cacheName, Set<String> keys);
+
+    }
+
+    private final MongoOperations mongoOperations;
+    private final String collectionName;
+    private final long collectionSize;
+    private final String agentId;
+    private final Listener listener;
+
+    private final AtomicLong publishedEvents = new AtomicLong();
+    private final AtomicLong publishedKeys = new AtomicLong();
+    private final AtomicLong consumedEvents = new AtomicLong();
+    private final AtomicLong evictedKeys = new AtomicLong();
+    private final AtomicLong lastLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    private ManyMapSet<String, String> pending;
+    private DBCollection collection;
+    private Thread consumer;
+    private volatile boolean running;
+
+    public CacheInvalidationBus(MongoOperations mongoOperations, String collectionName, long collectionSize, String agentId, Listener listener) {
+        this.mongoOperations = mongoOperations;
+        this.collectionName = collectionName;
+        this.collectionSize = collectionSize;
+        this.agentId = agentId;
+        this.listener = listener;
+        this.pending = new ManyMapSet<String, String>();
+    }
+
+    public synchronized boolean start() {
+        if (running)
+            return true;
+
+        try {
+            this.collection = cappedCollection();
+        } catch (RuntimeException e) {
+            LOG.error("Unable to open cache invalidation collection " + collectionName + ", evictions will not be shared with other nodes", e);
+            return false;
+        }
+
+        if (collection == null)
+            return false;
+
+        // Nothing is cached when the node starts, so anything published before now can be ignored
+        final ObjectId newestId = newestId();
+
+        this.running = true;
+        this.consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume(newestId);
+            }
+        }, "cache-invalidation-" + agentId);
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+
+        LOG.info("Cache invalidation bus started on " + collectionName + " as " + agentId);
+        return true;
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            thread = consumer;
+            consumer = null;
+        }
+        flush();
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void publish(String cacheName, String key) {
+        if (cacheName == null || key == null)
+            return;
+
+        synchronized (this) {
+            pending.putOne(cacheName, key);
+        }
+    }
+
+    /*
+     * Writes everything published since the last flush as a single event
+     */
+    public void flush() {
+        ManyMapSet<String, String> keyMap;
+        synchronized (this) {
+            if (collection == null || pending.isEmpty())
+                return;
+            keyMap = pending;
+            pending = new ManyMapSet<String, String>();
+        }
+
+        BasicDBObject keys = new BasicDBObject();
+        int count = 0;
+        for (Map.Entry<String, Set<String>> entry : keyMap.entrySet()) {
+            keys.append(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            count += entry.getValue().size();
+        }
+
+        BasicDBObject event = new BasicDBObject(AGENT_ID, agentId)
+                .append(EVENT_DATE, new Date())
+                .append(KEYS, keys);
+
+        try {
+            collection.insert(event);
+            publishedEvents.incrementAndGet();
+            publishedKeys.addAndGet(count);
+            if (LOG.isDebugEnabled())
+                LOG.debug("Published " + count + " cache evictions as " + agentId);
+        } catch (MongoException e) {
+            LOG.error("Unable to publish " + count + " cache evictions, will try again on the next flush", e);
+            synchronized (this) {
+                for (Map.Entry<String, Set<String>> entry : keyMap.entrySet()) {
+                    for (String key : entry.getValue()) {
+                        pending.putOne(entry.getKey(), key);
+                    }
+                }
+            }
+        }
+    }
+
+    public String getAgentId() {
+        return agentId;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getPublishedEvents() {
+        return publishedEvents.get();
+    }
+
+    public long getPublishedKeys() {
+        return publishedKeys.get();
+    }
+
+    public long getConsumedEvents() {
+        return consumedEvents.get();
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.get();
+    }
+
+    public long getLastLagMillis() {
+        return lastLagMillis.get();
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    private DBCollection cappedCollection() {
+        if (!mongoOperations.collectionExists(collectionName)) {
+            try {
+                mongoOperations.createCollection(collectionName, new CollectionOptions((int)collectionSize, null, Boolean.TRUE));
+            } catch (RuntimeException e) {
+                // Another node may have created it first
+                if (!mongoOperations.collectionExists(collectionName))
+                    throw e;
+            }
+        }
+        DBCollection collection = mongoOperations.getCollection(collectionName);
+        if (collection != null && !collection.isCapped()) {
+            LOG.error("Collection " + collectionName + " is not capped so it cannot be tailed, evictions will not be shared with other nodes");
+            return null;
+        }
+        return collection;
+    }
+
+    private void consume(ObjectId lastId) {
+        while (running) {
+            DBCursor cursor = null;
+            try {
+                boolean skipping = lastId != null && collection.count(new BasicDBObject("_id", lastId)) > 0;
+                cursor = collection.find()
+                        .sort(new BasicDBObject("$natural", 1))
+                        .addOption(Bytes.QUERYOPTION_TAILABLE)
+                        .addOption(Bytes.QUERYOPTION_AWAITDATA);
+
+                while (running && cursor.hasNext()) {
+                    DBObject event = cursor.next();
+                    ObjectId id = (ObjectId) event.get("_id");
+                    if (skipping) {
+                        if (id != null && id.equals(lastId))
+                            skipping = false;
+                        continue;
+                    }
+                    lastId = id;
+                    apply(event);
+                }
+            } catch (RuntimeException e) {
+                if (running)
+                    LOG.warn("Lost cache invalidation cursor on " + collectionName + ", reopening", e);
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            // An empty capped collection or a dead cursor both end up here
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private ObjectId newestId() {
+        try {
+            DBCursor cursor = collection.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+            try {
+                return cursor.hasNext() ? (ObjectId) cursor.next().get("_id") : null;
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to find the newest cache invalidation event, all retained events will be replayed", e);
+            return null;
+        }
+    }
+
+    private void apply(DBObject event) {
+        if (agentId.equals(event.get(AGENT_ID)))
+            return;
+
+        consumedEvents.incrementAndGet();
+
+        Object eventDate = event.get(EVENT_DATE);
+        if (eventDate instanceof Date) {
+            long lag = Math.max(0, System.currentTimeMillis() - ((Date) eventDate).getTime());
+            lastLagMillis.set(lag);
+            long max = maxLagMillis.get();
+            while (lag > max && !maxLagMillis.compareAndSet(max, lag)) {
+                max = maxLagMillis.get();
+            }
+        }
+
+        Object keys = event.get(KEYS);
+        if (!(keys instanceof DBObject))
+            return;
+
+        DBObject keyMap = (DBObject) keys;
+        for (String cacheName : keyMap.keySet()) {
+            Object value = keyMap.get(cacheName);
+            if (!(value instanceof List))
+                continue;
+            Set<String> cacheKeys = new HashSet<String>();
+            for (Object key : (List<?>) value) {
+                if (key != null)
+                    cacheKeys.add(key.toString());
+            }
+            try {
+                listener.evict(cacheName, cacheKeys);
+                evictedKeys.addAndGet(cacheKeys.size());
+            } catch (RuntimeException e) {
+                LOG.error("Unable to evict " + cacheKeys.size() + " keys from " + cacheName, e);
+            }
+        }
+    }
+
+}
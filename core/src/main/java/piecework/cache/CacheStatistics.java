@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.cache;
+
+/**
+ * Point-in-time snapshot of the counters for a single cache. Evictions include both explicit
+ * evictions and entries the underlying cache dropped because of its size or time limits,
+ * when the underlying cache reports them.
+ *
+ * @author James Renfro
+ */
+public class CacheStatistics {
+
+    private final String cacheName;
+    private final long hits;
+    private final long misses;
+    private final long puts;
+    private final long evictions;
+    private final long loads;
+    private final long totalLoadNanos;
+    private final long size;
+    private final long sizeInBytes;
+
+    private CacheStatistics(Builder builder) {
+        this.cacheName = builder.cacheName;
+        this.hits = builder.hits;
+        this.misses = builder.misses;
+        this.puts = builder.puts;
+        this.evictions = builder.evictions;
+        this.loads = builder.loads;
+        this.totalLoadNanos = builder.totalLoadNanos;
+        this.size = builder.size;
+        this.sizeInBytes = builder.sizeInBytes;
+    }
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests > 0 ? (double) hits / requests : 0d;
+    }
+
+    public long getPuts() {
+        return puts;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    public long getTotalLoadNanos() {
+        return totalLoadNanos;
+    }
+
+    public double getAverageLoadMillis() {
+        return loads > 0 ? totalLoadNanos / (loads * 1000000d) : 0d;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @Override
+    public String toString() {
+        return cacheName + " hits: " + hits + ", misses: " + misses + ", puts: " + puts + ", evictions: " + evictions
+                + ", loads: " + loads + ", average load: " + String.format("%.2f", getAverageLoadMillis()) + " ms, size: " + size;
+    }
+
+    public final static class Builder {
+
+        private String cacheName;
+        private long hits;
+        private long misses;
+        private long puts;
+        private long evictions;
+        private long loads;
+        private long totalLoadNanos;
+        private long size = -1;
+        private long sizeInBytes = -1;
+
+        public Builder(String cacheName) {
+            this.cacheName = cacheName;
+        }
+
+        public CacheStatistics build() {
+            return new CacheStatistics(this);
+        }
+
+        public Builder hits(long hits) {
+            this.hits = hits;
+            return this;
+        }
+
+        public Builder misses(long misses) {
+            this.misses = misses;
+            return this;
+        }
+
+        public Builder puts(long puts) {
+            this.puts = puts;
+            return this;
+        }
+
+        public Builder evictions(long evictions) {
+            this.evictions += evictions;
+            return this;
+        }
+
+        public Builder loads(long loads, long totalLoadNanos) {
+            this.loads = loads;
+            this.totalLoadNanos = totalLoadNanos;
+            return this;
+        }
+
+        public Builder size(long size, long sizeInBytes) {
+            this.size = size;
+            this.sizeInBytes = sizeInBytes;
+            return this;
+        }
+    }
+
+}
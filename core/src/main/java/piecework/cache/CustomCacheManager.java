@@ -17,20 +17,35 @@ package piecework.cache;
 
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.SizeOfPolicyConfiguration;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.cache.Cache;
-import org.springframework.cache.ehcache.EhCacheCache;
-import org.springframework.cache.ehcache.EhCacheCacheManager;
-import org.springframework.stereotype.Service;
+import org.springframework.core.env.Environment;
 
 /**
+ * Creates caches on demand. Each cache is sized from properties named after it, e.g.
+ * 'cache.process.basic.max.entries' for PROCESS_BASIC, falling back to the 'cache.default.*'
+ * properties and finally to 300 seconds idle, 600 seconds live and 10,000 entries.
+ *
+ * Setting 'max.bytes' (e.g. 20M) bounds a cache by the heap its entries take up instead of
+ * by the number of entries, which suits caches whose values vary a lot in size.
+ *
  * @author James Renfro
  */
 public class CustomCacheManager extends net.sf.ehcache.CacheManager {
 
     private static final Logger LOG = Logger.getLogger(CustomCacheManager.class);
 
+    private final Environment environment;
+
+    public CustomCacheManager() {
+        this(null);
+    }
+
+    public CustomCacheManager(Environment environment) {
+        this.environment = environment;
+    }
+
     @Override
     public Ehcache getEhcache(String name) throws IllegalStateException {
         addCacheIfMissing(name);
@@ -45,15 +60,55 @@ public class CustomCacheManager extends net.sf.ehcache.CacheManager {
 
     private void addCacheIfMissing(String name) {
         if (!cacheExists(name)) {
-            LOG.info("Creating a new cache for " + name);
-            CacheConfiguration configuration = new CacheConfiguration();
-            configuration.setName(name);
-            configuration.setTimeToIdleSeconds(300);
-            configuration.setTimeToLiveSeconds(600);
-            configuration.setMaxEntriesLocalHeap(10000);
+            CacheConfiguration configuration = configuration(name);
+            LOG.info("Creating a new cache for " + name + " with time to idle " + configuration.getTimeToIdleSeconds()
+                    + "s, time to live " + configuration.getTimeToLiveSeconds() + "s and "
+                    + (configuration.getMaxBytesLocalHeap() > 0 ? configuration.getMaxBytesLocalHeapAsString() + " of heap" : configuration.getMaxEntriesLocalHeap() + " entries"));
             Ehcache ehcache = new net.sf.ehcache.Cache(configuration);
             addCacheIfAbsent(ehcache);
         }
     }
 
+    private CacheConfiguration configuration(String name) {
+        String prefix = "cache." + name.toLowerCase().replace('_', '.') + ".";
+
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setName(name);
+        configuration.setTimeToIdleSeconds(property(prefix, "tti.seconds", 300l));
+        configuration.setTimeToLiveSeconds(property(prefix, "ttl.seconds", 600l));
+
+        String maxBytes = property(prefix, "max.bytes");
+        if (StringUtils.isNotEmpty(maxBytes)) {
+            configuration.setMaxBytesLocalHeap(maxBytes);
+            // Process definitions and deployments are deep object graphs
+            configuration.sizeOfPolicy(new SizeOfPolicyConfiguration()
+                    .maxDepth(100000)
+                    .maxDepthExceededBehavior(SizeOfPolicyConfiguration.MaxDepthExceededBehavior.CONTINUE));
+        } else {
+            configuration.setMaxEntriesLocalHeap(property(prefix, "max.entries", 10000l));
+        }
+        return configuration;
+    }
+
+    private long property(String prefix, String name, long defaultValue) {
+        String value = property(prefix, name);
+        if (StringUtils.isEmpty(value))
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring invalid value '" + value + "' for " + prefix + name);
+            return defaultValue;
+        }
+    }
+
+    private String property(String prefix, String name) {
+        if (environment == null)
+            return null;
+        String value = environment.getProperty(prefix + name);
+        if (StringUtils.isEmpty(value))
+            value = environment.getProperty("cache.default." + name);
+        return value;
+    }
+
 }
@@ -17,9 +17,12 @@ package piecework.command;
 
 import piecework.Command;
 import piecework.common.ServiceLocator;
+import piecework.enumeration.CacheName;
 import piecework.exception.PieceworkException;
 import piecework.model.Entity;
+import piecework.model.ProcessDeployment;
 import piecework.persistence.ProcessProvider;
+import piecework.service.CacheService;
 
 /**
  * @author James Renfro
@@ -42,6 +45,21 @@ public abstract class AbstractCommand<T, P extends ProcessProvider> implements C
     // Package-access abstract method signature to all CommandFactory to pass in ServiceLocator
     abstract <T> T execute(ServiceLocator serviceLocator) throws PieceworkException;
 
+    // For commands that change the process definition -- every node needs to drop its cached copy
+    void evict(CacheService cacheService, ProcessDeployment deployment) {
+        if (cacheService == null)
+            return;
+
+        String processDefinitionKey = getProcessDefinitionKey();
+        if (processDefinitionKey != null) {
+            cacheService.evict(CacheName.PROCESS, processDefinitionKey);
+            cacheService.evict(CacheName.PROCESS_BASIC, processDefinitionKey);
+        }
+        if (deployment != null && deployment.getDeploymentId() != null) {
+            cacheService.evict(CacheName.PROCESS_DEPLOYMENT, deployment.getDeploymentId());
+            cacheService.evict(CacheName.VALIDATION_PLAN, deployment.getDeploymentId());
+        }
+    }
 
     public P getProvider() {
         return modelProvider;
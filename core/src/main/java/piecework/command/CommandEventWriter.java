@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.command;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Service;
+import piecework.common.LatencyHistogram;
+import piecework.model.CommandEvent;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes command events off the request thread and writes them to Mongo in bulk, whenever
+ * a batch fills up or the flush interval passes, whichever comes first. The queue is bounded:
+ * when Mongo falls behind, callers wait a few milliseconds for room and after that the event
+ * is dropped and counted rather than holding up the command. Whatever is still queued is
+ * written on shutdown.
+ *
+ * Also keeps an execution time histogram for each type of command.
+ *
+ * @author James Renfro
+ */
+@Service
+public class CommandEventWriter {
+
+    private static final Logger LOG = Logger.getLogger(CommandEventWriter.class);
+
+    @Autowired
+    Environment environment;
+
+    @Autowired
+    MongoOperations mongoOperations;
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private BlockingQueue<CommandEvent> queue;
+    private int batchSize;
+    private long flushMillis;
+    private long offerTimeoutMillis;
+    private Thread writer;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        int capacity = environment.getProperty("command.audit.queue.capacity", Integer.class, 10000);
+        this.batchSize = environment.getProperty("command.audit.batch.size", Integer.class, 200);
+        this.flushMillis = environment.getProperty("command.audit.flush.millis", Long.class, 1000l);
+        this.offerTimeoutMillis = environment.getProperty("command.audit.offer.timeout.millis", Long.class, 5l);
+        this.queue = new ArrayBlockingQueue<CommandEvent>(capacity);
+        this.running = true;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "command-event-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(flushMillis * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Anything the writer didn't get to before it stopped
+        List<CommandEvent> batch = new ArrayList<CommandEvent>();
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+        LOG.info("Command event writer stopped after writing " + written.get() + " events, dropped " + dropped.get() + " and failed to write " + failed.get());
+    }
+
+    public void write(CommandEvent event) {
+        if (event == null)
+            return;
+
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = queue.offer(event, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (!queued) {
+            long count = dropped.incrementAndGet();
+            // Don't flood the log when mongo is down
+            if (count == 1 || count % 1000 == 0)
+                LOG.warn("Command event queue is full or stopped, " + count + " events have been dropped so far");
+        }
+    }
+
+    public void record(String commandType, long millis) {
+        LatencyHistogram histogram = histograms.get(commandType);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(commandType, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        histogram.record(millis);
+    }
+
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(histograms));
+    }
+
+    public int getQueued() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private void drain() {
+        List<CommandEvent> batch = new ArrayList<CommandEvent>(batchSize);
+        while (running) {
+            try {
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    CommandEvent event = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (event == null)
+                        break;
+                    batch.add(event);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<CommandEvent> batch) {
+        try {
+            mongoOperations.insert(batch, CommandEvent.class);
+            written.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            failed.addAndGet(batch.size());
+            LOG.error("Unable to write " + batch.size() + " command events", e);
+        }
+    }
+
+}
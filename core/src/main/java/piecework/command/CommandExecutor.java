@@ -24,7 +24,6 @@ import piecework.exception.BadRequestError;
 import piecework.exception.PieceworkException;
 import piecework.model.CommandEvent;
 import piecework.persistence.ProcessProvider;
-import piecework.repository.CommandEventRepository;
 
 /**
  * @author James Renfro
@@ -35,7 +34,7 @@ class CommandExecutor {
     private static final Logger LOG = Logger.getLogger(CommandExecutor.class);
 
     @Autowired
-    private CommandEventRepository commandEventRepository;
+    private CommandEventWriter commandEventWriter;
 
     @Autowired
     private Mediator mediator;
@@ -48,11 +47,9 @@ class CommandExecutor {
         if (command == null)
             throw new PieceworkException("No command provided");
 
-        long start = 0;
-        if (LOG.isDebugEnabled()) {
-            start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        if (LOG.isDebugEnabled())
             LOG.debug("Executing " + command.getClass());
-        }
 
         boolean completed = false;
         try {
@@ -60,13 +57,19 @@ class CommandExecutor {
             completed = true;
             return result;
         } finally {
+            long duration = System.currentTimeMillis() - start;
             String commandDescription = command.toString();
-            commandEventRepository.save(new CommandEvent(commandDescription, command.getProvider(), completed));
+            commandEventWriter.record(command.getClass().getSimpleName(), duration);
+            commandEventWriter.write(new CommandEvent(commandDescription, command.getProvider(), completed));
             if (LOG.isDebugEnabled())
-                LOG.debug("Command " + commandDescription + " completed in " + (System.currentTimeMillis() - start) + " ms");
+                LOG.debug("Command " + commandDescription + " completed in " + duration + " ms");
         }
     }
 
+    public CommandEventWriter getCommandEventWriter() {
+        return commandEventWriter;
+    }
+
     public ServiceLocator getServiceLocator() {
         return serviceLocator;
     }
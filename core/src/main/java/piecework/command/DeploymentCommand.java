@@ -35,6 +35,7 @@ import piecework.repository.ContentRepository;
 import piecework.repository.DeploymentRepository;
 import piecework.repository.ProcessRepository;
 import piecework.security.concrete.PassthroughSanitizer;
+import piecework.service.CacheService;
 import piecework.util.ProcessUtility;
 
 import java.io.IOException;
@@ -64,7 +65,9 @@ public class DeploymentCommand extends AbstractCommand<ProcessDeployment, Proces
         ProcessEngineFacade facade = serviceLocator.getService(ProcessEngineFacade.class);
         ProcessRepository processRepository = serviceLocator.getService(ProcessRepository.class);
         UuidGenerator uuidGenerator = serviceLocator.getService(UuidGenerator.class);
-        return execute(activityRepository, contentRepository, deploymentRepository, facade, processRepository, uuidGenerator);
+        ProcessDeployment deployment = execute(activityRepository, contentRepository, deploymentRepository, facade, processRepository, uuidGenerator);
+        evict(serviceLocator.getService(CacheService.class), deployment);
+        return deployment;
     }
 
     ProcessDeployment execute(ActivityRepository activityRepository, ContentRepository contentRepository, DeploymentRepository deploymentRepository,
@@ -24,10 +24,13 @@ import piecework.exception.PieceworkException;
 import piecework.model.Process;
 import piecework.model.ProcessDeployment;
 import piecework.model.ProcessDeploymentVersion;
+import piecework.persistence.ModelProviderFactory;
 import piecework.persistence.ProcessDeploymentProvider;
 import piecework.repository.DeploymentRepository;
 import piecework.repository.ProcessRepository;
 import piecework.security.concrete.PassthroughSanitizer;
+import piecework.service.CacheService;
+import piecework.service.UserInterfaceService;
 import piecework.util.ProcessUtility;
 
 /**
@@ -51,7 +54,14 @@ public class PublicationCommand extends AbstractCommand<ProcessDeployment, Proce
         DeploymentRepository deploymentRepository = serviceLocator.getService(DeploymentRepository.class);
         ProcessRepository processRepository = serviceLocator.getService(ProcessRepository.class);
 
-        return execute(deploymentRepository, processRepository);
+        ProcessDeployment deployment = execute(deploymentRepository, processRepository);
+        evict(serviceLocator.getService(CacheService.class), deployment);
+
+        // Parse any remote pages now rather than on the first submission to each of them
+        ModelProviderFactory modelProviderFactory = serviceLocator.getService(ModelProviderFactory.class);
+        UserInterfaceService userInterfaceService = serviceLocator.getService(UserInterfaceService.class);
+        userInterfaceService.precomputeRemoteFields(modelProviderFactory.deploymentProvider(getProcessDefinitionKey(), deployment.getDeploymentId(), modelProvider.principal()));
+        return deployment;
     }
 
     ProcessDeployment execute(DeploymentRepository deploymentRepository, ProcessRepository processRepository) throws PieceworkException {
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into fixed millisecond buckets without locking, so it can be updated from
+ * request threads. Percentiles are approximate -- they report the upper bound of the bucket
+ * the percentile falls into.
+ *
+ * @author James Renfro
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0)
+            millis = 0;
+
+        int index = 0;
+        while (index < BOUNDS.length && millis > BOUNDS[index]) {
+            index++;
+        }
+        buckets.incrementAndGet(index);
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+
+        long max = maxMillis.get();
+        while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+            max = maxMillis.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalMillis() {
+        return totalMillis.get();
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n > 0 ? (double) totalMillis.get() / n : 0d;
+    }
+
+    /*
+     * Returns the upper bound of the bucket holding the given percentile (0-100), or the
+     * maximum recorded value when it falls past the last bucket
+     */
+    public long getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long threshold = (long) Math.ceil(n * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= threshold)
+                return BOUNDS[i];
+        }
+        return maxMillis.get();
+    }
+
+    public long[] getBucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", mean: " + String.format("%.1f", getMeanMillis()) + " ms, p50: " + getPercentileMillis(50)
+                + " ms, p95: " + getPercentileMillis(95) + " ms, p99: " + getPercentileMillis(99) + " ms, max: " + getMaxMillis() + " ms";
+    }
+
+}
@@ -30,6 +30,7 @@ import piecework.Constants;
 import piecework.common.SearchCriteria;
 import piecework.model.SearchFacet;
 import piecework.security.Sanitizer;
+import piecework.util.KeywordUtility;
 import piecework.util.SearchUtility;
 
 import java.util.*;
@@ -84,23 +85,10 @@ public class SearchQueryBuilder {
             query.addCriteria(where("initiatorId").is(searchCriteria.getInitiatedBy()));
 
         if (!searchCriteria.getKeywords().isEmpty()) {
-            List<String> tokens = new ArrayList<String>();
-            for (String keyword : searchCriteria.getKeywords()) {
-                String resultString = keyword.replaceAll("[^\\p{L}\\p{Nd}]\\-", ",");
-                String[] components = resultString.split(",");
-                if (components != null && components.length > 0)
-                    tokens.addAll(Arrays.asList(components));
-            }
-
-            int count = 0;
-            Criteria criteria = where("keywords");
-            List<Pattern> dbObjects = new ArrayList<Pattern>();
-            for (String keyword : tokens) {
-                dbObjects.add(Pattern.compile(keyword, 0));
-                count++;
-            }
-            if (count > 0)
-                query.addCriteria(criteria.all(dbObjects));
+            // Keywords are stored as normalized tokens, so anchored prefix patterns can use the index
+            List<Pattern> patterns = KeywordUtility.prefixPatterns(searchCriteria.getKeywords());
+            if (!patterns.isEmpty())
+                query.addCriteria(where("keywords").all(patterns));
         }
 
         return query;
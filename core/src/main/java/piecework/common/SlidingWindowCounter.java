@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.common;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events per key over a sliding window without locking. The window is cut into a
+ * fixed number of slices, and each key keeps one counter per slice, tagged with the slice it
+ * belongs to -- a counter from an earlier pass around the ring is simply reset by the first
+ * increment that lands on it. Counts are exact to the slice, so the window effectively slides
+ * in steps of interval / slices.
+ *
+ * Keys are spread over shards with a cap on each, so memory stays bounded however many keys
+ * show up. When a shard is full, keys that haven't been seen for a whole window are swept
+ * out, and if that isn't enough arbitrary keys are dropped. Either way the shard is brought
+ * down to three quarters of its cap, so a burst of new keys pays for one sweep per quarter
+ * shard rather than one per key.
+ *
+ * @author James Renfro
+ */
+public class SlidingWindowCounter {
+
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1l << COUNT_BITS) - 1;
+    private static final int SHARDS = 16;
+
+    private final long sliceMillis;
+    private final int slices;
+    private final int maxKeysPerShard;
+    private final int lowWaterPerShard;
+    private final ConcurrentMap<String, Window>[] shards;
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+
+    public SlidingWindowCounter(long intervalMillis, int slices, int maxKeys) {
+        this.slices = Math.max(1, slices);
+        this.sliceMillis = Math.max(1l, intervalMillis / this.slices);
+        this.maxKeysPerShard = Math.max(1, maxKeys / SHARDS);
+        this.lowWaterPerShard = Math.min(maxKeysPerShard - 1, maxKeysPerShard * 3 / 4);
+        this.shards = newShards(SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            this.shards[i] = new ConcurrentHashMap<String, Window>();
+        }
+    }
+
+    /*
+     * Counts one event for the key and returns the number of events for it in the window,
+     * including this one
+     */
+    public long increment(String key) {
+        return increment(key, System.currentTimeMillis());
+    }
+
+    public long count(String key) {
+        return count(key, System.currentTimeMillis());
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentMap<String, Window> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    long getSweeps() {
+        return sweeps.get();
+    }
+
+    long increment(String key, long now) {
+        if (key == null)
+            key = "";
+
+        long slice = now / sliceMillis;
+        ConcurrentMap<String, Window> shard = shard(key);
+        Window window = shard.get(key);
+        if (window == null) {
+            if (shard.size() >= maxKeysPerShard)
+                makeRoom(shard, slice);
+            Window created = new Window(slices);
+            window = shard.putIfAbsent(key, created);
+            if (window == null)
+                window = created;
+        }
+        window.increment(slice);
+        return window.count(slice);
+    }
+
+    long count(String key, long now) {
+        Window window = shard(key != null ? key : "").get(key != null ? key : "");
+        return window != null ? window.count(now / sliceMillis) : 0;
+    }
+
+    private ConcurrentMap<String, Window> shard(String key) {
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % SHARDS];
+    }
+
+    private void makeRoom(ConcurrentMap<String, Window> shard, long slice) {
+        sweeps.incrementAndGet();
+        Iterator<Window> iterator = shard.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isStale(slice)) {
+                iterator.remove();
+                evicted.incrementAndGet();
+            }
+        }
+        // Not enough of them were stale, so some active ones have to go too
+        iterator = shard.values().iterator();
+        while (shard.size() > lowWaterPerShard && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evicted.incrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Window>[] newShards(int count) {
+        return new ConcurrentMap[count];
+    }
+
+    private class Window {
+
+        // Each entry is the slice number in the high bits and the count in the low ones
+        private final AtomicLongArray ring;
+        private volatile long lastSlice;
+
+        private Window(int slices) {
+            this.ring = new AtomicLongArray(slices);
+        }
+
+        private void increment(long slice) {
+            int index = (int) (slice % slices);
+            while (true) {
+                long current = ring.get(index);
+                long next;
+                if ((current >>> COUNT_BITS) == slice) {
+                    // Saturate rather than roll over into the slice bits
+                    if ((current & COUNT_MASK) == COUNT_MASK)
+                        break;
+                    next = current + 1;
+                } else {
+                    next = (slice << COUNT_BITS) | 1;
+                }
+                if (ring.compareAndSet(index, current, next))
+                    break;
+            }
+            if (slice > lastSlice)
+                lastSlice = slice;
+        }
+
+        private long count(long slice) {
+            long count = 0;
+            for (int i = 0; i < ring.length(); i++) {
+                long current = ring.get(i);
+                long age = slice - (current >>> COUNT_BITS);
+                if (age >= 0 && age < slices)
+                    count += current & COUNT_MASK;
+            }
+            return count;
+        }
+
+        private boolean isStale(long slice) {
+            return slice - lastSlice >= slices;
+        }
+    }
+
+}
@@ -15,12 +15,14 @@
  */
 package piecework.config;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.ehcache.EhCacheCacheManager;
 import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import piecework.cache.CustomCacheManager;
@@ -37,6 +39,9 @@ import javax.annotation.PreDestroy;
 @EnableScheduling
 public class CacheConfiguration {
 
+    @Autowired
+    Environment environment;
+
 //    @Bean
 //    public EhCacheManagerFactoryBean ehCacheManagerFactoryBean() {
 //        EhCacheManagerFactoryBean ehCacheManagerFactoryBean = new EhCacheManagerFactoryBean();
@@ -46,7 +51,7 @@ public class CacheConfiguration {
 
     @Bean(destroyMethod="shutdown")
     public net.sf.ehcache.CacheManager ehCacheCacheManager() {
-        return new CustomCacheManager();
+        return new CustomCacheManager(environment);
     }
 
     @Bean
@@ -37,6 +37,7 @@ import org.springframework.data.mongodb.repository.config.EnableMongoRepositorie
 import piecework.model.DateValue;
 import piecework.model.ProcessInstance;
 import piecework.repository.concrete.EmbeddedMongoInstance;
+import piecework.repository.concrete.ProcessInstanceSaveListener;
 
 import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
@@ -94,6 +95,11 @@ public class MongoConfiguration extends AbstractMongoConfiguration {
         return new MongoClient(getServerAddresses(), optionsBuilder.build());
     }
 
+    @Bean
+    public ProcessInstanceSaveListener processInstanceSaveListener() throws Exception {
+        return new ProcessInstanceSaveListener(mongoTemplate());
+    }
+
     @Bean(name="customConversions")
     public CustomConversions customConversions() {
         return new CustomConversions(Collections.singletonList(DateValue.DateValueConverter.INSTANCE));
@@ -17,14 +17,13 @@ package piecework.content.concrete;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Sort;
-import org.springframework.data.mongodb.gridfs.GridFsCriteria;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.gridfs.GridFsOperations;
 import piecework.common.UuidGenerator;
 import piecework.content.ContentProvider;
@@ -41,14 +40,12 @@ import piecework.persistence.ContentProfileProvider;
 import piecework.persistence.ProcessInstanceProvider;
 import piecework.security.AccessTracker;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import static org.springframework.data.mongodb.core.query.Query.query;
-
 /**
  * @author James Renfro
  */
@@ -65,6 +62,25 @@ public class GridFSContentProviderReceiver implements ContentProvider, ContentRe
     @Autowired
     UuidGenerator uuidGenerator;
 
+    @Autowired
+    Environment environment;
+
+    @Autowired
+    MongoOperations mongoOperations;
+
+    GridFsVersionIndex versionIndex;
+
+    @PostConstruct
+    public void init() {
+        String bucket = environment.getProperty("mongo.gridfs.bucket", "fs");
+        this.versionIndex = new GridFsVersionIndex(mongoOperations.getCollection(bucket + ".files"));
+        try {
+            versionIndex.ensureIndex();
+        } catch (RuntimeException e) {
+            LOG.error("Unable to ensure index on filename and upload date for GridFS bucket " + bucket, e);
+        }
+    }
+
     @Override
     public ContentResource checkout(ContentProfileProvider modelProvider, String location) throws PieceworkException, IOException {
         return findByLocation(modelProvider, location);
@@ -131,8 +147,14 @@ public class GridFSContentProviderReceiver implements ContentProvider, ContentRe
         String id = uuidGenerator.getNextId();
         String location = basePath(modelProvider) + id;
 
+        // The location is brand new, so the file just stored is the one and only version -- there's
+        // no need to go back to GridFS to find out
         GridFSFile file = gridFsOperations.store(contentResource.getInputStream(), location, contentResource.contentType(), metadata);
-        return gridFsContentResource(file, location);
+        Date uploadDate = file.getUploadDate();
+        List<Version> versions = new ArrayList<Version>();
+        if (uploadDate != null)
+            versions.add(version(file, location, 1));
+        return new GridFsContentResource(gridFsOperations, file, location, uploadDate, versions);
     }
 
     @Override
@@ -154,52 +176,38 @@ public class GridFSContentProviderReceiver implements ContentProvider, ContentRe
     }
 
     private GridFsContentResource gridFsContentResource(GridFSFile current, String location) throws NotFoundError {
-        // Retrieve in ascending order, then reverse versions - this allows us to count up in an intuition way,
-        // setting version numbers
         if (location == null)
             return null;
 
-        List<GridFSDBFile> files;
-
-        Date uploadDate = null;
+        GridFSFile file = current;
         int indexOf = location.indexOf("?uploadDate=");
         if (indexOf != -1) {
             String uploadDateMillis = location.substring(indexOf+12);
-            uploadDate = new Date(Long.valueOf(uploadDateMillis));
+            Date uploadDate = new Date(Long.valueOf(uploadDateMillis));
             location = location.substring(0, indexOf);
-            files = gridFsOperations.find(query(GridFsCriteria.whereFilename().is(location))
-                    .addCriteria(GridFsCriteria.where("uploadDate").is(uploadDate)));
-        } else {
-            files = gridFsOperations.find(query(GridFsCriteria.whereFilename().is(location)).with(new Sort(Sort.Direction.ASC, "uploadDate")));
-        }
-        List<Version> versions = new ArrayList<Version>();
-        GridFSFile latest = current;
-        if (files != null && !files.isEmpty()) {
-            int count = 1;
-            for (GridFSDBFile file : files) {
-                DBObject dbObject = file.getMetaData();
-                Object createDateObj = dbObject != null ? dbObject.get(GridFsContentResource.LAST_MODIFIED) : null;
-                Long createDate = createDateObj != null ? Long.class.cast(createDateObj) : Long.valueOf(0);
-                Object createdByObj = dbObject != null ? dbObject.get(GridFsContentResource.LAST_MODIFIED_BY) : null;
-                String createdBy = createdByObj != null ? createdByObj.toString() : null;
-
-                String versionId = file != null && file.getUploadDate() != null ? file.getId().toString() + "?uploadDate=" + file.getUploadDate().getTime() : null;
-                String versionLocation = file != null && file.getUploadDate() != null ? location + "?uploadDate=" + file.getUploadDate().getTime() : null;
-
-                versions.add(new Version("" + count, createdBy, createDate.longValue(), versionId, versionLocation));
-                if (current == null)
-                    latest = file;
-                count++;
-            }
+            file = versionIndex.at(location, uploadDate);
+        } else if (file == null) {
+            file = versionIndex.latest(location);
         }
 
-        if (latest == null)
+        if (file == null)
             throw new NotFoundError();
 
-        uploadDate = latest.getUploadDate();
+        // The version history is only loaded if somebody asks for it
+        return new GridFsContentResource(gridFsOperations, file, location, file.getUploadDate(), versionIndex);
+    }
+
+    static Version version(GridFSFile file, String location, int count) {
+        DBObject dbObject = file.getMetaData();
+        Object createDateObj = dbObject != null ? dbObject.get(GridFsContentResource.LAST_MODIFIED) : null;
+        Long createDate = createDateObj != null ? Long.class.cast(createDateObj) : Long.valueOf(0);
+        Object createdByObj = dbObject != null ? dbObject.get(GridFsContentResource.LAST_MODIFIED_BY) : null;
+        String createdBy = createdByObj != null ? createdByObj.toString() : null;
+
+        String versionId = file.getUploadDate() != null ? file.getId().toString() + "?uploadDate=" + file.getUploadDate().getTime() : null;
+        String versionLocation = file.getUploadDate() != null ? location + "?uploadDate=" + file.getUploadDate().getTime() : null;
 
-        Collections.reverse(versions);
-        return new GridFsContentResource(gridFsOperations, latest, location, uploadDate, versions);
+        return new Version("" + count, createdBy, createDate.longValue(), versionId, versionLocation);
     }
 
 }
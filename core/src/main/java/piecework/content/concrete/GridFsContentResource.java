@@ -54,15 +54,25 @@ public class GridFsContentResource implements ContentResource {
     private final String location;
     private final Date uploadDate;
     private final DBObject metadata;
-    private final List<Version> versions;
+    private final GridFsVersionIndex versionIndex;
+    private List<Version> versions;
 
     public GridFsContentResource(GridFsOperations gridFsOperations, GridFSFile file, String location, Date uploadDate, List<Version> versions) {
+        this(gridFsOperations, file, location, uploadDate, versions, null);
+    }
+
+    GridFsContentResource(GridFsOperations gridFsOperations, GridFSFile file, String location, Date uploadDate, GridFsVersionIndex versionIndex) {
+        this(gridFsOperations, file, location, uploadDate, null, versionIndex);
+    }
+
+    private GridFsContentResource(GridFsOperations gridFsOperations, GridFSFile file, String location, Date uploadDate, List<Version> versions, GridFsVersionIndex versionIndex) {
         this.gridFsOperations = gridFsOperations;
         this.file = file;
         this.location = location;
         this.uploadDate = uploadDate;
         this.metadata = file.getMetaData();
         this.versions = versions;
+        this.versionIndex = versionIndex;
     }
 
     @Override
@@ -121,7 +131,9 @@ public class GridFsContentResource implements ContentResource {
 
     @Override
     public String eTag() {
-        return metadata != null ? String.class.cast(metadata.get(E_TAG)) : null;
+        String eTag = metadata != null ? String.class.cast(metadata.get(E_TAG)) : null;
+        // The driver digests each chunk as it writes it, so every stored file has one of these for free
+        return eTag != null ? eTag : file.getMD5();
     }
 
     @Override
@@ -135,7 +147,9 @@ public class GridFsContentResource implements ContentResource {
     }
 
     @Override
-    public List<Version> versions() {
+    public synchronized List<Version> versions() {
+        if (versions == null && versionIndex != null)
+            versions = versionIndex.versions(location);
         return versions;
     }
 
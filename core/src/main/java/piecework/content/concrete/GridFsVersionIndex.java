@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.content.concrete;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
+import piecework.content.Version;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Looks up versions of a file directly in the GridFS files collection, on an index of filename
+ * and uploadDate. GridFsOperations can't sort or limit, so going through it means pulling every
+ * version of a file back to pick out the latest one -- here that's a single indexed lookup, and
+ * the version history is a projection that never touches the metadata of the files themselves.
+ *
+ * @author James Renfro
+ */
+class GridFsVersionIndex {
+
+    private static final String FILENAME = "filename";
+    private static final String UPLOAD_DATE = "uploadDate";
+    private static final String METADATA = "metadata";
+
+    private final DBCollection files;
+
+    GridFsVersionIndex(DBCollection files) {
+        this.files = files;
+    }
+
+    /*
+     * The driver only builds its own filename index while the collection is small, so make sure
+     * it's there no matter how many files have been stored
+     */
+    void ensureIndex() {
+        files.ensureIndex(new BasicDBObject(FILENAME, 1).append(UPLOAD_DATE, -1));
+    }
+
+    GridFSFile latest(String location) {
+        DBCursor cursor = files.find(new BasicDBObject(FILENAME, location))
+                .sort(new BasicDBObject(UPLOAD_DATE, -1))
+                .limit(1);
+        try {
+            return cursor.hasNext() ? file(cursor.next()) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    GridFSFile at(String location, Date uploadDate) {
+        DBObject dbObject = files.findOne(new BasicDBObject(FILENAME, location).append(UPLOAD_DATE, uploadDate));
+        return dbObject != null ? file(dbObject) : null;
+    }
+
+    /*
+     * Every version of the file at this location, most recent first, numbered from the oldest up
+     */
+    List<Version> versions(String location) {
+        DBObject fields = new BasicDBObject(UPLOAD_DATE, 1)
+                .append(METADATA + "." + GridFsContentResource.LAST_MODIFIED, 1)
+                .append(METADATA + "." + GridFsContentResource.LAST_MODIFIED_BY, 1);
+
+        List<Version> versions = new ArrayList<Version>();
+        DBCursor cursor = files.find(new BasicDBObject(FILENAME, location), fields)
+                .sort(new BasicDBObject(UPLOAD_DATE, 1));
+        try {
+            int count = 1;
+            while (cursor.hasNext()) {
+                versions.add(GridFSContentProviderReceiver.version(file(cursor.next()), location, count));
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.reverse(versions);
+        return versions;
+    }
+
+    private static GridFSFile file(DBObject dbObject) {
+        // Not attached to a GridFS instance, so these can't stream their own chunks -- GridFsContentResource
+        // goes back through GridFsOperations for that
+        GridFSDBFile file = new GridFSDBFile();
+        for (String key : dbObject.keySet()) {
+            file.put(key, dbObject.get(key));
+        }
+        return file;
+    }
+
+}
@@ -39,6 +39,7 @@ import piecework.task.TaskFactory;
 import piecework.util.ProcessInstanceUtility;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * @author James Renfro
@@ -81,31 +82,31 @@ public class EngineStateSynchronizer {
             if (LOG.isDebugEnabled())
                 LOG.debug("Process instance started " + processInstanceId);
 
-                mediator.notify(new StateChangeEvent.Builder(type).context(context).instanceProvider(instanceProvider).build());
+                mediator.notify(new StateChangeEvent.Builder(type).context(context).instanceProvider(instanceProvider).processInstanceId(processInstanceId).build());
 //                doStartNotification(type, context);
 
             break;
         case CANCEL_PROCESS:
             LOG.debug("Process instance cancelled " + processInstanceId);
-            mediator.notify(new StateChangeEvent.Builder(StateChangeType.CANCEL_PROCESS).context(context).instanceProvider(instanceProvider).build());
+            mediator.notify(new StateChangeEvent.Builder(StateChangeType.CANCEL_PROCESS).context(context).instanceProvider(instanceProvider).processInstanceId(processInstanceId).build());
             break;
         case COMPLETE_PROCESS:
             ProcessInstance instance = processInstanceService.complete(instanceProvider);
             if (instance != null) {
                 LOG.debug("Process instance completed " + processInstanceId);
-                mediator.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS).context(context).instanceProvider(instanceProvider).build());
+                mediator.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS).context(context).instanceProvider(instanceProvider).processInstanceId(processInstanceId).build());
             } else {
                 LOG.error("Unable to save final state of process instance with execution business key because the instance could not be found" + processInstanceId);
             }
         }
     }
 
-    public void onTaskEvent(StateChangeType type, EngineTask delegateTask, EngineContext context) {
+    public void onTaskEvent(final StateChangeType type, final EngineTask delegateTask, final EngineContext context) {
         try {
             ProcessInstanceProvider instanceProvider = null;
-            Task updated;
-            Process process;
-            ProcessInstance instance;
+            final Task updated;
+            final Process process;
+            final ProcessInstance instance;
             switch(type) {
                 case CREATE_TASK:
                     instanceProvider = modelProviderFactory.instanceProvider(delegateTask.getProcessDefinitionKey(), delegateTask.getProcessInstanceId(), new SystemUser());
@@ -126,8 +127,16 @@ public class EngineStateSynchronizer {
             if (updated != null) {
                 if (taskService.update(instance.getProcessInstanceId(), updated)) {
                     LOG.debug("Stored task changes");
-                    mediator.notify(new StateChangeEvent.Builder(type).context(context).instanceProvider(instanceProvider).task(updated).build());
-                    doTaskNotification(type, process, instance, updated, context);
+                    mediator.notify(new StateChangeEvent.Builder(type).context(context).instanceProvider(instanceProvider).processInstanceId(instance.getProcessInstanceId()).task(updated).build());
+                    // Sending email can be slow, so it doesn't have to hold up the engine -- and it isn't retried,
+                    // since whatever went out before a failure would go out again
+                    mediator.dispatchOnce(delegateTask.getProcessDefinitionKey(), instance.getProcessInstanceId(), type + " notification for task " + updated.getTaskInstanceId(), new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            doTaskNotification(type, process, instance, updated, context);
+                            return null;
+                        }
+                    });
                 } else {
                     LOG.error("Failed to store task changes");
                 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
+import piecework.model.DeadLetterEvent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs work for the mediator off the engine's thread. Each process definition gets its own
+ * set of single-threaded lanes with bounded queues, and all work for a given process instance
+ * goes to the same lane, so it runs in the order it was submitted. Failed work is retried on
+ * the same lane (holding up the ones behind it, to keep the order) and after the last attempt
+ * is recorded in the 'event.dead.letter' collection. Work that mustn't be done twice, like
+ * sending email, is submitted once, and goes straight to the dead letters if it fails.
+ *
+ * When a lane's queue is full the submitting thread waits briefly for room, which slows the
+ * engine down to the pace of the listeners, and then gives up and dead-letters the work.
+ *
+ * @author James Renfro
+ */
+public class EventDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(EventDispatcher.class);
+
+    private final Environment environment;
+    private final MongoOperations mongoOperations;
+    private final int defaultThreads;
+    private final int queueCapacity;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final long offerTimeoutMillis;
+
+    private final ConcurrentMap<String, ThreadPoolExecutor[]> lanes = new ConcurrentHashMap<String, ThreadPoolExecutor[]>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    public EventDispatcher(Environment environment, MongoOperations mongoOperations) {
+        this.environment = environment;
+        this.mongoOperations = mongoOperations;
+        this.defaultThreads = Math.max(1, environment.getProperty("mediator.async.threads", Integer.class, 2));
+        this.queueCapacity = environment.getProperty("mediator.async.queue.capacity", Integer.class, 1000);
+        this.maxAttempts = Math.max(1, environment.getProperty("mediator.async.max.attempts", Integer.class, 3));
+        this.retryDelayMillis = environment.getProperty("mediator.async.retry.delay.millis", Long.class, 1000l);
+        this.offerTimeoutMillis = environment.getProperty("mediator.async.offer.timeout.millis", Long.class, 100l);
+    }
+
+    public void submit(String processDefinitionKey, String processInstanceId, String description, Callable<?> work) {
+        submit(processDefinitionKey, processInstanceId, description, work, maxAttempts);
+    }
+
+    public void submitOnce(String processDefinitionKey, String processInstanceId, String description, Callable<?> work) {
+        submit(processDefinitionKey, processInstanceId, description, work, 1);
+    }
+
+    private void submit(String processDefinitionKey, String processInstanceId, String description, Callable<?> work, int attempts) {
+        ThreadPoolExecutor lane = lane(processDefinitionKey, processInstanceId);
+        submitted.incrementAndGet();
+        try {
+            lane.execute(new Delivery(processDefinitionKey, processInstanceId, description, work, attempts));
+        } catch (RejectedExecutionException e) {
+            deadLetter(processDefinitionKey, processInstanceId, description, 0, "Rejected: " + e.getMessage());
+        }
+    }
+
+    public void shutdown(long timeoutMillis) {
+        for (ThreadPoolExecutor[] executors : lanes.values()) {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.shutdown();
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Map.Entry<String, ThreadPoolExecutor[]> entry : lanes.entrySet()) {
+            for (ThreadPoolExecutor executor : entry.getValue()) {
+                try {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !executor.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                        List<Runnable> abandoned = executor.shutdownNow();
+                        if (!abandoned.isEmpty())
+                            LOG.warn("Abandoned " + abandoned.size() + " queued events for " + entry.getKey() + " on shutdown");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    /*
+     * Number of queued (not yet running) items for each process definition
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<String, Integer>();
+        for (Map.Entry<String, ThreadPoolExecutor[]> entry : lanes.entrySet()) {
+            int depth = 0;
+            for (ThreadPoolExecutor executor : entry.getValue()) {
+                depth += executor.getQueue().size();
+            }
+            depths.put(entry.getKey(), Integer.valueOf(depth));
+        }
+        return depths;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    private ThreadPoolExecutor lane(String processDefinitionKey, String processInstanceId) {
+        String key = processDefinitionKey != null ? processDefinitionKey : "";
+        ThreadPoolExecutor[] executors = lanes.get(key);
+        if (executors == null) {
+            ThreadPoolExecutor[] created = executors(key);
+            executors = lanes.putIfAbsent(key, created);
+            if (executors == null) {
+                executors = created;
+                for (ThreadPoolExecutor executor : executors) {
+                    executor.prestartCoreThread();
+                }
+            } else {
+                // Someone else got there first, these never started any threads
+                for (ThreadPoolExecutor executor : created) {
+                    executor.shutdown();
+                }
+            }
+        }
+        int hash = processInstanceId != null ? processInstanceId.hashCode() : 0;
+        return executors[(hash & Integer.MAX_VALUE) % executors.length];
+    }
+
+    private ThreadPoolExecutor[] executors(final String processDefinitionKey) {
+        int threads = defaultThreads;
+        if (StringUtils.isNotEmpty(processDefinitionKey))
+            threads = Math.max(1, environment.getProperty("mediator.async." + processDefinitionKey + ".threads", Integer.class, defaultThreads));
+
+        ThreadPoolExecutor[] executors = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "mediator-" + processDefinitionKey + "-" + i;
+            executors[i] = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    // Wait a little for room before giving up on it
+                    boolean queued = false;
+                    if (!executor.isShutdown()) {
+                        try {
+                            queued = executor.getQueue().offer(runnable, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    if (!queued)
+                        throw new RejectedExecutionException("queue for " + processDefinitionKey + " is full or shut down");
+                }
+            });
+        }
+        return executors;
+    }
+
+    private void deadLetter(String processDefinitionKey, String processInstanceId, String description, int attempts, String reason) {
+        deadLettered.incrementAndGet();
+        LOG.error("Unable to deliver " + description + " for process instance " + processInstanceId + " of " + processDefinitionKey + " after " + attempts + " attempts: " + reason);
+        if (mongoOperations == null)
+            return;
+        try {
+            mongoOperations.save(new DeadLetterEvent(description, processDefinitionKey, processInstanceId, attempts, reason));
+        } catch (RuntimeException e) {
+            LOG.error("Unable to save dead letter for " + description, e);
+        }
+    }
+
+    private class Delivery implements Runnable {
+
+        private final String processDefinitionKey;
+        private final String processInstanceId;
+        private final String description;
+        private final Callable<?> work;
+        private final int attempts;
+
+        private Delivery(String processDefinitionKey, String processInstanceId, String description, Callable<?> work, int attempts) {
+            this.processDefinitionKey = processDefinitionKey;
+            this.processInstanceId = processInstanceId;
+            this.description = description;
+            this.work = work;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public void run() {
+            Exception last = null;
+            for (int attempt = 1; attempt <= attempts; attempt++) {
+                try {
+                    work.call();
+                    delivered.incrementAndGet();
+                    return;
+                } catch (Exception e) {
+                    last = e;
+                    LOG.warn("Attempt " + attempt + " to deliver " + description + " failed", e);
+                }
+                if (attempt < attempts) {
+                    retried.incrementAndGet();
+                    try {
+                        Thread.sleep(retryDelayMillis * attempt);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        deadLetter(processDefinitionKey, processInstanceId, description, attempt, "Interrupted");
+                        return;
+                    }
+                }
+            }
+            deadLetter(processDefinitionKey, processInstanceId, description, attempts, last != null ? last.toString() : null);
+        }
+    }
+
+}
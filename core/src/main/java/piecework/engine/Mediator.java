@@ -22,6 +22,8 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.stereotype.Service;
 import piecework.command.AbstractCommand;
 import piecework.command.CommandListener;
@@ -33,22 +35,29 @@ import piecework.model.Process;
 import piecework.persistence.ProcessProvider;
 
 import javax.annotation.PostConstruct;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Allows command or event listeners to be registered by being included in the application context
  * with @Service annotation on startup. During PostConstruct these are stuck into maps keyed by the
  * process definition key.
  *
+ * When 'mediator.async.enabled' is turned on, event listeners are notified through an
+ * EventDispatcher instead of on the engine's thread, except for those that implement
+ * SynchronousEventListener. Asynchronous listeners get a copy of the event without the
+ * engine context, since that is only valid while the engine is calling us.
+ *
+ * Event listeners that return null for their process definition key hear about every process.
+ *
  * @author James Renfro
  */
 @Service
 public class Mediator implements ApplicationContextAware, InitializingBean {
 
     private static final Logger LOG = Logger.getLogger(Mediator.class);
+    private static final String ALL_PROCESSES = "*";
 
     @Autowired(required = false)
     Set<CommandListener> commandListeners;
@@ -56,6 +65,14 @@ public class Mediator implements ApplicationContextAware, InitializingBean {
     @Autowired(required = false)
     Set<EventListener> eventListeners;
 
+    @Autowired(required = false)
+    Environment environment;
+
+    @Autowired(required = false)
+    MongoOperations mongoOperations;
+
+    private EventDispatcher dispatcher;
+
     private ApplicationContext applicationContext;
 
     private ManyMap<String, CommandListener> commandListenerMap;
@@ -87,9 +104,20 @@ public class Mediator implements ApplicationContextAware, InitializingBean {
         this.eventListenerMap = new ManyMap<String, EventListener>();
         if (eventListeners != null) {
             for (EventListener listener : eventListeners) {
-                eventListenerMap.putOne(listener.getProcessDefinitionKey(), listener);
+                String processDefinitionKey = listener.getProcessDefinitionKey();
+                eventListenerMap.putOne(processDefinitionKey != null ? processDefinitionKey : ALL_PROCESSES, listener);
             }
         }
+        if (environment != null && environment.getProperty("mediator.async.enabled", Boolean.class, Boolean.FALSE)) {
+            this.dispatcher = new EventDispatcher(environment, mongoOperations);
+            LOG.info("Event listeners will be notified asynchronously");
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (dispatcher != null)
+            dispatcher.shutdown(environment.getProperty("mediator.async.shutdown.timeout.millis", Long.class, 10000l));
     }
 
     public <T, C extends AbstractCommand<T, P>, P extends ProcessProvider> C before(C command) throws PieceworkException {
@@ -131,13 +159,27 @@ public class Mediator implements ApplicationContextAware, InitializingBean {
             if (process != null) {
                 String processDefinitionKey = process.getProcessDefinitionKey();
                 if (StringUtils.isNotEmpty(processDefinitionKey)) {
-                    List<EventListener> listenerList = eventListenerMap.get(processDefinitionKey);
+                    List<EventListener> listenerList = listeners(processDefinitionKey);
                     if (listenerList != null) {
-                        for (EventListener listener : listenerList) {
-                            try {
-                                listener.notify(event);
-                            } catch (Exception e) {
-                                LOG.error("Caught exception notifying eventListeners", e);
+                        StateChangeEvent detached = null;
+                        for (final EventListener listener : listenerList) {
+                            if (dispatcher == null || listener instanceof SynchronousEventListener) {
+                                try {
+                                    listener.notify(event);
+                                } catch (Exception e) {
+                                    LOG.error("Caught exception notifying eventListeners", e);
+                                }
+                            } else {
+                                if (detached == null)
+                                    detached = new StateChangeEvent.Builder(event).context(null).build();
+                                final StateChangeEvent asyncEvent = detached;
+                                dispatcher.submit(processDefinitionKey, event.getProcessInstanceId(), event.getType() + " to " + listener.getClass().getName(), new Callable<Object>() {
+                                    @Override
+                                    public Object call() throws Exception {
+                                        listener.notify(asyncEvent);
+                                        return null;
+                                    }
+                                });
                             }
                         }
                     }
@@ -148,4 +190,57 @@ public class Mediator implements ApplicationContextAware, InitializingBean {
         }
     }
 
+    /*
+     * Runs work that doesn't have to finish before the engine moves on, like sending email, in
+     * the same order as the events for the process instance -- or right away if dispatch is
+     * synchronous
+     */
+    public void dispatch(String processDefinitionKey, String processInstanceId, String description, Callable<?> work) {
+        if (dispatcher != null) {
+            dispatcher.submit(processDefinitionKey, processInstanceId, description, work);
+            return;
+        }
+        run(description, work);
+    }
+
+    /*
+     * Like dispatch, but for work that mustn't be done twice, like sending email -- it's never retried
+     */
+    public void dispatchOnce(String processDefinitionKey, String processInstanceId, String description, Callable<?> work) {
+        if (dispatcher != null) {
+            dispatcher.submitOnce(processDefinitionKey, processInstanceId, description, work);
+            return;
+        }
+        run(description, work);
+    }
+
+    private void run(String description, Callable<?> work) {
+        try {
+            work.call();
+        } catch (Exception e) {
+            LOG.error("Caught exception running " + description, e);
+        }
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        return dispatcher != null ? dispatcher.getQueueDepths() : Collections.<String, Integer>emptyMap();
+    }
+
+    public EventDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    private List<EventListener> listeners(String processDefinitionKey) {
+        List<EventListener> listenerList = eventListenerMap.get(processDefinitionKey);
+        List<EventListener> allProcessListenerList = eventListenerMap.get(ALL_PROCESSES);
+        if (allProcessListenerList == null)
+            return listenerList;
+        if (listenerList == null)
+            return allProcessListenerList;
+
+        List<EventListener> combined = new ArrayList<EventListener>(listenerList);
+        combined.addAll(allProcessListenerList);
+        return combined;
+    }
+
 }
@@ -19,6 +19,8 @@ import piecework.enumeration.StateChangeType;
 import piecework.model.Task;
 import piecework.persistence.ProcessInstanceProvider;
 
+import java.util.Date;
+
 /**
  * @author James Renfro
  */
@@ -26,8 +28,10 @@ public class StateChangeEvent {
 
     private final StateChangeType type;
     private final ProcessInstanceProvider instanceProvider;
+    private final String processInstanceId;
     private final Task task;
     private final EngineContext context;
+    private final Date date;
 
     private StateChangeEvent() {
         this(new Builder(StateChangeType.NONE));
@@ -36,8 +40,10 @@ public class StateChangeEvent {
     private StateChangeEvent(Builder builder) {
         this.type = builder.type;
         this.instanceProvider = builder.instanceProvider;
+        this.processInstanceId = builder.processInstanceId;
         this.task = builder.task;
         this.context = builder.context;
+        this.date = builder.date;
     }
 
     public StateChangeType getType() {
@@ -48,6 +54,12 @@ public class StateChangeEvent {
         return instanceProvider;
     }
 
+    public String getProcessInstanceId() {
+        if (processInstanceId == null && task != null)
+            return task.getProcessInstanceId();
+        return processInstanceId;
+    }
+
     public Task getTask() {
         return task;
     }
@@ -56,15 +68,34 @@ public class StateChangeEvent {
         return context;
     }
 
+    /*
+     * When the state changed, rather than when a listener gets around to hearing about it
+     */
+    public Date getDate() {
+        return date;
+    }
+
     public static final class Builder {
 
         private final StateChangeType type;
         private ProcessInstanceProvider instanceProvider;
+        private String processInstanceId;
         private Task task;
         private EngineContext context;
+        private Date date;
 
         public Builder(StateChangeType type) {
             this.type = type;
+            this.date = new Date();
+        }
+
+        public Builder(StateChangeEvent event) {
+            this.type = event.type;
+            this.instanceProvider = event.instanceProvider;
+            this.processInstanceId = event.processInstanceId;
+            this.task = event.task;
+            this.context = event.context;
+            this.date = event.date;
         }
 
         public StateChangeEvent build() {
@@ -76,6 +107,11 @@ public class StateChangeEvent {
             return this;
         }
 
+        public Builder processInstanceId(String processInstanceId) {
+            this.processInstanceId = processInstanceId;
+            return this;
+        }
+
         public Builder task(Task task) {
             this.task = task;
             return this;
@@ -86,6 +122,11 @@ public class StateChangeEvent {
             return this;
         }
 
+        public Builder date(Date date) {
+            this.date = date;
+            return this;
+        }
+
     }
 
 
@@ -36,6 +36,7 @@ import piecework.repository.ProcessInstanceRepository;
 import piecework.security.concrete.PassthroughSanitizer;
 import piecework.task.TaskCriteria;
 import piecework.task.TaskResults;
+import piecework.util.KeywordUtility;
 import piecework.validation.Validation;
 
 import java.util.*;
@@ -198,8 +199,10 @@ public class ProcessEngineConcreteFacade implements ProcessEngineFacade {
 
             List<ProcessInstance> processInstances;
 
-            if (StringUtils.isNotEmpty(keyword))
-                processInstances = processInstanceRepository.findByProcessDefinitionKeyInAndEngineProcessInstanceIdInAndKeyword(allowedProcessDefinitionKeys, engineProcessInstanceIds, keyword);
+            // A keyword of nothing but punctuation has no pattern, so it's left out like an empty one
+            String keywordRegex = StringUtils.isNotEmpty(keyword) ? KeywordUtility.prefixRegex(keyword) : null;
+            if (keywordRegex != null)
+                processInstances = processInstanceRepository.findByProcessDefinitionKeyInAndEngineProcessInstanceIdInAndKeyword(allowedProcessDefinitionKeys, engineProcessInstanceIds, keywordRegex);
             else
                 processInstances = processInstanceRepository.findByProcessDefinitionKeyInAndEngineProcessInstanceIdIn(allowedProcessDefinitionKeys, engineProcessInstanceIds);
 
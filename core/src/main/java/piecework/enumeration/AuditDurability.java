@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.enumeration;
+
+/**
+ * How far an access event has to get before restricted data is handed back. SYNC waits for
+ * the event to be written to Mongo (or to the spool file, when Mongo is down). ASYNC only
+ * waits for it to be queued in memory, so events can be lost if the server dies before the
+ * queue is written out.
+ *
+ * @author James Renfro
+ */
+public enum AuditDurability {
+    SYNC, ASYNC
+}
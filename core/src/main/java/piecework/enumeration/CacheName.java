@@ -19,17 +19,21 @@ package piecework.enumeration;
  * @author James Renfro
  */
 public enum CacheName {
-    ACCESS_ANONYMOUS(true),
-    ACCESS_AUTHENTICATED(true),
     AUTHORIZATIONS(true),
     GROUP(true),
+    HISTORY(true),
     PROCESS,
     PROCESS_BASIC,
     PROCESS_DEPLOYMENT,
+    REMOTE_FIELDS(true),
     SCRIPT(true),
     STYLESHEET(true),
+    TEMPLATE(true),
+    VALIDATION_PLAN,
     MULTI_USER(true),
-    IDENTITY(true);
+    NOTIFICATION_TEMPLATE(true),
+    IDENTITY(true),
+    USER(true);
 
     private boolean local;
 
@@ -25,6 +25,7 @@ import piecework.model.ProcessInstance;
 import piecework.util.ExportUtility;
 
 import javax.ws.rs.WebApplicationException;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -70,6 +71,8 @@ public class ExportAsCommaSeparatedValuesProvider implements IteratingDataProvid
         } finally {
             if (writer != null)
                 writer.close();
+            if (pager instanceof Closeable)
+                ((Closeable) pager).close();
         }
 
     }
@@ -20,9 +20,8 @@ import org.apache.log4j.Logger;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.WorkbookUtil;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.springframework.data.domain.Page;
 import piecework.export.IteratingDataProvider;
 import piecework.export.Pager;
@@ -30,22 +29,29 @@ import piecework.model.ProcessInstance;
 import piecework.util.ExportUtility;
 
 import javax.ws.rs.WebApplicationException;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
 
 /**
+ * Writes the workbook with the streaming (SXSSF) flavor of POI, which keeps only the last
+ * ROW_WINDOW rows in memory and flushes the rest to a compressed temporary file, so heap use
+ * stays flat no matter how many instances are exported. The xlsx zip itself can only be
+ * written out once the sheet is complete, which happens in one pass from the temporary file.
+ *
  * @author James Renfro
  */
 public class ExportAsExcelWorkbookProvider implements IteratingDataProvider<Row> {
 
     private static final Logger LOG = Logger.getLogger(ExportAsExcelWorkbookProvider.class);
+    private static final int ROW_WINDOW = 100;
 
     private final Map<String, String> headerMap;
     private final String[] headerKeys;
     private final Pager<ProcessInstance> pager;
 
-    private Workbook wb;
+    private SXSSFWorkbook wb;
     private Sheet sheet;
     private int rowCount = 0;
 
@@ -53,7 +59,8 @@ public class ExportAsExcelWorkbookProvider implements IteratingDataProvider<Row>
         this.headerMap = headerMap;
         this.pager = pager;
 
-        this.wb = new XSSFWorkbook();
+        this.wb = new SXSSFWorkbook(ROW_WINDOW);
+        this.wb.setCompressTempFiles(true);
         Date now = new Date();
         this.sheet = wb.createSheet(WorkbookUtil.createSafeSheetName(processDefinitionLabel + " Export - " + now.toString()));
 
@@ -73,6 +80,10 @@ public class ExportAsExcelWorkbookProvider implements IteratingDataProvider<Row>
             throw new WebApplicationException(e);
         } finally {
             IOUtils.closeQuietly(output);
+            // Removes the temporary file behind the sheet
+            wb.dispose();
+            if (pager instanceof Closeable)
+                ((Closeable) pager).close();
         }
     }
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.export.concrete;
+
+import org.apache.log4j.Logger;
+import org.springframework.data.domain.Page;
+import piecework.export.Pager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Wraps another pager so that the next page is fetched in the background while the caller
+ * is still writing out the current one. Only one fetch is ever outstanding, so the wrapped
+ * pager is never called from two threads at once. Close it when done to stop the background
+ * thread and close the wrapped pager -- both also happen on their own once the last page has
+ * been fetched.
+ *
+ * @author James Renfro
+ */
+public class PrefetchingPager<T> implements Pager<T>, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(PrefetchingPager.class);
+
+    private final Pager<T> pager;
+    private ExecutorService executor;
+    private Future<Page<T>> next;
+    private boolean started;
+
+    public PrefetchingPager(Pager<T> pager) {
+        this.pager = pager;
+    }
+
+    @Override
+    public Page<T> nextPage() {
+        Page<T> page;
+        if (next != null) {
+            page = await(next);
+            next = null;
+        } else {
+            page = pager.nextPage();
+        }
+        started = true;
+
+        if (pager.hasNext()) {
+            next = executor().submit(new Callable<Page<T>>() {
+                @Override
+                public Page<T> call() throws Exception {
+                    return pager.nextPage();
+                }
+            });
+        } else {
+            close();
+        }
+        return page;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return started ? next != null : pager.hasNext();
+    }
+
+    @Override
+    public void reset() {
+        if (next != null) {
+            // Let the fetch that's under way finish so it doesn't race with the reset
+            try {
+                await(next);
+            } catch (RuntimeException e) {
+                LOG.warn("Discarding failed page fetch on reset", e);
+            }
+            next = null;
+        }
+        started = false;
+        pager.reset();
+    }
+
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                // Don't release the wrapped pager out from under a fetch that is still running
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                    LOG.warn("Page fetch did not stop within 5 seconds of close");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        if (pager instanceof Closeable) {
+            try {
+                ((Closeable) pager).close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close pager", e);
+            }
+        }
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "export-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private Page<T> await(Future<Page<T>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new IllegalStateException("Interrupted waiting for the next page", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException("Unable to fetch the next page", cause);
+        }
+    }
+
+}
@@ -16,18 +16,27 @@
 package piecework.export.concrete;
 
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.query.Query;
+import piecework.common.CloseableIterator;
 import piecework.export.Pager;
 import piecework.model.ProcessInstance;
 import piecework.repository.ProcessInstanceRepository;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
+ * Pages through the results of a query by reading from a single open cursor, rather than
+ * re-running the query with an ever larger skip for each page. The total is counted once, on
+ * the first page. Close it to release the cursor if the pages aren't read to the end.
+ *
  * @author James Renfro
  */
-public class ProcessInstanceQueryPager implements Pager<ProcessInstance> {
+public class ProcessInstanceQueryPager implements Pager<ProcessInstance>, Closeable {
 
     private static final int PAGE_SIZE = 200;
 
@@ -35,29 +44,51 @@ public class ProcessInstanceQueryPager implements Pager<ProcessInstance> {
     private final ProcessInstanceRepository repository;
     private final Sort sort;
 
-    private Page<ProcessInstance> page;
-    private Pageable request;
+    private CloseableIterator<ProcessInstance> cursor;
+    private long total;
+    private int pageNumber;
+    private boolean exhausted;
 
     public ProcessInstanceQueryPager(Query query, ProcessInstanceRepository repository, Sort sort) {
-        this.query = query;
+        this.query = sort != null ? query.with(sort) : query;
         this.repository = repository;
-        this.request = new PageRequest(0, PAGE_SIZE, sort);
         this.sort = sort;
     }
 
     public Page<ProcessInstance> nextPage() {
-        Query query = this.query.with(this.request);
-        this.page = repository.findByQuery(query, this.request, true);
-        this.request = page.nextPageable();
+        if (cursor == null) {
+            this.total = repository.countByQuery(query);
+            this.cursor = repository.iterateByQuery(query, PAGE_SIZE);
+        }
+
+        List<ProcessInstance> content = new ArrayList<ProcessInstance>(PAGE_SIZE);
+        while (content.size() < PAGE_SIZE && cursor.hasNext()) {
+            content.add(cursor.next());
+        }
+        Page<ProcessInstance> page = new PageImpl<ProcessInstance>(content, new PageRequest(pageNumber++, PAGE_SIZE, sort), total);
+        if (!cursor.hasNext()) {
+            this.exhausted = true;
+            close();
+        }
         return page;
     }
 
     public boolean hasNext() {
-        return this.page == null || !this.page.isLastPage();
+        return !exhausted;
     }
 
     public void reset() {
-        this.request = new PageRequest(0, PAGE_SIZE, sort);
+        close();
+        this.pageNumber = 0;
+        this.exhausted = false;
+    }
+
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
     }
 
 }
@@ -15,6 +15,7 @@
  */
 package piecework.identity;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
@@ -32,7 +33,7 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * @author James Renfro
  */
-public class GroupServiceFactoryBean implements FactoryBean<GroupService> {
+public class GroupServiceFactoryBean implements FactoryBean<GroupService>, DisposableBean {
 
     @Autowired
     CacheService cacheService;
@@ -49,6 +50,8 @@ public class GroupServiceFactoryBean implements FactoryBean<GroupService> {
     @Autowired
     SSLSocketFactory sslSocketFactory;
 
+    private LdapGroupService ldapGroupService;
+
     @Override
     public GroupService getObject() throws Exception {
         LdapContextSource contextSource = LdapUtility.groupLdapContextSource(ldapSettings, sslSocketFactory);
@@ -57,7 +60,14 @@ public class GroupServiceFactoryBean implements FactoryBean<GroupService> {
         groupSearch.setSearchSubtree(true);
         groupSearch.setSearchTimeLimit(10000);
 
-        return new LdapGroupService(cacheService, identityService, contextSource, groupSearch, ldapSettings);
+        ldapGroupService = new LdapGroupService(cacheService, identityService, contextSource, groupSearch, ldapSettings);
+        return ldapGroupService;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (ldapGroupService != null)
+            ldapGroupService.shutdown();
     }
 
     @Override
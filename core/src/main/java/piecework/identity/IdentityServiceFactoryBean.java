@@ -16,6 +16,7 @@
 package piecework.identity;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
@@ -39,7 +40,7 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * @author James Renfro
  */
-public class IdentityServiceFactoryBean implements FactoryBean<IdentityService> {
+public class IdentityServiceFactoryBean implements FactoryBean<IdentityService>, DisposableBean {
 
     private static final Logger LOG = Logger.getLogger(IdentityServiceFactoryBean.class);
 
@@ -70,6 +71,7 @@ public class IdentityServiceFactoryBean implements FactoryBean<IdentityService>
     @Autowired
     SSLSocketFactory sslSocketFactory;
 
+    private LdapIdentityService ldapIdentityService;
 
     @Override
     public IdentityService getObject() throws Exception {
@@ -88,7 +90,15 @@ public class IdentityServiceFactoryBean implements FactoryBean<IdentityService>
         LdapUserSearch userSearch = LdapUtility.userSearch(contextSource, ldapSettings);
         LdapAuthoritiesPopulator authoritiesPopulator = LdapUtility.authoritiesPopulator(ldapSettings, sslSocketFactory);
         CustomLdapUserDetailsMapper userDetailsMapper = new CustomLdapUserDetailsMapper(new LdapUserDetailsMapper(), displayNameConverter, ldapSettings);
-        return new LdapIdentityService(userDetailsService, cacheService, contextSource, userSearch, authoritiesPopulator, userDetailsMapper, ldapSettings, accessFactory);
+        ldapIdentityService = new LdapIdentityService(userDetailsService, cacheService, contextSource, userSearch, authoritiesPopulator, userDetailsMapper, ldapSettings, accessFactory);
+        return ldapIdentityService;
+    }
+
+    // The identity service isn't a bean in its own right, so its refresh thread is stopped with the factory
+    @Override
+    public void destroy() throws Exception {
+        if (ldapIdentityService != null)
+            ldapIdentityService.shutdown();
     }
 
     @Override
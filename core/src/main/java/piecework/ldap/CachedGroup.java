@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ldap;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Entry in the group cache -- the ids of a group's members rather than the members themselves,
+ * which are cached on their own as users, or a note that there is no such group, along with
+ * when it was looked up. Like the user cache, the group cache is local to each node.
+ *
+ * @author James Renfro
+ */
+class CachedGroup implements Serializable {
+
+    private static final long serialVersionUID = 88951507933746545L;
+
+    private final String groupId;
+    private final String displayName;
+    private final List<String> memberIds;
+    private final long loaded;
+
+    CachedGroup(String groupId, String displayName, List<String> memberIds, long loaded) {
+        this.groupId = groupId;
+        this.displayName = displayName;
+        this.memberIds = memberIds != null ? Collections.unmodifiableList(memberIds) : null;
+        this.loaded = loaded;
+    }
+
+    String getGroupId() {
+        return groupId;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    List<String> getMemberIds() {
+        return memberIds;
+    }
+
+    boolean isMissing() {
+        return memberIds == null;
+    }
+
+    boolean isOlderThan(long millis, long now) {
+        return now - loaded > millis;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ldap;
+
+import piecework.model.User;
+
+import java.io.Serializable;
+
+/**
+ * Entry in the user cache -- a user looked up by id, or a note that there is no such user,
+ * along with when it was looked up. The user cache is local to each node, so entries are never
+ * sent to another one.
+ *
+ * @author James Renfro
+ */
+class CachedUser implements Serializable {
+
+    private static final long serialVersionUID = -4908536598045345118L;
+
+    private final User user;
+    private final long loaded;
+
+    CachedUser(User user, long loaded) {
+        this.user = user;
+        this.loaded = loaded;
+    }
+
+    User getUser() {
+        return user;
+    }
+
+    boolean isMissing() {
+        return user == null;
+    }
+
+    boolean isOlderThan(long millis, long now) {
+        return now - loaded > millis;
+    }
+
+}
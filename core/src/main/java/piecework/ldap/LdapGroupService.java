@@ -28,19 +28,31 @@ import piecework.service.CacheService;
 import piecework.service.GroupService;
 import piecework.service.IdentityService;
 
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Groups are cached as the ids of their members, apart from the members' details, which are
+ * cached as users by the identity service with their own lifetimes. Expanding a group resolves
+ * all of its members in one call to the identity service, so only the ones that aren't cached
+ * yet go to LDAP, and those in batched searches. Groups that are still being read after the
+ * refresh interval are reloaded in the background, and unknown groups are remembered for a
+ * shorter time so they don't cause a search on every request.
+ *
  * @author Jiefeng Shen
  */
 public class LdapGroupService implements GroupService {
 
     private static final Logger LOG = Logger.getLogger(LdapGroupService.class);
+    private static final int REFRESH_QUEUE_CAPACITY = 100;
 
     private final LdapContextSource groupLdapContextSource;
     private final LdapSettings ldapSettings;
     private final LdapUserSearch groupSearch;
     private final CacheService cacheService;
     private final IdentityService identityService;  // needed to populate user details of group members.
+    private final ThreadPoolExecutor refresher;
+    private final Set<String> refreshing;
 
     public LdapGroupService() {
         this(null, null, null, null, null);
@@ -52,6 +64,19 @@ public class LdapGroupService implements GroupService {
         this.groupLdapContextSource = groupLdapContextSource;
         this.groupSearch = groupSearch;
         this.ldapSettings = ldapSettings;
+        this.refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.refresher = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ldap-group-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
     }
 
     /**
@@ -71,17 +96,31 @@ public class LdapGroupService implements GroupService {
             return null;
         }
 
-        Cache.ValueWrapper wrapper = cacheService.get(CacheName.GROUP, groupId);
+        long now = System.currentTimeMillis();
+        CachedGroup cached = cached(groupId, now);
+        if (cached == null) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Retrieving group from ldap server by groupId " + groupId);
+            cached = lookup(groupId);
+        } else if (isStale(cached, now)) {
+            refresh(groupId);
+        }
 
-        if (wrapper != null)
-            return (Group) wrapper.get();
+        if (cached == null || cached.isMissing())
+            return null;
 
-        if (LOG.isDebugEnabled())
-            LOG.debug("Retrieving group from ldap server by groupId " + groupId);
+        return group(cached);
+    }
 
+    /*
+     * Looks up the group and the ids of its members in LDAP and caches them -- or caches the
+     * fact that there is no such group. Returns null only when the search itself didn't work out.
+     */
+    CachedGroup lookup(String groupId) {
+        long now = System.currentTimeMillis();
+        CachedGroup cached;
         try {
             DirContextOperations groupData = groupSearch.searchForUser(groupId);
-            Group.Builder builder = new Group.Builder();
 
             // get group attributes
             String memberKey = ldapSettings.getLdapGroupAttributeMember();
@@ -90,35 +129,108 @@ public class LdapGroupService implements GroupService {
             }
             String[] members = groupData.getStringAttributes(memberKey);
 
+            String id = null;
             String groupIdKey = ldapSettings.getLdapGroupAttributeId();
             if ( groupIdKey != null && !groupIdKey.isEmpty() ) {
-                 builder.groupId( groupData.getStringAttribute(groupIdKey));
+                id = groupData.getStringAttribute(groupIdKey);
             }
 
+            String displayName = null;
             String displayNameKey = ldapSettings.getLdapGroupAttributeDisplayName();
             if ( displayNameKey != null && !displayNameKey.isEmpty() ) {
-                 builder.displayName(groupData.getStringAttribute(displayNameKey));
+                displayName = groupData.getStringAttribute(displayNameKey);
             }
 
             String prefix = ldapSettings.getLdapGroupUseridPrefix();
             prefix = prefix == null ? "" : prefix; // set prefix to "" for easier use later.
-            for ( String m : members ) {
-                if ( prefix == null || prefix.isEmpty() || m.startsWith(prefix) ) {
-                    String userId = m.substring(prefix.length());
-                    User user = identityService.getUser(userId);
-                    if ( user != null ) {
-                        builder.member(user);
+            List<String> memberIds = new ArrayList<String>();
+            if ( members != null ) {
+                for ( String m : members ) {
+                    if ( prefix.isEmpty() || m.startsWith(prefix) ) {
+                        memberIds.add(m.substring(prefix.length()));
                     }
                 }
             }
-    
-            Group group = builder.build();
-            cacheService.put(CacheName.GROUP, groupId, group);
-            return group;
+            cached = new CachedGroup(id, displayName, memberIds, now);
         } catch (UsernameNotFoundException e) {
             // log an error message and continue
             LOG.warn("group " + groupId + " not found");
-        }   
-        return null;
+            cached = new CachedGroup(null, null, null, now);
+        }
+        cacheService.put(CacheName.GROUP, groupId, cached);
+        return cached;
+    }
+
+    /*
+     * Members are resolved all at once, so the ones that aren't cached as users yet are looked
+     * up in a few batched searches rather than one search each
+     */
+    private Group group(CachedGroup cached) {
+        Group.Builder builder = new Group.Builder();
+        if (cached.getGroupId() != null)
+            builder.groupId(cached.getGroupId());
+        if (cached.getDisplayName() != null)
+            builder.displayName(cached.getDisplayName());
+
+        List<String> memberIds = cached.getMemberIds();
+        if (!memberIds.isEmpty()) {
+            Map<String, User> users = identityService.findUsers(new LinkedHashSet<String>(memberIds));
+            if (users != null && !users.isEmpty()) {
+                // LDAP matches ids without regard to case, so do the same here
+                Map<String, User> found = new HashMap<String, User>();
+                for (User user : users.values()) {
+                    if (user != null && user.getUserId() != null)
+                        found.put(user.getUserId().toLowerCase(), user);
+                }
+                for (String memberId : memberIds) {
+                    User user = found.get(memberId.toLowerCase());
+                    if ( user != null ) {
+                        builder.member(user);
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private CachedGroup cached(String groupId, long now) {
+        Cache.ValueWrapper wrapper = cacheService.get(CacheName.GROUP, groupId);
+        Object value = wrapper != null ? wrapper.get() : null;
+        if (!(value instanceof CachedGroup))
+            return null;
+        CachedGroup cached = CachedGroup.class.cast(value);
+        // Unknown groups are only remembered for a little while, in case they're about to be added
+        if (cached.isMissing() && cached.isOlderThan(ldapSettings.getLdapGroupCacheMissingSeconds() * 1000l, now))
+            return null;
+        return cached;
     }
+
+    private boolean isStale(CachedGroup cached, long now) {
+        return !cached.isMissing() && cached.isOlderThan(ldapSettings.getLdapGroupCacheRefreshSeconds() * 1000l, now);
+    }
+
+    private void refresh(final String groupId) {
+        // Skip it if it's already waiting to be refreshed
+        if (!refreshing.add(groupId))
+            return;
+
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(groupId);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to refresh cached group " + groupId, e);
+                    } finally {
+                        refreshing.remove(groupId);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Plenty of refreshing already queued up, this can wait for the next request
+            refreshing.remove(groupId);
+        }
+    }
+
 }
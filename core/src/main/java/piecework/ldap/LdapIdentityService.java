@@ -15,6 +15,7 @@
  */
 package piecework.ldap;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.cache.Cache;
 import org.springframework.ldap.SizeLimitExceededException;
@@ -37,13 +38,22 @@ import piecework.service.IdentityService;
 
 import javax.naming.directory.SearchControls;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Users are cached one by one under their ids, so a page that asks for a different mix of
+ * users than the last one only goes to LDAP for the ones that aren't cached yet, and those are
+ * looked up together in OR filters of a bounded size. Ids that LDAP doesn't know about are
+ * remembered for a shorter time so they don't cause a search on every request. Entries that
+ * are still being read after the refresh interval are reloaded in the background, so users
+ * who keep showing up never have to wait on LDAP once they're cached.
+ *
  * @author James Renfro
  */
 public class LdapIdentityService implements IdentityService {
 
     private static final Logger LOG = Logger.getLogger(LdapIdentityService.class);
+    private static final int REFRESH_QUEUE_CAPACITY = 100;
 
     private final CacheService cacheService;
     private final LdapContextSource personLdapContextSource;
@@ -54,6 +64,8 @@ public class LdapIdentityService implements IdentityService {
     private final CustomLdapUserDetailsMapper userDetailsMapper;
     private final UserDetailsService userDetailsService;
     private final AccessFactory accessFactory;
+    private final ThreadPoolExecutor refresher;
+    private final Set<String> refreshing;
 
     public LdapIdentityService(UserDetailsService userDetailsService, CacheService cacheService, LdapContextSource personLdapContextSource, LdapUserSearch userSearch, LdapAuthoritiesPopulator authoritiesPopulator, CustomLdapUserDetailsMapper userDetailsMapper, LdapSettings ldapSettings, AccessFactory accessFactory) {
         this.userDetailsService = userDetailsService;
@@ -66,6 +78,19 @@ public class LdapIdentityService implements IdentityService {
         this.authoritiesPopulator = authoritiesPopulator;
         this.ldapSettings = ldapSettings;
         this.accessFactory = accessFactory;
+        this.refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.refresher = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ldap-user-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
     }
 
     @Override
@@ -74,23 +99,33 @@ public class LdapIdentityService implements IdentityService {
         if (LOG.isDebugEnabled())
             start = System.currentTimeMillis();
         Map<String, User> map = new HashMap<String, User>();
+        int missed = 0;
         if (ids != null && !ids.isEmpty()) {
-            String internalId = ldapSettings.getLdapPersonAttributeIdInternal();
-            OrFilter filter = new OrFilter();
+            long now = System.currentTimeMillis();
+            Set<String> missing = new LinkedHashSet<String>();
+            Set<String> stale = new HashSet<String>();
             for (String id : ids) {
-                filter.or(new EqualsFilter(internalId, id));
-            }
-            List<User> users = findMany(filter, -1);
-            if (users != null) {
-                for (User user : users) {
-                    if (user != null)
-                        map.put(user.getUserId(), user);
+                if (StringUtils.isEmpty(id))
+                    continue;
+                CachedUser cached = cached(id, now);
+                if (cached == null) {
+                    missing.add(id);
+                } else if (!cached.isMissing()) {
+                    User user = cached.getUser();
+                    map.put(user.getUserId(), user);
+                    if (isStale(cached, now))
+                        stale.add(id);
                 }
             }
+            missed = missing.size();
+            if (!missing.isEmpty())
+                map.putAll(lookup(missing));
+            if (!stale.isEmpty())
+                refresh(stale);
         }
 
         if (LOG.isDebugEnabled())
-            LOG.debug("Retrieving users for " + ids.size() + " took " + (System.currentTimeMillis() - start) + " ms");
+            LOG.debug("Retrieving users for " + (ids != null ? ids.size() : 0) + " ids, " + missed + " not cached, took " + (System.currentTimeMillis() - start) + " ms");
         return map;
     }
 
@@ -110,17 +145,28 @@ public class LdapIdentityService implements IdentityService {
     }
 
     public User getUser(String id) {
+        if (StringUtils.isEmpty(id))
+            return null;
+
+        long now = System.currentTimeMillis();
+        CachedUser cached = cached(id, now);
+        if (cached != null) {
+            if (isStale(cached, now))
+                refresh(Collections.singleton(id));
+            return cached.getUser();
+        }
+
+        User user = null;
         try {
             UserDetails userDetails = IdentityDetails.class.cast(userDetailsService.loadUserByUsername(id));
-            if (userDetails == null)
-                return null;
-
-            return new User.Builder(userDetails).build();
+            if (userDetails != null)
+                user = new User.Builder(userDetails).build();
         } catch (UsernameNotFoundException e) {
-            return null;
+            user = null;
         }
+        cacheService.put(CacheName.USER, id, new CachedUser(user, now));
+        return user;
     }
-
     @Override
     public User getUserWithAccessAuthority(String id) {
         try {
@@ -136,12 +182,100 @@ public class LdapIdentityService implements IdentityService {
         }
     }
 
+    /*
+     * Looks up the given ids in LDAP, in batches, and caches what comes back -- including the
+     * ids that don't match anyone. Returns the users that were found, by user id.
+     */
+    Map<String, User> lookup(Set<String> ids) {
+        Map<String, User> map = new HashMap<String, User>();
+        String internalId = ldapSettings.getLdapPersonAttributeIdInternal();
+        int batchSize = Math.max(1, ldapSettings.getLdapPersonSearchBatchSize());
+        List<String> remaining = new ArrayList<String>(ids);
+        for (int i = 0; i < remaining.size(); i += batchSize) {
+            List<String> batch = remaining.subList(i, Math.min(remaining.size(), i + batchSize));
+            OrFilter filter = new OrFilter();
+            for (String id : batch) {
+                filter.or(new EqualsFilter(internalId, id));
+            }
+            List<User> users = search(filter.encode(), -1);
+            // Don't remember anyone as missing when the search itself didn't work out
+            if (users == null)
+                continue;
+
+            // LDAP matches ids without regard to case, so do the same here
+            Map<String, User> found = new HashMap<String, User>();
+            for (User user : users) {
+                if (user != null && user.getUserId() != null)
+                    found.put(user.getUserId().toLowerCase(), user);
+            }
+            long now = System.currentTimeMillis();
+            for (String id : batch) {
+                User user = found.get(id.toLowerCase());
+                cacheService.put(CacheName.USER, id, new CachedUser(user, now));
+                if (user != null)
+                    map.put(user.getUserId(), user);
+            }
+        }
+        return map;
+    }
+
+    private CachedUser cached(String id, long now) {
+        Cache.ValueWrapper wrapper = cacheService.get(CacheName.USER, id);
+        CachedUser cached = wrapper != null ? CachedUser.class.cast(wrapper.get()) : null;
+        if (cached == null)
+            return null;
+        // Unknown ids are only remembered for a little while, in case they're about to be added
+        if (cached.isMissing() && cached.isOlderThan(ldapSettings.getLdapPersonCacheMissingSeconds() * 1000l, now))
+            return null;
+        return cached;
+    }
+
+    private boolean isStale(CachedUser cached, long now) {
+        return !cached.isMissing() && cached.isOlderThan(ldapSettings.getLdapPersonCacheRefreshSeconds() * 1000l, now);
+    }
+
+    private void refresh(Set<String> ids) {
+        final Set<String> batch = new HashSet<String>();
+        for (String id : ids) {
+            // Skip any that are already waiting to be refreshed
+            if (refreshing.add(id))
+                batch.add(id);
+        }
+        if (batch.isEmpty())
+            return;
+
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(batch);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to refresh " + batch.size() + " cached users", e);
+                    } finally {
+                        refreshing.removeAll(batch);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Plenty of refreshing already queued up, these can wait for the next request
+            refreshing.removeAll(batch);
+        }
+    }
+
     private List<User> findMany(Filter filter, long countLimit) {
         String encoded = filter.encode();
         Cache.ValueWrapper wrapper = cacheService.get(CacheName.MULTI_USER, encoded);
         if (wrapper != null)
             return (List<User>) wrapper.get();
 
+        List<User> users = search(encoded, countLimit);
+        if (users != null)
+            cacheService.put(CacheName.MULTI_USER, encoded, users);
+        return users;
+    }
+
+    List<User> search(String encoded, long countLimit) {
         String ldapPersonSearchBase = ldapSettings.getLdapPersonSearchBase();
         SpringSecurityLdapTemplate template = new SpringSecurityLdapTemplate(personLdapContextSource);
 
@@ -162,7 +296,6 @@ public class LdapIdentityService implements IdentityService {
 //                    cacheService.put(CacheName.IDENTITY, user.getUserId(), identityDetails);
                 }
             }
-            cacheService.put(CacheName.MULTI_USER, encoded, users);
             return users;
         } catch (SizeLimitExceededException e) {
             return null;
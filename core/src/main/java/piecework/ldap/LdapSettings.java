@@ -50,6 +50,11 @@ public class LdapSettings {
     private final String ldapPersonBase;
     private final String ldapPersonSearchBase;
     private final String ldapPersonSearchFilter;
+    private final int ldapPersonSearchBatchSize;
+    private final long ldapPersonCacheMissingSeconds;
+    private final long ldapPersonCacheRefreshSeconds;
+    private final long ldapGroupCacheMissingSeconds;
+    private final long ldapGroupCacheRefreshSeconds;
     private final String ldapDefaultUser;
     private final char[] ldapDefaultPassword;
     private final SearchControls searchControls;
@@ -74,6 +79,11 @@ public class LdapSettings {
         this.ldapPersonAttributeEmail = environment.getProperty("ldap.attribute.email");
         this.ldapPersonSearchBase = environment.getProperty("ldap.person.search.base");
         this.ldapPersonSearchFilter = environment.getProperty("ldap.person.search.filter");
+        this.ldapPersonSearchBatchSize = environment.getProperty("ldap.person.search.batch.size", Integer.class, 50);
+        this.ldapPersonCacheMissingSeconds = environment.getProperty("ldap.person.cache.missing.seconds", Long.class, 300l);
+        this.ldapPersonCacheRefreshSeconds = environment.getProperty("ldap.person.cache.refresh.seconds", Long.class, 600l);
+        this.ldapGroupCacheMissingSeconds = environment.getProperty("ldap.group.cache.missing.seconds", Long.class, 300l);
+        this.ldapGroupCacheRefreshSeconds = environment.getProperty("ldap.group.cache.refresh.seconds", Long.class, 600l);
         this.ldapGroupUrl = environment.getProperty("ldap.group.url");
         this.ldapGroupBase = environment.getProperty("ldap.group.base");
         this.ldapDefaultUser = environment.getProperty("ldap.authentication.user");
@@ -153,6 +163,26 @@ public class LdapSettings {
         return ldapPersonSearchFilter;
     }
 
+    public int getLdapPersonSearchBatchSize() {
+        return ldapPersonSearchBatchSize;
+    }
+
+    public long getLdapPersonCacheMissingSeconds() {
+        return ldapPersonCacheMissingSeconds;
+    }
+
+    public long getLdapPersonCacheRefreshSeconds() {
+        return ldapPersonCacheRefreshSeconds;
+    }
+
+    public long getLdapGroupCacheMissingSeconds() {
+        return ldapGroupCacheMissingSeconds;
+    }
+
+    public long getLdapGroupCacheRefreshSeconds() {
+        return ldapGroupCacheRefreshSeconds;
+    }
+
     public String getLdapPersonAttributeDisplayName() {
         return ldapPersonAttributeDisplayName;
     }
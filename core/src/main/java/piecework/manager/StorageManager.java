@@ -90,7 +90,7 @@ public class StorageManager {
     }
 
     public ProcessInstance minusAttachment(ProcessInstance instance, String attachmentId, Entity principal) {
-        ProcessInstance.Builder builder = new ProcessInstance.Builder(instance);
+        ProcessInstance.Builder builder = new ProcessInstance.Builder(instance).lastModifiedTime(new Date());
         builder.removeAttachment(attachmentId);
         // TODO: Add audit trail to indicate that principal removed attachment
         return processInstanceRepository.save(builder.build());
@@ -222,6 +222,7 @@ public class StorageManager {
         if (instance == null)
             return null;
 
-        return processInstanceRepository.save(instance);
+        // Whatever changed, the instance has been modified -- anything keyed on that, like the cached history, has to see it
+        return processInstanceRepository.save(new ProcessInstance.Builder(instance).lastModifiedTime(new Date()).build());
     }
 }
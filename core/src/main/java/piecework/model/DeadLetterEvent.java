@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Record of an asynchronously dispatched event that could not be delivered, either because
+ * every attempt failed or because its queue was full.
+ *
+ * @author James Renfro
+ */
+@Document(collection = "event.dead.letter")
+public class DeadLetterEvent {
+
+    @Id
+    private final String deadLetterEventId;
+
+    private final String description;
+
+    private final String processDefinitionKey;
+
+    private final String processInstanceId;
+
+    private final int attempts;
+
+    private final String reason;
+
+    private final Date eventDate;
+
+    private DeadLetterEvent() {
+        this(null, null, null, 0, null);
+    }
+
+    public DeadLetterEvent(String description, String processDefinitionKey, String processInstanceId, int attempts, String reason) {
+        this.deadLetterEventId = null;
+        this.description = description;
+        this.processDefinitionKey = processDefinitionKey;
+        this.processInstanceId = processInstanceId;
+        this.attempts = attempts;
+        this.reason = reason;
+        this.eventDate = new Date();
+    }
+
+    public String getDeadLetterEventId() {
+        return deadLetterEventId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Date getEventDate() {
+        return eventDate;
+    }
+}
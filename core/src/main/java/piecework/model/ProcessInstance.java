@@ -28,6 +28,7 @@ import piecework.common.ViewContext;
 import piecework.enumeration.OperationType;
 import piecework.model.bind.FormNameMessageMapAdapter;
 import piecework.model.bind.FormNameValueEntryMapAdapter;
+import piecework.util.KeywordUtility;
 import piecework.util.ProcessInstanceUtility;
 
 import javax.xml.bind.annotation.*;
@@ -131,6 +132,14 @@ public class ProcessInstance implements Serializable {
     @JsonIgnore
     private final Map<String, Task> tasks;
 
+    /*
+     * Ids of the tasks above, since the keys of the tasks map can't be indexed
+     */
+    @XmlTransient
+    @JsonIgnore
+    @Indexed
+    private final Set<String> taskIds;
+
     @XmlTransient
     @JsonIgnore
     private final List<String> submissionIds;
@@ -167,6 +176,7 @@ public class ProcessInstance implements Serializable {
         this.attachmentIds = Collections.unmodifiableSet(builder.attachmentIds);
         this.keywords = builder.keywords;
         this.tasks = Collections.unmodifiableMap(builder.tasks);
+        this.taskIds = Collections.unmodifiableSet(new TreeSet<String>(builder.tasks.keySet()));
         this.activityMap = builder.activityMap != null ? Collections.unmodifiableMap(builder.activityMap) : null;
         if (context != null) {
             if (builder.data != null && !builder.data.isEmpty()) {
@@ -307,6 +317,11 @@ public class ProcessInstance implements Serializable {
         return tasks.get(id);
     }
 
+    @JsonIgnore
+    public Set<String> getTaskIds() {
+        return taskIds;
+    }
+
     @JsonIgnore
     public Set<String> getKeywords() {
         return keywords;
@@ -462,16 +477,10 @@ public class ProcessInstance implements Serializable {
                 }
             }
 
-            if (StringUtils.isNotEmpty(this.processInstanceId))
-                this.keywords.add(this.processInstanceId);
-            if (StringUtils.isNotEmpty(this.processInstanceLabel))
-                this.keywords.add(this.processInstanceLabel.toLowerCase());
-            if (StringUtils.isNotEmpty(this.alias))
-                this.keywords.add(this.alias.toLowerCase());
-            if (StringUtils.isNotEmpty(this.engineProcessInstanceId))
-                this.keywords.add(this.engineProcessInstanceId);
-            if (StringUtils.isNotEmpty(this.alias))
-                this.keywords.add(this.alias.toLowerCase());
+            this.keywords.addAll(KeywordUtility.tokens(this.processInstanceId));
+            this.keywords.addAll(KeywordUtility.tokens(this.processInstanceLabel));
+            this.keywords.addAll(KeywordUtility.tokens(this.alias));
+            this.keywords.addAll(KeywordUtility.tokens(this.engineProcessInstanceId));
         }
 
         public ProcessInstance build() {
@@ -489,15 +498,13 @@ public class ProcessInstance implements Serializable {
 
         public Builder processInstanceId(String processInstanceId) {
             this.processInstanceId = processInstanceId;
-            if (StringUtils.isNotEmpty(this.processInstanceId))
-                this.keywords.add(this.processInstanceId);
+            this.keywords.addAll(KeywordUtility.tokens(this.processInstanceId));
             return this;
         }
 
         public Builder engineProcessInstanceId(String engineProcessInstanceId) {
             this.engineProcessInstanceId = engineProcessInstanceId;
-            if (StringUtils.isNotEmpty(this.engineProcessInstanceId))
-                this.keywords.add(this.engineProcessInstanceId);
+            this.keywords.addAll(KeywordUtility.tokens(this.engineProcessInstanceId));
             return this;
         }
 
@@ -508,8 +515,7 @@ public class ProcessInstance implements Serializable {
 
         public Builder alias(String alias) {
             this.alias = alias;
-            if (StringUtils.isNotEmpty(this.alias))
-                this.keywords.add(this.alias.toLowerCase());
+            this.keywords.addAll(KeywordUtility.tokens(this.alias));
             return this;
         }
 
@@ -525,8 +531,7 @@ public class ProcessInstance implements Serializable {
         
         public Builder processInstanceLabel(String processInstanceLabel) {
             this.processInstanceLabel = processInstanceLabel;
-            if (StringUtils.isNotEmpty(this.processInstanceLabel))
-                this.keywords.add(this.processInstanceLabel.toLowerCase());
+            this.keywords.addAll(KeywordUtility.tokens(this.processInstanceLabel));
             return this;
         }
 
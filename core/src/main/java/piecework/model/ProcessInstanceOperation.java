@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+import piecework.enumeration.OperationType;
+
+import java.util.Date;
+
+/**
+ * An operation on a process instance -- assignment, suspension, activation and so on -- stored
+ * on its own rather than inside the instance, so that the history of a long-lived instance
+ * doesn't make the instance itself any bigger. Only ever added, never changed.
+ *
+ * @author James Renfro
+ */
+@Document(collection = "instance.operation")
+@CompoundIndexes({
+    @CompoundIndex(name = "instance_date", def = "{'processInstanceId': 1, 'date': 1}")
+})
+public class ProcessInstanceOperation {
+
+    @Id
+    private String id;
+
+    private String processInstanceId;
+
+    private OperationType type;
+
+    private String reason;
+
+    private String userId;
+
+    private Date date;
+
+    public ProcessInstanceOperation() {
+
+    }
+
+    public ProcessInstanceOperation(String processInstanceId, Operation operation) {
+        this.id = operation.getId();
+        this.processInstanceId = processInstanceId;
+        this.type = operation.getType();
+        this.reason = operation.getReason();
+        this.userId = operation.getUserId();
+        this.date = operation.getDate();
+    }
+
+    /*
+     * An operation moved out of an instance, which may predate operations having ids -- if so it gets one made up
+     * from where it sits in the instance, so the same operation is stored once however many times it's moved
+     */
+    public static ProcessInstanceOperation moved(String processInstanceId, int ordinal, Operation operation) {
+        if (operation.getId() == null) {
+            String id = processInstanceId + ":" + ordinal + ":" + (operation.getDate() != null ? operation.getDate().getTime() : 0) + ":" + operation.getType();
+            operation = new Operation(id, operation.getType(), operation.getReason(), operation.getDate(), operation.getUserId());
+        }
+        return new ProcessInstanceOperation(processInstanceId, operation);
+    }
+
+    public Operation toOperation() {
+        return new Operation(id, type, reason, date, userId);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+}
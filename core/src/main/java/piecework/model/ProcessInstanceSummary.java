@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.model;
+
+import java.util.*;
+
+/**
+ * Read-only view of a process instance that holds only the handful of fields that search
+ * results display, plus the first string value of each requested data field. Built directly
+ * from a projected query rather than by converting the whole instance document.
+ *
+ * @author James Renfro
+ */
+public class ProcessInstanceSummary {
+
+    private final String processInstanceId;
+    private final String processDefinitionKey;
+    private final String processDefinitionLabel;
+    private final String processInstanceLabel;
+    private final String processStatus;
+    private final String applicationStatus;
+    private final String applicationStatusExplanation;
+    private final Date startTime;
+    private final Date lastModifiedTime;
+    private final Date endTime;
+    private final Map<String, String> values;
+    private final Set<Task> tasks;
+
+    private ProcessInstanceSummary(Builder builder) {
+        this.processInstanceId = builder.processInstanceId;
+        this.processDefinitionKey = builder.processDefinitionKey;
+        this.processDefinitionLabel = builder.processDefinitionLabel;
+        this.processInstanceLabel = builder.processInstanceLabel;
+        this.processStatus = builder.processStatus;
+        this.applicationStatus = builder.applicationStatus;
+        this.applicationStatusExplanation = builder.applicationStatusExplanation;
+        this.startTime = builder.startTime;
+        this.lastModifiedTime = builder.lastModifiedTime;
+        this.endTime = builder.endTime;
+        this.values = Collections.unmodifiableMap(builder.values);
+        this.tasks = Collections.unmodifiableSet(builder.tasks);
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public String getProcessDefinitionLabel() {
+        return processDefinitionLabel;
+    }
+
+    public String getProcessInstanceLabel() {
+        return processInstanceLabel;
+    }
+
+    public String getProcessStatus() {
+        return processStatus;
+    }
+
+    public String getApplicationStatus() {
+        return applicationStatus;
+    }
+
+    public String getApplicationStatusExplanation() {
+        return applicationStatusExplanation;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Date getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public String getValue(String fieldName) {
+        return values.get(fieldName);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public Set<Task> getTasks() {
+        return tasks;
+    }
+
+    public final static class Builder {
+
+        private String processInstanceId;
+        private String processDefinitionKey;
+        private String processDefinitionLabel;
+        private String processInstanceLabel;
+        private String processStatus;
+        private String applicationStatus;
+        private String applicationStatusExplanation;
+        private Date startTime;
+        private Date lastModifiedTime;
+        private Date endTime;
+        private Map<String, String> values;
+        private Set<Task> tasks;
+
+        public Builder() {
+            this.values = new HashMap<String, String>();
+            this.tasks = new TreeSet<Task>();
+        }
+
+        public ProcessInstanceSummary build() {
+            return new ProcessInstanceSummary(this);
+        }
+
+        public Builder processInstanceId(String processInstanceId) {
+            this.processInstanceId = processInstanceId;
+            return this;
+        }
+
+        public Builder processDefinitionKey(String processDefinitionKey) {
+            this.processDefinitionKey = processDefinitionKey;
+            return this;
+        }
+
+        public Builder processDefinitionLabel(String processDefinitionLabel) {
+            this.processDefinitionLabel = processDefinitionLabel;
+            return this;
+        }
+
+        public Builder processInstanceLabel(String processInstanceLabel) {
+            this.processInstanceLabel = processInstanceLabel;
+            return this;
+        }
+
+        public Builder processStatus(String processStatus) {
+            this.processStatus = processStatus;
+            return this;
+        }
+
+        public Builder applicationStatus(String applicationStatus) {
+            this.applicationStatus = applicationStatus;
+            return this;
+        }
+
+        public Builder applicationStatusExplanation(String applicationStatusExplanation) {
+            this.applicationStatusExplanation = applicationStatusExplanation;
+            return this;
+        }
+
+        public Builder startTime(Date startTime) {
+            this.startTime = startTime;
+            return this;
+        }
+
+        public Builder lastModifiedTime(Date lastModifiedTime) {
+            this.lastModifiedTime = lastModifiedTime;
+            return this;
+        }
+
+        public Builder endTime(Date endTime) {
+            this.endTime = endTime;
+            return this;
+        }
+
+        public Builder value(String fieldName, String value) {
+            if (fieldName != null && value != null)
+                this.values.put(fieldName, value);
+            return this;
+        }
+
+        public Builder task(Task task) {
+            if (task != null)
+                this.tasks.add(task);
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * How far the rebuild of the report counters has got. There's only ever one of these. Anything
+ * that happened before its cutoff is counted by the rebuild, and anything after by the events as
+ * they arrive, so every node needs to agree on it -- and it has to outlast a restart, or the
+ * rebuild would start all over again. The rebuilt counters go into a collection of their own,
+ * named here, which takes over from the old ones once the rebuild is complete. A batch is
+ * claimed, by setting how far it goes, before it's counted, and only once it has been counted
+ * does the rebuild move on -- so whichever node picks it up next counts exactly the
+ * same instances.
+ *
+ * @author James Renfro
+ */
+@Document(collection = "report.backfill")
+public class ReportBackfill {
+
+    public static final String ID = "counters";
+    public static final String COUNTER_COLLECTION = "report.counter";
+
+    @Id
+    private String id;
+
+    private Date cutoff;
+
+    private String counterCollection;
+
+    private String lastProcessInstanceId;
+
+    private String batchThrough;
+
+    private boolean complete;
+
+    public ReportBackfill() {
+
+    }
+
+    public ReportBackfill(Date cutoff) {
+        this.id = ID;
+        this.cutoff = cutoff;
+        this.counterCollection = COUNTER_COLLECTION + "." + cutoff.getTime();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Date getCutoff() {
+        return cutoff;
+    }
+
+    public String getCounterCollection() {
+        return counterCollection;
+    }
+
+    public String getLastProcessInstanceId() {
+        return lastProcessInstanceId;
+    }
+
+    /*
+     * The last instance of the batch that's being counted, or null between batches
+     */
+    public String getBatchThrough() {
+        return batchThrough;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+}
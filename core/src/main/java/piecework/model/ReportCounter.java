@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A running count of something that happened to instances of a process in a given month -- how
+ * many were started, how many completed, how many tasks of a particular definition were finished.
+ * There's one of these per process, month, category and label, and its id is built from those, so
+ * counting an event is a single upsert.
+ *
+ * @author James Renfro
+ */
+@Document(collection = "report.counter")
+@CompoundIndexes({
+    @CompoundIndex(name = "process_category_month", def = "{'processDefinitionKey': 1, 'category': 1, 'month': 1}")
+})
+public class ReportCounter {
+
+    public static final String STATUS = "status";
+    public static final String TASK = "task";
+
+    @Id
+    private String id;
+
+    private String processDefinitionKey;
+
+    private String category;
+
+    private String month;
+
+    private String label;
+
+    private long count;
+
+    public ReportCounter() {
+
+    }
+
+    public ReportCounter(String processDefinitionKey, String category, String month, String label) {
+        this.id = id(processDefinitionKey, category, month, label);
+        this.processDefinitionKey = processDefinitionKey;
+        this.category = category;
+        this.month = month;
+        this.label = label;
+    }
+
+    public static String id(String processDefinitionKey, String category, String month, String label) {
+        return new StringBuilder(processDefinitionKey).append(':').append(category)
+                .append(':').append(month).append(':').append(label).toString();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    /*
+     * Month in UTC, as yyyy-MM so that it sorts
+     */
+    public String getMonth() {
+        return month;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void increment(long amount) {
+        this.count += amount;
+    }
+
+}
@@ -21,11 +21,14 @@ import com.github.mustachejava.MustacheFactory;
 import org.apache.cxf.common.util.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
 import org.springframework.stereotype.Service;
+import piecework.enumeration.CacheName;
 import piecework.enumeration.StateChangeType;
 import piecework.model.Group;
 import piecework.model.Notification;
 import piecework.model.User;
+import piecework.service.CacheService;
 import piecework.service.GroupService;
 import piecework.service.IdentityService;
 import piecework.service.NotificationService;
@@ -58,6 +61,11 @@ public class EmailNotificationService implements NotificationService {
     @Autowired
     NotificationSettings notificationSettings;
 
+    @Autowired(required=false)
+    CacheService cacheService;
+
+    // Compiled templates are safe to share between threads, and so is the factory
+    private final MustacheFactory mustacheFactory = new DefaultMustacheFactory();
 
     /** 
      * expand any macros in notifications and send the notification to recipients.
@@ -90,14 +98,8 @@ public class EmailNotificationService implements NotificationService {
         // recipients
         String recipientStr = notification.getRecipients();
 
-        MustacheFactory mf = new DefaultMustacheFactory();
-        Mustache mustache;
-        StringWriter writer = new StringWriter();
-        if (recipientStr != null) {
-            mustache = mf.compile(new StringReader(recipientStr), "recipient");
-            mustache.execute(writer, scope);
-            recipientStr = writer.toString();
-        }
+        if (recipientStr != null)
+            recipientStr = expand(recipientStr, "recipient", scope);
 
         String mailToOverride = notificationSettings.getMailToOverride();
         // override recipients in test environment (e.g. on dev)
@@ -124,11 +126,7 @@ public class EmailNotificationService implements NotificationService {
             return false;
         }
 
-        mf = new DefaultMustacheFactory();
-        writer = new StringWriter();
-        mustache = mf.compile(new StringReader(subject), "subject");
-        mustache.execute(writer, scope);
-        subject = writer.toString();
+        subject = expand(subject, "subject", scope);
 
         // get body
         String body = notification.getText();
@@ -136,10 +134,7 @@ public class EmailNotificationService implements NotificationService {
             LOG.error("No body provided for email, aborting");
             return false;
         }
-        writer = new StringWriter();
-        mustache = mf.compile(new StringReader(body), "text");
-        mustache.execute(writer, scope);
-        body = writer.toString();
+        body = expand(body, "text", scope);
 
         return emailDispatcher.dispatch(senderEmail, senderName, recipients, bcc, subject, body);
     }
@@ -165,6 +160,33 @@ public class EmailNotificationService implements NotificationService {
         return count;
     }
 
+    /**
+     * expand the macros in one part of a notification. Compiled templates are cached by the text
+     * of the template itself, so the templates of each deployment's notifications are compiled
+     * once, and a notification that's edited simply gets a new entry.
+     * @param  template   the template text
+     * @param  name       the part of the notification, e.g. subject
+     * @param  scope      a map of key-value pairs to be used for macro expansion.
+     * @return            the expanded text
+     */
+    private String expand(String template, String name, Map<String, Object> scope) {
+        String key = name + "::" + template;
+        Mustache mustache = null;
+        Cache.ValueWrapper wrapper = cacheService != null ? cacheService.get(CacheName.NOTIFICATION_TEMPLATE, key) : null;
+        if (wrapper != null && wrapper.get() != null)
+            mustache = Mustache.class.cast(wrapper.get());
+
+        if (mustache == null) {
+            mustache = mustacheFactory.compile(new StringReader(template), name);
+            if (cacheService != null)
+                cacheService.put(CacheName.NOTIFICATION_TEMPLATE, key, mustache);
+        }
+
+        StringWriter writer = new StringWriter();
+        mustache.execute(writer, scope);
+        return writer.toString();
+    }
+
     /** 
      * return a list of users objects for a list of recipient IDs.
      * @param userStr  a comma-separated list of user IDs, groupIds
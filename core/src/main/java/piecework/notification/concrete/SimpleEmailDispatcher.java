@@ -24,10 +24,27 @@ import piecework.model.User;
 import piecework.notification.EmailDispatcher;
 import piecework.settings.NotificationSettings;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
 
 /**
+ * Sends email over SMTP connections that are kept open and reused between messages.
+ *
+ * When 'mail.queue.enabled' is turned on, messages are put on a bounded queue and sent in
+ * batches by background threads instead of on the caller's thread. A message that can't be
+ * sent is retried on a fresh connection, and after the last attempt the failure is logged.
+ *
  * @author James Renfro
  */
 @Service
@@ -38,12 +55,70 @@ public class SimpleEmailDispatcher implements EmailDispatcher{
     @Autowired
     private NotificationSettings notificationSettings;
 
+    private Session session;
+    private SmtpTransportPool transportPool;
+    private BlockingQueue<MimeMessage> queue;
+    private ExecutorService senders;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        Properties properties = new Properties();
+        if (notificationSettings.getMailServerHost() != null)
+            properties.setProperty("mail.smtp.host", notificationSettings.getMailServerHost());
+        properties.setProperty("mail.smtp.port", String.valueOf(notificationSettings.getMailServerPort()));
+        properties.setProperty("mail.smtp.connectiontimeout", "60000");
+        properties.setProperty("mail.smtp.timeout", "60000");
+        this.session = Session.getInstance(properties);
+        this.transportPool = new SmtpTransportPool(session, notificationSettings.getMailPoolSize());
+
+        if (notificationSettings.isMailQueueEnabled()) {
+            int threads = Math.max(1, notificationSettings.getMailQueueThreads());
+            this.queue = new LinkedBlockingQueue<MimeMessage>(Math.max(1, notificationSettings.getMailQueueCapacity()));
+            this.running = true;
+            this.senders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "email-sender-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            for (int i = 0; i < threads; i++) {
+                senders.execute(new Sender());
+            }
+            LOG.info("Email will be sent in the background by " + threads + " threads");
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (senders != null) {
+            // Senders keep going until the queue is empty, or until they run out of time
+            running = false;
+            senders.shutdown();
+            try {
+                if (!senders.awaitTermination(notificationSettings.getMailQueueShutdownTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                    senders.shutdownNow();
+                    if (!queue.isEmpty())
+                        LOG.warn("Abandoned " + queue.size() + " queued emails on shutdown");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                senders.shutdownNow();
+            }
+        }
+        if (transportPool != null)
+            transportPool.close();
+    }
+
     @Override
     public boolean dispatch(String senderEmail, String senderName, List<User> recipients, List<User> bcc, String subject, String body) {
         try {
             SimpleEmail email = new SimpleEmail();
-            email.setHostName(notificationSettings.getMailServerHost());
-            email.setSmtpPort(notificationSettings.getMailServerPort());
+            email.setMailSession(session);
 
             for (User u : recipients) {
                 String emailAddr = u.getEmailAddress();
@@ -68,14 +143,125 @@ public class SimpleEmailDispatcher implements EmailDispatcher{
             email.setFrom(senderEmail, senderName);
             email.setSubject(subject);
             email.setMsg(body);
+            email.buildMimeMessage();
+
+            MimeMessage message = email.getMimeMessage();
+            message.saveChanges();
 
             LOG.debug("Subject: " + email.getSubject());
-            LOG.debug(email.getMimeMessage());
-            email.send();
-            return true;
+            LOG.debug(message);
+
+            if (queue != null)
+                return enqueue(message);
+
+            // Only one more try on the caller's thread, in case the connection went stale while it sat in the pool
+            return send(Collections.singletonList(message), 2) == 1;
         } catch (EmailException e) {
             LOG.error("Unable to send email with subject " + subject);
+        } catch (MessagingException e) {
+            LOG.error("Unable to send email with subject " + subject);
         }
         return false;
     }
+
+    private boolean enqueue(MimeMessage message) throws MessagingException {
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = queue.offer(message, notificationSettings.getMailQueueOfferTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queued)
+            LOG.error("Unable to queue email with subject " + message.getSubject() + ", the queue is full or shut down");
+        return queued;
+    }
+
+    /*
+     * Sends the messages one after the other on a single connection, returning the number that were sent. The first
+     * retry of a message is immediate, on a new connection, since the usual problem is a connection the server closed
+     */
+    private int send(List<MimeMessage> messages, int maxAttempts) {
+        int sent = 0;
+        Transport transport = null;
+        try {
+            for (MimeMessage message : messages) {
+                for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                    try {
+                        if (transport == null)
+                            transport = transportPool.borrow();
+                        transport.sendMessage(message, message.getAllRecipients());
+                        sent++;
+                        break;
+                    } catch (SendFailedException e) {
+                        // The server turned down the addresses, trying again won't change its mind
+                        LOG.error("Unable to send email with subject " + subject(message) + " to " + e.getInvalidAddresses(), e);
+                        break;
+                    } catch (MessagingException e) {
+                        transportPool.invalidate(transport);
+                        transport = null;
+                        if (attempt == maxAttempts) {
+                            LOG.error("Unable to send email with subject " + subject(message) + " after " + attempt + " attempts", e);
+                        } else {
+                            LOG.warn("Attempt " + attempt + " to send email with subject " + subject(message) + " failed", e);
+                            if (!pause(attempt))
+                                return sent;
+                        }
+                    }
+                }
+            }
+        } finally {
+            transportPool.release(transport);
+        }
+        return sent;
+    }
+
+    private boolean pause(int attempt) {
+        try {
+            Thread.sleep(notificationSettings.getMailQueueRetryDelayMillis() * (attempt - 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String subject(MimeMessage message) {
+        try {
+            return message.getSubject();
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    private class Sender implements Runnable {
+
+        @Override
+        public void run() {
+            int batchSize = Math.max(1, notificationSettings.getMailQueueBatchSize());
+            List<MimeMessage> batch = new ArrayList<MimeMessage>(batchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    MimeMessage message = queue.poll(1, TimeUnit.SECONDS);
+                    if (message == null)
+                        continue;
+                    batch.add(message);
+                    queue.drainTo(batch, batchSize - 1);
+                    int sent = send(batch, Math.max(1, notificationSettings.getMailQueueMaxAttempts()));
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Sent " + sent + " of a batch of " + batch.size() + " emails");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    LOG.error("Unable to send a batch of " + batch.size() + " emails", e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+    }
+
 }
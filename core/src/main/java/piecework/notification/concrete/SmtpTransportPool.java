@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.notification.concrete;
+
+import org.apache.log4j.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps a few SMTP connections open between messages, so that sending a notification doesn't
+ * mean connecting to the mail server and saying hello all over again. A connection that has
+ * gone bad should be handed back through invalidate rather than release, so it's closed
+ * instead of being reused.
+ *
+ * @author James Renfro
+ */
+public class SmtpTransportPool {
+
+    private static final Logger LOG = Logger.getLogger(SmtpTransportPool.class);
+
+    private final Session session;
+    private final BlockingQueue<Transport> idle;
+
+    public SmtpTransportPool(Session session, int size) {
+        this.session = session;
+        this.idle = new ArrayBlockingQueue<Transport>(Math.max(1, size));
+    }
+
+    public Transport borrow() throws MessagingException {
+        Transport transport = idle.poll();
+        // Servers drop connections that have been idle for a while, checking costs a NOOP
+        while (transport != null && !transport.isConnected()) {
+            close(transport);
+            transport = idle.poll();
+        }
+        if (transport == null) {
+            transport = session.getTransport("smtp");
+            transport.connect();
+        }
+        return transport;
+    }
+
+    public void release(Transport transport) {
+        if (transport == null)
+            return;
+        if (!idle.offer(transport))
+            close(transport);
+    }
+
+    public void invalidate(Transport transport) {
+        close(transport);
+    }
+
+    public void close() {
+        Transport transport;
+        while ((transport = idle.poll()) != null) {
+            close(transport);
+        }
+    }
+
+    private static void close(Transport transport) {
+        if (transport == null)
+            return;
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            LOG.debug("Unable to close SMTP connection cleanly", e);
+        }
+    }
+
+}
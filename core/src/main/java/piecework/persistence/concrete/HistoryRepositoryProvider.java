@@ -15,8 +15,11 @@
  */
 package piecework.persistence.concrete;
 
+import org.springframework.cache.Cache;
+import piecework.common.CloseableIterator;
 import piecework.common.ViewContext;
 import piecework.engine.ProcessEngineFacade;
+import piecework.enumeration.CacheName;
 import piecework.enumeration.EventType;
 import piecework.enumeration.OperationType;
 import piecework.exception.PieceworkException;
@@ -29,6 +32,7 @@ import piecework.repository.ContentRepository;
 import piecework.repository.DeploymentRepository;
 import piecework.repository.ProcessInstanceRepository;
 import piecework.security.concrete.PassthroughSanitizer;
+import piecework.service.CacheService;
 import piecework.service.IdentityService;
 import piecework.task.TaskFactory;
 
@@ -39,10 +43,15 @@ import java.util.*;
  */
 public class HistoryRepositoryProvider extends ProcessInstanceRepositoryProvider implements HistoryProvider{
 
+    private static final int OPERATION_BATCH_SIZE = 100;
+    private static final long SETTLE_MILLIS = 1000l;
+
+    private final CacheService cacheService;
     private final IdentityService identityService;
 
-    public HistoryRepositoryProvider(ProcessProvider processProvider, ProcessInstanceRepository processInstanceRepository, ProcessEngineFacade facade, AttachmentRepository attachmentRepository, ContentRepository contentRepository, DeploymentRepository deploymentRepository, IdentityService identityService, String processInstanceId) {
+    public HistoryRepositoryProvider(ProcessProvider processProvider, ProcessInstanceRepository processInstanceRepository, ProcessEngineFacade facade, AttachmentRepository attachmentRepository, ContentRepository contentRepository, DeploymentRepository deploymentRepository, CacheService cacheService, IdentityService identityService, String processInstanceId) {
         super(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, processInstanceId);
+        this.cacheService = cacheService;
         this.identityService = identityService;
     }
 
@@ -50,10 +59,36 @@ public class HistoryRepositoryProvider extends ProcessInstanceRepositoryProvider
         Process process = process();
         ProcessInstance instance = instance();
 
-        List<Operation> operations = instance.getOperations();
+        String key = key(instance, context);
+        if (key != null && cacheService != null) {
+            Cache.ValueWrapper wrapper = cacheService.get(CacheName.HISTORY, key);
+            if (wrapper != null && wrapper.get() != null)
+                return History.class.cast(wrapper.get());
+        }
+
         Set<Task> tasks = instance.getTasks();
+        List<Operation> operations = operations(instance);
 
-        User initiator = instance.getInitiatorId() != null ? identityService.getUser(instance.getInitiatorId()) : null;
+        // Loop through first to gather the set of all user ids that we want to look up, so they can be resolved at once
+        Set<String> userIds = new HashSet<String>();
+        if (instance.getInitiatorId() != null)
+            userIds.add(instance.getInitiatorId());
+        for (Operation operation : operations) {
+            if (operation.getUserId() != null)
+                userIds.add(operation.getUserId());
+            if (operation.getType() == OperationType.ASSIGNMENT && operation.getReason() != null)
+                userIds.add(operation.getReason());
+        }
+        if (tasks != null) {
+            for (Task task : tasks) {
+                userIds.addAll(task.getAssigneeAndCandidateAssigneeIds());
+            }
+        }
+        Map<String, User> userMap = userIds.isEmpty() ? Collections.<String, User>emptyMap() : identityService.findUsers(userIds);
+        if (userMap == null)
+            userMap = Collections.emptyMap();
+
+        User initiator = instance.getInitiatorId() != null ? userMap.get(instance.getInitiatorId()) : null;
 
         History.Builder history = new History.Builder()
                 .processDefinitionKey(process.getProcessDefinitionKey())
@@ -65,29 +100,13 @@ public class HistoryRepositoryProvider extends ProcessInstanceRepositoryProvider
                 .initiator(initiator);
 
         int i = 1;
-        if (operations != null) {
-            for (Operation operation : operations) {
-                String id = "operation-" + i;
-                String userId = operation.getUserId();
-                User user = userId != null ? identityService.getUser(userId) : null;
-                if (operation.getType() == OperationType.ASSIGNMENT) {
-                    User assignee = operation.getReason() != null ? identityService.getUser(operation.getReason()) : null;
-                    String assigneeName = assignee != null ? assignee.getDisplayName() + " (" + assignee.getVisibleId() + ") " : operation.getReason();
-                    operation = new Operation(operation.getId(), operation.getType(), assigneeName, operation.getDate(), operation.getUserId());
-                }
-                history.event(new Event.Builder().id(id).type(EventType.OPERATION).operation(operation).date(operation.getDate()).user(user).build());
-                i++;
-            }
+        for (Operation operation : operations) {
+            history.event(event(operation, "operation-" + i, userMap));
+            i++;
         }
 
         PassthroughSanitizer passthroughSanitizer = new PassthroughSanitizer();
         if (tasks != null) {
-            // Loop through first to gather the set of all user ids that we want to look up
-            Set<String> userIds = new HashSet<String>();
-            for (Task task : tasks) {
-                userIds.addAll(task.getAssigneeAndCandidateAssigneeIds());
-            }
-            Map<String, User> userMap = identityService.findUsers(userIds);
             for (Task task : tasks) {
                 String id = "task-" + i;
                 Date date = task.getStartTime();
@@ -97,7 +116,68 @@ public class HistoryRepositoryProvider extends ProcessInstanceRepositoryProvider
             }
         }
 
-        return history.build(context);
+        History result = history.build(context);
+        if (key != null && cacheService != null)
+            cacheService.put(CacheName.HISTORY, key, result);
+        return result;
+    }
+
+    /*
+     * Operations that haven't been moved out of the instance yet, and then the ones stored on their own -- an
+     * instance that's in the middle of being moved can have the same operation in both places
+     */
+    private List<Operation> operations(ProcessInstance instance) {
+        List<Operation> operations = new ArrayList<Operation>();
+        Set<String> operationIds = new HashSet<String>();
+        List<Operation> embedded = instance.getOperations();
+        if (embedded != null) {
+            for (int i = 0; i < embedded.size(); i++) {
+                // Same id it'll have once it's moved, so it's only listed once either way
+                Operation operation = ProcessInstanceOperation.moved(instance.getProcessInstanceId(), i, embedded.get(i)).toOperation();
+                operationIds.add(operation.getId());
+                operations.add(operation);
+            }
+        }
+
+        CloseableIterator<Operation> iterator = processInstanceRepository.iterateOperations(instance.getProcessInstanceId(), OPERATION_BATCH_SIZE);
+        if (iterator != null) {
+            try {
+                while (iterator.hasNext()) {
+                    Operation operation = iterator.next();
+                    if (operation.getId() != null && operationIds.contains(operation.getId()))
+                        continue;
+                    operations.add(operation);
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        return operations;
+    }
+
+    private static Event event(Operation operation, String id, Map<String, User> userMap) {
+        String userId = operation.getUserId();
+        User user = userId != null ? userMap.get(userId) : null;
+        if (operation.getType() == OperationType.ASSIGNMENT) {
+            User assignee = operation.getReason() != null ? userMap.get(operation.getReason()) : null;
+            String assigneeName = assignee != null ? assignee.getDisplayName() + " (" + assignee.getVisibleId() + ") " : operation.getReason();
+            operation = new Operation(operation.getId(), operation.getType(), assigneeName, operation.getDate(), operation.getUserId());
+        }
+        return new Event.Builder().id(id).type(EventType.OPERATION).operation(operation).date(operation.getDate()).user(user).build();
+    }
+
+    /*
+     * Every write to an instance moves its last modified time, so a history cached under that time is good until the
+     * next write. Times only go to the millisecond, though, so an instance modified within the last little while
+     * might be modified again under the same time -- its history isn't cached until it settles.
+     */
+    private static String key(ProcessInstance instance, ViewContext context) {
+        if (instance.getLastModifiedTime() == null)
+            return null;
+        if (System.currentTimeMillis() - instance.getLastModifiedTime().getTime() < SETTLE_MILLIS)
+            return null;
+        String applicationUri = context != null ? context.getApplicationUri() : null;
+        return instance.getProcessInstanceId() + ":" + instance.getLastModifiedTime().getTime() + ":" + applicationUri;
     }
 
 }
@@ -135,7 +135,7 @@ public class ModelRepositoryProviderFactory implements ModelProviderFactory {
         HistoryProvider historyProvider =
                 new HistoryRepositoryProvider(processProvider(rawProcessDefinitionKey, principal),
                         processInstanceRepository, facade, attachmentRepository, contentRepository,
-                        deploymentRepository, identityService, processInstanceId);
+                        deploymentRepository, cacheService, identityService, processInstanceId);
         return historyProvider;
     }
 
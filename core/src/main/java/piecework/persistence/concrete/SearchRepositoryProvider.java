@@ -20,6 +20,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.cache.Cache;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
@@ -44,17 +45,19 @@ import piecework.task.TaskDeployment;
 import piecework.task.TaskFactory;
 import piecework.task.TaskFilter;
 import piecework.task.TaskPageHandler;
-import piecework.util.ProcessInstanceUtility;
 import piecework.util.SearchUtility;
 
 import java.util.*;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
 /**
  * @author James Renfro
  */
 public class SearchRepositoryProvider implements SearchProvider {
 
     private static final Logger LOG = Logger.getLogger(SearchRepositoryProvider.class);
+    private static final int INSTANCE_BATCH_SIZE = 1000;
 
     private final ProcessRepository processRepository;
     private final ProcessInstanceRepository instanceRepository;
@@ -183,91 +186,60 @@ public class SearchRepositoryProvider implements SearchProvider {
 
         if (!excludeData) {
             Query query = new SearchQueryBuilder(criteria).build(allProcessDefinitionKeys, sanitizer);
-
-            int instancePageNumber = 0;
-            int instancePageSize = 1000;
             Sort sort = SearchUtility.sort(criteria, sanitizer);
-            Pageable pageable = new PageRequest(instancePageNumber, instancePageSize, sort);
-            Page<ProcessInstance> page = instanceRepository.findByQuery(query, pageable, true);
+            if (sort != null)
+                query.with(sort);
 
             int pageNumber = criteria.getPageNumber() != null ? criteria.getPageNumber().intValue() : 0;
             int pageSize = criteria.getPageSize() != null ? criteria.getPageSize() : 200;
             Pageable taskPageable = new PageRequest(pageNumber, pageSize);
-            long total = page.getTotalElements();
             long taskCounter = 0;
-            long instanceCounter = 0;
             long start = taskPageable.getOffset();
             long end = taskPageable.getOffset() + taskPageable.getPageSize();
 
-            while (instanceCounter < total  && page.hasContent()) {
-                // Loop again through the list to get all user ids and build the intermediate object including
-                // task, instance, and deployment
-                for (ProcessInstance instance : page.getContent()) {
-                    String processDefinitionKey = instance.getProcessDefinitionKey();
-                    String processInstanceId = instance.getProcessInstanceId();
-
-                    instanceCounter++;
-
-                    ProcessDeployment processDeployment = null;
-
-                    Map<String, Object> instanceData = new HashMap<String, Object>();
-
-                    instanceData.put("processInstanceId", processInstanceId);
-                    instanceData.put("processInstanceLabel", instance.getProcessInstanceLabel());
-                    instanceData.put("processDefinitionLabel", instance.getProcessDefinitionLabel());
-                    instanceData.put("processStatus", instance.getProcessStatus());
-                    instanceData.put("applicationStatusExplanation", instance.getApplicationStatusExplanation());
-                    instanceData.put("startTime", instance.getStartTime());
-                    instanceData.put("lastModifiedTime", instance.getLastModifiedTime());
-                    instanceData.put("endTime", instance.getEndTime());
-
-                    String activation = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "activation");
-                    String attachment = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, Attachment.Constants.ROOT_ELEMENT_NAME);
-                    String cancellation = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "cancellation");
-                    String history = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, History.Constants.ROOT_ELEMENT_NAME);
-                    String restart = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "restart");
-                    String suspension = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "suspension");
-                    String bucketUrl = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "value/Bucket");
-
-                    instanceData.put("activation", activation);
-                    instanceData.put("attachment", attachment);
-                    instanceData.put("cancellation", cancellation);
-                    instanceData.put("history", history);
-                    instanceData.put("restart", restart);
-                    instanceData.put("suspension", suspension);
-                    instanceData.put("bucketUrl", bucketUrl);
-
-                    Map<String, List<Value>> valueData = instance.getData();
-                    if (valueData != null && !valueData.isEmpty()) {
-                        for (Facet facet : facets) {
-                            if (facet instanceof DataSearchFacet) {
-                                DataSearchFacet dataSearchFacet = DataSearchFacet.class.cast(facet);
-                                String name = dataSearchFacet.getName();
-                                String value = ProcessInstanceUtility.firstString(name, valueData);
-                                if (StringUtils.isNotEmpty(value))
-                                    instanceData.put(name, value);
-                            }
-                        }
-                    }
-
+            // First pass only retrieves the tasks embedded in each matching instance, in sort order, reading them a
+            // batch at a time from one cursor so that tasks can be filtered and counted without holding every
+            // instance in memory or loading the rest of each document. Tasks are kept in a map keyed by task id,
+            // which the query can't reach into, so the task filter has to run here.
+            Map<String, Map<String, Object>> instanceDataMap = new LinkedHashMap<String, Map<String, Object>>();
+            CloseableIterator<ProcessInstanceSummary> instances = instanceRepository.iterateSummariesByQuery(query, null, true, INSTANCE_BATCH_SIZE);
+            try {
+                while (instances.hasNext()) {
+                    ProcessInstanceSummary instance = instances.next();
                     Set<Task> tasks = instance.getTasks();
-                    if (tasks != null && !tasks.isEmpty()) {
-                        for (Task task : tasks) {
-                            if (include(task, processStatus, taskStatus, overseerProcessDefinitionKeys, principal)) {
-                                if (taskCounter >= start && taskCounter < end) {
-                                    taskDeployments.add(new TaskDeployment(taskCounter, processDeployment, instance, task, instanceData));
-                                    userIds.addAll(task.getAssigneeAndCandidateAssigneeIds());
+                    if (tasks == null || tasks.isEmpty())
+                        continue;
+
+                    for (Task task : tasks) {
+                        if (include(task, processStatus, taskStatus, overseerProcessDefinitionKeys, principal)) {
+                            if (taskCounter >= start && taskCounter < end) {
+                                String processInstanceId = instance.getProcessInstanceId();
+                                Map<String, Object> instanceData = instanceDataMap.get(processInstanceId);
+                                if (instanceData == null) {
+                                    instanceData = new HashMap<String, Object>();
+                                    instanceDataMap.put(processInstanceId, instanceData);
                                 }
-                                taskCounter++;
+                                taskDeployments.add(new TaskDeployment(taskCounter, null, null, task, instanceData));
+                                userIds.addAll(task.getAssigneeAndCandidateAssigneeIds());
                             }
+                            taskCounter++;
                         }
                     }
                 }
+            } finally {
+                instances.close();
+            }
 
-                if (total > instanceCounter) {
-                    instancePageNumber++;
-                    Pageable nextPage = new PageRequest(instancePageNumber, instancePageSize, sort);
-                    page = instanceRepository.findByQuery(query, nextPage, false);
+            // Second pass retrieves only the fields that are actually displayed, and only for instances on this page
+            if (!instanceDataMap.isEmpty()) {
+                Query pageQuery = new Query(where("processInstanceId").in(instanceDataMap.keySet()));
+                List<ProcessInstanceSummary> pageInstances = instanceRepository.findSummariesByQuery(pageQuery, facets, false);
+                if (pageInstances != null) {
+                    for (ProcessInstanceSummary instance : pageInstances) {
+                        Map<String, Object> instanceData = instanceDataMap.get(instance.getProcessInstanceId());
+                        if (instanceData != null)
+                            instanceData(instanceData, instance, facets, context);
+                    }
                 }
             }
 
@@ -422,7 +394,10 @@ public class SearchRepositoryProvider implements SearchProvider {
 
         };
 
-        Page<ProcessInstance> page = instanceRepository.findByCriteria(allProcessDefinitionKeys, criteria, pageable, sanitizer);
+        // Only the embedded tasks are used to build these results, so there's no need to retrieve entire instances
+        Query query = new SearchQueryBuilder(criteria).build(allProcessDefinitionKeys, sanitizer);
+        List<ProcessInstance> instances = instanceRepository.findTasksByQuery(query.with(pageable));
+        Page<ProcessInstance> page = new PageImpl<ProcessInstance>(instances, pageable, instances.size());
 
         SearchResults results = pageHandler.handle(page, pageable, allowedProcesses);
 
@@ -437,6 +412,45 @@ public class SearchRepositoryProvider implements SearchProvider {
         return principal;
     }
 
+    private static void instanceData(Map<String, Object> instanceData, ProcessInstanceSummary instance, List<Facet> facets, ViewContext context) {
+        String processDefinitionKey = instance.getProcessDefinitionKey();
+        String processInstanceId = instance.getProcessInstanceId();
+
+        instanceData.put("processInstanceId", processInstanceId);
+        instanceData.put("processInstanceLabel", instance.getProcessInstanceLabel());
+        instanceData.put("processDefinitionLabel", instance.getProcessDefinitionLabel());
+        instanceData.put("processStatus", instance.getProcessStatus());
+        instanceData.put("applicationStatusExplanation", instance.getApplicationStatusExplanation());
+        instanceData.put("startTime", instance.getStartTime());
+        instanceData.put("lastModifiedTime", instance.getLastModifiedTime());
+        instanceData.put("endTime", instance.getEndTime());
+
+        String activation = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "activation");
+        String attachment = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, Attachment.Constants.ROOT_ELEMENT_NAME);
+        String cancellation = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "cancellation");
+        String history = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, History.Constants.ROOT_ELEMENT_NAME);
+        String restart = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "restart");
+        String suspension = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "suspension");
+        String bucketUrl = context.getApplicationUri(ProcessInstance.Constants.ROOT_ELEMENT_NAME, processDefinitionKey, processInstanceId, "value/Bucket");
+
+        instanceData.put("activation", activation);
+        instanceData.put("attachment", attachment);
+        instanceData.put("cancellation", cancellation);
+        instanceData.put("history", history);
+        instanceData.put("restart", restart);
+        instanceData.put("suspension", suspension);
+        instanceData.put("bucketUrl", bucketUrl);
+
+        for (Facet facet : facets) {
+            if (facet instanceof DataSearchFacet) {
+                String name = facet.getName();
+                String value = instance.getValue(name);
+                if (StringUtils.isNotEmpty(value))
+                    instanceData.put(name, value);
+            }
+        }
+    }
+
     private static boolean include(Task task, Map<DataFilterFacet, String> filterFacetParameters) {
         // [jira EDMSIMPL-203] use 'and' logic instead of 'or' logic in filtering
         boolean doInclude = true;
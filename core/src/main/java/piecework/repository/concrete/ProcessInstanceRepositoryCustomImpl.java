@@ -16,35 +16,45 @@
 package piecework.repository.concrete;
 
 import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.env.Environment;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.convert.MongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.repository.NoRepositoryBean;
 import org.springframework.stereotype.Service;
 import piecework.Constants;
+import piecework.common.CloseableIterator;
 import piecework.common.SearchQueryParameters;
 import piecework.model.*;
 import piecework.common.SearchQueryBuilder;
 import piecework.common.SearchCriteria;
 import piecework.repository.custom.ProcessInstanceRepositoryCustom;
 import piecework.security.Sanitizer;
+import piecework.util.KeywordUtility;
 import piecework.util.ProcessInstanceUtility;
 import piecework.util.SearchUtility;
 
+import javax.annotation.PostConstruct;
 import java.util.*;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
@@ -64,6 +74,17 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
     @Qualifier(value="mongoTemplate")
     MongoTemplate mongoOperations;
 
+    @Autowired(required = false)
+    Environment environment;
+
+    private boolean taskIdFallback = true;
+
+    @PostConstruct
+    public void init() {
+        if (environment != null)
+            this.taskIdFallback = environment.getProperty("task.index.fallback", Boolean.class, Boolean.TRUE);
+    }
+
     @Override
     public Page<ProcessInstance> findByCriteria(Set<String> processDefinitionKeys, SearchCriteria criteria, Pageable pageable, Sanitizer sanitizer) {
         // Otherwise, look up all instances that match the query
@@ -121,18 +142,133 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         return page;
     }
 
+    @Override
+    public CloseableIterator<ProcessInstance> iterateByQuery(Query query, int batchSize) {
+        MongoConverter converter = mongoOperations.getConverter();
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getPersistentEntity(ProcessInstance.class);
+        QueryMapper queryMapper = new QueryMapper(converter);
+
+        DBObject mappedQuery = queryMapper.getMappedObject(query.getQueryObject(), entity);
+        DBObject fields = query.getFieldsObject() != null ? queryMapper.getMappedObject(query.getFieldsObject(), entity) : null;
+
+        // One cursor for the whole result, read a batch at a time, so the server never has to
+        // walk past the documents already returned the way it would with skip
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(ProcessInstance.class));
+        DBCursor cursor = collection.find(mappedQuery, fields).batchSize(batchSize);
+        if (query.getSortObject() != null)
+            cursor.sort(queryMapper.getMappedObject(query.getSortObject(), entity));
+        if (query.getSkip() > 0)
+            cursor.skip(query.getSkip());
+        if (query.getLimit() > 0)
+            cursor.limit(query.getLimit());
+
+        return new ProcessInstanceCursor(cursor, converter);
+    }
+
+    @Override
+    public CloseableIterator<Operation> iterateOperations(String processInstanceId, int batchSize) {
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(ProcessInstanceOperation.class));
+        DBCursor cursor = collection.find(new BasicDBObject("processInstanceId", processInstanceId))
+                .sort(new BasicDBObject("date", 1))
+                .batchSize(batchSize);
+        return new OperationCursor(cursor, mongoOperations.getConverter());
+    }
+
+    @Override
+    public long countByQuery(Query query) {
+        return mongoOperations.count(query, ProcessInstance.class);
+    }
+
+    @Override
+    public List<ProcessInstance> findTasksByQuery(Query query) {
+        long start = 0;
+        if (LOG.isDebugEnabled())
+            start = System.currentTimeMillis();
+
+        // Only bring back the embedded tasks, since the caller just needs to filter and count them -- the rest
+        // of each document (form data in particular) can be very large
+        query.fields()
+                .include("processDefinitionKey")
+                .include("tasks");
+
+        List<ProcessInstance> processInstances = mongoOperations.find(query, ProcessInstance.class);
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Retrieved tasks for " + processInstances.size() + " instances in " + (System.currentTimeMillis() - start) + " ms");
+
+        return processInstances;
+    }
+
+    @Override
+    public List<ProcessInstanceSummary> findSummariesByQuery(Query query, Collection<Facet> facets, boolean includeTasks) {
+        long start = 0;
+        if (LOG.isDebugEnabled())
+            start = System.currentTimeMillis();
+
+        List<ProcessInstanceSummary> summaries = new ArrayList<ProcessInstanceSummary>();
+        CloseableIterator<ProcessInstanceSummary> cursor = iterateSummariesByQuery(query, facets, includeTasks, 0);
+        try {
+            while (cursor.hasNext()) {
+                summaries.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Retrieved " + summaries.size() + " instance summaries in " + (System.currentTimeMillis() - start) + " ms");
+
+        return summaries;
+    }
+
+    @Override
+    public CloseableIterator<ProcessInstanceSummary> iterateSummariesByQuery(Query query, Collection<Facet> facets, boolean includeTasks, int batchSize) {
+        MongoConverter converter = mongoOperations.getConverter();
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getPersistentEntity(ProcessInstance.class);
+        QueryMapper queryMapper = new QueryMapper(converter);
+
+        DBObject mappedQuery = queryMapper.getMappedObject(query.getQueryObject(), entity);
+        DBObject fields = SearchUtility.summaryFields(facets, includeTasks);
+
+        // Read the raw documents so that only the projected fields are ever touched, rather than
+        // handing each one to the converter to build a complete process instance
+        DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(ProcessInstance.class));
+        DBCursor cursor = collection.find(mappedQuery, fields);
+        if (batchSize > 0)
+            cursor.batchSize(batchSize);
+        if (query.getSortObject() != null)
+            cursor.sort(queryMapper.getMappedObject(query.getSortObject(), entity));
+        if (query.getSkip() > 0)
+            cursor.skip(query.getSkip());
+        if (query.getLimit() > 0)
+            cursor.limit(query.getLimit());
+
+        return new SummaryCursor(cursor, converter);
+    }
+
     @Override
     public ProcessInstance findByTaskId(String processDefinitionKey, String taskId) {
-        Query query = new Query(where("tasks." + taskId).exists(true).and("processDefinitionKey").is(processDefinitionKey));
-        return mongoOperations.findOne(query, ProcessInstance.class);
+        Query query = new Query(where("taskIds").is(taskId).and("processDefinitionKey").is(processDefinitionKey));
+        ProcessInstance instance = mongoOperations.findOne(query, ProcessInstance.class);
+        if (instance != null || !taskIdFallback)
+            return instance;
+
+        // Documents that haven't been migrated yet can only be found by the task key, which no index can help with,
+        // so fix each one as it turns up
+        query = new Query(where("tasks." + taskId).exists(true).and("processDefinitionKey").is(processDefinitionKey));
+        instance = mongoOperations.findOne(query, ProcessInstance.class);
+        if (instance != null) {
+            LOG.info("Found task " + taskId + " without an index entry, adding task ids to instance " + instance.getProcessInstanceId());
+            updateTaskIds(instance);
+        }
+        return instance;
     }
 
     @Override
     public boolean update(String id, String engineProcessInstanceId) {
         WriteResult result = mongoOperations.updateFirst(new Query(where("_id").is(id)),
-                new Update().set("engineProcessInstanceId", engineProcessInstanceId)
-                            .set("lastModifiedTime", new Date())
-                            .addToSet("keywords", id),
+                includeKeywords(new Update().set("engineProcessInstanceId", engineProcessInstanceId)
+                            .set("lastModifiedTime", new Date()), KeywordUtility.tokens(id)),
                 ProcessInstance.class);
         String error = result.getError();
         if (StringUtils.isNotEmpty(error)) {
@@ -159,19 +295,33 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         if (processStatus != null)
             update.set("processStatus", processStatus);
 
-        if (tasks != null) {
+        if (tasks != null && !tasks.isEmpty()) {
+            BasicDBList taskIds = new BasicDBList();
             for (Task task : tasks) {
                 update.set("tasks." + task.getTaskInstanceId(), task);
+                taskIds.add(task.getTaskInstanceId());
             }
+            update.addToSet("taskIds", new BasicDBObject("$each", taskIds));
         }
 
-        update.push("operations", operation);
         update.set("lastModifiedTime", new Date());
 
         FindAndModifyOptions options = new FindAndModifyOptions();
         options.returnNew(true);
 
-        return mongoOperations.findAndModify(query, update, options, ProcessInstance.class);
+        // The operation goes into its own collection rather than onto the instance, which would otherwise grow without
+        // limit. It's stored before the instance is touched, so that anything that reads the instance's new last modified
+        // time -- the cached history in particular -- also sees the operation
+        ProcessInstanceOperation stored = operation != null ? new ProcessInstanceOperation(id, operation) : null;
+        if (stored != null)
+            mongoOperations.insert(stored);
+
+        ProcessInstance instance = mongoOperations.findAndModify(query, update, options, ProcessInstance.class);
+
+        if (instance == null && stored != null && stored.getId() != null)
+            mongoOperations.remove(new Query(where("_id").is(stored.getId())), ProcessInstanceOperation.class);
+
+        return instance;
     }
 
     @Override
@@ -181,6 +331,7 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
 
         Update update = new Update();
         update.set("tasks." + task.getTaskInstanceId(), task)
+              .addToSet("taskIds", task.getTaskInstanceId())
               .set("lastModifiedTime", new Date());
         FindAndModifyOptions options = new FindAndModifyOptions();
         options.returnNew(true);
@@ -195,13 +346,130 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
                 .set("applicationStatus", applicationStatus)
                 .set("processStatus", Constants.ProcessStatuses.COMPLETE)
                 .set("lastModifiedTime", new Date());
-        include(update, data, id);
+        includeKeywords(update, include(update, data, id));
         return mongoOperations.findAndModify(new Query(where("_id").is(id)),
                 update,
                 OPTIONS,
                 ProcessInstance.class);
     }
 
+    @Override
+    public String updateKeywords(String afterProcessInstanceId, int batchSize) {
+        Query query = new Query();
+        if (StringUtils.isNotEmpty(afterProcessInstanceId))
+            query.addCriteria(where("_id").gt(afterProcessInstanceId));
+        query.with(new Sort(Sort.Direction.ASC, "_id")).limit(batchSize);
+        query.fields()
+                .include("engineProcessInstanceId")
+                .include("alias")
+                .include("processInstanceLabel")
+                .include("data");
+
+        List<ProcessInstance> instances = mongoOperations.find(query, ProcessInstance.class);
+        if (instances == null || instances.isEmpty())
+            return null;
+
+        String lastProcessInstanceId = null;
+        for (ProcessInstance instance : instances) {
+            lastProcessInstanceId = instance.getProcessInstanceId();
+            Set<String> keywords = ProcessInstanceUtility.keywords(instance);
+            if (keywords == null || keywords.isEmpty())
+                continue;
+
+            // Adds rather than sets, so keywords stored by somebody else since the instance was read aren't lost
+            BasicDBList each = new BasicDBList();
+            each.addAll(keywords);
+            mongoOperations.updateFirst(new Query(where("_id").is(lastProcessInstanceId)),
+                    new Update().addToSet("keywords", new BasicDBObject("$each", each)), ProcessInstance.class);
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Updated keywords for " + instances.size() + " instances through " + lastProcessInstanceId);
+
+        return lastProcessInstanceId;
+    }
+
+    @Override
+    public String updateTaskIds(String afterProcessInstanceId, int batchSize) {
+        Query query = new Query();
+        if (StringUtils.isNotEmpty(afterProcessInstanceId))
+            query.addCriteria(where("_id").gt(afterProcessInstanceId));
+        query.with(new Sort(Sort.Direction.ASC, "_id")).limit(batchSize);
+        query.fields()
+                .include("tasks");
+
+        List<ProcessInstance> instances = mongoOperations.find(query, ProcessInstance.class);
+        if (instances == null || instances.isEmpty())
+            return null;
+
+        String lastProcessInstanceId = null;
+        for (ProcessInstance instance : instances) {
+            lastProcessInstanceId = instance.getProcessInstanceId();
+            updateTaskIds(instance);
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Updated task ids for " + instances.size() + " instances through " + lastProcessInstanceId);
+
+        return lastProcessInstanceId;
+    }
+
+    @Override
+    public String moveOperations(String afterProcessInstanceId, int batchSize) {
+        Query query = new Query(where("operations.0").exists(true));
+        if (StringUtils.isNotEmpty(afterProcessInstanceId))
+            query.addCriteria(where("_id").gt(afterProcessInstanceId));
+        query.with(new Sort(Sort.Direction.ASC, "_id")).limit(batchSize);
+        query.fields()
+                .include("operations");
+
+        // Raw documents, so that exactly the operations that were read can be pulled back out again
+        String collectionName = mongoOperations.getCollectionName(ProcessInstance.class);
+        List<DBObject> instances = mongoOperations.find(query, DBObject.class, collectionName);
+        if (instances == null || instances.isEmpty())
+            return null;
+
+        MongoConverter converter = mongoOperations.getConverter();
+        DBCollection collection = mongoOperations.getCollection(collectionName);
+        String lastProcessInstanceId = null;
+        for (DBObject instance : instances) {
+            Object id = instance.get("_id");
+            lastProcessInstanceId = id.toString();
+            Object operations = instance.get("operations");
+            if (!(operations instanceof List))
+                continue;
+
+            List<?> storedOperations = List.class.cast(operations);
+            for (int i = 0; i < storedOperations.size(); i++) {
+                Operation operation = converter.read(Operation.class, DBObject.class.cast(storedOperations.get(i)));
+                // Saved by id, so an instance that was only partly moved last time can simply be moved again
+                mongoOperations.save(ProcessInstanceOperation.moved(lastProcessInstanceId, i, operation));
+            }
+            collection.update(new BasicDBObject("_id", id),
+                    new BasicDBObject("$pullAll", new BasicDBObject("operations", storedOperations)));
+        }
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Moved operations for " + instances.size() + " instances through " + lastProcessInstanceId);
+
+        return lastProcessInstanceId;
+    }
+
+    /*
+     * Adds rather than sets, so a task stored by somebody else in the meantime isn't lost
+     */
+    private void updateTaskIds(ProcessInstance instance) {
+        BasicDBList taskIds = new BasicDBList();
+        for (Task task : instance.getTasks()) {
+            taskIds.add(task.getTaskInstanceId());
+        }
+        if (taskIds.isEmpty())
+            return;
+
+        mongoOperations.updateFirst(new Query(where("_id").is(instance.getProcessInstanceId())),
+                new Update().addToSet("taskIds", new BasicDBObject("$each", taskIds)), ProcessInstance.class);
+    }
+
     private ProcessInstance updateEfficiently(String id, String label, Map<String, List<Value>> data, Map<String, List<Message>> messages, List<Attachment> attachments, Submission submission, String applicationStatusExplanation) {
         Query query = new Query(where("_id").is(id));
         Update update = new Update();
@@ -209,10 +477,12 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         if (applicationStatusExplanation != null)
             update.set("applicationStatusExplanation", applicationStatusExplanation);
 
+        Set<String> keywords = new HashSet<String>();
         include(update, attachments);
-        include(update, data, id);
-        include(update, label);
+        keywords.addAll(include(update, data, id));
+        keywords.addAll(include(update, label));
         include(update, submission);
+        includeKeywords(update, keywords);
         includeMessages(update, messages);
 
         update.set("lastModifiedTime", new Date());
@@ -243,6 +513,149 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         return entity;
     }
 
+    static class ProcessInstanceCursor implements CloseableIterator<ProcessInstance> {
+
+        private final DBCursor cursor;
+        private final MongoConverter converter;
+
+        ProcessInstanceCursor(DBCursor cursor, MongoConverter converter) {
+            this.cursor = cursor;
+            this.converter = converter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public ProcessInstance next() {
+            return converter.read(ProcessInstance.class, cursor.next());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    static class OperationCursor implements CloseableIterator<Operation> {
+
+        private final DBCursor cursor;
+        private final MongoConverter converter;
+
+        OperationCursor(DBCursor cursor, MongoConverter converter) {
+            this.cursor = cursor;
+            this.converter = converter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public Operation next() {
+            return converter.read(ProcessInstanceOperation.class, cursor.next()).toOperation();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    static class SummaryCursor implements CloseableIterator<ProcessInstanceSummary> {
+
+        private final DBCursor cursor;
+        private final MongoConverter converter;
+
+        SummaryCursor(DBCursor cursor, MongoConverter converter) {
+            this.cursor = cursor;
+            this.converter = converter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public ProcessInstanceSummary next() {
+            return summary(cursor.next(), converter);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    private static ProcessInstanceSummary summary(DBObject dbObject, MongoConverter converter) {
+        ProcessInstanceSummary.Builder builder = new ProcessInstanceSummary.Builder()
+                .processInstanceId(string(dbObject, "_id"))
+                .processDefinitionKey(string(dbObject, "processDefinitionKey"))
+                .processDefinitionLabel(string(dbObject, "processDefinitionLabel"))
+                .processInstanceLabel(string(dbObject, "processInstanceLabel"))
+                .processStatus(string(dbObject, "processStatus"))
+                .applicationStatus(string(dbObject, "applicationStatus"))
+                .applicationStatusExplanation(string(dbObject, "applicationStatusExplanation"))
+                .startTime(date(dbObject, "startTime"))
+                .lastModifiedTime(date(dbObject, "lastModifiedTime"))
+                .endTime(date(dbObject, "endTime"));
+
+        Object data = dbObject.get("data");
+        if (data instanceof DBObject) {
+            DBObject dataObject = DBObject.class.cast(data);
+            for (String fieldName : dataObject.keySet()) {
+                Object values = dataObject.get(fieldName);
+                if (values instanceof List && !List.class.cast(values).isEmpty()) {
+                    Object first = List.class.cast(values).get(0);
+                    if (first instanceof DBObject)
+                        builder.value(fieldName, string(DBObject.class.cast(first), "value"));
+                }
+            }
+        }
+
+        // Tasks are small, so it's reasonable to let the converter deal with them
+        Object tasks = dbObject.get("tasks");
+        if (tasks instanceof DBObject) {
+            DBObject tasksObject = DBObject.class.cast(tasks);
+            for (String taskId : tasksObject.keySet()) {
+                Object task = tasksObject.get(taskId);
+                if (task instanceof DBObject)
+                    builder.task(converter.read(Task.class, DBObject.class.cast(task)));
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static String string(DBObject dbObject, String key) {
+        Object value = dbObject.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    private static Date date(DBObject dbObject, String key) {
+        Object value = dbObject.get(key);
+        return value instanceof Date ? Date.class.cast(value) : null;
+    }
+
     private static void include(Update update, List<Attachment> attachments) {
         if (attachments != null && !attachments.isEmpty()) {
             Object[] attachmentIds = new Object[attachments.size()];
@@ -254,7 +667,7 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         }
     }
 
-    private void include(Update update, Map<String, List<Value>> data, String id) {
+    private Set<String> include(Update update, Map<String, List<Value>> data, String id) {
         if (data != null && !data.isEmpty()) {
             MongoConverter converter = mongoOperations.getConverter();
             MongoTypeMapper typeMapper = converter.getTypeMapper();
@@ -289,20 +702,26 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
 
                 update.set(key, dbObjects);
             }
-            if (!keywords.isEmpty()) {
-                BasicDBList eachList = new BasicDBList();
-                for (String keyword : keywords) {
-                    eachList.add(keyword);
-                }
-                if (StringUtils.isNotEmpty(id))
-                    eachList.add(id);
-                update.addToSet(
-                        "keywords",
-                        BasicDBObjectBuilder.start("$each", eachList).get()
-                );
-            }
+            if (!keywords.isEmpty())
+                keywords.addAll(KeywordUtility.tokens(id));
+
+            return keywords;
+        }
+        return Collections.emptySet();
+    }
 
+    private static Update includeKeywords(Update update, Set<String> keywords) {
+        if (keywords != null && !keywords.isEmpty()) {
+            BasicDBList eachList = new BasicDBList();
+            for (String keyword : keywords) {
+                eachList.add(keyword);
+            }
+            update.addToSet(
+                    "keywords",
+                    BasicDBObjectBuilder.start("$each", eachList).get()
+            );
         }
+        return update;
     }
 
     private void includeMessages(Update update, Map<String, List<Message>> messages) {
@@ -330,9 +749,12 @@ public class ProcessInstanceRepositoryCustomImpl implements ProcessInstanceRepos
         }
     }
 
-    private static void include(Update update, String label) {
-        if (StringUtils.isNotEmpty(label))
+    private static Set<String> include(Update update, String label) {
+        if (StringUtils.isNotEmpty(label)) {
             update.set("processInstanceLabel", label);
+            return KeywordUtility.tokens(label);
+        }
+        return Collections.emptySet();
     }
 
     private static void include(Update update, Submission submission) {
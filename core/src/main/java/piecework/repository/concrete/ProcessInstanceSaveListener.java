@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.repository.concrete;
+
+import com.mongodb.DBObject;
+import org.apache.log4j.Logger;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import piecework.model.Operation;
+import piecework.model.ProcessInstance;
+import piecework.model.ProcessInstanceOperation;
+
+import java.util.List;
+
+/**
+ * Keeps operations out of process instance documents when a whole instance is saved. Operations live
+ * in their own collection now, but an instance read before its operations were moved still carries
+ * them, and saving it would put them back -- so any it has are stored on their own (by id, so ones
+ * that were already moved are only stored once) and left out of the document.
+ *
+ * @author James Renfro
+ */
+public class ProcessInstanceSaveListener extends AbstractMongoEventListener<ProcessInstance> {
+
+    private static final Logger LOG = Logger.getLogger(ProcessInstanceSaveListener.class);
+
+    private final MongoOperations mongoOperations;
+
+    public ProcessInstanceSaveListener(MongoOperations mongoOperations) {
+        this.mongoOperations = mongoOperations;
+    }
+
+    @Override
+    public void onBeforeSave(ProcessInstance instance, DBObject dbo) {
+        List<Operation> operations = instance.getOperations();
+        if (operations != null && !operations.isEmpty()) {
+            for (int i = 0; i < operations.size(); i++) {
+                mongoOperations.save(ProcessInstanceOperation.moved(instance.getProcessInstanceId(), i, operations.get(i)));
+            }
+            if (LOG.isDebugEnabled())
+                LOG.debug("Moved " + operations.size() + " operations out of " + instance.getProcessInstanceId() + " before saving it");
+        }
+        dbo.removeField("operations");
+    }
+
+}
@@ -3,11 +3,13 @@ package piecework.repository.custom;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.query.Query;
+import piecework.common.CloseableIterator;
 import piecework.common.SearchQueryParameters;
 import piecework.model.*;
 import piecework.common.SearchCriteria;
 import piecework.security.Sanitizer;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,6 +25,18 @@ public interface ProcessInstanceRepositoryCustom {
 
     Page<ProcessInstance> findByQuery(Query query, Pageable pageable, boolean includeTotal);
 
+    CloseableIterator<ProcessInstance> iterateByQuery(Query query, int batchSize);
+
+    CloseableIterator<Operation> iterateOperations(String processInstanceId, int batchSize);
+
+    long countByQuery(Query query);
+
+    List<ProcessInstance> findTasksByQuery(Query query);
+
+    List<ProcessInstanceSummary> findSummariesByQuery(Query query, Collection<Facet> facets, boolean includeTasks);
+
+    CloseableIterator<ProcessInstanceSummary> iterateSummariesByQuery(Query query, Collection<Facet> facets, boolean includeTasks, int batchSize);
+
     ProcessInstance findByTaskId(String processDefinitionKey, String taskId);
 
     ProcessInstance update(String id, String label, Map<String, List<Value>> data, Map<String, List<Message>> messages, List<Attachment> attachments, Submission submission, String applicationStatusExplanation);
@@ -35,4 +49,10 @@ public interface ProcessInstanceRepositoryCustom {
 
     ProcessInstance update(String id, String processStatus, String applicationStatus, Map<String, List<Value>> data);
 
+    String updateKeywords(String afterProcessInstanceId, int batchSize);
+
+    String updateTaskIds(String afterProcessInstanceId, int batchSize);
+
+    String moveOperations(String afterProcessInstanceId, int batchSize);
+
 }
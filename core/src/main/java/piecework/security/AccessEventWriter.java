@@ -0,0 +1,368 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.security;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import com.mongodb.util.JSONParseException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Service;
+import piecework.Constants;
+import piecework.enumeration.AuditDurability;
+import piecework.exception.PieceworkException;
+import piecework.exception.ServiceUnavailableError;
+import piecework.model.AccessEvent;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the audit trail of access to restricted data. Events arrive in batches (one per
+ * request) and go to Mongo with a single insert. Since the trail is a compliance record, an
+ * event is never dropped quietly:
+ *
+ * - With SYNC durability (the default) the batch is written before the caller gets its data
+ *   back. If Mongo can't take it and a spool file is configured, the batch is appended to the
+ *   spool file instead (and synced to disk, unless that is turned off). If neither works the
+ *   caller gets an error and the data isn't released.
+ * - With ASYNC durability the batch is only queued, and a background thread writes it out.
+ *   When the queue is full the caller falls back to writing the batch itself, as above. Batches
+ *   the background thread can't write or spool are retried, and only logged as lost if they are
+ *   still unwritten at shutdown.
+ *
+ * Spooled events are replayed into Mongo by the background thread once it is reachable again.
+ * They carry their own ids, so a replay that is interrupted part way can be run again safely.
+ *
+ * @author James Renfro
+ */
+@Service
+public class AccessEventWriter {
+
+    private static final Logger LOG = Logger.getLogger(AccessEventWriter.class);
+
+    @Autowired
+    Environment environment;
+
+    @Autowired
+    MongoOperations mongoOperations;
+
+    private final Object spoolLock = new Object();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private AuditDurability durability;
+    private File spool;
+    private boolean spoolSync;
+    private BlockingQueue<AccessEvent> queue;
+    private int batchSize;
+    private long flushMillis;
+    private long offerTimeoutMillis;
+    private long replayMillis;
+    private Thread writer;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        this.durability = AuditDurability.valueOf(environment.getProperty("access.audit.durability", "SYNC").trim().toUpperCase());
+        String spoolFile = environment.getProperty("access.audit.spool.file");
+        this.spool = StringUtils.isNotBlank(spoolFile) ? new File(spoolFile.trim()) : null;
+        this.spoolSync = environment.getProperty("access.audit.spool.sync", Boolean.class, Boolean.TRUE).booleanValue();
+        int capacity = environment.getProperty("access.audit.queue.capacity", Integer.class, 10000);
+        this.batchSize = environment.getProperty("access.audit.batch.size", Integer.class, 200);
+        this.flushMillis = environment.getProperty("access.audit.flush.millis", Long.class, 1000l);
+        this.offerTimeoutMillis = environment.getProperty("access.audit.offer.timeout.millis", Long.class, 50l);
+        this.replayMillis = environment.getProperty("access.audit.spool.replay.seconds", Long.class, 60l) * 1000l;
+        this.queue = new ArrayBlockingQueue<AccessEvent>(capacity);
+        this.running = true;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "access-event-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        LOG.info("Writing access events with " + durability + " durability" + (spool != null ? ", spooling to " + spool.getAbsolutePath() : ", without a spool file"));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(flushMillis * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<AccessEvent> batch = new ArrayList<AccessEvent>();
+        while (queue.drainTo(batch, batchSize) > 0) {
+            if (!store(batch))
+                lost(batch);
+            batch.clear();
+        }
+        LOG.info("Access event writer stopped after writing " + written.get() + " events, spooling " + spooled.get() + ", replaying " + replayed.get() + " and failing to write " + failed.get());
+    }
+
+    /*
+     * Records the events, or throws when they can't be recorded with the configured durability,
+     * in which case the data they describe shouldn't be released
+     */
+    public void write(List<AccessEvent> events) throws PieceworkException {
+        if (events == null || events.isEmpty())
+            return;
+
+        if (durability == AuditDurability.ASYNC && running) {
+            List<AccessEvent> unqueued = offer(events);
+            if (unqueued.isEmpty())
+                return;
+            // The queue is backed up, so these get written here rather than dropped
+            events = new ArrayList<AccessEvent>(unqueued);
+        }
+
+        if (!store(events))
+            throw new ServiceUnavailableError(Constants.ExceptionCodes.access_not_recorded);
+    }
+
+    public AuditDurability getDurability() {
+        return durability;
+    }
+
+    public int getQueued() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getSpooled() {
+        return spooled.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /*
+     * Moves anything in the spool file into Mongo. The file is renamed before it is read, so
+     * events spooled in the meantime go to a new file.
+     */
+    void replay() {
+        if (spool == null)
+            return;
+
+        // A file left over from a replay that didn't finish goes first, then the current one
+        while (replayFile()) {
+        }
+    }
+
+    private boolean replayFile() {
+        File replaying = new File(spool.getPath() + ".replaying");
+        synchronized (spoolLock) {
+            if (!replaying.exists()) {
+                if (!spool.exists() || spool.length() == 0)
+                    return false;
+                if (!spool.renameTo(replaying)) {
+                    LOG.warn("Unable to rename " + spool.getAbsolutePath() + " to replay it");
+                    return false;
+                }
+            }
+        }
+
+        long count = 0;
+        BufferedReader reader = null;
+        try {
+            DBCollection collection = mongoOperations.getCollection(mongoOperations.getCollectionName(AccessEvent.class));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(replaying), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isBlank(line))
+                    continue;
+                Object parsed;
+                try {
+                    parsed = JSON.parse(line);
+                } catch (JSONParseException e) {
+                    // Most likely the tail of a write that was cut off by a crash
+                    LOG.error("Skipping unreadable access event in " + replaying.getAbsolutePath() + ": " + line);
+                    continue;
+                }
+                if (parsed instanceof DBObject) {
+                    collection.save((DBObject) parsed);
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to read spooled access events from " + replaying.getAbsolutePath(), e);
+            return false;
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to replay spooled access events yet, will try again later", e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        replayed.addAndGet(count);
+        LOG.info("Replayed " + count + " spooled access events");
+        if (!replaying.delete()) {
+            LOG.error("Replayed spooled access events but was unable to delete " + replaying.getAbsolutePath() + ", they will be replayed again");
+            return false;
+        }
+        return true;
+    }
+
+    private List<AccessEvent> offer(List<AccessEvent> events) {
+        int offered = 0;
+        try {
+            while (offered < events.size() && queue.offer(events.get(offered), offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                offered++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return offered < events.size() ? events.subList(offered, events.size()) : Collections.<AccessEvent>emptyList();
+    }
+
+    /*
+     * Writes the events to Mongo, or to the spool when Mongo isn't taking them. Returns false
+     * when they went nowhere.
+     */
+    private boolean store(List<AccessEvent> events) {
+        try {
+            mongoOperations.insert(events, AccessEvent.class);
+            written.addAndGet(events.size());
+            return true;
+        } catch (RuntimeException e) {
+            LOG.error("Unable to write " + events.size() + " access events to mongo", e);
+        }
+        if (spool(events))
+            return true;
+        failed.addAndGet(events.size());
+        return false;
+    }
+
+    private boolean spool(List<AccessEvent> events) {
+        if (spool == null)
+            return false;
+
+        synchronized (spoolLock) {
+            FileOutputStream output = null;
+            try {
+                File directory = spool.getAbsoluteFile().getParentFile();
+                if (directory != null && !directory.exists())
+                    directory.mkdirs();
+                output = new FileOutputStream(spool, true);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+                for (AccessEvent event : events) {
+                    DBObject document = new BasicDBObject();
+                    mongoOperations.getConverter().write(event, document);
+                    if (document.get("_id") == null)
+                        document.put("_id", new ObjectId());
+                    writer.write(JSON.serialize(document));
+                    writer.write('\n');
+                }
+                writer.flush();
+                if (spoolSync)
+                    output.getFD().sync();
+                spooled.addAndGet(events.size());
+                LOG.warn("Spooled " + events.size() + " access events to " + spool.getAbsolutePath());
+                return true;
+            } catch (IOException e) {
+                LOG.error("Unable to spool " + events.size() + " access events to " + spool.getAbsolutePath(), e);
+                return false;
+            } catch (RuntimeException e) {
+                LOG.error("Unable to convert " + events.size() + " access events to spool them", e);
+                return false;
+            } finally {
+                IOUtils.closeQuietly(output);
+            }
+        }
+    }
+
+    private void lost(List<AccessEvent> events) {
+        // Last resort, so there is at least some record of them
+        for (AccessEvent event : events) {
+            LOG.error("Lost access event: " + event.getSecretId() + " (" + event.getKey() + ") of process " + event.getProcessDefinitionKey()
+                    + " instance " + event.getProcessInstanceId() + " by " + event.getEntityId() + " at " + event.getAccessDate() + " for " + event.getReason());
+        }
+    }
+
+    private void drain() {
+        List<AccessEvent> batch = new ArrayList<AccessEvent>(batchSize);
+        long nextReplay = System.currentTimeMillis();
+        while (running) {
+            if (spool != null && System.currentTimeMillis() >= nextReplay) {
+                replay();
+                nextReplay = System.currentTimeMillis() + replayMillis;
+            }
+
+            try {
+                long deadline = System.currentTimeMillis() + flushMillis;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        break;
+                    AccessEvent event = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (event == null)
+                        break;
+                    batch.add(event);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            if (batch.isEmpty())
+                continue;
+            if (store(batch)) {
+                batch.clear();
+                continue;
+            }
+            // Hold on to a batch that can't be stored and try it again after a pause
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+        if (!batch.isEmpty() && !store(batch))
+            lost(batch);
+    }
+
+}
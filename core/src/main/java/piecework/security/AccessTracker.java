@@ -26,28 +26,33 @@ import org.apache.cxf.message.*;
 import org.apache.cxf.message.Message;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
-import piecework.common.AccessLog;
+import piecework.common.SlidingWindowCounter;
 import piecework.enumeration.AlarmSeverity;
-import piecework.enumeration.CacheName;
 import piecework.exception.PieceworkException;
 import piecework.model.*;
 import piecework.model.Process;
 import piecework.persistence.ProcessProvider;
-import piecework.repository.AccessEventRepository;
-import piecework.service.CacheService;
 import piecework.settings.NotificationSettings;
 import piecework.settings.SecuritySettings;
 import piecework.util.ModelUtility;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.mail.internet.InternetAddress;
 import javax.ws.rs.core.Response;
+import java.util.Collections;
 import java.util.List;
 
 /**
+ * Counts requests per client (by remote user, or by remote address for anonymous requests)
+ * over a sliding window, and raises an alarm when a client goes over the access limit. The
+ * counting doesn't lock, since it runs on every request. Alarms raised by the application, such
+ * as for tampering, are always logged; a client over the limit is only logged when its alarm
+ * goes out, so it doesn't write an error on every request. Alarm emails go out from a
+ * background thread, at most once per client per quiet period.
+ *
  * @author James Renfro
  */
 @Service
@@ -57,10 +62,7 @@ public class AccessTracker implements RequestHandler {
     private static final String crLf = Character.toString((char)13) + Character.toString((char)10);
 
     @Autowired
-    AccessEventRepository accessEventRepository;
-
-    @Autowired
-    CacheService cacheService;
+    AccessEventWriter accessEventWriter;
 
     @Autowired
     NotificationSettings notificationSettings;
@@ -68,6 +70,25 @@ public class AccessTracker implements RequestHandler {
     @Autowired
     SecuritySettings securitySettings;
 
+    private SlidingWindowCounter anonymousCounter;
+    private SlidingWindowCounter authenticatedCounter;
+    private AlarmDispatcher alarmDispatcher;
+
+    @PostConstruct
+    public void init() {
+        long interval = securitySettings.getAccessCacheInterval();
+        int slices = securitySettings.getAccessWindowSlices();
+        int maxKeys = securitySettings.getAccessMaxKeys();
+        this.anonymousCounter = new SlidingWindowCounter(interval, slices, maxKeys);
+        this.authenticatedCounter = new SlidingWindowCounter(interval, slices, maxKeys);
+        this.alarmDispatcher = new AlarmDispatcher(securitySettings.getAccessAlarmQuietInterval(), securitySettings.getAccessAlarmQueueCapacity());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (alarmDispatcher != null)
+            alarmDispatcher.shutdown(5000l);
+    }
 
     public void alarm(final AlarmSeverity severity, final String message) {
         alarm(severity, message, "");
@@ -78,14 +99,34 @@ public class AccessTracker implements RequestHandler {
     }
 
     public void alarm(final AlarmSeverity severity, final String message, final String entityId) {
+        // Logged every time, only the email is held back for repeats within the quiet period
+        LOG.error("Alarming at severity " + severity + " : " + message);
+        dispatch(severity + ":" + entityId + ":" + message, severity, message, entityId);
+    }
+
+    /*
+     * Returns false if an alarm with the same key went out within the quiet period, or there was no room for it
+     */
+    private boolean dispatch(final String key, final AlarmSeverity severity, final String message, final String entityId) {
+        if (alarmDispatcher == null) {
+            send(severity, message, entityId);
+            return true;
+        }
+        return alarmDispatcher.dispatch(key, new Runnable() {
+            @Override
+            public void run() {
+                send(severity, message, entityId);
+            }
+        });
+    }
+
+    private void send(final AlarmSeverity severity, final String message, final String entityId) {
         try {
             SimpleEmail email = new SimpleEmail();
             email.setHostName(notificationSettings.getMailServerHost());
             email.setSmtpPort(notificationSettings.getMailServerPort());
             String adminEmail = notificationSettings.getAdminEmail();
 
-            LOG.error("Alarming at severity " + severity + " : " + message);
-
             if (StringUtils.isEmpty(adminEmail)) {
                 LOG.error("Unable to send alarm email, no admin email addressed configured.");
                 return;
@@ -125,40 +166,37 @@ public class AccessTracker implements RequestHandler {
         RequestDetails requestDetails = new RequestDetails.Builder(context, securitySettings).build();
         boolean isAnonymous = StringUtils.isEmpty(requestDetails.getRemoteUser());
 
-        CacheName cacheName = isAnonymous ? CacheName.ACCESS_ANONYMOUS : CacheName.ACCESS_AUTHENTICATED;
+        SlidingWindowCounter counter = isAnonymous ? anonymousCounter : authenticatedCounter;
         String key = isAnonymous ? requestDetails.getRemoteAddr() : requestDetails.getRemoteUser();
 
-        Cache.ValueWrapper wrapper = cacheService.get(cacheName, key);
-
-        AccessLog accessLog = null;
-        AccessLog previousAccessLog = null;
-        if (wrapper != null) {
-            previousAccessLog = AccessLog.class.cast(wrapper.get());
-
-            if (previousAccessLog != null && !previousAccessLog.isExpired(securitySettings.getAccessCacheInterval())) {
-                accessLog = new AccessLog(previousAccessLog);
-            }
-        }
-
-        if (accessLog == null)
-            accessLog = new AccessLog(securitySettings.getAccessCountLimit());
-
-        cacheService.put(cacheName, key, accessLog);
-
-        if (accessLog.isAlarming()) {
-            String alarmMessage = "Access attempt " + accessLog.getAccessCount() + " by " + key;
-            LOG.warn(alarmMessage);
-            alarm(AlarmSeverity.MINOR, alarmMessage, requestDetails.getRemoteUser());
+        long accessCount = counter.increment(key);
+        if (accessCount >= securitySettings.getAccessCountLimit()) {
+            String alarmMessage = "Access attempt " + accessCount + " by " + key;
+            // Logged only when the alarm goes out -- log4j appenders lock, and this could be every request
+            if (dispatch("access:" + isAnonymous + ":" + key, AlarmSeverity.MINOR, alarmMessage, requestDetails.getRemoteUser()))
+                LOG.error("Alarming at severity " + AlarmSeverity.MINOR + " : " + alarmMessage);
 //            return Response.status(Response.Status.FORBIDDEN).build();
         }
         return null;
     }
 
     public <P extends ProcessProvider> void track(final P modelProvider, final String secretId, final String key, final String reason, final boolean isAnonymousAllowed) throws PieceworkException {
+        track(Collections.singletonList(accessEvent(modelProvider, secretId, key, reason, isAnonymousAllowed)));
+    }
+
+    /*
+     * Records a batch of access events, e.g. all of the restricted values decrypted for one request,
+     * and throws if they can't be recorded -- in which case the values mustn't be released
+     */
+    public void track(final List<AccessEvent> accessEvents) throws PieceworkException {
+        accessEventWriter.write(accessEvents);
+    }
+
+    public <P extends ProcessProvider> AccessEvent accessEvent(final P modelProvider, final String secretId, final String key, final String reason, final boolean isAnonymousAllowed) throws PieceworkException {
         Process process = modelProvider.process();
         ProcessInstance instance = ModelUtility.instance(modelProvider);
         Entity principal = modelProvider.principal();
-        accessEventRepository.save(new AccessEvent(process, instance, secretId, key, reason, principal, isAnonymousAllowed));
+        return new AccessEvent(process, instance, secretId, key, reason, principal, isAnonymousAllowed);
     }
 
 }
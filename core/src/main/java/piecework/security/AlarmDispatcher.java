@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.security;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends alarms from a single background thread, so the request that trips an alarm doesn't
+ * wait on the mail server. Alarms with the same key are only sent once per quiet period --
+ * a client hammering the API raises one alarm, not one per request. The queue is bounded,
+ * and alarms that don't fit are dropped and counted.
+ *
+ * @author James Renfro
+ */
+public class AlarmDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(AlarmDispatcher.class);
+
+    private final long quietMillis;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Long> lastSent = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public AlarmDispatcher(long quietMillis, int queueCapacity) {
+        this.quietMillis = quietMillis;
+        this.executor = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "alarm-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * Queues the alarm unless one with the same key went out within the quiet period. Returns
+     * false when it was suppressed or dropped.
+     */
+    public boolean dispatch(String key, final Runnable alarm) {
+        long now = System.currentTimeMillis();
+        if (key != null) {
+            Long previous = lastSent.get(key);
+            while (true) {
+                if (previous != null && now - previous.longValue() < quietMillis) {
+                    suppressed.incrementAndGet();
+                    return false;
+                }
+                boolean claimed = previous == null ? lastSent.putIfAbsent(key, Long.valueOf(now)) == null
+                        : lastSent.replace(key, previous, Long.valueOf(now));
+                if (claimed)
+                    break;
+                previous = lastSent.get(key);
+            }
+            if (lastSent.size() > 1000)
+                forget(now);
+        }
+
+        final Long claim = Long.valueOf(now);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        alarm.run();
+                        sent.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        LOG.error("Unable to send alarm", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // It never went out, so the next one with the same key shouldn't be held back on its account
+            if (key != null)
+                lastSent.remove(key, claim);
+            long count = dropped.incrementAndGet();
+            if (count == 1 || count % 100 == 0)
+                LOG.warn("Alarm queue is full or stopped, " + count + " alarms have been dropped so far");
+            return false;
+        }
+        return true;
+    }
+
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                int abandoned = executor.shutdownNow().size();
+                if (abandoned > 0)
+                    LOG.warn("Abandoned " + abandoned + " queued alarms on shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void forget(long now) {
+        Iterator<Map.Entry<String, Long>> iterator = lastSent.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().longValue() >= quietMillis)
+                iterator.remove();
+        }
+    }
+
+}
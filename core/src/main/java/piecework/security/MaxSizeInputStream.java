@@ -18,14 +18,18 @@ package piecework.security;
 
 import piecework.exception.MaxSizeExceededException;
 
-import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
+ * Counts the bytes read through it and fails once more than the maximum have gone by. Uploads
+ * are read by a single consumer -- GridFS pulling a chunk at a time -- so there's no locking
+ * and no buffer of its own, the reads go straight through to the underlying stream.
+ *
  * @author James Renfro
  */
-public class MaxSizeInputStream extends BufferedInputStream {
+public class MaxSizeInputStream extends FilterInputStream {
 
     private final long maxBytes;
     private long size;
@@ -35,24 +39,53 @@ public class MaxSizeInputStream extends BufferedInputStream {
         this.maxBytes = maxBytes;
     }
 
-    public synchronized int read() throws IOException {
-        int bytesRead = super.read();
-        size += bytesRead;
-
-        if (size > maxBytes)
-            throw new MaxSizeExceededException(maxBytes);
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1)
+            count(1);
+        return b;
+    }
 
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        int bytesRead = super.read(b, off, len);
+        if (bytesRead > 0)
+            count(bytesRead);
         return bytesRead;
     }
 
-    public synchronized int read(byte b[], int off, int len) throws IOException {
-        int bytesRead = super.read(b, off, len);
-        size += bytesRead;
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0)
+            count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark and reset are not supported");
+    }
 
+    public long getSize() {
+        return size;
+    }
+
+    private void count(long bytesRead) throws MaxSizeExceededException {
+        size += bytesRead;
         if (size > maxBytes)
             throw new MaxSizeExceededException(maxBytes);
-
-        return bytesRead;
     }
 
 }
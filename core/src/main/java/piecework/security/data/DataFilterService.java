@@ -80,7 +80,7 @@ public class DataFilterService {
         ProcessInstance instance = modelProvider.instance();
         Map<String, List<Value>> instanceData = instance != null ? instance.getData() : null;
         DataFilter decryptValuesFilter = new DecryptValuesFilter(modelProvider, reason, accessTracker, encryptionService, false);
-        return SecurityUtility.filter(Collections.<Field>emptySet(), instanceData, decryptValuesFilter);
+        return filter(Collections.<Field>emptySet(), instanceData, decryptValuesFilter);
     }
 
     /**
@@ -96,7 +96,7 @@ public class DataFilterService {
         ProcessInstance instance = modelProvider.instance();
         ManyMap<String, Value> combinedData = SecurityUtility.combinedData(instance, validation);
         DataFilter decryptValuesFilter = new DecryptValuesFilter(modelProvider, reason, accessTracker, encryptionService, false);
-        return SecurityUtility.filter(Collections.<Field>emptySet(), combinedData, decryptValuesFilter);
+        return filter(Collections.<Field>emptySet(), combinedData, decryptValuesFilter);
     }
 
     /**
@@ -130,7 +130,7 @@ public class DataFilterService {
         ProcessInstance instance = ModelUtility.instance(provider);
         boolean isAnonymousDecryptAllowed = instance == null && process.isAnonymousSubmissionAllowed();
         DataFilter decryptValuesFilter = new DecryptValuesFilter(provider, reason, accessTracker, encryptionService, isAnonymousDecryptAllowed);
-        return SecurityUtility.filter(Collections.<Field>emptySet(), validationData, decryptValuesFilter);
+        return filter(Collections.<Field>emptySet(), validationData, decryptValuesFilter);
     }
 
     /**
@@ -172,7 +172,7 @@ public class DataFilterService {
 
         DataFilter limitFieldsFilter = isAllowAny ? new NoOpFilter() : new LimitFieldsFilter(fields, true);
         DataFilter decorateValuesFilter = new DecorateValuesFilter(instance, task, fields, settings, principal, identityService, version);
-        return SecurityUtility.filter(fields, instanceData, limitFieldsFilter, decryptValuesFilter, decorateValuesFilter);
+        return filter(fields, instanceData, limitFieldsFilter, decryptValuesFilter, decorateValuesFilter);
     }
 
     /**
@@ -198,7 +198,7 @@ public class DataFilterService {
 
         DataFilter limitFieldsFilter = isAllowAny ? new NoOpFilter() : new LimitFieldsFilter(fields, true);
         DataFilter decorateValuesFilter = new DecorateValuesFilter(instance, task, fields, settings, principal, identityService, version);
-        return SecurityUtility.filter(fields, combinedData, limitFieldsFilter, decryptValuesFilter, decorateValuesFilter);
+        return filter(fields, combinedData, limitFieldsFilter, decryptValuesFilter, decorateValuesFilter);
     }
 
     public ManyMap<String, Value> exclude(Map<String, List<Value>> original) {
@@ -220,6 +220,16 @@ public class DataFilterService {
         return map;
     }
 
+    private static Map<String, List<Value>> filter(Set<Field> fields, Map<String, List<Value>> original, DataFilter... dataFilters) throws PieceworkException {
+        Map<String, List<Value>> filtered = SecurityUtility.filter(fields, original, dataFilters);
+        // Nothing decrypted is handed back until access to it has been recorded
+        for (DataFilter dataFilter : dataFilters) {
+            if (dataFilter instanceof DecryptValuesFilter)
+                DecryptValuesFilter.class.cast(dataFilter).flush();
+        }
+        return filtered;
+    }
+
     private static List<Value> exclude(List<? extends Value> values) throws UnsupportedEncodingException, GeneralSecurityException, InvalidCipherTextException {
         if (values.isEmpty())
             return Collections.emptyList();
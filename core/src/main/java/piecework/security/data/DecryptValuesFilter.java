@@ -18,6 +18,8 @@ package piecework.security.data;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import piecework.enumeration.AlarmSeverity;
+import piecework.exception.PieceworkException;
+import piecework.model.AccessEvent;
 import piecework.model.Secret;
 import piecework.model.Value;
 import piecework.persistence.ProcessProvider;
@@ -33,7 +35,9 @@ import java.util.List;
 /**
  * Data filter that decrypts values passed, and calls AccessTracker to log the fact
  * that restricted data is being decrypted, including a reason why and who has
- * requested access to it
+ * requested access to it. The access events are held until flush is called, so all
+ * of the values decrypted for one request are recorded together -- flush has to succeed
+ * before any of the decrypted values are handed back.
  *
  * @author James Renfro
  */
@@ -52,6 +56,7 @@ public class DecryptValuesFilter<P extends ProcessProvider> implements DataFilte
     private final String entityId;
 
     private final String coreMessage;
+    private final List<AccessEvent> accessEvents;
 
     public DecryptValuesFilter(P modelProvider, String reason, AccessTracker accessTracker, EncryptionService encryptionService, boolean isAnonymousDecryptAllowed) {
         this.modelProvider = modelProvider;
@@ -62,6 +67,7 @@ public class DecryptValuesFilter<P extends ProcessProvider> implements DataFilte
         this.processInstanceId = ModelUtility.instanceId(modelProvider);
         this.entityId = modelProvider.principal() != null ? modelProvider.principal().getEntityId() : null;
         this.coreMessage = message(modelProvider.processDefinitionKey(), processInstanceId, entityId, isAnonymousDecryptAllowed);
+        this.accessEvents = new ArrayList<AccessEvent>();
     }
 
     @Override
@@ -80,8 +86,9 @@ public class DecryptValuesFilter<P extends ProcessProvider> implements DataFilte
                 }
                 Secret secret = Secret.class.cast(value);
                 try {
-                    accessTracker.track(modelProvider, secret.getId(), key, reason, isAnonymousDecryptAllowed);
+                    AccessEvent accessEvent = accessTracker.accessEvent(modelProvider, secret.getId(), key, reason, isAnonymousDecryptAllowed);
                     String plaintext = encryptionService.decrypt(secret);
+                    accessEvents.add(accessEvent);
                     list.add(new Value(plaintext));
                     if (LOG.isInfoEnabled())
                         LOG.info(new StringBuilder("Decrypting ").append(key).append(coreMessage).toString());
@@ -96,6 +103,17 @@ public class DecryptValuesFilter<P extends ProcessProvider> implements DataFilte
         return list;
     }
 
+    /*
+     * Records access to everything decrypted since the last flush
+     */
+    public void flush() throws PieceworkException {
+        if (accessEvents.isEmpty())
+            return;
+        List<AccessEvent> batch = new ArrayList<AccessEvent>(accessEvents);
+        accessEvents.clear();
+        accessTracker.track(batch);
+    }
+
     private static String message(String processDefinitionKey, String processInstanceId, String entityId, boolean isAnonymousDecryptAllowed) {
         StringBuilder message = new StringBuilder(" restricted field for process ").append(processDefinitionKey);
 
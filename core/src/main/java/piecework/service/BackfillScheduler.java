@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+
+/**
+ * Runs the batches of every backfill that's turned on, on a thread of its own, rather than on the
+ * single thread that @Scheduled methods share -- where a long batch would hold up things like
+ * publishing cache changes. Batches of the same backfill run one after another, waiting a while
+ * in between, until it's complete.
+ *
+ * @author James Renfro
+ */
+@Service
+public class BackfillScheduler {
+
+    private static final Logger LOG = Logger.getLogger(BackfillScheduler.class);
+
+    private static final long DELAY_MILLIS = 5000l;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "batch-backfill");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    public synchronized void schedule(final BatchBackfill backfill) {
+        if (executor == null)
+            init();
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    backfill.backfill();
+                } catch (RuntimeException e) {
+                    LOG.error(backfill.getDescription() + " batch failed, it will be tried again", e);
+                }
+                if (!backfill.isComplete())
+                    schedule(this);
+            }
+        });
+    }
+
+    private void schedule(Runnable batch) {
+        try {
+            executor.schedule(batch, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+}
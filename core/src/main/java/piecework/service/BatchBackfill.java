@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Works through existing process instances in the background, one batch at a time in order of
+ * process instance id, each batch picking up after the last instance of the one before. Only
+ * runs when its property is turned on, with the batch size taken from the same property plus
+ * '.batch.size'. Batches run on the BackfillScheduler's thread, so a slow one doesn't hold up
+ * anything else that's scheduled. Each batch has to be safe to run more than once.
+ *
+ * @author James Renfro
+ */
+public abstract class BatchBackfill {
+
+    private static final Logger LOG = Logger.getLogger(BatchBackfill.class);
+
+    @Autowired(required = false)
+    Environment environment;
+
+    @Autowired(required = false)
+    BackfillScheduler backfillScheduler;
+
+    private final String description;
+    private final String property;
+    private boolean enabled;
+    private int batchSize = 500;
+    private long count;
+    private volatile boolean complete;
+    private volatile String lastProcessInstanceId;
+
+    protected BatchBackfill(String description, String property) {
+        this.description = description;
+        this.property = property;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (environment != null) {
+            this.enabled = environment.getProperty(property, Boolean.class, Boolean.FALSE);
+            this.batchSize = environment.getProperty(property + ".batch.size", Integer.class, 500);
+        }
+        this.complete = false;
+        if (enabled) {
+            LOG.info(description + " will run in batches of " + batchSize);
+            if (backfillScheduler != null)
+                backfillScheduler.schedule(this);
+        }
+    }
+
+    public synchronized void backfill() {
+        if (!enabled || complete || !isReady())
+            return;
+
+        String processInstanceId = backfill(lastProcessInstanceId, batchSize);
+        if (processInstanceId == null) {
+            complete = true;
+            LOG.info(description + " complete after " + count + " batches");
+        } else {
+            count++;
+            lastProcessInstanceId = processInstanceId;
+        }
+    }
+
+    /*
+     * Does the batch after the given process instance, or the first batch if it's null -- returns the id of the
+     * last instance in the batch, or null once there aren't any left
+     */
+    protected abstract String backfill(String afterProcessInstanceId, int batchSize);
+
+    /*
+     * Whether the next batch can run yet -- if not, it's tried again next time round
+     */
+    protected boolean isReady() {
+        return true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public String getLastProcessInstanceId() {
+        return lastProcessInstanceId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+}
@@ -15,28 +15,45 @@
  */
 package piecework.service;
 
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.statistics.StatisticsGateway;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import piecework.common.ManyMapSet;
+import piecework.cache.CacheCounters;
+import piecework.cache.CacheInvalidationBus;
+import piecework.cache.CacheStatistics;
 import piecework.enumeration.CacheName;
-import piecework.model.CacheEvent;
-import piecework.repository.CacheEventRepository;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This is just a way to keep track of the different caches available
  * in the system. It delegates everything to the Spring cache abstraction.
  *
+ * Entries that are shared across the cluster (any cache that is not local)
+ * are kept consistent by broadcasting evictions over a CacheInvalidationBus
+ * when 'cache.invalidation.enabled' is turned on. Use put to populate the
+ * cache after a read and update or evict after a write -- only the latter
+ * two are broadcast to other nodes.
+ *
+ * Nothing here takes a lock, so any number of threads can read and populate
+ * caches at once. Hits, misses, puts, evictions and load times are counted
+ * per cache and available from getStatistics.
+ *
  * @author James Renfro
  */
 @Service
-public class CacheService {
+public class CacheService implements CacheInvalidationBus.Listener {
 
     private static final Logger LOG = Logger.getLogger(CacheService.class);
 
@@ -44,84 +61,174 @@ public class CacheService {
     CacheManager cacheManager;
 
     @Autowired
-    CacheEventRepository cacheEventRepository;
+    Environment environment;
+
+    @Autowired(required=false)
+    MongoOperations mongoOperations;
 
     // Populated on startup to uniquely identify this instance
-    private static String CACHE_AGENT_ID;
+    private String cacheAgentId;
 
-    private ManyMapSet<String, String> cacheKeyMap;
+    private CacheInvalidationBus invalidationBus;
+
+    private final ConcurrentMap<String, Cache> caches = new ConcurrentHashMap<String, Cache>();
+    private final ConcurrentMap<String, CacheCounters> counters = new ConcurrentHashMap<String, CacheCounters>();
 
     @PostConstruct
     public void init() {
-        CACHE_AGENT_ID = UUID.randomUUID().toString();
-        this.cacheKeyMap = new ManyMapSet<String, String>();
-    }
-
-//    @Scheduled(fixedRate=5000)
-//    public synchronized void runEveryFiveSeconds() {
-//        if (this.cacheKeyMap != null && !this.cacheKeyMap.isEmpty()) {
-//            if (LOG.isDebugEnabled())
-//                LOG.debug("Saving cache event as " + CACHE_AGENT_ID);
-//
-//            CacheEvent event = new CacheEvent(CACHE_AGENT_ID, new ManyMapSet<String, String>(cacheKeyMap));
-//            cacheEventRepository.save(event);
-//            this.cacheKeyMap = new ManyMapSet<String, String>();
-//        }
-//    }
-//
-//    @Scheduled(fixedRate=30000)
-//    public void runEveryThirtySeconds() {
-//        List<CacheEvent> events = cacheEventRepository.findAllOtherCacheAgentEvents(CACHE_AGENT_ID);
-//        long thirtySecondsAgo = System.currentTimeMillis() - 30000;
-//        if (events != null) {
-//            for (CacheEvent event : events) {
-//                long eventTime = event.getEventDate() != null ? event.getEventDate().getTime() : -1;
-//                if (eventTime > thirtySecondsAgo) {
-//                    if (LOG.isDebugEnabled())
-//                        LOG.debug("Processing cache event as " + CACHE_AGENT_ID);
-//
-//                    ManyMapSet<String, String> eventCacheKeyMap = event.getCacheKeyMap();
-//                    if (eventCacheKeyMap != null && !eventCacheKeyMap.isEmpty()) {
-//                        for (Map.Entry<String, Set<String>> entry : eventCacheKeyMap.entrySet()) {
-//                            evict(entry.getKey(), entry.getValue());
-//                        }
-//                    }
-//                }
-//            }
-//        }
-//    }
+        this.cacheAgentId = UUID.randomUUID().toString();
+
+        boolean enabled = environment != null && environment.getProperty("cache.invalidation.enabled", Boolean.class, Boolean.FALSE);
+        if (enabled) {
+            if (mongoOperations == null) {
+                LOG.warn("Cache invalidation is enabled but there is no mongo template, evictions will not be shared with other nodes");
+                return;
+            }
+            String collectionName = environment.getProperty("cache.invalidation.collection", "cache.invalidation");
+            long collectionSize = environment.getProperty("cache.invalidation.collection.size", Long.class, Long.valueOf(8388608l));
+            CacheInvalidationBus bus = new CacheInvalidationBus(mongoOperations, collectionName, collectionSize, cacheAgentId, this);
+            if (bus.start())
+                this.invalidationBus = bus;
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (invalidationBus != null)
+            invalidationBus.stop();
+    }
+
+    @Scheduled(fixedDelay=1000)
+    public void publish() {
+        if (invalidationBus != null)
+            invalidationBus.flush();
+    }
+
+    @Scheduled(fixedDelay=300000)
+    public void logStatistics() {
+        if (LOG.isDebugEnabled()) {
+            for (CacheStatistics statistics : getStatistics()) {
+                LOG.debug(statistics);
+            }
+        }
+    }
 
     public Cache.ValueWrapper get(CacheName cacheName, String key) {
-        Cache cache = cacheManager.getCache(cacheName.name());
-        return cache != null ? cache.get(key) : null;
+        Cache cache = cache(cacheName.name());
+        if (cache == null)
+            return null;
+
+        Cache.ValueWrapper wrapper = cache.get(key);
+        if (wrapper != null)
+            counters(cacheName.name()).hit();
+        else
+            counters(cacheName.name()).miss(key);
+        return wrapper;
     }
 
-    public synchronized void put(CacheName cacheName, String key, Object value) {
-        String cacheId = cacheName.name();
-        Cache cache = cacheManager.getCache(cacheId);
+    /*
+     * Populates the local cache only -- other nodes will load the same value on their own
+     */
+    public void put(CacheName cacheName, String key, Object value) {
+        Cache cache = cache(cacheName.name());
         if (cache != null) {
             cache.put(key, value);
-
-            if (!cacheName.isLocal())
-                this.cacheKeyMap.putOne(cacheId, key);
+            counters(cacheName.name()).put(key);
         }
     }
 
+    /*
+     * Replaces the local entry after the underlying value has changed, and tells other nodes to
+     * drop their copies
+     */
+    public void update(CacheName cacheName, String key, Object value) {
+        put(cacheName, key, value);
+        broadcast(cacheName, key);
+    }
+
     public void evict(CacheName cacheName, String key) {
         evict(cacheName.name(), Collections.singleton(key));
+        broadcast(cacheName, key);
     }
 
-    public synchronized void evict(String cacheName, Set<String> keys) {
+    /*
+     * Evicts from the local cache only, this is what the invalidation bus calls for events
+     * published by other nodes
+     */
+    public void evict(String cacheName, Set<String> keys) {
         if (keys == null || keys.size() <= 0)
             return;
 
         if (LOG.isDebugEnabled())
             LOG.debug("Evicting " + keys.size() + " keys from " + cacheName);
 
-        Cache cache = cacheManager.getCache(cacheName);
+        Cache cache = cache(cacheName);
+        if (cache == null)
+            return;
+
         for (String key : keys) {
             cache.evict(key);
         }
+        counters(cacheName).evict(keys.size());
+    }
+
+    public CacheStatistics getStatistics(CacheName cacheName) {
+        String name = cacheName.name();
+        CacheStatistics.Builder builder = counters(name).statistics();
+        Cache cache = caches.get(name);
+        Object nativeCache = cache != null ? cache.getNativeCache() : null;
+        if (nativeCache instanceof Ehcache) {
+            // Entries that expired or were pushed out by the size limit
+            StatisticsGateway statistics = ((Ehcache) nativeCache).getStatistics();
+            builder.evictions(statistics.cacheEvictedCount() + statistics.cacheExpiredCount())
+                    .size(statistics.getLocalHeapSize(), statistics.getLocalHeapSizeInBytes());
+        }
+        return builder.build();
+    }
+
+    public List<CacheStatistics> getStatistics() {
+        List<CacheStatistics> statistics = new ArrayList<CacheStatistics>();
+        for (CacheName cacheName : CacheName.values()) {
+            statistics.add(getStatistics(cacheName));
+        }
+        return statistics;
+    }
+
+    public String getCacheAgentId() {
+        return cacheAgentId;
+    }
+
+    public CacheInvalidationBus getInvalidationBus() {
+        return invalidationBus;
+    }
+
+    private Cache cache(String cacheName) {
+        Cache cache = caches.get(cacheName);
+        if (cache == null) {
+            cache = cacheManager.getCache(cacheName);
+            if (cache != null) {
+                Cache existing = caches.putIfAbsent(cacheName, cache);
+                if (existing != null)
+                    cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    private CacheCounters counters(String cacheName) {
+        CacheCounters cacheCounters = counters.get(cacheName);
+        if (cacheCounters == null) {
+            cacheCounters = new CacheCounters(cacheName);
+            CacheCounters existing = counters.putIfAbsent(cacheName, cacheCounters);
+            if (existing != null)
+                cacheCounters = existing;
+        }
+        return cacheCounters;
+    }
+
+    private void broadcast(CacheName cacheName, String key) {
+        if (invalidationBus != null && !cacheName.isLocal())
+            invalidationBus.publish(cacheName.name(), key);
     }
 
 }
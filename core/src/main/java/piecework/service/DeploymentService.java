@@ -349,7 +349,8 @@ public class DeploymentService {
     }
 
     private void cache(ProcessDeployment deployment) {
-        cacheService.put(CacheName.PROCESS_DEPLOYMENT, deployment.getDeploymentId(), deployment);
+        cacheService.update(CacheName.PROCESS_DEPLOYMENT, deployment.getDeploymentId(), deployment);
+        cacheService.evict(CacheName.VALIDATION_PLAN, deployment.getDeploymentId());
     }
 
     private boolean useCurrentDeployment(ProcessInstance instance, ProcessDeployment deployment) {
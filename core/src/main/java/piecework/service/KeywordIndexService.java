@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import piecework.repository.ProcessInstanceRepository;
+
+/**
+ * Rewrites the keywords of existing process instances as prefix-searchable tokens, when the
+ * 'search.keywords.backfill' property is turned on.
+ *
+ * @author James Renfro
+ */
+@Service
+public class KeywordIndexService extends BatchBackfill {
+
+    @Autowired
+    ProcessInstanceRepository processInstanceRepository;
+
+    public KeywordIndexService() {
+        super("Keyword backfill", "search.keywords.backfill");
+    }
+
+    @Override
+    protected String backfill(String afterProcessInstanceId, int batchSize) {
+        return processInstanceRepository.updateKeywords(afterProcessInstanceId, batchSize);
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import piecework.repository.ProcessInstanceRepository;
+
+/**
+ * Moves the operations still embedded in existing process instances into their own collection,
+ * so that the instances stop carrying their whole history around, when the
+ * 'history.operations.backfill' property is turned on. Each operation is saved by id before it's
+ * removed from its instance, and history reads both places until this has finished.
+ *
+ * @author James Renfro
+ */
+@Service
+public class OperationMigrationService extends BatchBackfill {
+
+    @Autowired
+    ProcessInstanceRepository processInstanceRepository;
+
+    public OperationMigrationService() {
+        super("Operation migration", "history.operations.backfill");
+    }
+
+    @Override
+    protected String backfill(String afterProcessInstanceId, int batchSize) {
+        return processInstanceRepository.moveOperations(afterProcessInstanceId, batchSize);
+    }
+
+}
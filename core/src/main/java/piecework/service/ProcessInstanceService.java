@@ -33,8 +33,10 @@ import piecework.common.ViewContext;
 import piecework.engine.ProcessEngineFacade;
 import piecework.exception.*;
 import piecework.export.IteratingDataProvider;
+import piecework.export.Pager;
 import piecework.export.concrete.ExportAsCommaSeparatedValuesProvider;
 import piecework.export.concrete.ExportAsExcelWorkbookProvider;
+import piecework.export.concrete.PrefetchingPager;
 import piecework.export.concrete.ProcessInstanceQueryPager;
 import piecework.model.*;
 import piecework.model.Process;
@@ -197,7 +199,7 @@ public class ProcessInstanceService {
             Process process = modelProviderFactory.processProvider(processDefinitionKey, principal).process();
 
             Query query = new SearchQueryBuilder(executionCriteria).build(processDefinitionKeys, sanitizer);
-            ProcessInstanceQueryPager pager = new ProcessInstanceQueryPager(query, processInstanceRepository, executionCriteria.getSort(sanitizer));
+            Pager<ProcessInstance> pager = new PrefetchingPager<ProcessInstance>(new ProcessInstanceQueryPager(query, processInstanceRepository, executionCriteria.getSort(sanitizer)));
 
             List<Field> fields = ExportUtility.exportFields(process.getDeployment());
             Map<String, String> headerMap = ExportUtility.headerMap(fields);
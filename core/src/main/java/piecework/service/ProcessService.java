@@ -124,7 +124,7 @@ public class ProcessService {
 
         if (all != null && !all.isEmpty()) {
             for (ProcessInstance instance : all) {
-                ProcessInstance.Builder builder = new ProcessInstance.Builder(instance).deploymentId(process.getDeploymentId());
+                ProcessInstance.Builder builder = new ProcessInstance.Builder(instance).deploymentId(process.getDeploymentId()).lastModifiedTime(new Date());
                 processInstanceRepository.save(builder.build());
             }
         }
@@ -389,7 +389,8 @@ public class ProcessService {
 
     private Process persist(Process process) {
         Process stored = processRepository.save(process);
-        cacheService.put(CacheName.PROCESS, process.getProcessDefinitionKey(), stored);
+        cacheService.update(CacheName.PROCESS, process.getProcessDefinitionKey(), stored);
+        cacheService.evict(CacheName.PROCESS_BASIC, process.getProcessDefinitionKey());
         return stored;
     }
 
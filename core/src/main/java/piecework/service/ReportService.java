@@ -15,92 +15,434 @@
  */
 package piecework.service;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
-import org.springframework.data.mongodb.core.mapreduce.MapReduceOptions;
-import org.springframework.data.mongodb.core.mapreduce.MapReduceResults;
+import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import piecework.Constants;
+import piecework.engine.EventListener;
+import piecework.engine.StateChangeEvent;
 import piecework.exception.PieceworkException;
-import piecework.model.ChartData;
-import piecework.model.ChartDataset;
-import piecework.model.Report;
+import piecework.model.*;
+import piecework.persistence.ProcessInstanceProvider;
 import piecework.persistence.ProcessProvider;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
+import javax.annotation.PostConstruct;
+import java.text.SimpleDateFormat;
+import java.util.*;
 
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 
 /**
+ * Answers reports from counters that are kept up to date as things happen, instead of
+ * scanning process instances every time somebody looks at a dashboard. Hears about every
+ * process from the Mediator, and adds one to the counter for the process, month and status
+ * (or task definition) each time an instance starts, completes or is cancelled, or a task
+ * is completed.
+ *
+ * Counters for instances that existed before this was running are rebuilt in the background,
+ * one batch of instances at a time, when the 'report.counters.backfill' property is turned on.
+ * The rebuild happens once: it records its cutoff, and how far it has got, in Mongo, and counts
+ * into a collection of its own. It only counts what happened before the cutoff, and events are
+ * added to the new collection only if they happened after, even if they were raised before and
+ * are still waiting to be heard. Until the rebuild is done, reports are answered from the old
+ * counters, which events go on adding to; after that, from the new ones. Other nodes look for
+ * the rebuild every few seconds, so the cutoff is set a little after it starts, and no batch is
+ * counted until it has passed. A restart picks up where the rebuild left off, rather than
+ * starting it over. Each batch is claimed before it's counted, and each counter notes the last batch it has counted, so a
+ * batch that's counted again -- after a crash part way through, or by another node with the
+ * property turned on -- doesn't add anything twice.
+ *
  * @author James Renfro
  */
 @Service
-public class ReportService {
+public class ReportService extends BatchBackfill implements EventListener {
+
+    private static final Logger LOG = Logger.getLogger(ReportService.class);
+
+    public static final String TASK_REPORT = "tasks";
+
+    private static final String[] STATUSES = { Constants.ProcessStatuses.OPEN, Constants.ProcessStatuses.COMPLETE, Constants.ProcessStatuses.CANCELLED };
+    private static final List<String> STATUS_LABELS = Arrays.asList("Started", "Completed", "Cancelled");
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
 
     @Autowired(required = false)
     @Qualifier(value="mongoTemplate")
     MongoOperations operations;
 
-    public Report getReport(ProcessProvider processProvider, String reportName) throws PieceworkException {
-        ChartDataset dataset1 = new ChartDataset();
-        dataset1.setLabel("Jan 2013");
-        dataset1.setData(Arrays.asList(65, 59, 90, 81, 56));
+    private static final long STATE_CHECK_MILLIS = 5000l;
 
-        ChartDataset dataset2 = new ChartDataset();
-        dataset2.setLabel("Feb 2013");
-        dataset2.setData(Arrays.asList(28, 48, 40, 19, 96));
+    // Long enough for every node to have heard that the rebuild started before anything it counts happens
+    long cutoffDelayMillis = 2 * STATE_CHECK_MILLIS;
 
-        ChartData data = new ChartData();
-        data.setLabels(Arrays.asList("Active", "Completed", "Cancelled", "Suspended"));
-        data.setDatasets(Arrays.asList(dataset1, dataset2));
+    private int months = 6;
+    private volatile ReportBackfill state;
+    private volatile long stateChecked;
 
-        return new Report(reportName, data);
+    public ReportService() {
+        super("Report counter rebuild", "report.counters.backfill");
     }
 
-    private Report getMonthlyProcessStatusReport(String processDefinitionKey) {
-        String mapFunction = "function() {         " +
-            "   var key = this.processStatus;             " +
-            "   var value = {                      " +
-            "            label: this.processStatus,      " +
-            "            month: this.startTime.getMonth() " +
-            "            count: 1                 " +
-            "    };                                " +
-            "                                      " +
-            "    emit( key, value );               " +
-            "}";
-
-        String reduceFunction = "function(key, values) {" +
-                "var reducedObject = {" +
-                "    month: key," +
-                "    data: []" +
-                "};" +
-                "values.forEach( " +
-                "    function(value) {" +
-                "       reducedObject.total_time += value.total_time;" +
-                "       reducedObject.data.push(value)" +
-                "    }" +
-                ");" +
-                "return reducedObject;" +
-            "};";
-
-        Query query = new Query(where("processDefinitionKey").is(processDefinitionKey));
-        MapReduceResults<ChartDataset> results = operations.mapReduce(query, "instance", mapFunction, reduceFunction, MapReduceOptions.options(), ChartDataset.class);
-        Iterator<ChartDataset> iterator = results.iterator();
+    @Override
+    @PostConstruct
+    public void init() {
+        super.init();
+        if (environment != null)
+            this.months = environment.getProperty("report.months", Integer.class, 6);
+    }
 
+    public Report getReport(ProcessProvider processProvider, String reportName) throws PieceworkException {
+        boolean isTaskReport = TASK_REPORT.equals(reportName);
+        String category = isTaskReport ? ReportCounter.TASK : ReportCounter.STATUS;
+        List<String> monthList = months(new Date(), months);
+
+        // One indexed query, bounded by the number of months and labels, however many instances there are
+        List<ReportCounter> counters = null;
+        if (operations != null) {
+            Query query = new Query(where("processDefinitionKey").is(processProvider.processDefinitionKey())
+                    .and("category").is(category)
+                    .and("month").gte(monthList.get(0)));
+            ReportBackfill current = state();
+            String collection = current != null && current.isComplete() ? current.getCounterCollection() : ReportBackfill.COUNTER_COLLECTION;
+            counters = operations.find(query, ReportCounter.class, collection);
+        }
+
+        Map<String, Map<String, Long>> countMap = new HashMap<String, Map<String, Long>>();
+        Set<String> taskLabels = new TreeSet<String>();
+        if (counters != null) {
+            for (ReportCounter counter : counters) {
+                Map<String, Long> labelCountMap = countMap.get(counter.getMonth());
+                if (labelCountMap == null) {
+                    labelCountMap = new HashMap<String, Long>();
+                    countMap.put(counter.getMonth(), labelCountMap);
+                }
+                labelCountMap.put(counter.getLabel(), Long.valueOf(counter.getCount()));
+                taskLabels.add(counter.getLabel());
+            }
+        }
+
+        List<String> keys = isTaskReport ? new ArrayList<String>(taskLabels) : Arrays.asList(STATUSES);
+        SimpleDateFormat labelFormat = new SimpleDateFormat("MMM yyyy", Locale.US);
+        labelFormat.setTimeZone(UTC);
         List<ChartDataset> datasets = new ArrayList<ChartDataset>();
-        while (iterator.hasNext()) {
-            datasets.add(iterator.next());
+        for (String month : monthList) {
+            Map<String, Long> labelCountMap = countMap.get(month);
+            List<Integer> data = new ArrayList<Integer>(keys.size());
+            for (String key : keys) {
+                Long count = labelCountMap != null ? labelCountMap.get(key) : null;
+                data.add(Integer.valueOf(count != null ? count.intValue() : 0));
+            }
+            ChartDataset dataset = new ChartDataset();
+            dataset.setLabel(labelFormat.format(firstOfMonth(month)));
+            dataset.setData(data);
+            datasets.add(dataset);
         }
 
         ChartData data = new ChartData();
-        data.setLabels(Arrays.asList("Active", "Completed", "Cancelled", "Suspended"));
+        data.setLabels(isTaskReport ? keys : STATUS_LABELS);
         data.setDatasets(datasets);
 
-        return new Report("Monthly Process Status Report", data);
+        return new Report(reportName, data);
+    }
+
+    @Override
+    public void notify(StateChangeEvent event) throws PieceworkException {
+        ProcessInstanceProvider instanceProvider = event.getInstanceProvider();
+        String processDefinitionKey = instanceProvider != null ? instanceProvider.processDefinitionKey() : null;
+        if (operations == null || StringUtils.isEmpty(processDefinitionKey))
+            return;
+
+        ReportBackfill current = state();
+        Date date = event.getDate() != null ? event.getDate() : new Date();
+        switch (event.getType()) {
+            case START_PROCESS:
+                // The rebuild goes by when the instance started, so go by exactly the same thing
+                if (current != null) {
+                    ProcessInstance instance = instanceProvider.instance();
+                    if (instance != null && instance.getStartTime() != null)
+                        date = instance.getStartTime();
+                }
+                increment(processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.OPEN, date, current);
+                break;
+            case COMPLETE_PROCESS:
+                increment(processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.COMPLETE, date, current);
+                break;
+            case CANCEL_PROCESS:
+                increment(processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.CANCELLED, date, current);
+                break;
+            case COMPLETE_TASK:
+                Task task = event.getTask();
+                if (task != null && StringUtils.isNotEmpty(task.getTaskDefinitionKey()))
+                    increment(processDefinitionKey, ReportCounter.TASK, task.getTaskDefinitionKey(), task.getEndTime() != null ? task.getEndTime() : date, current);
+                break;
+        }
+    }
+
+    /*
+     * Listens to every process
+     */
+    @Override
+    public String getProcessDefinitionKey() {
+        return null;
+    }
+
+    @Override
+    protected String backfill(String afterProcessInstanceId, int batchSize) {
+        if (operations == null)
+            return null;
+
+        // Every batch goes by the stored progress, read just now, since another node may have moved it on
+        ReportBackfill current = state;
+        if (current == null || current.isComplete())
+            return null;
+
+        String after = current.getLastProcessInstanceId();
+        String through = current.getBatchThrough();
+        List<ProcessInstance> instances;
+        if (through == null) {
+            instances = operations.find(batchQuery(after, null).limit(batchSize), ProcessInstance.class);
+            if (instances == null || instances.isEmpty()) {
+                // Unless somebody has claimed another batch in the meantime, that's everything
+                ReportBackfill finished = operations.findAndModify(progressQuery(after), new Update().set("complete", Boolean.TRUE), ReportBackfill.class);
+                if (finished == null)
+                    return after;
+                // Look again straight away, so this node switches over to the new counters
+                stateChecked = 0;
+                LOG.info("Report counters rebuilt in " + current.getCounterCollection());
+                return null;
+            }
+            through = instances.get(instances.size() - 1).getProcessInstanceId();
+            ReportBackfill claimed = operations.findAndModify(progressQuery(after), new Update().set("batchThrough", through), ReportBackfill.class);
+            if (claimed == null) {
+                // Another node got to it first
+                return through;
+            }
+        } else {
+            // Claimed already, but maybe only partly counted -- the counters that were are left alone
+            instances = operations.find(batchQuery(after, through), ProcessInstance.class);
+        }
+
+        // Add up the batch first, so each counter is only written once per batch
+        Map<String, ReportCounter> counterMap = new LinkedHashMap<String, ReportCounter>();
+        if (instances != null) {
+            for (ProcessInstance instance : instances) {
+                count(counterMap, instance, current.getCutoff());
+            }
+        }
+        for (ReportCounter counter : counterMap.values()) {
+            upsert(current.getCounterCollection(), counter, through);
+        }
+        operations.updateFirst(new Query(where("_id").is(ReportBackfill.ID).and("batchThrough").is(through)),
+                new Update().set("lastProcessInstanceId", through).unset("batchThrough"), ReportBackfill.class);
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("Counted " + (instances != null ? instances.size() : 0) + " instances for reports through " + through);
+
+        return through;
+    }
+
+    /*
+     * Starts the rebuild if it never has been, but only counts once its cutoff has passed -- by then every node
+     * adds events that happen after it to the new counters
+     */
+    @Override
+    protected boolean isReady() {
+        if (operations == null)
+            return true;
+        ReportBackfill current = resume();
+        if (current == null)
+            throw new IllegalStateException("Unable to find or start the report counter rebuild");
+        state = current;
+        return current.isComplete() || !current.getCutoff().after(new Date());
+    }
+
+    /*
+     * Instances after one id, and up to and including another, if there is one
+     */
+    private static Query batchQuery(String after, String through) {
+        Query query = new Query();
+        if (StringUtils.isNotEmpty(after) && through != null)
+            query.addCriteria(where("_id").gt(after).lte(through));
+        else if (StringUtils.isNotEmpty(after))
+            query.addCriteria(where("_id").gt(after));
+        else if (through != null)
+            query.addCriteria(where("_id").lte(through));
+        query.with(new Sort(Sort.Direction.ASC, "_id"));
+        query.fields()
+                .include("processDefinitionKey")
+                .include("processStatus")
+                .include("startTime")
+                .include("endTime")
+                .include("lastModifiedTime")
+                .include("tasks");
+        return query;
+    }
+
+    /*
+     * Matches the stored progress only if it's still where this node last saw it, between batches
+     */
+    private static Query progressQuery(String after) {
+        return new Query(where("_id").is(ReportBackfill.ID)
+                .and("lastProcessInstanceId").is(after)
+                .and("batchThrough").exists(false));
+    }
+
+    /*
+     * Where the rebuild got to, starting it if it never has been
+     */
+    private ReportBackfill resume() {
+        ReportBackfill current = operations.findById(ReportBackfill.ID, ReportBackfill.class);
+        if (current != null)
+            return current;
+
+        current = new ReportBackfill(new Date(System.currentTimeMillis() + cutoffDelayMillis));
+        try {
+            operations.insert(current);
+        } catch (DuplicateKeyException e) {
+            // Another node started it first
+            return operations.findById(ReportBackfill.ID, ReportBackfill.class);
+        }
+        // The old counters are left alone, and go on being read, until the new ones are complete
+        state = current;
+        operations.indexOps(current.getCounterCollection()).ensureIndex(new Index()
+                .on("processDefinitionKey", Sort.Direction.ASC)
+                .on("category", Sort.Direction.ASC)
+                .on("month", Sort.Direction.ASC)
+                .named("process_category_month"));
+        LOG.info("Rebuilding report counters from process instances started before " + current.getCutoff());
+        return current;
+    }
+
+    void increment(String processDefinitionKey, String category, String label, Date date, ReportBackfill current) {
+        String month = month(date);
+        // The old counters are what's read until the rebuild is done
+        if (current == null || !current.isComplete())
+            upsert(ReportBackfill.COUNTER_COLLECTION, processDefinitionKey, category, month, label, 1);
+        // Anything that happened before the rebuild started is counted by the rebuild
+        if (current != null && !date.before(current.getCutoff()))
+            upsert(current.getCounterCollection(), processDefinitionKey, category, month, label, 1);
+    }
+
+    /*
+     * The rebuild of the counters, if it has ever been started. Until it's complete it's looked at again every few
+     * seconds, since it could be started, or finished, by another node.
+     */
+    private ReportBackfill state() {
+        ReportBackfill current = state;
+        if (current != null && current.isComplete())
+            return current;
+        long now = System.currentTimeMillis();
+        if (now - stateChecked < STATE_CHECK_MILLIS)
+            return current;
+        stateChecked = now;
+        ReportBackfill found = operations.findById(ReportBackfill.ID, ReportBackfill.class);
+        if (found == null)
+            return current;
+        state = found;
+        return found;
+    }
+
+    static String month(Date date) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTime(date);
+        return String.format("%04d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+    }
+
+    /*
+     * The last so many months up to and including this one, oldest first
+     */
+    static List<String> months(Date now, int count) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.setTime(now);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.add(Calendar.MONTH, 1 - Math.max(1, count));
+        List<String> monthList = new ArrayList<String>();
+        for (int i = 0; i < Math.max(1, count); i++) {
+            monthList.add(month(calendar.getTime()));
+            calendar.add(Calendar.MONTH, 1);
+        }
+        return monthList;
+    }
+
+    private void upsert(String collection, String processDefinitionKey, String category, String month, String label, long amount) {
+        Query query = new Query(where("_id").is(ReportCounter.id(processDefinitionKey, category, month, label)));
+        Update update = new Update()
+                .set("processDefinitionKey", processDefinitionKey)
+                .set("category", category)
+                .set("month", month)
+                .set("label", label)
+                .inc("count", amount);
+        operations.upsert(query, update, ReportCounter.class, collection);
+    }
+
+    /*
+     * Adds a batch's count to a counter, unless this batch (or a later one) has already been counted in it
+     */
+    private void upsert(String collection, ReportCounter counter, String through) {
+        Query query = new Query(where("_id").is(counter.getId()).and("batchThrough").not().gte(through));
+        Update update = new Update()
+                .set("processDefinitionKey", counter.getProcessDefinitionKey())
+                .set("category", counter.getCategory())
+                .set("month", counter.getMonth())
+                .set("label", counter.getLabel())
+                .set("batchThrough", through)
+                .inc("count", counter.getCount());
+        try {
+            operations.upsert(query, update, ReportCounter.class, collection);
+        } catch (DuplicateKeyException e) {
+            // The counter is there, but this batch has been counted in it already
+        }
+    }
+
+    private static void count(Map<String, ReportCounter> counterMap, ProcessInstance instance, Date before) {
+        String processDefinitionKey = instance.getProcessDefinitionKey();
+        if (StringUtils.isEmpty(processDefinitionKey))
+            return;
+
+        String processStatus = instance.getProcessStatus();
+        Date endTime = instance.getEndTime() != null ? instance.getEndTime() : instance.getLastModifiedTime();
+        count(counterMap, processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.OPEN, instance.getStartTime(), before);
+        if (Constants.ProcessStatuses.COMPLETE.equals(processStatus))
+            count(counterMap, processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.COMPLETE, endTime, before);
+        else if (Constants.ProcessStatuses.CANCELLED.equals(processStatus))
+            count(counterMap, processDefinitionKey, ReportCounter.STATUS, Constants.ProcessStatuses.CANCELLED, endTime, before);
+
+        Set<Task> tasks = instance.getTasks();
+        if (tasks != null) {
+            for (Task task : tasks) {
+                if (Constants.TaskStatuses.COMPLETE.equals(task.getTaskStatus()) && StringUtils.isNotEmpty(task.getTaskDefinitionKey()))
+                    count(counterMap, processDefinitionKey, ReportCounter.TASK, task.getTaskDefinitionKey(), task.getEndTime(), before);
+            }
+        }
+    }
+
+    private static void count(Map<String, ReportCounter> counterMap, String processDefinitionKey, String category, String label, Date date, Date before) {
+        // Anything that happened after the rebuild started has already been counted as it happened
+        if (date == null || !date.before(before))
+            return;
+
+        String month = month(date);
+        String id = ReportCounter.id(processDefinitionKey, category, month, label);
+        ReportCounter counter = counterMap.get(id);
+        if (counter == null) {
+            counter = new ReportCounter(processDefinitionKey, category, month, label);
+            counterMap.put(id, counter);
+        }
+        counter.increment(1);
+    }
+
+    private static Date firstOfMonth(String month) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(Integer.parseInt(month.substring(0, 4)), Integer.parseInt(month.substring(5, 7)) - 1, 1);
+        return calendar.getTime();
     }
 
 }
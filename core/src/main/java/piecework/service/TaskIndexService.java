@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import piecework.repository.ProcessInstanceRepository;
+
+/**
+ * Copies the ids of the tasks embedded in existing process instances into the indexed taskIds
+ * field, so tasks can be looked up without scanning instances, when the 'task.index.backfill'
+ * property is turned on. It's safe to run while tasks are being updated. Once it has finished,
+ * 'task.index.fallback' can be turned off so that lookups of unknown task ids stop falling back
+ * to the unindexed query.
+ *
+ * @author James Renfro
+ */
+@Service
+public class TaskIndexService extends BatchBackfill {
+
+    @Autowired
+    ProcessInstanceRepository processInstanceRepository;
+
+    public TaskIndexService() {
+        super("Task id backfill", "task.index.backfill");
+    }
+
+    @Override
+    protected String backfill(String afterProcessInstanceId, int batchSize) {
+        return processInstanceRepository.updateTaskIds(afterProcessInstanceId, batchSize);
+    }
+
+}
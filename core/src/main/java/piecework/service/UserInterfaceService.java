@@ -30,6 +30,7 @@ import piecework.Constants;
 import piecework.common.ViewContext;
 import piecework.content.ContentResource;
 import piecework.content.concrete.FileSystemContentProvider;
+import piecework.enumeration.ActionType;
 import piecework.enumeration.CacheName;
 import piecework.enumeration.DataInjectionStrategy;
 import piecework.exception.*;
@@ -41,10 +42,12 @@ import piecework.persistence.ContentProfileProvider;
 import piecework.persistence.ProcessDeploymentProvider;
 import piecework.repository.ContentRepository;
 import piecework.settings.UserInterfaceSettings;
+import piecework.ui.CompiledTemplate;
 import piecework.ui.CustomJaxbJsonProvider;
 import piecework.ui.InlinePageModelSerializer;
 import piecework.ui.streaming.HtmlCleanerStreamingOutput;
 import piecework.ui.visitor.*;
+import piecework.util.ActivityUtility;
 import piecework.util.FileUtility;
 import piecework.util.UserInterfaceUtility;
 
@@ -58,6 +61,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -114,22 +118,14 @@ public class UserInterfaceService {
                 StaticResourceAggregatingVisitor aggregatingVisitor =
                         new StaticResourceAggregatingVisitor(servletContext, null, null, settings, contentRepository, true);
 
-                InputStream inputStream = template.getInputStream();
-                // Sanity check
-                if (inputStream == null) {
-                    throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
-                }
-
-                CleanerProperties cleanerProperties = new CleanerProperties();
-                cleanerProperties.setOmitXmlDeclaration(true);
-                HtmlCleaner cleaner = new HtmlCleaner(cleanerProperties);
-                TagNode node = cleaner.clean(inputStream);
-                node.traverse(aggregatingVisitor);
+                // Visitors only ever see copies, never the cached tree itself
+                CompiledTemplate compiled = compile(template);
+                compiled.copy().traverse(aggregatingVisitor);
 
                 ResourceInliningVisitor visitor =
                         new ResourceInliningVisitor(settings, modelSerializer, aggregatingVisitor, true);
 
-                return new HtmlCleanerStreamingOutput(template.getInputStream(), visitor);
+                return new HtmlCleanerStreamingOutput(compiled, visitor);
             }
         } catch (Exception e) {
             LOG.error("Exception handling exception", e);
@@ -152,7 +148,7 @@ public class UserInterfaceService {
             LinkOptimizingVisitor visitor =
                     new LinkOptimizingVisitor(settings, modelSerializer, isAnonymous);
 
-            return new HtmlCleanerStreamingOutput(template.getInputStream(), visitor);
+            return new HtmlCleanerStreamingOutput(compile(template), visitor);
         }
         return null;
     }
@@ -182,27 +178,7 @@ public class UserInterfaceService {
                 return Collections.<Field>emptySet();
             }
 
-            InputStream inputStream = null;
-            try {
-                inputStream = contentResource.getInputStream();
-                // Sanity check
-                if (inputStream == null)
-                    throw new InternalServerError(Constants.ExceptionCodes.system_misconfigured, "Unable to view remote template");
-
-                RemoteTemplateVisitor templateVisitor = new RemoteTemplateVisitor(parentContainer, container);
-                CleanerProperties cleanerProperties = new CleanerProperties();
-                cleanerProperties.setOmitXmlDeclaration(true);
-                HtmlCleaner cleaner = new HtmlCleaner(cleanerProperties);
-                TagNode node = cleaner.clean(inputStream);
-                node.traverse(templateVisitor);
-
-                fields = templateVisitor.getFields();
-
-            } catch (IOException ioe) {
-                LOG.error("Error retrieving remote fields", ioe);
-            } finally {
-                IOUtils.closeQuietly(inputStream);
-            }
+            fields = remoteFields(contentResource, parentContainer, container);
         }
 
         if (fields != null)
@@ -211,6 +187,38 @@ public class UserInterfaceService {
         return fields;
     }
 
+    /*
+     * Parses the remote pages of a newly published deployment ahead of time, so the first
+     * submissions don't have to. Anything that goes wrong here is logged and left for
+     * getRemoteFields to run into again when a submission actually comes in.
+     */
+    public void precomputeRemoteFields(ProcessDeploymentProvider modelProvider) {
+        try {
+            ProcessDeployment deployment = modelProvider.deployment();
+            Map<String, Activity> activityMap = deployment != null ? deployment.getActivityMap() : null;
+            if (activityMap == null)
+                return;
+
+            int count = 0;
+            for (Activity activity : activityMap.values()) {
+                Action action = activity != null ? activity.action(ActionType.CREATE) : null;
+                if (action == null || action.getStrategy() != DataInjectionStrategy.REMOTE || !activity.isAllowAny())
+                    continue;
+
+                Container parentContainer = ActivityUtility.parent(activity, ActionType.CREATE);
+                Container container = ActivityUtility.child(activity, ActionType.CREATE, parentContainer);
+                getRemoteFields(modelProvider, action, parentContainer, container, null);
+                count++;
+            }
+            if (count > 0)
+                LOG.info("Precomputed remote fields for " + count + " activities of deployment " + deployment.getDeploymentId());
+        } catch (PieceworkException e) {
+            LOG.warn("Unable to precompute remote fields", e);
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to precompute remote fields", e);
+        }
+    }
+
     public ContentResource getCustomPage(ContentProfileProvider modelProvider, Form form) throws PieceworkException {
         // Sanity checks
         if (form == null)
@@ -240,7 +248,7 @@ public class UserInterfaceService {
                 visitor = new ScriptInjectingVisitor(form);
                 break;
         }
-        return new HtmlCleanerStreamingOutput(contentResource.getInputStream(), visitor);
+        return new HtmlCleanerStreamingOutput(compile(contentResource), visitor);
     }
 
     public ContentResource getScriptResource(ServletContext servletContext, ContentProfileProvider modelProvider, Form form) throws StatusCodeError {
@@ -313,6 +321,71 @@ public class UserInterfaceService {
         return contentResource;
     }
 
+    /*
+     * Parsed templates are cached by location and version, so a changed template is parsed
+     * again the next time it's requested and the stale entry just expires
+     */
+    private CompiledTemplate compile(ContentResource template) throws IOException {
+        String key = template.getLocation() + "::" + template.eTag() + "::" + template.lastModified();
+        boolean isCaching = !settings.isDisableResourceCaching();
+
+        Cache.ValueWrapper wrapper = isCaching ? cacheService.get(CacheName.TEMPLATE, key) : null;
+        if (wrapper != null && wrapper.get() != null)
+            return CompiledTemplate.class.cast(wrapper.get());
+
+        InputStream inputStream = template.getInputStream();
+        // Sanity check
+        if (inputStream == null)
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+
+        CompiledTemplate compiled = CompiledTemplate.compile(key, inputStream);
+        if (isCaching)
+            cacheService.put(CacheName.TEMPLATE, key, compiled);
+        return compiled;
+    }
+
+    /*
+     * The fields discovered on a remote page depend only on the page and the screen being
+     * submitted, so they're cached by location, version and screen -- a page that changes on
+     * disk gets a new key and is parsed again
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Field> remoteFields(ContentResource contentResource, Container parentContainer, Container container) throws PieceworkException {
+        long lastModified = contentResource.lastModified();
+        boolean isCaching = !settings.isDisableResourceCaching() && lastModified > 0;
+        String key = contentResource.getLocation() + "::" + lastModified + "::" + (container != null ? container.getOrdinal() : "");
+
+        Cache.ValueWrapper wrapper = isCaching ? cacheService.get(CacheName.REMOTE_FIELDS, key) : null;
+        if (wrapper != null && wrapper.get() != null)
+            return (Set<Field>) wrapper.get();
+
+        Set<Field> fields = null;
+        InputStream inputStream = null;
+        try {
+            inputStream = contentResource.getInputStream();
+            // Sanity check
+            if (inputStream == null)
+                throw new InternalServerError(Constants.ExceptionCodes.system_misconfigured, "Unable to view remote template");
+
+            RemoteTemplateVisitor templateVisitor = new RemoteTemplateVisitor(parentContainer, container);
+            CleanerProperties cleanerProperties = new CleanerProperties();
+            cleanerProperties.setOmitXmlDeclaration(true);
+            HtmlCleaner cleaner = new HtmlCleaner(cleanerProperties);
+            TagNode node = cleaner.clean(inputStream);
+            node.traverse(templateVisitor);
+
+            fields = Collections.unmodifiableSet(templateVisitor.getFields());
+            if (isCaching)
+                cacheService.put(CacheName.REMOTE_FIELDS, key, fields);
+
+        } catch (IOException ioe) {
+            LOG.error("Error retrieving remote fields", ioe);
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+        return fields;
+    }
+
     private ContentResource getResourceFromCache(ContentResource template, CacheName cacheName) {
 
         Cache.ValueWrapper wrapper = settings.isDisableResourceCaching() ? null : cacheService.get(cacheName, template.getFilename());
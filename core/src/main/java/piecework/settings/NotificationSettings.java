@@ -37,6 +37,15 @@ public class NotificationSettings {
     private String mailFromLabel;
     private String mailToOverride;
     private String adminEmail;
+    private int mailPoolSize;
+    private boolean mailQueueEnabled;
+    private int mailQueueThreads;
+    private int mailQueueCapacity;
+    private int mailQueueBatchSize;
+    private int mailQueueMaxAttempts;
+    private long mailQueueRetryDelayMillis;
+    private long mailQueueOfferTimeoutMillis;
+    private long mailQueueShutdownTimeoutMillis;
 
     @PostConstruct
     public void init() {
@@ -47,6 +56,15 @@ public class NotificationSettings {
         this.mailFromLabel = environment.getProperty("mail.from.label");
         this.mailToOverride = environment.getProperty("mail.to.override");
         this.adminEmail = environment.getProperty("mail.to.administrator");
+        this.mailPoolSize = environment.getProperty("mail.pool.size", Integer.class, 4);
+        this.mailQueueEnabled = environment.getProperty("mail.queue.enabled", Boolean.class, Boolean.FALSE);
+        this.mailQueueThreads = environment.getProperty("mail.queue.threads", Integer.class, 2);
+        this.mailQueueCapacity = environment.getProperty("mail.queue.capacity", Integer.class, 10000);
+        this.mailQueueBatchSize = environment.getProperty("mail.queue.batch.size", Integer.class, 50);
+        this.mailQueueMaxAttempts = environment.getProperty("mail.queue.max.attempts", Integer.class, 3);
+        this.mailQueueRetryDelayMillis = environment.getProperty("mail.queue.retry.delay.millis", Long.class, 1000l);
+        this.mailQueueOfferTimeoutMillis = environment.getProperty("mail.queue.offer.timeout.millis", Long.class, 100l);
+        this.mailQueueShutdownTimeoutMillis = environment.getProperty("mail.queue.shutdown.timeout.millis", Long.class, 10000l);
     }
 
     public String getApplicationName() {
@@ -76,4 +94,40 @@ public class NotificationSettings {
     public String getAdminEmail() {
         return adminEmail;
     }
+
+    public int getMailPoolSize() {
+        return mailPoolSize;
+    }
+
+    public boolean isMailQueueEnabled() {
+        return mailQueueEnabled;
+    }
+
+    public int getMailQueueThreads() {
+        return mailQueueThreads;
+    }
+
+    public int getMailQueueCapacity() {
+        return mailQueueCapacity;
+    }
+
+    public int getMailQueueBatchSize() {
+        return mailQueueBatchSize;
+    }
+
+    public int getMailQueueMaxAttempts() {
+        return mailQueueMaxAttempts;
+    }
+
+    public long getMailQueueRetryDelayMillis() {
+        return mailQueueRetryDelayMillis;
+    }
+
+    public long getMailQueueOfferTimeoutMillis() {
+        return mailQueueOfferTimeoutMillis;
+    }
+
+    public long getMailQueueShutdownTimeoutMillis() {
+        return mailQueueShutdownTimeoutMillis;
+    }
 }
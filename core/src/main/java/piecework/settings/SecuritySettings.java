@@ -30,6 +30,10 @@ public class SecuritySettings {
     private final char[] keystorePassword;
     private final long accessCacheInterval;
     private final long accessCountLimit;
+    private final int accessWindowSlices;
+    private final int accessMaxKeys;
+    private final long accessAlarmQuietInterval;
+    private final int accessAlarmQueueCapacity;
 
     public SecuritySettings(Environment environment) {
         this.certificateIssuerHeader = environment.getProperty(Constants.Settings.CERTIFICATE_ISSUER_HEADER);
@@ -41,6 +45,13 @@ public class SecuritySettings {
         Long intervalInMinutes = environment.getProperty("access.cache.interval.minutes", Long.class, Long.valueOf(5l));
         this.accessCacheInterval = intervalInMinutes.longValue() * 60 * 1000;
         this.accessCountLimit = environment.getProperty("access.count.limit", Long.class, Long.valueOf(1000));
+        // The interval slides in steps of interval / slices, and at most this many clients are tracked at once
+        this.accessWindowSlices = environment.getProperty("access.window.slices", Integer.class, Integer.valueOf(10));
+        this.accessMaxKeys = environment.getProperty("access.max.keys", Integer.class, Integer.valueOf(100000));
+        // Only one alarm per client per interval, by default
+        Long quietInMinutes = environment.getProperty("access.alarm.quiet.minutes", Long.class, intervalInMinutes);
+        this.accessAlarmQuietInterval = quietInMinutes.longValue() * 60 * 1000;
+        this.accessAlarmQueueCapacity = environment.getProperty("access.alarm.queue.capacity", Integer.class, Integer.valueOf(100));
     }
 
     public long getAccessCacheInterval() {
@@ -51,6 +62,22 @@ public class SecuritySettings {
         return accessCountLimit;
     }
 
+    public int getAccessWindowSlices() {
+        return accessWindowSlices;
+    }
+
+    public int getAccessMaxKeys() {
+        return accessMaxKeys;
+    }
+
+    public long getAccessAlarmQuietInterval() {
+        return accessAlarmQuietInterval;
+    }
+
+    public int getAccessAlarmQueueCapacity() {
+        return accessAlarmQueueCapacity;
+    }
+
     public String getCertificateIssuerHeader() {
         return certificateIssuerHeader;
     }
@@ -18,9 +18,12 @@ package piecework.submission;
 import com.google.common.collect.Sets;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
 import org.springframework.stereotype.Service;
+import piecework.Constants;
 import piecework.common.Registry;
 import piecework.enumeration.ActionType;
+import piecework.enumeration.CacheName;
 import piecework.enumeration.DataInjectionStrategy;
 import piecework.exception.MisconfiguredProcessException;
 import piecework.exception.PieceworkException;
@@ -28,13 +31,17 @@ import piecework.model.*;
 import piecework.model.Process;
 import piecework.persistence.ProcessDeploymentProvider;
 import piecework.persistence.TaskProvider;
+import piecework.service.CacheService;
 import piecework.service.UserInterfaceService;
 import piecework.util.ActivityUtility;
+import piecework.util.ConstraintUtil;
 import piecework.util.ProcessUtility;
 import piecework.util.ValidationUtility;
 import piecework.validation.ValidationRule;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author James Renfro
@@ -42,6 +49,9 @@ import java.util.*;
 @Service
 public class SubmissionTemplateFactory {
 
+    @Autowired(required=false)
+    CacheService cacheService;
+
     @Autowired(required=false)
     Registry registry;
 
@@ -112,30 +122,32 @@ public class SubmissionTemplateFactory {
         }
 
         if (includeFields) {
-            Container parentContainer = ActivityUtility.parent(activity, ActionType.CREATE);
-            Container container = ActivityUtility.child(activity, ActionType.CREATE, parentContainer);
+            ValidationPlan plan = validationPlan(process, deployment, activity, validationId);
+            for (Button button : plan.getButtons()) {
+                builder.button(button);
+            }
 
             Set<Field> fields = new TreeSet<Field>();
 
             Action action = activity.action(ActionType.CREATE);
             if (action != null && action.getStrategy() != null && action.getStrategy() == DataInjectionStrategy.REMOTE && activity.isAllowAny()) {
+                Container parentContainer = ActivityUtility.parent(activity, ActionType.CREATE);
+                Container container = ActivityUtility.child(activity, ActionType.CREATE, parentContainer);
                 Set<Field> remoteFields = userInterfaceService != null ?  userInterfaceService.getRemoteFields(deploymentProvider, action, parentContainer, container, null) : null;
                 if (remoteFields != null && !remoteFields.isEmpty())
                     fields.addAll(remoteFields);
             }
 
-            Set<Field> localFields = getLocalFields(builder, activity, validationId);
-            if (localFields != null && !localFields.isEmpty())
-                fields.addAll(localFields);
+            fields.addAll(plan.getFields());
 
             // If we're not validating a single container, or if we weren't able to find the container to validate,
             // then simply validate all fields for this activity
             if (fields.isEmpty())
-                fields = activity.getFields();
+                fields = plan.getActivityFields();
 
             if (fields != null) {
                 for (Field field : fields) {
-                    addField(builder, field);
+                    addField(builder, field, plan);
                 }
             }
         }
@@ -143,13 +155,80 @@ public class SubmissionTemplateFactory {
     }
 
     private void addField(SubmissionTemplate.Builder builder, Field field) {
+        addField(builder, field, null);
+    }
+
+    private void addField(SubmissionTemplate.Builder builder, Field field, ValidationPlan plan) {
         if (!field.isDeleted() && field.isEditable()) {
-            builder.rules(field, new ArrayList<ValidationRule>(ValidationUtility.validationRules(field, registry)));
+            Collection<ValidationRule> rules = plan != null ? plan.getRules(field) : null;
+            if (rules == null)
+                rules = ValidationUtility.validationRules(field, registry);
+            builder.rules(field, new ArrayList<ValidationRule>(rules));
             builder.field(field);
         }
     }
 
-    private Set<Field> getLocalFields(SubmissionTemplate.Builder builder, Activity activity, String validationId) {
+    /*
+     * Plans are cached by deployment, since nothing that goes into them can change without the
+     * deployment changing too -- and every change to a deployment evicts them. Activities that
+     * belong to a single instance don't share a deployment's lifecycle, so those are always
+     * planned from scratch.
+     */
+    @SuppressWarnings("unchecked")
+    private ValidationPlan validationPlan(Process process, ProcessDeployment deployment, Activity activity, String validationId) {
+        String deploymentId = deployment.getDeploymentId();
+        String activityId = activity.getActivityId();
+        if (cacheService == null || deploymentId == null || activityId == null || (process != null && process.isAllowPerInstanceActivities()))
+            return plan(activity, validationId);
+
+        ConcurrentMap<String, ValidationPlan> plans = null;
+        Cache.ValueWrapper wrapper = cacheService.get(CacheName.VALIDATION_PLAN, deploymentId);
+        if (wrapper != null)
+            plans = (ConcurrentMap<String, ValidationPlan>) wrapper.get();
+        if (plans == null) {
+            plans = new ConcurrentHashMap<String, ValidationPlan>();
+            cacheService.put(CacheName.VALIDATION_PLAN, deploymentId, plans);
+        }
+
+        String key = StringUtils.isNotEmpty(validationId) ? activityId + ":" + validationId : activityId;
+        ValidationPlan plan = plans.get(key);
+        if (plan == null) {
+            plan = plan(activity, validationId);
+            ValidationPlan existing = plans.putIfAbsent(key, plan);
+            if (existing != null)
+                plan = existing;
+        }
+        return plan;
+    }
+
+    private ValidationPlan plan(Activity activity, String validationId) {
+        List<Button> buttons = new ArrayList<Button>();
+        Set<Field> fields = getLocalFields(buttons, activity, validationId);
+        if (fields == null)
+            fields = Collections.emptySet();
+        Set<Field> activityFields = activity.getFields();
+
+        Map<Field, List<ValidationRule>> rules = new IdentityHashMap<Field, List<ValidationRule>>();
+        plan(rules, fields);
+        plan(rules, activityFields);
+        return new ValidationPlan(buttons, fields, activityFields, rules);
+    }
+
+    private void plan(Map<Field, List<ValidationRule>> rules, Set<Field> fields) {
+        if (fields == null)
+            return;
+
+        for (Field field : fields) {
+            if (field.isDeleted() || !field.isEditable() || rules.containsKey(field))
+                continue;
+            // Options for these can come from a resolver that's free to return something different each time
+            if (ConstraintUtil.hasConstraint(Constants.ConstraintTypes.IS_LIMITED_TO, field.getConstraints()))
+                continue;
+            rules.put(field, Collections.unmodifiableList(new ArrayList<ValidationRule>(ValidationUtility.validationRules(field, registry))));
+        }
+    }
+
+    private Set<Field> getLocalFields(List<Button> buttonList, Activity activity, String validationId) {
         Set<Field> fields = null;
         Container parentContainer = ActivityUtility.parent(activity, ActionType.CREATE);
         Container container = ActivityUtility.child(activity, ActionType.CREATE, parentContainer);
@@ -177,14 +256,14 @@ public class SubmissionTemplateFactory {
                     for (Button button : buttons) {
                         if (button == null)
                             continue;
-                        builder.button(button);
+                        buttonList.add(button);
 
                         // get child buttons as well
                         List<Button> children = button.getChildren();
                         if ( children != null ) {
                             for (Button child : children) {
                                 if ( child != null ) {
-                                    builder.button(child);
+                                    buttonList.add(child);
                                 }
                             }
                         }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.submission;
+
+import piecework.model.Button;
+import piecework.model.Field;
+import piecework.validation.ValidationRule;
+
+import java.util.*;
+
+/**
+ * Everything about validating a submission to an activity that depends only on the deployment:
+ * the buttons and fields in play for a particular validation container, and the rules for
+ * each of those fields with their constraints and patterns already compiled. SubmissionTemplateFactory
+ * keeps one of these per deployment, activity and validation container, and drops them when
+ * the deployment changes.
+ *
+ * Rules are looked up by identity, so a field that comes from somewhere else -- a remote form,
+ * say -- never picks up the rules of a local field that happens to compare equal to it. Fields
+ * whose options are resolved at runtime are left out on purpose, so their rules get built fresh
+ * for every submission.
+ *
+ * @author James Renfro
+ */
+public class ValidationPlan {
+
+    private final List<Button> buttons;
+    private final Set<Field> fields;
+    private final Set<Field> activityFields;
+    private final Map<Field, List<ValidationRule>> rules;
+
+    ValidationPlan(List<Button> buttons, Set<Field> fields, Set<Field> activityFields, Map<Field, List<ValidationRule>> rules) {
+        this.buttons = Collections.unmodifiableList(buttons);
+        this.fields = Collections.unmodifiableSet(fields);
+        this.activityFields = activityFields;
+        this.rules = rules;
+    }
+
+    public List<Button> getButtons() {
+        return buttons;
+    }
+
+    /*
+     * Fields of the validation container, or empty if there isn't one
+     */
+    public Set<Field> getFields() {
+        return fields;
+    }
+
+    /*
+     * All the fields of the activity, which get validated when nothing narrower applies
+     */
+    public Set<Field> getActivityFields() {
+        return activityFields;
+    }
+
+    /*
+     * Returns the precompiled rules for this field, or null if they have to be built on the spot
+     */
+    public List<ValidationRule> getRules(Field field) {
+        return rules.get(field);
+    }
+
+}
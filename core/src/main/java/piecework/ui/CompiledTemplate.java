@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ui;
+
+import org.apache.commons.io.IOUtils;
+import org.htmlcleaner.CleanerProperties;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A template that has been parsed once and can then be handed out as many times as needed.
+ * Parsing with HtmlCleaner is by far the most expensive part of rendering a page, while copying
+ * the parsed tree is cheap, so each request gets its own copy of the tree to decorate with its
+ * visitors and serialize, and the original is never modified.
+ *
+ * Text and comment nodes can't be changed once created, so copies share them with the original
+ * and only the tags themselves are copied.
+ *
+ * @author James Renfro
+ */
+public class CompiledTemplate {
+
+    private final String key;
+    private final TagNode root;
+    private final CleanerProperties properties;
+
+    private CompiledTemplate(String key, TagNode root, CleanerProperties properties) {
+        this.key = key;
+        this.root = root;
+        this.properties = properties;
+    }
+
+    public static CleanerProperties cleanerProperties() {
+        CleanerProperties cleanerProperties = new CleanerProperties();
+        cleanerProperties.setOmitXmlDeclaration(true);
+        return cleanerProperties;
+    }
+
+    public static CompiledTemplate compile(String key, InputStream inputStream) throws IOException {
+        try {
+            HtmlCleaner cleaner = new HtmlCleaner(cleanerProperties());
+            TagNode root = cleaner.clean(inputStream);
+            return new CompiledTemplate(key, root, cleaner.getProperties());
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public CleanerProperties getProperties() {
+        return properties;
+    }
+
+    /*
+     * Returns a new copy of the parsed tree that the caller is free to modify
+     */
+    public TagNode copy() {
+        TagNode copy = copy(root);
+        copy.setDocType(root.getDocType());
+        return copy;
+    }
+
+    private static TagNode copy(TagNode node) {
+        TagNode copy = node.makeCopy();
+        Map<String, String> namespaceDeclarations = node.getNamespaceDeclarations();
+        if (namespaceDeclarations != null) {
+            for (Map.Entry<String, String> entry : namespaceDeclarations.entrySet()) {
+                copy.addNamespaceDeclaration(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Object child : node.getAllChildren()) {
+            if (child instanceof TagNode)
+                copy.addChild(copy(TagNode.class.cast(child)));
+            else
+                copy.addChild(child);
+        }
+        return copy;
+    }
+
+}
@@ -18,6 +18,7 @@ package piecework.ui.streaming;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.htmlcleaner.*;
+import piecework.ui.CompiledTemplate;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
@@ -27,6 +28,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
+ * Runs a visitor over a template and writes out the result. Given a compiled template it
+ * works on a fresh copy of the already parsed tree, otherwise it parses the input stream.
+ *
  * @author James Renfro
  */
 public class HtmlCleanerStreamingOutput implements StreamingOutput {
@@ -34,27 +38,41 @@ public class HtmlCleanerStreamingOutput implements StreamingOutput {
     private static final Logger LOG = Logger.getLogger(HtmlCleanerStreamingOutput.class);
 
     private final InputStream inputStream;
+    private final CompiledTemplate template;
     private final TagNodeVisitor visitor;
 
     public HtmlCleanerStreamingOutput(InputStream inputStream, TagNodeVisitor visitor) {
         this.inputStream = inputStream;
+        this.template = null;
+        this.visitor = visitor;
+    }
+
+    public HtmlCleanerStreamingOutput(CompiledTemplate template, TagNodeVisitor visitor) {
+        this.inputStream = null;
+        this.template = template;
         this.visitor = visitor;
     }
 
     @Override
     public void write(OutputStream output) throws IOException, WebApplicationException {
         // Sanity check
-        if (inputStream == null) {
+        if (inputStream == null && template == null) {
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
 
         try {
-            CleanerProperties cleanerProperties = new CleanerProperties();
-            cleanerProperties.setOmitXmlDeclaration(true);
-            HtmlCleaner cleaner = new HtmlCleaner(cleanerProperties);
-            TagNode node = cleaner.clean(inputStream);
+            TagNode node;
+            CleanerProperties cleanerProperties;
+            if (template != null) {
+                node = template.copy();
+                cleanerProperties = template.getProperties();
+            } else {
+                HtmlCleaner cleaner = new HtmlCleaner(CompiledTemplate.cleanerProperties());
+                node = cleaner.clean(inputStream);
+                cleanerProperties = cleaner.getProperties();
+            }
             node.traverse(visitor);
-            SimpleHtmlSerializer serializer = new SimpleHtmlSerializer(cleaner.getProperties());
+            SimpleHtmlSerializer serializer = new SimpleHtmlSerializer(cleanerProperties);
             serializer.writeToStream(node, output);
         } catch (Exception e) {
             LOG.error("Exception serializing output ", e);
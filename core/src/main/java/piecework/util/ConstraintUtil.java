@@ -21,6 +21,8 @@ import piecework.model.Value;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 /**
@@ -28,6 +30,28 @@ import java.util.regex.Pattern;
  */
 public class ConstraintUtil {
 
+    private static final int MAX_PATTERNS = 2000;
+    private static final ConcurrentMap<String, Pattern> PATTERNS = new ConcurrentHashMap<String, Pattern>();
+
+    /*
+     * Constraint values are a small, fixed set of regexes that come from the process deployments,
+     * so compiled patterns are kept around and shared. If that ever stops being true the cache is
+     * simply dropped and starts over rather than growing without bound.
+     */
+    public static Pattern pattern(String regex) {
+        if (regex == null)
+            return null;
+
+        Pattern pattern = PATTERNS.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            if (PATTERNS.size() >= MAX_PATTERNS)
+                PATTERNS.clear();
+            PATTERNS.putIfAbsent(regex, pattern);
+        }
+        return pattern;
+    }
+
     public static boolean hasConstraint(String type, List<Constraint> constraints) {
         return getConstraint(type, constraints) != null;
     }
@@ -48,7 +72,7 @@ public class ConstraintUtil {
 
         String constraintName = constraint.getName();
         String constraintValue = constraint.getValue();
-        Pattern pattern = Pattern.compile(constraintValue);
+        Pattern pattern = pattern(constraintValue);
 
         boolean isSatisfied = false;
 
@@ -58,11 +82,11 @@ public class ConstraintUtil {
         // Evaluate whether this particular item is satisfied
         if (constraintField != null && (values == null || values.isEmpty())) {
             String defaultFieldValue = constraintField.getDefaultValue();
-            isSatisfied = defaultFieldValue != null && pattern.matcher(defaultFieldValue).matches();
+            isSatisfied = defaultFieldValue != null && pattern != null && pattern.matcher(defaultFieldValue).matches();
         } else {
             if (values != null) {
                 for (Value value : values) {
-                    isSatisfied = values != null && pattern.matcher(value.getValue()).matches();
+                    isSatisfied = pattern != null && pattern.matcher(value.getValue()).matches();
                     if (!isSatisfied)
                         break;
                 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.util;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes text into the tokens that are stored in the indexed 'keywords' array of each
+ * process instance, and turns search keywords into anchored prefix patterns that can be
+ * answered from that index.
+ *
+ * @author James Renfro
+ */
+public class KeywordUtility {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    /*
+     * Each whitespace-delimited term is indexed both as a whole, with punctuation removed, and as
+     * the individual words inside it -- so "123-45-6789" can be found by "123456", "123-45" or "6789"
+     */
+    public static Set<String> tokens(String text) {
+        Set<String> tokens = new HashSet<String>();
+        if (StringUtils.isBlank(text))
+            return tokens;
+
+        for (String term : WHITESPACE.split(text.toLowerCase())) {
+            String normalized = normalize(term);
+            if (normalized.isEmpty())
+                continue;
+
+            tokens.add(normalized);
+            for (String word : NON_WORD.split(term)) {
+                if (!word.isEmpty())
+                    tokens.add(word);
+            }
+        }
+        return tokens;
+    }
+
+    /*
+     * Patterns are anchored at the start and only contain letters and digits, so Mongo is able to
+     * turn each of them into a range scan on the keywords index
+     */
+    public static List<Pattern> prefixPatterns(Collection<String> keywords) {
+        Set<String> prefixes = new LinkedHashSet<String>();
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (StringUtils.isBlank(keyword))
+                    continue;
+                for (String term : WHITESPACE.split(keyword.toLowerCase())) {
+                    String normalized = normalize(term);
+                    if (!normalized.isEmpty())
+                        prefixes.add(normalized);
+                }
+            }
+        }
+
+        List<Pattern> patterns = new ArrayList<Pattern>(prefixes.size());
+        for (String prefix : prefixes) {
+            patterns.add(Pattern.compile("^" + prefix));
+        }
+        return patterns;
+    }
+
+    /*
+     * Single pattern for places that can only match on one keyword -- only the first term with any
+     * letters or digits in it is used, and if there isn't one this returns null, since "^" on its
+     * own would match everything
+     */
+    public static String prefixRegex(String keyword) {
+        if (StringUtils.isBlank(keyword))
+            return null;
+        for (String term : WHITESPACE.split(keyword.trim().toLowerCase())) {
+            String normalized = normalize(term);
+            if (!normalized.isEmpty())
+                return "^" + normalized;
+        }
+        return null;
+    }
+
+    private static String normalize(String term) {
+        return NON_WORD.matcher(term).replaceAll("");
+    }
+
+}
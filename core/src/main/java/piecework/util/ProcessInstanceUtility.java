@@ -44,23 +44,33 @@ public class ProcessInstanceUtility {
         Set<String> keywords = new HashSet<String>();
         if (value instanceof File) {
             File  file = File.class.cast(value);
-            if (StringUtils.isNotEmpty(file.getName()))
-                keywords.add(file.getName().toLowerCase());
+            keywords.addAll(KeywordUtility.tokens(file.getName()));
         } else if (value instanceof User) {
             User user = User.class.cast(value);
-            keywords.add(user.getVisibleId());
-            if (StringUtils.isNotEmpty(user.getDisplayName())) {
-                String lowerCase = user.getDisplayName().toLowerCase();
-                keywords.add(lowerCase);
-                String[] names = lowerCase.split("\\s+");
-                if (names != null && names.length > 0)
-                    keywords.addAll(Arrays.asList(names));
-            }
+            keywords.addAll(KeywordUtility.tokens(user.getVisibleId()));
+            keywords.addAll(KeywordUtility.tokens(user.getDisplayName()));
         } else if (value instanceof Value) {
-            String strValue = value.getValue();
-            if (StringUtils.isNotEmpty(strValue)) {
-                String resultString = strValue.toLowerCase().replaceAll("[^\\p{L}\\p{Nd}]", "");
-                keywords.add(resultString);
+            keywords.addAll(KeywordUtility.tokens(value.getValue()));
+        }
+        return keywords;
+    }
+
+    public static Set<String> keywords(ProcessInstance instance) {
+        Set<String> keywords = new HashSet<String>();
+        keywords.addAll(KeywordUtility.tokens(instance.getProcessInstanceId()));
+        keywords.addAll(KeywordUtility.tokens(instance.getEngineProcessInstanceId()));
+        keywords.addAll(KeywordUtility.tokens(instance.getAlias()));
+        keywords.addAll(KeywordUtility.tokens(instance.getProcessInstanceLabel()));
+
+        Map<String, List<Value>> data = instance.getData();
+        if (data != null) {
+            for (List<Value> values : data.values()) {
+                if (values == null)
+                    continue;
+                for (Value value : values) {
+                    if (value != null)
+                        keywords.addAll(keywords(value));
+                }
             }
         }
         return keywords;
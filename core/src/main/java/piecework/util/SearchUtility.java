@@ -16,6 +16,8 @@
 package piecework.util;
 
 import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
@@ -35,6 +37,10 @@ import static org.springframework.data.mongodb.core.query.Criteria.where;
  */
 public class SearchUtility {
 
+    private static final String[] SUMMARY_FIELD_NAMES = { "processDefinitionKey", "processDefinitionLabel",
+            "processInstanceLabel", "processStatus", "applicationStatus", "applicationStatusExplanation",
+            "startTime", "lastModifiedTime", "endTime" };
+
     public static final Query query(SearchQueryParameters queryParameters, Set<String> allowedProcessDefinitionKeys, Sanitizer sanitizer) {
         Query query = new Query();
 
@@ -152,4 +158,24 @@ public class SearchUtility {
         return sort;
     }
 
+    /*
+     * Projection for process instance summaries -- the top-level fields that search results display,
+     * the data fields behind any data search facets, and optionally the embedded tasks
+     */
+    public static final DBObject summaryFields(Collection<Facet> facets, boolean includeTasks) {
+        BasicDBObject fields = new BasicDBObject();
+        for (String fieldName : SUMMARY_FIELD_NAMES) {
+            fields.put(fieldName, 1);
+        }
+        if (facets != null) {
+            for (Facet facet : facets) {
+                if (facet instanceof DataSearchFacet && facet.getName() != null)
+                    fields.put("data." + facet.getName(), 1);
+            }
+        }
+        if (includeTasks)
+            fields.put("tasks", 1);
+        return fields;
+    }
+
 }
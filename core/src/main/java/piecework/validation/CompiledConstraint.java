@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.validation;
+
+import piecework.model.Constraint;
+import piecework.model.Field;
+import piecework.model.Value;
+import piecework.util.ConstraintUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A constraint with its pattern compiled and its 'and' and 'or' lists copied into arrays, so it
+ * can be evaluated over and over without touching the regex compiler or the model objects.
+ * Evaluates exactly like ConstraintUtil.evaluate.
+ *
+ * @author James Renfro
+ */
+public final class CompiledConstraint {
+
+    private static final CompiledConstraint[] NONE = new CompiledConstraint[0];
+
+    private final String name;
+    private final Pattern pattern;
+    private final CompiledConstraint[] and;
+    private final CompiledConstraint[] or;
+
+    private CompiledConstraint(Constraint constraint) {
+        this.name = constraint.getName();
+        this.pattern = ConstraintUtil.pattern(constraint.getValue());
+        this.and = compile(constraint.getAnd());
+        this.or = compile(constraint.getOr());
+    }
+
+    public static CompiledConstraint compile(Constraint constraint) {
+        return constraint != null ? new CompiledConstraint(constraint) : null;
+    }
+
+    public boolean evaluate(Map<String, Field> fieldMap, Map<String, List<Value>> submissionData) {
+        boolean isSatisfied = false;
+
+        Field constraintField = fieldMap != null ? fieldMap.get(name) : null;
+        List<? extends Value> values = submissionData != null ? submissionData.get(name) : null;
+
+        if (constraintField != null && (values == null || values.isEmpty())) {
+            String defaultFieldValue = constraintField.getDefaultValue();
+            isSatisfied = defaultFieldValue != null && pattern != null && pattern.matcher(defaultFieldValue).matches();
+        } else if (values != null) {
+            for (Value value : values) {
+                isSatisfied = pattern != null && pattern.matcher(value.getValue()).matches();
+                if (!isSatisfied)
+                    break;
+            }
+        }
+
+        if (isSatisfied) {
+            for (CompiledConstraint constraint : and) {
+                if (constraint != null && !constraint.evaluate(fieldMap, submissionData))
+                    return false;
+            }
+            return true;
+        }
+
+        if (or.length > 0) {
+            for (CompiledConstraint constraint : or) {
+                if (constraint == null || constraint.evaluate(fieldMap, submissionData))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static CompiledConstraint[] compile(List<Constraint> constraints) {
+        if (constraints == null || constraints.isEmpty())
+            return NONE;
+
+        // A null entry is kept as null, which like a null constraint is always satisfied
+        CompiledConstraint[] compiled = new CompiledConstraint[constraints.size()];
+        int i = 0;
+        for (Constraint constraint : constraints) {
+            compiled[i++] = compile(constraint);
+        }
+        return compiled;
+    }
+
+}
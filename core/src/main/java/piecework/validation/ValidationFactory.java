@@ -20,6 +20,7 @@ import com.mongodb.MongoException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 import piecework.Constants;
 import piecework.common.ViewContext;
@@ -39,8 +40,13 @@ import piecework.util.ProcessInstanceUtility;
 import piecework.manager.StorageManager;
 import piecework.common.ServiceLocator;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author James Renfro
@@ -63,6 +69,35 @@ public class ValidationFactory {
     @Autowired
     private ServiceLocator serviceLocator;
 
+    @Autowired(required=false)
+    Environment environment;
+
+    private ThreadPoolExecutor uploadExecutor;
+
+    @PostConstruct
+    public void init() {
+        int threads = environment != null ? environment.getProperty("submission.attachment.upload.threads", Integer.class, Integer.valueOf(4)).intValue() : 1;
+        if (threads > 1) {
+            uploadExecutor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "attachment-upload-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            uploadExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (uploadExecutor != null)
+            uploadExecutor.shutdown();
+    }
+
     public <P extends ProcessDeploymentProvider> Validation validation(P modelProvider, SubmissionTemplate template, Submission submission, String version, boolean onlyAcceptValidInputs, boolean ignoreException) throws PieceworkException {
         long time = 0;
 
@@ -115,7 +150,6 @@ public class ValidationFactory {
         Task task = null;
         Validation.Builder validationBuilder = new Validation.Builder().submission(submission);
 
-        IOException ioe = null;
         List<File> attachments = submission.getAttachments();
         if (template.isAttachmentAllowed() && attachments != null) {
             Map<String, String> existingAttachmentLocations = new HashMap<String, String>();
@@ -128,52 +162,45 @@ public class ValidationFactory {
                 }
             }
 
-            for (File file : attachments) {
-                try {
-                    // Handle comments
-                    if (file.getContentResource() == null) {
-                        Attachment attachment = new Attachment.Builder()
-                                .contentType(file.getContentType())
-                                .processDefinitionKey(modelProvider.processDefinitionKey())
-                                .description(file.getDescription())
-                                .userId(file.getFilerId())
-                                .name(file.getName())
-                                .build();
+            Map<File, ContentResource> stored = storeAttachments(modelProvider, attachments, existingAttachmentLocations);
 
-                        validationBuilder.attachment(attachment);
-                        continue;
-                    }
-
-                    boolean isReplace = StringUtils.isNotEmpty(file.getName()) && existingAttachmentLocations.containsKey(file.getName());
+            for (File file : attachments) {
+                // Handle comments
+                if (file.getContentResource() == null) {
+                    Attachment attachment = new Attachment.Builder()
+                            .contentType(file.getContentType())
+                            .processDefinitionKey(modelProvider.processDefinitionKey())
+                            .description(file.getDescription())
+                            .userId(file.getFilerId())
+                            .name(file.getName())
+                            .build();
+
+                    validationBuilder.attachment(attachment);
+                    continue;
+                }
 
-                    ContentResource contentResource = saveOrReplace(modelProvider, file, existingAttachmentLocations);
+                boolean isReplace = StringUtils.isNotEmpty(file.getName()) && existingAttachmentLocations.containsKey(file.getName());
 
-                    if (!isReplace) {
-                        Attachment attachment = new Attachment.Builder()
-                                .contentType(contentResource.contentType())
-                                .location(contentResource.getLocation())
-                                .processDefinitionKey(modelProvider.processDefinitionKey())
-                                .description(contentResource.getDescription())
-                                .userId(contentResource.lastModifiedBy())
-                                .name(file.getName())
-                                .build();
+                ContentResource contentResource = stored.get(file);
 
-                        validationBuilder.attachment(attachment);
+                if (!isReplace) {
+                    Attachment attachment = new Attachment.Builder()
+                            .contentType(contentResource.contentType())
+                            .location(contentResource.getLocation())
+                            .processDefinitionKey(modelProvider.processDefinitionKey())
+                            .description(contentResource.getDescription())
+                            .userId(contentResource.lastModifiedBy())
+                            .name(file.getName())
+                            .build();
 
-                        if (StringUtils.isNotEmpty(attachment.getName()) && StringUtils.isNotEmpty(attachment.getLocation()))
-                            existingAttachmentLocations.put(attachment.getName(), attachment.getLocation());
-                    }
+                    validationBuilder.attachment(attachment);
 
-                } catch (IOException e) {
-                    LOG.error("Unable to store content", e);
-                    ioe = e;
+                    if (StringUtils.isNotEmpty(attachment.getName()) && StringUtils.isNotEmpty(attachment.getLocation()))
+                        existingAttachmentLocations.put(attachment.getName(), attachment.getLocation());
                 }
             }
         }
 
-        if (ioe != null)
-            throw new InternalServerError(Constants.ExceptionCodes.content_cannot_be_stored, ioe.getMessage());
-
         boolean isAllowAny = template.isAnyFieldAllowed();
 
         if (fields != null) {
@@ -395,6 +422,147 @@ public class ValidationFactory {
         }
     }
 
+    /*
+     * Stores the attachments of a submission. Files that only add new content are stored several at a
+     * time, the first one on the calling thread. Files that replace an existing attachment, or that share
+     * a name with another file in the submission (each one after the first becomes a new version of it),
+     * go afterwards, in order, on the calling thread -- and only once every new file is stored, so a
+     * submission that gets turned away never leaves an existing attachment replaced. If anything can't be
+     * stored, the new content that was stored for the submission is expired again and the submission fails.
+     */
+    private <P extends ProcessDeploymentProvider> Map<File, ContentResource> storeAttachments(final P modelProvider, List<File> attachments, Map<String, String> existingAttachmentLocations) throws PieceworkException {
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        for (File file : attachments) {
+            if (file.getContentResource() == null)
+                continue;
+            // Files without a name are never replaced, so each one stands on its own
+            String key = StringUtils.isNotEmpty(file.getName()) ? "name:" + file.getName() : "file:" + groups.size();
+            List<File> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<File>();
+                groups.put(key, group);
+            }
+            group.add(file);
+        }
+
+        List<File> newFiles = new ArrayList<File>();
+        List<List<File>> versionedGroups = new ArrayList<List<File>>();
+        for (List<File> group : groups.values()) {
+            String name = group.get(0).getName();
+            if (group.size() == 1 && (StringUtils.isEmpty(name) || !existingAttachmentLocations.containsKey(name)))
+                newFiles.add(group.get(0));
+            else
+                versionedGroups.add(group);
+        }
+
+        Map<File, ContentResource> stored = new IdentityHashMap<File, ContentResource>();
+        List<String> storedLocations = new ArrayList<String>();
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        List<FutureTask<ContentResource>> tasks = new ArrayList<FutureTask<ContentResource>>(newFiles.size());
+        for (final File file : newFiles) {
+            tasks.add(new FutureTask<ContentResource>(new Callable<ContentResource>() {
+                @Override
+                public ContentResource call() throws Exception {
+                    // Once one file has failed the submission is going nowhere, so don't store any more
+                    if (failed.get())
+                        return null;
+                    try {
+                        return contentRepository.save(modelProvider, file.getContentResource());
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }
+            }));
+        }
+
+        for (int i = 1; i < tasks.size(); i++) {
+            FutureTask<ContentResource> task = tasks.get(i);
+            try {
+                if (uploadExecutor != null)
+                    uploadExecutor.execute(task);
+                else
+                    task.run();
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        if (!tasks.isEmpty())
+            tasks.get(0).run();
+
+        // Wait for every task, even after a failure, so nothing is still being stored when the cleanup runs
+        Throwable failure = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                ContentResource contentResource = tasks.get(i).get();
+                if (contentResource != null) {
+                    stored.put(newFiles.get(i), contentResource);
+                    if (StringUtils.isNotEmpty(contentResource.getLocation()))
+                        storedLocations.add(contentResource.getLocation());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.set(true);
+                failure = new InternalServerError(Constants.ExceptionCodes.content_cannot_be_stored, "Interrupted while storing content");
+                break;
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+        }
+
+        if (failure == null) {
+            for (List<File> group : versionedGroups) {
+                if (failure != null)
+                    break;
+                Map<String, String> locations = new HashMap<String, String>();
+                String name = group.get(0).getName();
+                if (existingAttachmentLocations.containsKey(name))
+                    locations.put(name, existingAttachmentLocations.get(name));
+
+                for (File file : group) {
+                    boolean isReplace = locations.containsKey(name);
+                    try {
+                        ContentResource contentResource = saveOrReplace(modelProvider, file, locations);
+                        stored.put(file, contentResource);
+                        if (!isReplace && contentResource != null && StringUtils.isNotEmpty(contentResource.getLocation())) {
+                            locations.put(name, contentResource.getLocation());
+                            storedLocations.add(contentResource.getLocation());
+                        }
+                    } catch (Exception e) {
+                        failure = e;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (failure != null) {
+            expire(modelProvider, storedLocations);
+            if (failure instanceof PieceworkException)
+                throw (PieceworkException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            LOG.error("Unable to store content", failure);
+            throw new InternalServerError(Constants.ExceptionCodes.content_cannot_be_stored, failure.getMessage());
+        }
+
+        return stored;
+    }
+
+    private <P extends ProcessDeploymentProvider> void expire(P modelProvider, List<String> locations) {
+        for (String location : locations) {
+            try {
+                contentRepository.expireByLocation(modelProvider, location);
+            } catch (Exception e) {
+                LOG.warn("Unable to expire content stored for a submission that failed at " + location, e);
+            }
+        }
+    }
+
     private <P extends ProcessDeploymentProvider> ContentResource saveOrReplace(P modelProvider, File file, Map<String, String> existingFileLocations) throws PieceworkException, IOException {
         return saveOrReplace(modelProvider, file, existingFileLocations, null, null, 0);
     }
@@ -19,7 +19,6 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.validator.routines.EmailValidator;
 import piecework.exception.ValidationRuleException;
 import piecework.model.*;
-import piecework.util.ConstraintUtil;
 
 import java.util.*;
 import java.util.regex.Pattern;
@@ -45,9 +44,11 @@ public class ValidationRule {
         VALUES_MATCH
     };
 
+    private static final Pattern NUMERIC_PATTERN = Pattern.compile("^[0-9]+$");
+
     private final ValidationRuleType type;
     private final String name;
-    private final Constraint constraint;
+    private final CompiledConstraint constraint;
     private final Set<String> options;
     private final String mask;
     private final Pattern pattern;
@@ -64,7 +65,7 @@ public class ValidationRule {
     private ValidationRule(Builder builder) {
         this.type = builder.type;
         this.name = builder.name;
-        this.constraint = builder.constraint;
+        this.constraint = CompiledConstraint.compile(builder.constraint);
         this.options = builder.options;
         this.mask = builder.mask;
         this.pattern = builder.pattern;
@@ -134,12 +135,12 @@ public class ValidationRule {
     }
 
     private void evaluateConstraint(Map<String, List<Value>> submissionData) throws ValidationRuleException {
-        if (!ConstraintUtil.evaluate(null, submissionData, constraint))
+        if (constraint != null && !constraint.evaluate(null, submissionData))
             throw new ValidationRuleException(this, "Not a valid input for this field");
     }
 
     private void evaluateConstraintRequired(Map<String, List<Value>> submissionData) throws ValidationRuleException {
-        if (ConstraintUtil.evaluate(null, submissionData, constraint))
+        if (constraint == null || constraint.evaluate(null, submissionData))
             evaluateRequired(submissionData);
     }
 
@@ -163,7 +164,7 @@ public class ValidationRule {
     }
 
     private void evaluateNumberOfInputs(Map<String, List<Value>> submissionData, Map<String, List<Value>> instanceData, boolean onlyAcceptValidInputs) throws ValidationRuleException {
-        if (constraint != null && !ConstraintUtil.evaluate(null, submissionData, constraint))
+        if (constraint != null && !constraint.evaluate(null, submissionData))
             return;
 
         int numberOfInputs = 0;
@@ -204,7 +205,7 @@ public class ValidationRule {
     private void evaluateNumeric(Map<String, List<Value>> submissionData) throws ValidationRuleException {
         List<? extends Value> values = safeValues(name, submissionData);
         for (Value value : values) {
-            if (value != null && StringUtils.isNotEmpty(value.getValue()) && !value.getValue().matches("^[0-9]+$"))
+            if (value != null && StringUtils.isNotEmpty(value.getValue()) && !NUMERIC_PATTERN.matcher(value.getValue()).matches())
                 throw new ValidationRuleException(this, "Must be a number");
         }
     }
@@ -295,7 +296,7 @@ public class ValidationRule {
     }
 
     private void evaluateValuesMatch(Map<String, List<Value>> submissionData) throws ValidationRuleException {
-        if (constraint != null && !ConstraintUtil.evaluate(null, submissionData, constraint))
+        if (constraint != null && !constraint.evaluate(null, submissionData))
             return;
 
         List<? extends Value> values = safeValues(name, submissionData);
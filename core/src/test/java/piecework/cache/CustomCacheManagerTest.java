@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.cache;
+
+import junit.framework.Assert;
+import net.sf.ehcache.config.CacheConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+/**
+ * @author James Renfro
+ */
+public class CustomCacheManagerTest {
+
+    private CustomCacheManager cacheManager;
+
+    @Before
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("cache.default.ttl.seconds", "900");
+        environment.setProperty("cache.process.basic.ttl.seconds", "3600");
+        environment.setProperty("cache.process.basic.max.entries", "50");
+        environment.setProperty("cache.process.deployment.max.bytes", "1M");
+        this.cacheManager = new CustomCacheManager(environment);
+    }
+
+    @After
+    public void teardown() {
+        cacheManager.shutdown();
+    }
+
+    @Test
+    public void verifyPerCacheConfiguration() {
+        CacheConfiguration configuration = cacheManager.getCache("PROCESS_BASIC").getCacheConfiguration();
+        Assert.assertEquals(3600, configuration.getTimeToLiveSeconds());
+        Assert.assertEquals(300, configuration.getTimeToIdleSeconds());
+        Assert.assertEquals(50, configuration.getMaxEntriesLocalHeap());
+    }
+
+    @Test
+    public void verifyDefaultConfiguration() {
+        CacheConfiguration configuration = cacheManager.getCache("PROCESS").getCacheConfiguration();
+        Assert.assertEquals(900, configuration.getTimeToLiveSeconds());
+        Assert.assertEquals(10000, configuration.getMaxEntriesLocalHeap());
+    }
+
+    @Test
+    public void verifySizedByBytes() {
+        CacheConfiguration configuration = cacheManager.getCache("PROCESS_DEPLOYMENT").getCacheConfiguration();
+        Assert.assertEquals(1024 * 1024, configuration.getMaxBytesLocalHeap());
+        Assert.assertEquals(0, configuration.getMaxEntriesLocalHeap());
+    }
+
+}
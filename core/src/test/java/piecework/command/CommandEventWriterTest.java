@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.command;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.common.LatencyHistogram;
+import piecework.model.CommandEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+public class CommandEventWriterTest {
+
+    private CommandEventWriter writer;
+    private MongoOperations mongoOperations;
+
+    @Before
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("command.audit.queue.capacity", "3");
+        environment.setProperty("command.audit.batch.size", "10");
+        environment.setProperty("command.audit.flush.millis", "60000");
+        environment.setProperty("command.audit.offer.timeout.millis", "1");
+
+        this.mongoOperations = Mockito.mock(MongoOperations.class);
+        this.writer = new CommandEventWriter();
+        this.writer.environment = environment;
+        this.writer.mongoOperations = mongoOperations;
+        this.writer.init();
+    }
+
+    @Test
+    public void verifyQueuedEventsAreWrittenTogether() throws Exception {
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                batchSizes.add(((Collection<?>) invocation.getArguments()[0]).size());
+                return null;
+            }
+        }).when(mongoOperations).insert(any(Collection.class), eq(CommandEvent.class));
+
+        for (int i = 0; i < 3; i++) {
+            writer.write(Mockito.mock(CommandEvent.class));
+        }
+        // The flush interval is long and the batch isn't full, so this is the shutdown flush
+        writer.destroy();
+
+        Assert.assertEquals(Collections.singletonList(3), batchSizes);
+        Assert.assertEquals(3, writer.getWritten());
+        Assert.assertEquals(0, writer.getDropped());
+        Assert.assertEquals(0, writer.getQueued());
+    }
+
+    @Test
+    public void verifyEventsAreDroppedAfterShutdown() throws Exception {
+        writer.destroy();
+        writer.write(Mockito.mock(CommandEvent.class));
+        writer.write(Mockito.mock(CommandEvent.class));
+
+        Assert.assertEquals(2, writer.getDropped());
+        Mockito.verify(mongoOperations, Mockito.never()).insert(any(Collection.class), eq(CommandEvent.class));
+    }
+
+    @Test
+    public void verifyFailedWritesAreCounted() throws Exception {
+        Mockito.doThrow(new RuntimeException("Mongo is down")).when(mongoOperations).insert(any(Collection.class), eq(CommandEvent.class));
+        writer.write(Mockito.mock(CommandEvent.class));
+        writer.write(Mockito.mock(CommandEvent.class));
+        writer.destroy();
+
+        Assert.assertEquals(2, writer.getFailed());
+        Assert.assertEquals(0, writer.getWritten());
+    }
+
+    @Test
+    public void verifyHistogramsAreKeptPerCommandType() {
+        writer.record("SubmitFormCommand", 3);
+        writer.record("SubmitFormCommand", 40);
+        writer.record("AssignmentCommand", 2000);
+
+        LatencyHistogram submit = writer.getHistograms().get("SubmitFormCommand");
+        Assert.assertEquals(2, submit.getCount());
+        Assert.assertEquals(40, submit.getMaxMillis());
+        Assert.assertEquals(5, submit.getPercentileMillis(50));
+        Assert.assertEquals(50, submit.getPercentileMillis(99));
+
+        LatencyHistogram assignment = writer.getHistograms().get("AssignmentCommand");
+        Assert.assertEquals(1, assignment.getCount());
+        Assert.assertEquals(2500, assignment.getPercentileMillis(50));
+    }
+
+}
@@ -59,7 +59,7 @@ public class SearchQueryBuilderTest {
         SearchQueryBuilder builder = new SearchQueryBuilder(criteria);
         Query query = builder.build(Collections.singleton("TEST"), new PassthroughSanitizer());
 
-        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"33-4444\"}]}}", query.getQueryObject().toString());
+        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"^334444\"}]}}", query.getQueryObject().toString());
     }
 
     @Test
@@ -78,7 +78,7 @@ public class SearchQueryBuilderTest {
 
 //        Assert.assertEquals(200, query.getSkip());
 //        Assert.assertEquals(100, query.getLimit());
-        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"33-4444\"}]}}", query.getQueryObject().toString());
+        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"^334444\"}]}}", query.getQueryObject().toString());
     }
 
     @Test
@@ -98,7 +98,7 @@ public class SearchQueryBuilderTest {
 
 //        Assert.assertEquals(45, query.getSkip());
 //        Assert.assertEquals(15, query.getLimit());
-        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"33-4444\"}]}}", query.getQueryObject().toString());
+        Assert.assertEquals("{ \"processDefinitionKey\" : { \"$in\" : [ \"TEST\"]} , \"keywords\" : { \"$all\" : [ { \"$regex\" : \"^334444\"}]}}", query.getQueryObject().toString());
     }
 
     @Test
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.common;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author James Renfro
+ */
+public class SlidingWindowCounterTest {
+
+    @Test
+    public void verifyCountsSlideOutOfWindow() {
+        // One minute window in six ten-second slices
+        SlidingWindowCounter counter = new SlidingWindowCounter(60000l, 6, 1000);
+        long start = 1000000000000l;
+
+        Assert.assertEquals(1, counter.increment("rod", start));
+        Assert.assertEquals(2, counter.increment("rod", start + 1000));
+        Assert.assertEquals(3, counter.increment("rod", start + 30000));
+        Assert.assertEquals(1, counter.increment("jane", start + 30000));
+
+        // The first two have slid out, the third is still in
+        Assert.assertEquals(1, counter.count("rod", start + 65000));
+        Assert.assertEquals(2, counter.increment("rod", start + 65000));
+
+        // Long after, everything is gone and the reused slice starts from scratch
+        Assert.assertEquals(0, counter.count("rod", start + 600000));
+        Assert.assertEquals(1, counter.increment("rod", start + 600000));
+    }
+
+    @Test
+    public void verifyKeysAreBounded() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(60000l, 6, 160);
+        long start = 1000000000000l;
+        for (int i = 0; i < 10000; i++) {
+            counter.increment("client" + i, start);
+        }
+        Assert.assertTrue(counter.size() <= 160);
+        Assert.assertTrue(counter.getEvicted() >= 10000 - 160);
+
+        // Stale keys are the first to go
+        for (int i = 0; i < 1000; i++) {
+            counter.increment("later" + i, start + 120000);
+        }
+        Assert.assertTrue(counter.size() <= 160);
+    }
+
+    @Test
+    public void verifyRoomIsMadeInBatches() {
+        SlidingWindowCounter counter = new SlidingWindowCounter(60000l, 6, 1600);
+        long start = 1000000000000l;
+        for (int i = 0; i < 10000; i++) {
+            counter.increment("client" + i, start);
+        }
+        Assert.assertTrue(counter.size() <= 1600);
+        // Each sweep frees a quarter of a shard, a hundred keys per shard here
+        Assert.assertTrue(counter.getSweeps() <= 10000 / 25 + 16);
+    }
+
+    @Test
+    public void verifyConcurrentIncrementsAreNotLost() throws Exception {
+        final SlidingWindowCounter counter = new SlidingWindowCounter(3600000l, 10, 1000);
+        final int threads = 8;
+        final int increments = 10000;
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < increments; i++) {
+                        counter.increment("rod");
+                    }
+                }
+            });
+        }
+        latch.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        Assert.assertEquals(threads * increments, counter.count("rod"));
+    }
+
+}
@@ -33,8 +33,10 @@ import piecework.common.UuidGenerator;
 import piecework.enumeration.AlarmSeverity;
 import piecework.enumeration.Scheme;
 import piecework.exception.ForbiddenError;
+import piecework.exception.NotFoundError;
 import piecework.exception.PieceworkException;
 import piecework.content.ContentResource;
+import piecework.content.Version;
 import piecework.model.Entity;
 import piecework.persistence.ContentProfileProvider;
 import piecework.security.AccessTracker;
@@ -42,6 +44,8 @@ import piecework.security.AccessTracker;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -68,6 +72,9 @@ public class GridFSContentProviderReceiverTest {
     @Mock
     UuidGenerator uuidGenerator;
 
+    @Mock
+    GridFsVersionIndex versionIndex;
+
     @Mock
     ContentProfileProvider modelProvider;
 
@@ -78,8 +85,10 @@ public class GridFSContentProviderReceiverTest {
                .when(modelProvider).processDefinitionKey();
         Mockito.doReturn("50000000001")
                .when(uuidGenerator).getNextId();
-        Mockito.doReturn(Collections.singletonList(gridFSDBFile))
-               .when(gridFsOperations).find(any(Query.class));
+        Mockito.doReturn(gridFSDBFile)
+               .when(versionIndex).latest(anyString());
+        Mockito.doReturn(gridFSDBFile)
+               .when(versionIndex).at(anyString(), any(Date.class));
         Mockito.doReturn(gridFSDBFile)
                 .when(gridFsOperations).findOne(any(Query.class));
         Mockito.doReturn("60000000001")
@@ -118,6 +127,36 @@ public class GridFSContentProviderReceiverTest {
         Assert.assertEquals("60000000001", contentResource.getContentId());
         String actual = IOUtils.toString(contentResource.getInputStream());
         Assert.assertEquals("Some sample data", actual);
+        Mockito.verify(versionIndex).latest(eq(location));
+        Mockito.verify(gridFsOperations, Mockito.never()).find(any(Query.class));
+    }
+
+    @Test
+    public void verifyFindByVersionLocation() throws Exception {
+        ContentResource contentResource = contentProviderReceiver.findByLocation(modelProvider, "/TEST/50000000001?uploadDate=1000");
+        Assert.assertEquals("/TEST/50000000001", contentResource.getLocation());
+        Mockito.verify(versionIndex).at(eq("/TEST/50000000001"), eq(new Date(1000l)));
+        Mockito.verify(versionIndex, Mockito.never()).latest(anyString());
+    }
+
+    @Test(expected = NotFoundError.class)
+    public void verifyFindByMissingLocation() throws Exception {
+        Mockito.doReturn(null)
+               .when(versionIndex).latest(anyString());
+        contentProviderReceiver.findByLocation(modelProvider, "/TEST/50000000002");
+    }
+
+    @Test
+    public void verifyVersionsAreLoadedOnlyWhenAsked() throws Exception {
+        List<Version> versions = Collections.singletonList(new Version("1", "testuser", 1000l, "60000000001?uploadDate=1000", "/TEST/50000000001?uploadDate=1000"));
+        Mockito.doReturn(versions)
+               .when(versionIndex).versions(eq("/TEST/50000000001"));
+
+        ContentResource contentResource = contentProviderReceiver.findByLocation(modelProvider, "/TEST/50000000001");
+        Mockito.verify(versionIndex, Mockito.never()).versions(anyString());
+        Assert.assertEquals(versions, contentResource.versions());
+        Assert.assertEquals(versions, contentResource.versions());
+        Mockito.verify(versionIndex, Mockito.times(1)).versions(anyString());
     }
 
     @Test
@@ -130,6 +169,25 @@ public class GridFSContentProviderReceiverTest {
         Assert.assertEquals("70000000001", stored.getContentId());
     }
 
+    @Test
+    public void verifySaveReturnsVersionWithoutQuery() throws Exception {
+        Mockito.doReturn(new Date(1000l))
+               .when(gridFSFile).getUploadDate();
+        Mockito.doReturn("d41d8cd98f00b204e9800998ecf8427e")
+               .when(gridFSFile).getMD5();
+
+        ContentResource contentResource = new BasicContentResource.Builder()
+                .contentType("application/json")
+                .build();
+        ContentResource stored = contentProviderReceiver.save(modelProvider, contentResource);
+        Assert.assertEquals("/TEST/50000000001", stored.getLocation());
+        Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", stored.eTag());
+        Assert.assertEquals(1, stored.versions().size());
+        Assert.assertEquals("1", stored.versions().get(0).getLabel());
+        Assert.assertEquals("/TEST/50000000001?uploadDate=1000", stored.versions().get(0).getLocation());
+        Mockito.verify(gridFsOperations, Mockito.never()).find(any(Query.class));
+    }
+
     @Test
     public void verifyKey() {
         Assert.assertEquals("default-gridfs", contentProviderReceiver.getKey());
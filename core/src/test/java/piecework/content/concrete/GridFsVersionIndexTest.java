@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.content.concrete;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFSFile;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import piecework.content.Version;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class GridFsVersionIndexTest {
+
+    @Mock
+    DBCollection files;
+
+    @Mock
+    DBCursor cursor;
+
+    GridFsVersionIndex versionIndex;
+
+    @Before
+    public void setup() {
+        versionIndex = new GridFsVersionIndex(files);
+        Mockito.doReturn(cursor)
+               .when(cursor).sort(any(DBObject.class));
+        Mockito.doReturn(cursor)
+               .when(cursor).limit(Mockito.anyInt());
+    }
+
+    @Test
+    public void verifyEnsureIndex() {
+        versionIndex.ensureIndex();
+        Mockito.verify(files).ensureIndex(eq((DBObject)new BasicDBObject("filename", 1).append("uploadDate", -1)));
+    }
+
+    @Test
+    public void verifyLatestIsSingleSortedLookup() {
+        Mockito.doReturn(cursor)
+               .when(files).find(eq((DBObject)new BasicDBObject("filename", "/TEST/1")));
+        Mockito.doReturn(true)
+               .when(cursor).hasNext();
+        Mockito.doReturn(file("60000000002", 2000l, "testuser"))
+               .when(cursor).next();
+
+        GridFSFile latest = versionIndex.latest("/TEST/1");
+        Assert.assertEquals("60000000002", latest.getId());
+        Assert.assertEquals(new Date(2000l), latest.getUploadDate());
+        Assert.assertEquals("testuser", latest.getMetaData().get(GridFsContentResource.LAST_MODIFIED_BY));
+        Mockito.verify(cursor).sort(eq((DBObject)new BasicDBObject("uploadDate", -1)));
+        Mockito.verify(cursor).limit(1);
+        Mockito.verify(cursor).close();
+    }
+
+    @Test
+    public void verifyLatestNotFound() {
+        Mockito.doReturn(cursor)
+               .when(files).find(any(DBObject.class));
+        Mockito.doReturn(false)
+               .when(cursor).hasNext();
+        Assert.assertNull(versionIndex.latest("/TEST/1"));
+    }
+
+    @Test
+    public void verifyVersionsMostRecentFirst() {
+        Mockito.doReturn(cursor)
+               .when(files).find(eq((DBObject)new BasicDBObject("filename", "/TEST/1")), any(DBObject.class));
+        Mockito.when(cursor.hasNext())
+               .thenReturn(true, true, false);
+        Mockito.when(cursor.next())
+               .thenReturn(file("60000000001", 1000l, "firstuser"), file("60000000002", 2000l, "seconduser"));
+
+        List<Version> versions = versionIndex.versions("/TEST/1");
+        Assert.assertEquals(2, versions.size());
+        Assert.assertEquals("2", versions.get(0).getLabel());
+        Assert.assertEquals("seconduser", versions.get(0).getCreatedBy());
+        Assert.assertEquals("/TEST/1?uploadDate=2000", versions.get(0).getLocation());
+        Assert.assertEquals("60000000002?uploadDate=2000", versions.get(0).getContentId());
+        Assert.assertEquals("1", versions.get(1).getLabel());
+        Assert.assertEquals("/TEST/1?uploadDate=1000", versions.get(1).getLocation());
+        Mockito.verify(cursor).sort(eq((DBObject)new BasicDBObject("uploadDate", 1)));
+        Mockito.verify(cursor).close();
+    }
+
+    private static DBObject file(String id, long uploadDate, String lastModifiedBy) {
+        return new BasicDBObject("_id", id)
+                .append("uploadDate", new Date(uploadDate))
+                .append("metadata", new BasicDBObject(GridFsContentResource.LAST_MODIFIED, Long.valueOf(uploadDate))
+                        .append(GridFsContentResource.LAST_MODIFIED_BY, lastModifiedBy));
+    }
+
+}
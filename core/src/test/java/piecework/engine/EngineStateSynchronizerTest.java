@@ -35,6 +35,8 @@ import piecework.service.ProcessInstanceService;
 import piecework.service.TaskService;
 import piecework.settings.UserInterfaceSettings;
 
+import java.util.concurrent.Callable;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -119,6 +121,7 @@ public class EngineStateSynchronizerTest {
                 .when(taskService).update(anyString(), any(Task.class));
         engineStateSynchronizer.onTaskEvent(StateChangeType.CREATE_TASK, engineTask, engineContext);
         Mockito.verify(mediator).notify(any(StateChangeEvent.class));
+        Mockito.verify(mediator).dispatchOnce(eq("TEST"), eq("123"), anyString(), any(Callable.class));
     }
 
 }
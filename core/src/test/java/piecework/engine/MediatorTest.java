@@ -15,7 +15,9 @@
  */
 package piecework.engine;
 
+import junit.framework.Assert;
 import org.junit.Before;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Spy;
 import piecework.command.CommandListener;
 import piecework.command.AbstractOperationCommand;
@@ -27,6 +29,9 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.model.DeadLetterEvent;
 import piecework.model.ProcessInstance;
 import piecework.model.Task;
 import piecework.persistence.ProcessInstanceProvider;
@@ -34,6 +39,9 @@ import piecework.persistence.test.ProcessInstanceProviderStub;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+
+import static org.mockito.Matchers.any;
 
 /**
  * @author James Renfro
@@ -71,6 +79,12 @@ public class MediatorTest {
     @Mock
     Task task;
 
+    @Mock
+    SynchronousEventListener synchronousEventListener;
+
+    @Mock
+    EngineContext context;
+
     @Mock
     AbstractOperationCommand command;
 
@@ -133,4 +147,109 @@ public class MediatorTest {
         Mockito.verify(dudEventListener, Mockito.never()).notify(event);
     }
 
+    @Test
+    public void testNotifyListenerForAllProcesses() throws Exception {
+        Mockito.when(testEventListener.getProcessDefinitionKey()).thenReturn(TEST_PROCESS_DEFINITION_KEY);
+        Mockito.when(dudEventListener.getProcessDefinitionKey()).thenReturn(null);
+        eventListeners.add(testEventListener);
+        eventListeners.add(dudEventListener);
+        mediator.init();
+
+        ProcessInstanceProvider instanceProvider = new ProcessInstanceProviderStub(process, null, instance, null);
+        StateChangeEvent event = new StateChangeEvent.Builder(StateChangeType.START_PROCESS)
+                .instanceProvider(instanceProvider)
+                .build();
+        mediator.notify(event);
+
+        // A listener without a process definition key hears about this process too
+        Mockito.verify(testEventListener).notify(event);
+        Mockito.verify(dudEventListener).notify(event);
+
+        // And about processes that nobody else is listening to
+        Mockito.when(process.getProcessDefinitionKey()).thenReturn(DUD_PROCESS_DEFINITION_KEY);
+        StateChangeEvent dudEvent = new StateChangeEvent.Builder(StateChangeType.START_PROCESS)
+                .instanceProvider(instanceProvider)
+                .build();
+        mediator.notify(dudEvent);
+        Mockito.verify(dudEventListener).notify(dudEvent);
+        Mockito.verify(testEventListener, Mockito.never()).notify(dudEvent);
+    }
+
+    @Test
+    public void testNotifyAsynchronously() throws Exception {
+        Mockito.when(testEventListener.getProcessDefinitionKey()).thenReturn(TEST_PROCESS_DEFINITION_KEY);
+        Mockito.when(synchronousEventListener.getProcessDefinitionKey()).thenReturn(TEST_PROCESS_DEFINITION_KEY);
+        eventListeners.add(testEventListener);
+        eventListeners.add(synchronousEventListener);
+        asynchronous(3);
+
+        ProcessInstanceProvider instanceProvider = new ProcessInstanceProviderStub(process, null, instance, null);
+        StateChangeEvent event = new StateChangeEvent.Builder(StateChangeType.START_PROCESS)
+                .instanceProvider(instanceProvider)
+                .processInstanceId("123")
+                .context(context)
+                .build();
+
+        mediator.notify(event);
+
+        // Synchronous listeners get the original event right away
+        Mockito.verify(synchronousEventListener).notify(event);
+
+        // Others get a copy without the engine context on another thread
+        ArgumentCaptor<StateChangeEvent> captor = ArgumentCaptor.forClass(StateChangeEvent.class);
+        Mockito.verify(testEventListener, Mockito.timeout(5000)).notify(captor.capture());
+        Assert.assertNull(captor.getValue().getContext());
+        Assert.assertEquals("123", captor.getValue().getProcessInstanceId());
+        Assert.assertEquals(StateChangeType.START_PROCESS, captor.getValue().getType());
+        mediator.destroy();
+    }
+
+    @Test
+    public void testNotifyAsynchronouslyDeadLetters() throws Exception {
+        Mockito.when(testEventListener.getProcessDefinitionKey()).thenReturn(TEST_PROCESS_DEFINITION_KEY);
+        Mockito.doThrow(new RuntimeException("Mail server is down")).when(testEventListener).notify(any(StateChangeEvent.class));
+        eventListeners.add(testEventListener);
+        MongoOperations mongoOperations = asynchronous(2);
+
+        ProcessInstanceProvider instanceProvider = new ProcessInstanceProviderStub(process, null, instance, null);
+        mediator.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS)
+                .instanceProvider(instanceProvider)
+                .processInstanceId("123")
+                .build());
+
+        Mockito.verify(mongoOperations, Mockito.timeout(5000)).save(any(DeadLetterEvent.class));
+        Mockito.verify(testEventListener, Mockito.times(2)).notify(any(StateChangeEvent.class));
+        Assert.assertEquals(1, mediator.getDispatcher().getRetried());
+        Assert.assertEquals(1, mediator.getDispatcher().getDeadLettered());
+        Assert.assertEquals(Integer.valueOf(0), mediator.getQueueDepths().get(TEST_PROCESS_DEFINITION_KEY));
+        mediator.destroy();
+    }
+
+    @Test
+    public void testDispatchOnceIsNotRetried() throws Exception {
+        MongoOperations mongoOperations = asynchronous(3);
+        Callable<?> work = Mockito.mock(Callable.class);
+        Mockito.doThrow(new RuntimeException("Mail server is down")).when(work).call();
+
+        mediator.dispatchOnce(TEST_PROCESS_DEFINITION_KEY, "123", "notification", work);
+
+        Mockito.verify(mongoOperations, Mockito.timeout(5000)).save(any(DeadLetterEvent.class));
+        Mockito.verify(work, Mockito.times(1)).call();
+        Assert.assertEquals(0, mediator.getDispatcher().getRetried());
+        Assert.assertEquals(1, mediator.getDispatcher().getDeadLettered());
+        mediator.destroy();
+    }
+
+    private MongoOperations asynchronous(int maxAttempts) {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("mediator.async.enabled", "true");
+        environment.setProperty("mediator.async.max.attempts", String.valueOf(maxAttempts));
+        environment.setProperty("mediator.async.retry.delay.millis", "1");
+        MongoOperations mongoOperations = Mockito.mock(MongoOperations.class);
+        mediator.environment = environment;
+        mediator.mongoOperations = mongoOperations;
+        mediator.init();
+        return mongoOperations;
+    }
+
 }
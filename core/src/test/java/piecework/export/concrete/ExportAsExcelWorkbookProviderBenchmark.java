@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.export.concrete;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import piecework.export.Pager;
+import piecework.model.Field;
+import piecework.model.ProcessInstance;
+import piecework.util.ExportUtility;
+
+import java.util.*;
+
+/**
+ * Exports a million generated instances to an xlsx workbook, to check that the streaming
+ * export runs in a fixed amount of heap. Takes a few minutes, so it's not part of the build --
+ * run it by hand with a heap cap, e.g.
+ *
+ * mvn test -Dtest=ExportAsExcelWorkbookProviderBenchmark -DargLine="-Xmx128m"
+ *
+ * after removing the @Ignore.
+ *
+ * @author James Renfro
+ */
+@Ignore
+public class ExportAsExcelWorkbookProviderBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(ExportAsExcelWorkbookProviderBenchmark.class);
+
+    private static final int INSTANCES = 1000000;
+    private static final int PAGE_SIZE = 200;
+
+    @Test
+    public void exportMillionInstances() throws Exception {
+        List<Field> fields = new ArrayList<Field>();
+        for (int i = 0; i < 10; i++) {
+            fields.add(new Field.Builder().name("field" + i).label("Field " + i).build());
+        }
+        Map<String, String> headerMap = ExportUtility.headerMap(fields);
+
+        Pager<ProcessInstance> pager = new PrefetchingPager<ProcessInstance>(new GeneratingPager(INSTANCES, PAGE_SIZE, fields));
+        ExportAsExcelWorkbookProvider provider = new ExportAsExcelWorkbookProvider("Benchmark", headerMap, pager);
+
+        CountingOutputStream output = new CountingOutputStream(new NullOutputStream());
+        long start = System.currentTimeMillis();
+        provider.write(output);
+        long time = System.currentTimeMillis() - start;
+
+        Runtime runtime = Runtime.getRuntime();
+        LOG.info("Exported " + INSTANCES + " instances as " + output.getByteCount() + " bytes in " + time + " ms with max heap "
+                + (runtime.maxMemory() / (1024 * 1024)) + "M, " + ((runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)) + "M in use at the end");
+    }
+
+    static class GeneratingPager implements Pager<ProcessInstance> {
+
+        private final int total;
+        private final int pageSize;
+        private final List<Field> fields;
+        private int pageNumber;
+        private Page<ProcessInstance> page;
+
+        GeneratingPager(int total, int pageSize, List<Field> fields) {
+            this.total = total;
+            this.pageSize = pageSize;
+            this.fields = fields;
+        }
+
+        @Override
+        public Page<ProcessInstance> nextPage() {
+            List<ProcessInstance> instances = new ArrayList<ProcessInstance>(pageSize);
+            Date now = new Date();
+            for (int i = pageNumber * pageSize; i < Math.min(total, (pageNumber + 1) * pageSize); i++) {
+                ProcessInstance.Builder builder = new ProcessInstance.Builder()
+                        .processInstanceId(String.valueOf(i))
+                        .processInstanceLabel("Generated instance " + i)
+                        .startTime(now);
+                for (Field field : fields) {
+                    builder.formValue(field.getName(), field.getName() + " value for instance " + i);
+                }
+                instances.add(builder.build());
+            }
+            page = new PageImpl<ProcessInstance>(instances, new PageRequest(pageNumber, pageSize), total);
+            pageNumber++;
+            return page;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return page == null || !page.isLastPage();
+        }
+
+        @Override
+        public void reset() {
+            pageNumber = 0;
+            page = null;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.export.concrete;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import piecework.export.Pager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author James Renfro
+ */
+public class PrefetchingPagerTest {
+
+    @Test
+    public void verifyAllPagesInOrder() {
+        PrefetchingPager<Integer> pager = new PrefetchingPager<Integer>(new IntegerPager(7, 3));
+
+        List<Integer> values = new ArrayList<Integer>();
+        while (pager.hasNext()) {
+            values.addAll(pager.nextPage().getContent());
+        }
+        pager.close();
+
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), values);
+    }
+
+    @Test
+    public void verifyReset() {
+        PrefetchingPager<Integer> pager = new PrefetchingPager<Integer>(new IntegerPager(7, 3));
+        Assert.assertEquals(Arrays.asList(0, 1, 2), pager.nextPage().getContent());
+        pager.reset();
+        Assert.assertTrue(pager.hasNext());
+        Assert.assertEquals(Arrays.asList(0, 1, 2), pager.nextPage().getContent());
+        pager.close();
+    }
+
+    /*
+     * Hands out the integers from 0 to total in pages of the given size
+     */
+    static class IntegerPager implements Pager<Integer> {
+
+        private final int total;
+        private final int pageSize;
+        private int pageNumber;
+        private Page<Integer> page;
+
+        IntegerPager(int total, int pageSize) {
+            this.total = total;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public Page<Integer> nextPage() {
+            List<Integer> content = new ArrayList<Integer>(pageSize);
+            for (int i = pageNumber * pageSize; i < Math.min(total, (pageNumber + 1) * pageSize); i++) {
+                content.add(i);
+            }
+            page = new PageImpl<Integer>(content, new PageRequest(pageNumber, pageSize), total);
+            pageNumber++;
+            return page;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return page == null || !page.isLastPage();
+        }
+
+        @Override
+        public void reset() {
+            pageNumber = 0;
+            page = null;
+        }
+    }
+
+}
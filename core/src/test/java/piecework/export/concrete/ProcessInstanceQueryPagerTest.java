@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.export.concrete;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Query;
+import piecework.common.CloseableIterator;
+import piecework.model.ProcessInstance;
+import piecework.repository.ProcessInstanceRepository;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+
+/**
+ * @author James Renfro
+ */
+public class ProcessInstanceQueryPagerTest {
+
+    private ProcessInstanceRepository repository;
+    private List<ProcessInstance> instances;
+    private List<ListCursor> cursors;
+
+    @Before
+    public void setup() {
+        this.instances = new ArrayList<ProcessInstance>();
+        for (int i = 0; i < 450; i++) {
+            instances.add(new ProcessInstance.Builder().processInstanceId("" + i).build());
+        }
+        this.cursors = new ArrayList<ListCursor>();
+        this.repository = Mockito.mock(ProcessInstanceRepository.class);
+        Mockito.doReturn(Long.valueOf(450)).when(repository).countByQuery(any(Query.class));
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ListCursor cursor = new ListCursor(instances.iterator());
+                cursors.add(cursor);
+                return cursor;
+            }
+        }).when(repository).iterateByQuery(any(Query.class), anyInt());
+    }
+
+    @Test
+    public void verifyPagesComeFromOneCursorAndOneCount() {
+        ProcessInstanceQueryPager pager = new ProcessInstanceQueryPager(new Query(), repository, new Sort(Sort.Direction.DESC, "startTime"));
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        Page<ProcessInstance> last = null;
+        while (pager.hasNext()) {
+            last = pager.nextPage();
+            sizes.add(last.getContent().size());
+        }
+
+        Assert.assertEquals(3, sizes.size());
+        Assert.assertEquals(Integer.valueOf(200), sizes.get(0));
+        Assert.assertEquals(Integer.valueOf(50), sizes.get(2));
+        Assert.assertEquals(450, last.getTotalElements());
+        Assert.assertEquals("449", last.getContent().get(49).getProcessInstanceId());
+
+        Mockito.verify(repository, Mockito.times(1)).countByQuery(any(Query.class));
+        Mockito.verify(repository, Mockito.times(1)).iterateByQuery(any(Query.class), anyInt());
+        Mockito.verify(repository, Mockito.never()).findByQuery(any(Query.class), any(Pageable.class), anyBoolean());
+        Assert.assertTrue(cursors.get(0).closed);
+    }
+
+    @Test
+    public void verifyResetAndCloseReleaseCursor() {
+        ProcessInstanceQueryPager pager = new ProcessInstanceQueryPager(new Query(), repository, null);
+        pager.nextPage();
+        pager.reset();
+        Assert.assertTrue(cursors.get(0).closed);
+        Assert.assertTrue(pager.hasNext());
+
+        Assert.assertEquals("0", pager.nextPage().getContent().get(0).getProcessInstanceId());
+        pager.close();
+        Assert.assertTrue(cursors.get(1).closed);
+    }
+
+    static class ListCursor implements CloseableIterator<ProcessInstance> {
+
+        private final Iterator<ProcessInstance> iterator;
+        private boolean closed;
+
+        ListCursor(Iterator<ProcessInstance> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && iterator.hasNext();
+        }
+
+        @Override
+        public ProcessInstance next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ldap;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.ldap.search.LdapUserSearch;
+import piecework.enumeration.CacheName;
+import piecework.model.Group;
+import piecework.model.User;
+import piecework.service.CacheService;
+import piecework.service.IdentityService;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+public class LdapGroupServiceTest {
+
+    private Map<String, Object> cache;
+    private IdentityService identityService;
+    private LdapUserSearch groupSearch;
+    private LdapGroupService groupService;
+
+    @Before
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("ldap.attribute.group.member", "member");
+        environment.setProperty("ldap.attribute.group.id", "cn");
+        environment.setProperty("ldap.group.userid.prefix", "uid=");
+        environment.setProperty("ldap.group.cache.missing.seconds", "300");
+        environment.setProperty("ldap.group.cache.refresh.seconds", "600");
+
+        this.cache = new ConcurrentHashMap<String, Object>();
+        CacheService cacheService = Mockito.mock(CacheService.class);
+        Mockito.doAnswer(new Answer<Cache.ValueWrapper>() {
+            @Override
+            public Cache.ValueWrapper answer(InvocationOnMock invocation) throws Throwable {
+                String key = (String) invocation.getArguments()[1];
+                return cache.containsKey(key) ? new SimpleValueWrapper(cache.get(key)) : null;
+            }
+        }).when(cacheService).get(eq(CacheName.GROUP), anyString());
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                cache.put((String) invocation.getArguments()[1], invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(cacheService).put(eq(CacheName.GROUP), anyString(), any());
+
+        Map<String, User> users = new HashMap<String, User>();
+        for (String userId : Arrays.asList("alice", "bob", "carol")) {
+            users.put(userId, new User.Builder().userId(userId).displayName(userId).build());
+        }
+        this.identityService = Mockito.mock(IdentityService.class);
+        Mockito.doReturn(users)
+               .when(identityService).findUsers(any(Set.class));
+
+        DirContextOperations groupData = Mockito.mock(DirContextOperations.class);
+        Mockito.doReturn(new String[] { "uid=carol", "uid=Alice", "uid=bob", "uid=mallory", "cn=nested" })
+               .when(groupData).getStringAttributes(eq("member"));
+        Mockito.doReturn("approvers")
+               .when(groupData).getStringAttribute(eq("cn"));
+
+        this.groupSearch = Mockito.mock(LdapUserSearch.class);
+        Mockito.doReturn(groupData)
+               .when(groupSearch).searchForUser(eq("approvers"));
+        Mockito.doThrow(new UsernameNotFoundException("nobody"))
+               .when(groupSearch).searchForUser(eq("unknown"));
+
+        this.groupService = new LdapGroupService(cacheService, identityService, null, groupSearch, new LdapSettings(environment));
+    }
+
+    @Test
+    public void verifyMembersResolvedTogether() {
+        Group group = groupService.getGroupById("approvers");
+        Assert.assertEquals("approvers", group.getGroupId());
+
+        List<String> memberIds = new ArrayList<String>();
+        for (User member : group.getMembers()) {
+            memberIds.add(member.getUserId());
+        }
+        Assert.assertEquals(Arrays.asList("carol", "alice", "bob"), memberIds);
+
+        Mockito.verify(identityService, Mockito.times(1)).findUsers(eq(new HashSet<String>(Arrays.asList("carol", "Alice", "bob", "mallory"))));
+        Mockito.verify(identityService, Mockito.never()).getUser(anyString());
+    }
+
+    @Test
+    public void verifyMembershipCached() {
+        groupService.getGroupById("approvers");
+        Assert.assertEquals(3, groupService.getGroupById("approvers").getMembers().size());
+
+        Mockito.verify(groupSearch, Mockito.times(1)).searchForUser(eq("approvers"));
+        // Member details come from the identity service each time, which has its own cache
+        Mockito.verify(identityService, Mockito.times(2)).findUsers(any(Set.class));
+    }
+
+    @Test
+    public void verifyUnknownGroupRemembered() {
+        Assert.assertNull(groupService.getGroupById("unknown"));
+        Assert.assertNull(groupService.getGroupById("unknown"));
+        Mockito.verify(groupSearch, Mockito.times(1)).searchForUser(eq("unknown"));
+
+        // Until it's been missing for a while
+        cache.put("unknown", new CachedGroup(null, null, null, System.currentTimeMillis() - 301000l));
+        Assert.assertNull(groupService.getGroupById("unknown"));
+        Mockito.verify(groupSearch, Mockito.times(2)).searchForUser(eq("unknown"));
+    }
+
+    @Test
+    public void verifyStaleGroupRefreshedInBackground() {
+        cache.put("approvers", new CachedGroup("approvers", null, Collections.singletonList("alice"), System.currentTimeMillis() - 601000l));
+
+        Group group = groupService.getGroupById("approvers");
+        Assert.assertEquals(1, group.getMembers().size());
+
+        Mockito.verify(groupSearch, Mockito.timeout(5000)).searchForUser(eq("approvers"));
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ldap;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.ldap.search.LdapUserSearch;
+import org.springframework.security.ldap.userdetails.LdapAuthoritiesPopulator;
+import org.springframework.security.ldap.userdetails.LdapUserDetailsMapper;
+import piecework.enumeration.CacheName;
+import piecework.model.User;
+import piecework.service.CacheService;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+public class LdapIdentityServiceTest {
+
+    private static final Pattern UID = Pattern.compile("uid=([^)]+)");
+
+    private Map<String, Object> cache;
+    private List<String> filters;
+    private Set<String> directory;
+    private LdapIdentityService identityService;
+
+    @Before
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("ldap.attribute.id.internal", "uid");
+        environment.setProperty("ldap.person.search.batch.size", "2");
+        environment.setProperty("ldap.person.cache.missing.seconds", "300");
+        environment.setProperty("ldap.person.cache.refresh.seconds", "600");
+
+        this.cache = new ConcurrentHashMap<String, Object>();
+        this.filters = Collections.synchronizedList(new ArrayList<String>());
+        this.directory = new HashSet<String>(Arrays.asList("alice", "bob", "carol", "dave"));
+
+        CacheService cacheService = Mockito.mock(CacheService.class);
+        Mockito.doAnswer(new Answer<Cache.ValueWrapper>() {
+            @Override
+            public Cache.ValueWrapper answer(InvocationOnMock invocation) throws Throwable {
+                String key = (String) invocation.getArguments()[1];
+                return cache.containsKey(key) ? new SimpleValueWrapper(cache.get(key)) : null;
+            }
+        }).when(cacheService).get(eq(CacheName.USER), anyString());
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                cache.put((String) invocation.getArguments()[1], invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(cacheService).put(eq(CacheName.USER), anyString(), any());
+
+        LdapSettings ldapSettings = new LdapSettings(environment);
+        CustomLdapUserDetailsMapper userDetailsMapper = new CustomLdapUserDetailsMapper(new LdapUserDetailsMapper(), null, ldapSettings);
+        this.identityService = new LdapIdentityService(Mockito.mock(UserDetailsService.class), cacheService, null,
+                Mockito.mock(LdapUserSearch.class), Mockito.mock(LdapAuthoritiesPopulator.class), userDetailsMapper, ldapSettings, null) {
+            @Override
+            List<User> search(String encoded, long countLimit) {
+                filters.add(encoded);
+                List<User> users = new ArrayList<User>();
+                Matcher matcher = UID.matcher(encoded);
+                while (matcher.find()) {
+                    if (directory.contains(matcher.group(1)))
+                        users.add(new User.Builder().userId(matcher.group(1)).displayName(matcher.group(1)).build());
+                }
+                return users;
+            }
+        };
+    }
+
+    @Test
+    public void verifyOnlyMissingUsersAreSearched() {
+        Map<String, User> first = identityService.findUsers(new HashSet<String>(Arrays.asList("alice", "bob")));
+        Assert.assertEquals(2, first.size());
+        Assert.assertEquals(1, filters.size());
+
+        filters.clear();
+        Map<String, User> second = identityService.findUsers(new HashSet<String>(Arrays.asList("alice", "bob", "carol")));
+        Assert.assertEquals(3, second.size());
+        Assert.assertEquals(Collections.singletonList("(uid=carol)"), filters);
+
+        filters.clear();
+        Assert.assertEquals("bob", identityService.getUser("bob").getDisplayName());
+        Assert.assertTrue(filters.isEmpty());
+    }
+
+    @Test
+    public void verifyLargeSetsAreSplitIntoBoundedFilters() {
+        Map<String, User> users = identityService.findUsers(new TreeSet<String>(Arrays.asList("alice", "bob", "carol", "dave", "eve")));
+        Assert.assertEquals(4, users.size());
+        Assert.assertEquals(3, filters.size());
+        for (String filter : filters) {
+            Matcher matcher = UID.matcher(filter);
+            int count = 0;
+            while (matcher.find())
+                count++;
+            Assert.assertTrue(count <= 2);
+        }
+    }
+
+    @Test
+    public void verifyUnknownUsersAreRemembered() {
+        Assert.assertTrue(identityService.findUsers(Collections.singleton("mallory")).isEmpty());
+        Assert.assertEquals(1, filters.size());
+
+        Assert.assertTrue(identityService.findUsers(Collections.singleton("mallory")).isEmpty());
+        Assert.assertNull(identityService.getUser("mallory"));
+        Assert.assertEquals(1, filters.size());
+    }
+
+    @Test
+    public void verifyStaleUsersAreRefreshedInBackground() throws Exception {
+        long longAgo = System.currentTimeMillis() - 3600000l;
+        cache.put("alice", new CachedUser(new User.Builder().userId("alice").displayName("Old name").build(), longAgo));
+
+        // The cached copy comes back right away, and the refresh happens afterwards
+        Assert.assertEquals("Old name", identityService.findUsers(Collections.singleton("alice")).get("alice").getDisplayName());
+        for (int i = 0; i < 100 && ((CachedUser) cache.get("alice")).getUser().getDisplayName().equals("Old name"); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("alice", identityService.findUsers(Collections.singleton("alice")).get("alice").getDisplayName());
+        Assert.assertEquals(1, filters.size());
+        identityService.shutdown();
+    }
+
+}
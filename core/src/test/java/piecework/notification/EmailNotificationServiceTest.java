@@ -18,14 +18,18 @@ package piecework.notification;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.cache.support.SimpleValueWrapper;
 import org.springframework.core.env.Environment;
+import piecework.enumeration.CacheName;
 import piecework.enumeration.StateChangeType;
 import piecework.model.Notification;
 import piecework.model.User;
+import piecework.service.CacheService;
 import piecework.service.GroupService;
 import piecework.service.IdentityService;
 import piecework.settings.NotificationSettings;
@@ -61,6 +65,9 @@ public class EmailNotificationServiceTest {
     @Mock
     NotificationSettings notificationSettings;
 
+    @Mock
+    CacheService cacheService;
+
     @Test
     public void verifyNotForThisEvent() {
         Notification notification = new Notification.Builder()
@@ -161,4 +168,34 @@ public class EmailNotificationServiceTest {
                 .dispatch(anyString(), anyString(), any(List.class), any(List.class), anyString(), anyString());
     }
 
+    @Test
+    public void verifyTemplatesCompiledOnce() {
+        Mockito.doReturn(Boolean.TRUE)
+                .when(emailDispatcher).dispatch(anyString(), anyString(), any(List.class), any(List.class), anyString(), anyString());
+
+        Notification notification = new Notification.Builder()
+                .put("recipients", "{{email}}")
+                .put("sender", "test.sender@nowhere.org")
+                .subject("Test notification for {{name}}")
+                .text("This is some sample text")
+                .build();
+        Map<String, Object> scope = new HashMap<String, Object>();
+        scope.put("email", "jack@testing.org");
+        scope.put("name", "Jack");
+        Assert.assertTrue(notificationService.send(notification, scope, StateChangeType.COMPLETE_TASK));
+
+        ArgumentCaptor<Object> compiledCaptor = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(cacheService).put(eq(CacheName.NOTIFICATION_TEMPLATE), eq("subject::Test notification for {{name}}"), compiledCaptor.capture());
+        Mockito.verify(cacheService, times(3)).put(eq(CacheName.NOTIFICATION_TEMPLATE), anyString(), any());
+
+        Mockito.doReturn(new SimpleValueWrapper(compiledCaptor.getValue()))
+                .when(cacheService).get(eq(CacheName.NOTIFICATION_TEMPLATE), eq("subject::Test notification for {{name}}"));
+        scope.put("name", "Jill");
+        Assert.assertTrue(notificationService.send(notification, scope, StateChangeType.COMPLETE_TASK));
+
+        // Only the subject was found in the cache the second time round
+        Mockito.verify(cacheService, times(5)).put(eq(CacheName.NOTIFICATION_TEMPLATE), anyString(), any());
+        Mockito.verify(emailDispatcher).dispatch(anyString(), anyString(), any(List.class), any(List.class), eq("Test notification for Jill"), anyString());
+    }
+
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.notification.concrete;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import piecework.model.User;
+import piecework.settings.NotificationSettings;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SimpleEmailDispatcherTest {
+
+    @InjectMocks
+    SimpleEmailDispatcher dispatcher;
+
+    @Mock
+    NotificationSettings notificationSettings;
+
+    private SmtpStub smtp;
+    private List<User> recipients;
+
+    @Before
+    public void setup() throws Exception {
+        smtp = new SmtpStub();
+        smtp.start();
+
+        Mockito.doReturn("localhost").when(notificationSettings).getMailServerHost();
+        Mockito.doReturn(smtp.getPort()).when(notificationSettings).getMailServerPort();
+        Mockito.doReturn(2).when(notificationSettings).getMailPoolSize();
+        Mockito.doReturn(2).when(notificationSettings).getMailQueueThreads();
+        Mockito.doReturn(100).when(notificationSettings).getMailQueueCapacity();
+        Mockito.doReturn(10).when(notificationSettings).getMailQueueBatchSize();
+        Mockito.doReturn(3).when(notificationSettings).getMailQueueMaxAttempts();
+        Mockito.doReturn(10l).when(notificationSettings).getMailQueueRetryDelayMillis();
+        Mockito.doReturn(100l).when(notificationSettings).getMailQueueOfferTimeoutMillis();
+        Mockito.doReturn(5000l).when(notificationSettings).getMailQueueShutdownTimeoutMillis();
+
+        recipients = Collections.singletonList(new User.Builder()
+                .userId("testuser")
+                .displayName("Jack Tester")
+                .emailAddress("jack@testing.org")
+                .build());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        dispatcher.destroy();
+        smtp.stop();
+    }
+
+    @Test
+    public void verifyConnectionReused() throws Exception {
+        dispatcher.init();
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "Message " + i, "Some text"));
+        }
+        Assert.assertEquals(3, smtp.getMessages().size());
+        Assert.assertEquals(1, smtp.getConnections());
+        Assert.assertTrue(smtp.getMessages().get(2).contains("Subject: Message 2"));
+    }
+
+    @Test
+    public void verifyReconnectAfterServerHangsUp() throws Exception {
+        smtp.setCloseAfterEachMessage(true);
+        dispatcher.init();
+
+        Assert.assertTrue(dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "First", "Some text"));
+        Assert.assertTrue(dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "Second", "Some text"));
+        Assert.assertEquals(2, smtp.getMessages().size());
+        Assert.assertEquals(2, smtp.getConnections());
+    }
+
+    @Test
+    public void verifyNoRecipients() throws Exception {
+        dispatcher.init();
+
+        List<User> noEmail = Collections.singletonList(new User.Builder().userId("nobody").build());
+        Assert.assertFalse(dispatcher.dispatch("sender@testing.org", "Sender", noEmail, null, "Nothing", "Some text"));
+        Assert.assertEquals(0, smtp.getConnections());
+    }
+
+    @Test
+    public void verifyQueuedMessagesSentInBackground() throws Exception {
+        Mockito.doReturn(Boolean.TRUE).when(notificationSettings).isMailQueueEnabled();
+        dispatcher.init();
+
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "Message " + i, "Some text"));
+        }
+        Assert.assertTrue(smtp.waitForMessages(25, 10000));
+        Assert.assertTrue(smtp.getConnections() <= 2);
+    }
+
+    @Test
+    public void verifyQueueDrainedOnShutdown() throws Exception {
+        Mockito.doReturn(Boolean.TRUE).when(notificationSettings).isMailQueueEnabled();
+        dispatcher.init();
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "Message " + i, "Some text");
+        }
+        dispatcher.destroy();
+        Assert.assertEquals(10, smtp.getMessages().size());
+        Assert.assertFalse(dispatcher.dispatch("sender@testing.org", "Sender", recipients, null, "Too late", "Some text"));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.notification.concrete;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough of an SMTP server, in process, to accept messages and count the connections
+ * they arrived on.
+ *
+ * @author James Renfro
+ */
+public class SmtpStub {
+
+    private final ServerSocket serverSocket;
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closeAfterEachMessage;
+    private volatile boolean running;
+
+    public SmtpStub() throws IOException {
+        this.serverSocket = new ServerSocket(0);
+    }
+
+    public void start() {
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread session = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                converse(socket);
+                            }
+                        });
+                        session.setDaemon(true);
+                        session.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public List<String> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<String>(messages);
+        }
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public void setCloseAfterEachMessage(boolean closeAfterEachMessage) {
+        this.closeAfterEachMessage = closeAfterEachMessage;
+    }
+
+    public boolean waitForMessages(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (messages.size() < count) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private void converse(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+            reply(writer, "220 localhost stub");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("DATA")) {
+                    reply(writer, "354 go ahead");
+                    StringBuilder message = new StringBuilder();
+                    while ((line = reader.readLine()) != null && !line.equals(".")) {
+                        message.append(line).append("\r\n");
+                    }
+                    messages.add(message.toString());
+                    reply(writer, "250 accepted");
+                    if (closeAfterEachMessage)
+                        break;
+                } else if (command.startsWith("QUIT")) {
+                    reply(writer, "221 bye");
+                    break;
+                } else {
+                    reply(writer, "250 ok");
+                }
+            }
+        } catch (SocketException e) {
+            // The client hung up
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private static void reply(Writer writer, String line) throws IOException {
+        writer.write(line + "\r\n");
+        writer.flush();
+    }
+
+}
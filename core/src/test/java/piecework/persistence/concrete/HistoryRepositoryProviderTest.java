@@ -19,25 +19,35 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.cache.support.SimpleValueWrapper;
+import piecework.common.CloseableIterator;
 import piecework.common.ViewContext;
 import piecework.content.ContentResource;
 import piecework.engine.ProcessEngineFacade;
+import piecework.enumeration.CacheName;
 import piecework.enumeration.OperationType;
 import piecework.exception.NotFoundError;
+import piecework.manager.StorageManager;
 import piecework.model.*;
 import piecework.model.Process;
 import piecework.persistence.HistoryProvider;
 import piecework.persistence.ProcessProvider;
 import piecework.repository.*;
+import piecework.service.CacheService;
 import piecework.service.IdentityService;
 import piecework.test.ProcessFactory;
 
-import java.util.Date;
-import java.util.Set;
+import java.util.*;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 
 /**
@@ -70,12 +80,18 @@ public class HistoryRepositoryProviderTest {
     @Mock
     DeploymentRepository deploymentRepository;
 
+    @Mock
+    CacheService cacheService;
+
     @Mock
     IdentityService identityService;
 
     @Mock
     Entity principal;
 
+    @InjectMocks
+    StorageManager storageManager;
+
     @Before
     public void setup() {
         ProcessDeployment deployment = ProcessFactory.multistepProcessDeployment("1234");
@@ -92,6 +108,8 @@ public class HistoryRepositoryProviderTest {
                         .build())
                 .startTime(new Date(1393780082262l))
                 .endTime(new Date(1393780085262l))
+                .lastModifiedTime(new Date(1393780085262l))
+                .initiatorId("initiator")
                 .operation("99234", OperationType.SUSPENSION, "Because", new Date(), "testuser")
                 .build();
 
@@ -105,7 +123,7 @@ public class HistoryRepositoryProviderTest {
     @Test
     public void verifyHistory() throws Exception {
         ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
-        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, identityService, TEST_INSTANCE_ID);
+        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID);
 
         History history = historyProvider.history(ProcessFactory.viewContext());
         Assert.assertEquals("Some Test Process", history.getProcessDefinitionLabel());
@@ -118,10 +136,153 @@ public class HistoryRepositoryProviderTest {
         Assert.assertEquals(2, events.size());
     }
 
+    @Test
+    public void verifyHistoryIncludesStoredOperations() throws Exception {
+        final Iterator<Operation> stored = Arrays.asList(
+                new Operation("99234", OperationType.SUSPENSION, "Because", new Date(), "testuser"),
+                new Operation("99235", OperationType.ACTIVATION, "Resumed", new Date(), "testuser")).iterator();
+        final boolean[] closed = new boolean[1];
+        Mockito.doReturn(new CloseableIterator<Operation>() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Operation next() {
+                return stored.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }).when(processInstanceRepository).iterateOperations(eq(TEST_INSTANCE_ID), anyInt());
+
+        ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
+        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID);
+
+        History history = historyProvider.history(ProcessFactory.viewContext());
+
+        // The suspension is both embedded in the instance and stored on its own, so it's only counted once
+        Assert.assertEquals(3, history.getEvents().size());
+        Assert.assertTrue(closed[0]);
+    }
+
+    @Test
+    public void verifyUsersResolvedTogether() throws Exception {
+        ProcessInstance instance = new ProcessInstance.Builder()
+                .processInstanceId(TEST_INSTANCE_ID)
+                .processDefinitionKey(PROCESS_DEFINITION_KEY)
+                .initiatorId("initiator")
+                .operation("99236", OperationType.ASSIGNMENT, "assignee", new Date(), "testuser")
+                .operation("99237", OperationType.SUSPENSION, "Because", new Date(), "testuser")
+                .build();
+        Mockito.doReturn(instance)
+               .when(processInstanceRepository).findOne(eq(TEST_INSTANCE_ID));
+
+        Map<String, User> userMap = new HashMap<String, User>();
+        userMap.put("assignee", new User.Builder().userId("assignee").visibleId("assignee").displayName("Some Assignee").build());
+        Mockito.doReturn(userMap)
+               .when(identityService).findUsers(any(Set.class));
+
+        ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
+        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID);
+
+        History history = historyProvider.history(ProcessFactory.viewContext());
+
+        Mockito.verify(identityService, Mockito.times(1)).findUsers(eq(new HashSet<String>(Arrays.asList("initiator", "testuser", "assignee"))));
+        Mockito.verify(identityService, Mockito.never()).getUser(any(String.class));
+
+        Set<String> reasons = new HashSet<String>();
+        for (Event event : history.getEvents()) {
+            reasons.add(event.getOperation().getReason());
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("Some Assignee (assignee) ", "Because")), reasons);
+    }
+
+    @Test
+    public void verifyHistoryCachedUntilModified() throws Exception {
+        ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
+        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID);
+
+        History history = historyProvider.history(ProcessFactory.viewContext());
+
+        ArgumentCaptor<String> keyCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(cacheService).put(eq(CacheName.HISTORY), keyCaptor.capture(), eq(history));
+        Assert.assertTrue(keyCaptor.getValue().startsWith(TEST_INSTANCE_ID + ":1393780085262:"));
+
+        Mockito.doReturn(new SimpleValueWrapper(history))
+               .when(cacheService).get(eq(CacheName.HISTORY), eq(keyCaptor.getValue()));
+
+        HistoryProvider cachedHistoryProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID);
+        Assert.assertSame(history, cachedHistoryProvider.history(ProcessFactory.viewContext()));
+        Mockito.verify(identityService, Mockito.times(1)).findUsers(any(Set.class));
+    }
+
+    @Test
+    public void verifyHistoryRebuiltAfterInstanceStored() throws Exception {
+        final Map<String, History> cache = new HashMap<String, History>();
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                History cached = cache.get(invocation.getArguments()[1]);
+                return cached != null ? new SimpleValueWrapper(cached) : null;
+            }
+        }).when(cacheService).get(eq(CacheName.HISTORY), any(String.class));
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                cache.put(String.class.cast(invocation.getArguments()[1]), History.class.cast(invocation.getArguments()[2]));
+                return null;
+            }
+        }).when(cacheService).put(eq(CacheName.HISTORY), any(String.class), any(History.class));
+
+        final ProcessInstance[] stored = new ProcessInstance[] { processInstanceRepository.findOne(TEST_INSTANCE_ID) };
+        Mockito.doAnswer(new Answer<ProcessInstance>() {
+            @Override
+            public ProcessInstance answer(InvocationOnMock invocation) throws Throwable {
+                return stored[0];
+            }
+        }).when(processInstanceRepository).findOne(eq(TEST_INSTANCE_ID));
+        Mockito.doAnswer(new Answer<ProcessInstance>() {
+            @Override
+            public ProcessInstance answer(InvocationOnMock invocation) throws Throwable {
+                stored[0] = ProcessInstance.class.cast(invocation.getArguments()[0]);
+                return stored[0];
+            }
+        }).when(processInstanceRepository).save(any(ProcessInstance.class));
+
+        ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
+        History history = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID)
+                .history(ProcessFactory.viewContext());
+        Assert.assertEquals(2, history.getEvents().size());
+
+        // The way a sub task is added -- the whole instance is saved, rather than updated
+        storageManager.store(new ProcessInstance.Builder(stored[0])
+                .task(new Task.Builder()
+                        .taskInstanceId("23457")
+                        .assigneeId("testuser")
+                        .active()
+                        .build())
+                .build());
+
+        Assert.assertTrue(stored[0].getLastModifiedTime().getTime() > 1393780085262l);
+        History rebuilt = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, TEST_INSTANCE_ID)
+                .history(ProcessFactory.viewContext());
+        Assert.assertNotSame(history, rebuilt);
+        Assert.assertEquals(3, rebuilt.getEvents().size());
+    }
+
     @Test(expected = NotFoundError.class)
     public void verifyHistoryNullIfUnmatchedInstanceId() throws Exception {
         ProcessProvider processProvider = new ProcessRepositoryProvider(processRepository, PROCESS_DEFINITION_KEY, principal);
-        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, identityService, "000");
+        HistoryProvider historyProvider = new HistoryRepositoryProvider(processProvider, processInstanceRepository, facade, attachmentRepository, contentRepository, deploymentRepository, cacheService, identityService, "000");
 
         History history = historyProvider.history(ProcessFactory.viewContext());
         Assert.assertNull(history);
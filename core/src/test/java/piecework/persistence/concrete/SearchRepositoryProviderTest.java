@@ -22,14 +22,19 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.query.Query;
+import piecework.Constants;
 import piecework.authorization.AuthorizationRole;
+import piecework.common.CloseableIterator;
 import piecework.common.SearchCriteria;
 import piecework.content.ContentResource;
 import piecework.model.Entity;
 import piecework.model.Facet;
 import piecework.model.Process;
+import piecework.model.ProcessInstanceSummary;
 import piecework.model.SearchResponse;
 import piecework.model.SearchResults;
+import piecework.model.Task;
 import piecework.repository.*;
 import piecework.security.concrete.PassthroughSanitizer;
 import piecework.security.data.DataFilterService;
@@ -37,12 +42,16 @@ import piecework.service.CacheService;
 import piecework.service.IdentityService;
 import piecework.test.ProcessFactory;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 
 /**
@@ -152,4 +161,98 @@ public class SearchRepositoryProviderTest {
         Assert.assertEquals(0, response.getPageSize());
     }
 
+    @Test
+    public void verifyFormsPagesTasks() throws Exception {
+        Mockito.doReturn(Collections.singleton("TEST-1"))
+               .when(principal).getProcessDefinitionKeys(eq(AuthorizationRole.OVERSEER));
+        Mockito.doReturn(Collections.<String>emptySet())
+               .when(principal).getProcessDefinitionKeys(eq(AuthorizationRole.USER));
+
+        Process process = new Process.Builder()
+                .processDefinitionKey("TEST-1")
+                .processDefinitionLabel("A Test Example Process")
+                .build();
+
+        Mockito.doReturn(Collections.singletonList(process))
+                .when(processRepository).findAllBasic(any(Iterable.class));
+
+        ProcessInstanceSummary first = new ProcessInstanceSummary.Builder()
+                .processInstanceId("1")
+                .processDefinitionKey("TEST-1")
+                .task(new Task.Builder().taskInstanceId("1a").processDefinitionKey("TEST-1").taskStatus(Constants.TaskStatuses.OPEN).build())
+                .task(new Task.Builder().taskInstanceId("1b").processDefinitionKey("TEST-1").taskStatus(Constants.TaskStatuses.COMPLETE).build())
+                .build();
+        ProcessInstanceSummary second = new ProcessInstanceSummary.Builder()
+                .processInstanceId("2")
+                .processDefinitionKey("TEST-1")
+                .task(new Task.Builder().taskInstanceId("2a").processDefinitionKey("TEST-1").taskStatus(Constants.TaskStatuses.OPEN).build())
+                .build();
+
+        SummaryCursor cursor = new SummaryCursor(Arrays.asList(first, second).iterator());
+        Mockito.doReturn(cursor)
+                .when(processInstanceRepository).iterateSummariesByQuery(any(Query.class), any(Collection.class), eq(true), anyInt());
+
+        ProcessInstanceSummary projected = new ProcessInstanceSummary.Builder()
+                .processInstanceId("2")
+                .processDefinitionKey("TEST-1")
+                .processInstanceLabel("Second")
+                .build();
+
+        Mockito.doReturn(Collections.singletonList(projected))
+                .when(processInstanceRepository).findSummariesByQuery(any(Query.class), any(Collection.class), eq(false));
+
+        SearchCriteria criteria = new SearchCriteria.Builder()
+                .processDefinitionKey("TEST-1")
+                .processStatus(Constants.ProcessStatuses.OPEN)
+                .page(1)
+                .pageSize(1)
+                .build();
+
+        SearchResponse response = searchProvider.forms(criteria, ProcessFactory.viewContext(), false);
+        Assert.assertEquals(2, response.getTotal());
+        Assert.assertEquals(1, response.getPageNumber());
+        Assert.assertEquals(1, response.getPageSize());
+
+        List<Map<String, Object>> data = response.getData();
+        Assert.assertEquals(1, data.size());
+        Map<String, Object> item = data.get(0);
+        Assert.assertEquals("2a", item.get("taskId"));
+        Assert.assertEquals("Second", item.get("processInstanceLabel"));
+        Assert.assertEquals(Long.valueOf(2l), item.get("itemNumber"));
+
+        // Instances are streamed rather than all loaded at once, and the cursor is let go afterwards
+        Mockito.verify(processInstanceRepository, Mockito.never()).findSummariesByQuery(any(Query.class), any(Collection.class), eq(true));
+        Assert.assertTrue(cursor.closed);
+    }
+
+    static class SummaryCursor implements CloseableIterator<ProcessInstanceSummary> {
+
+        private final Iterator<ProcessInstanceSummary> iterator;
+        private boolean closed;
+
+        SummaryCursor(Iterator<ProcessInstanceSummary> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && iterator.hasNext();
+        }
+
+        @Override
+        public ProcessInstanceSummary next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
 }
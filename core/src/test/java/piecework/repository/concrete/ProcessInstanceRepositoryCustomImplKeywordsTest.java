@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.repository.concrete;
+
+import com.mongodb.DBObject;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import piecework.model.ProcessInstance;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProcessInstanceRepositoryCustomImplKeywordsTest {
+
+    @InjectMocks
+    ProcessInstanceRepositoryCustomImpl repository;
+
+    @Mock
+    MongoTemplate mongoOperations;
+
+    private ProcessInstance instance;
+
+    @Before
+    public void setup() {
+        repository.init();
+        instance = new ProcessInstance.Builder()
+                .processInstanceId("1234")
+                .processDefinitionKey("TEST")
+                .processInstanceLabel("Budget Request")
+                .build();
+    }
+
+    @Test
+    public void verifyUpdateKeywordsAddsToSet() {
+        Mockito.doReturn(Collections.singletonList(instance))
+               .when(mongoOperations).find(any(Query.class), eq(ProcessInstance.class));
+
+        Assert.assertEquals("1234", repository.updateKeywords(null, 10));
+
+        ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(mongoOperations).updateFirst(any(Query.class), captor.capture(), eq(ProcessInstance.class));
+        DBObject updateObject = captor.getValue().getUpdateObject();
+        Assert.assertNull(updateObject.get("$set"));
+        DBObject addToSet = (DBObject) updateObject.get("$addToSet");
+        Collection<?> keywords = (Collection<?>) ((DBObject) addToSet.get("keywords")).get("$each");
+        Assert.assertTrue(keywords.contains("budget"));
+        Assert.assertTrue(keywords.contains("request"));
+
+        Mockito.doReturn(Collections.emptyList())
+               .when(mongoOperations).find(any(Query.class), eq(ProcessInstance.class));
+        Assert.assertNull(repository.updateKeywords("1234", 10));
+    }
+
+}
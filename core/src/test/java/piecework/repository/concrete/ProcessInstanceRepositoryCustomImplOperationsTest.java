@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.repository.concrete;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import piecework.enumeration.OperationType;
+import piecework.model.Operation;
+import piecework.model.ProcessInstance;
+import piecework.model.ProcessInstanceOperation;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProcessInstanceRepositoryCustomImplOperationsTest {
+
+    @InjectMocks
+    ProcessInstanceRepositoryCustomImpl repository;
+
+    @Mock
+    MongoTemplate mongoOperations;
+
+    private ProcessInstance instance;
+
+    @Before
+    public void setup() {
+        repository.init();
+        instance = new ProcessInstance.Builder()
+                .processInstanceId("1234")
+                .processDefinitionKey("TEST")
+                .operation("3001", OperationType.SUSPENSION, "Because", new Date(1393780082262l), "testuser")
+                .operation(null, OperationType.ACTIVATION, "Resumed", new Date(1393780085262l), "testuser")
+                .build();
+    }
+
+    @Test
+    public void verifyUpdateStoresOperationSeparately() {
+        Mockito.doReturn(instance)
+               .when(mongoOperations).findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(ProcessInstance.class));
+
+        Operation operation = new Operation("3002", OperationType.ASSIGNMENT, "testuser", new Date(), "testuser");
+        repository.update("1234", operation, null, null, null, null);
+
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(mongoOperations).findAndModify(any(Query.class), updateCaptor.capture(), any(FindAndModifyOptions.class), eq(ProcessInstance.class));
+        Assert.assertNull(updateCaptor.getValue().getUpdateObject().get("$push"));
+
+        ArgumentCaptor<ProcessInstanceOperation> captor = ArgumentCaptor.forClass(ProcessInstanceOperation.class);
+        Mockito.verify(mongoOperations).insert(captor.capture());
+        Assert.assertEquals("3002", captor.getValue().getId());
+        Assert.assertEquals("1234", captor.getValue().getProcessInstanceId());
+    }
+
+    @Test
+    public void verifyUpdateOfMissingInstanceRemovesOperation() {
+        repository.update("1234", new Operation("3002", OperationType.ASSIGNMENT, "testuser", new Date(), "testuser"), null, null, null, null);
+        Mockito.verify(mongoOperations).insert(any(ProcessInstanceOperation.class));
+
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(mongoOperations).remove(captor.capture(), eq(ProcessInstanceOperation.class));
+        Assert.assertEquals("3002", captor.getValue().getQueryObject().get("_id"));
+    }
+
+    @Test
+    public void verifyMoveOperationsInBatches() {
+        Date date = new Date(1393780085262l);
+        BasicDBList operations = new BasicDBList();
+        operations.add(operation("3001", "SUSPENSION", "Because", new Date(1393780082262l)));
+        operations.add(operation(null, "ACTIVATION", "Resumed", date));
+        // Same type in the same millisecond as the one before, which still has to be kept apart from it
+        operations.add(operation(null, "ACTIVATION", "Resumed again", date));
+        DBObject stored = new BasicDBObject("_id", "1234").append("operations", operations);
+
+        DBCollection collection = Mockito.mock(DBCollection.class);
+        Mockito.doReturn("processInstance").when(mongoOperations).getCollectionName(ProcessInstance.class);
+        Mockito.doReturn(collection).when(mongoOperations).getCollection("processInstance");
+        MongoConverter converter = Mockito.mock(MongoConverter.class);
+        Mockito.doReturn(converter).when(mongoOperations).getConverter();
+        Mockito.doAnswer(new Answer<Operation>() {
+            @Override
+            public Operation answer(InvocationOnMock invocation) throws Throwable {
+                DBObject dbObject = DBObject.class.cast(invocation.getArguments()[1]);
+                return new Operation((String) dbObject.get("_id"), OperationType.valueOf((String) dbObject.get("type")),
+                        (String) dbObject.get("reason"), (Date) dbObject.get("date"), (String) dbObject.get("userId"));
+            }
+        }).when(converter).read(eq(Operation.class), any(DBObject.class));
+        Mockito.when(mongoOperations.find(any(Query.class), eq(DBObject.class), eq("processInstance")))
+               .thenReturn(Collections.singletonList(stored), Collections.<DBObject>emptyList());
+
+        Assert.assertEquals("1234", repository.moveOperations(null, 10));
+
+        ArgumentCaptor<ProcessInstanceOperation> captor = ArgumentCaptor.forClass(ProcessInstanceOperation.class);
+        Mockito.verify(mongoOperations, Mockito.times(3)).save(captor.capture());
+        List<ProcessInstanceOperation> saved = captor.getAllValues();
+        Assert.assertEquals("3001", saved.get(0).getId());
+        Assert.assertEquals("1234:1:1393780085262:ACTIVATION", saved.get(1).getId());
+        Assert.assertEquals("1234:2:1393780085262:ACTIVATION", saved.get(2).getId());
+        Assert.assertEquals("Resumed again", saved.get(2).toOperation().getReason());
+
+        // Only the operations that were read come out, so any added in the meantime stay put
+        ArgumentCaptor<DBObject> updateCaptor = ArgumentCaptor.forClass(DBObject.class);
+        Mockito.verify(collection).update(eq((DBObject) new BasicDBObject("_id", "1234")), updateCaptor.capture());
+        DBObject pullAll = DBObject.class.cast(updateCaptor.getValue().get("$pullAll"));
+        Assert.assertEquals(operations, pullAll.get("operations"));
+        Assert.assertNull(updateCaptor.getValue().get("$unset"));
+
+        Assert.assertNull(repository.moveOperations("1234", 10));
+    }
+
+    private static DBObject operation(String id, String type, String reason, Date date) {
+        BasicDBObject operation = new BasicDBObject();
+        if (id != null)
+            operation.append("_id", id);
+        return operation.append("type", type).append("reason", reason).append("date", date).append("userId", "testuser");
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.repository.concrete;
+
+import com.mongodb.DBObject;
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.model.ProcessInstance;
+import piecework.model.Task;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProcessInstanceRepositoryCustomImplTaskIdsTest {
+
+    @InjectMocks
+    ProcessInstanceRepositoryCustomImpl repository;
+
+    @Mock
+    MongoTemplate mongoOperations;
+
+    private ProcessInstance instance;
+
+    @Before
+    public void setup() {
+        repository.init();
+        instance = new ProcessInstance.Builder()
+                .processInstanceId("1234")
+                .processDefinitionKey("TEST")
+                .task(new Task.Builder().taskInstanceId("2001").build())
+                .task(new Task.Builder().taskInstanceId("2002").build())
+                .build();
+    }
+
+    @Test
+    public void verifyFindByTaskIdUsesIndexedField() {
+        Mockito.doReturn(instance)
+               .when(mongoOperations).findOne(any(Query.class), eq(ProcessInstance.class));
+
+        Assert.assertSame(instance, repository.findByTaskId("TEST", "2001"));
+
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(mongoOperations, Mockito.times(1)).findOne(captor.capture(), eq(ProcessInstance.class));
+        DBObject queryObject = captor.getValue().getQueryObject();
+        Assert.assertEquals("2001", queryObject.get("taskIds"));
+        Assert.assertEquals("TEST", queryObject.get("processDefinitionKey"));
+    }
+
+    @Test
+    public void verifyFindByTaskIdFallsBackAndMigrates() {
+        Mockito.when(mongoOperations.findOne(any(Query.class), eq(ProcessInstance.class)))
+               .thenReturn(null, instance);
+
+        Assert.assertSame(instance, repository.findByTaskId("TEST", "2001"));
+
+        ArgumentCaptor<Query> captor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(mongoOperations, Mockito.times(2)).findOne(captor.capture(), eq(ProcessInstance.class));
+        Assert.assertNotNull(captor.getAllValues().get(1).getQueryObject().get("tasks.2001"));
+
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(mongoOperations).updateFirst(any(Query.class), updateCaptor.capture(), eq(ProcessInstance.class));
+        String update = updateCaptor.getValue().getUpdateObject().toString();
+        Assert.assertTrue(update.contains("$addToSet"));
+        Assert.assertTrue(update.contains("2001"));
+        Assert.assertTrue(update.contains("2002"));
+    }
+
+    @Test
+    public void verifyFindByTaskIdWithoutFallback() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("task.index.fallback", "false");
+        repository.environment = environment;
+        repository.init();
+
+        Assert.assertNull(repository.findByTaskId("TEST", "2001"));
+        Mockito.verify(mongoOperations, Mockito.times(1)).findOne(any(Query.class), eq(ProcessInstance.class));
+    }
+
+    @Test
+    public void verifyUpdateTaskAddsTaskId() {
+        repository.update("1234", new Task.Builder().taskInstanceId("2003").build());
+
+        ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(mongoOperations).findAndModify(any(Query.class), captor.capture(), any(FindAndModifyOptions.class), eq(ProcessInstance.class));
+        DBObject addToSet = (DBObject) captor.getValue().getUpdateObject().get("$addToSet");
+        Assert.assertEquals("2003", addToSet.get("taskIds"));
+    }
+
+    @Test
+    public void verifyUpdateTaskIdsInBatches() {
+        Mockito.doReturn(Collections.singletonList(instance))
+               .when(mongoOperations).find(any(Query.class), eq(ProcessInstance.class));
+
+        Assert.assertEquals("1234", repository.updateTaskIds(null, 10));
+        Mockito.verify(mongoOperations).updateFirst(any(Query.class), any(Update.class), eq(ProcessInstance.class));
+
+        Mockito.doReturn(Collections.emptyList())
+               .when(mongoOperations).find(any(Query.class), eq(ProcessInstance.class));
+        Assert.assertNull(repository.updateTaskIds("1234", 10));
+    }
+
+    @Test
+    public void verifyBuiltInstanceHasTaskIds() {
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("2001", "2002")), instance.getTaskIds());
+    }
+
+}
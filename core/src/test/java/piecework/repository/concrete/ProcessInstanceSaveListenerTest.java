@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.repository.concrete;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.data.mongodb.core.MongoOperations;
+import piecework.enumeration.OperationType;
+import piecework.model.ProcessInstance;
+import piecework.model.ProcessInstanceOperation;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProcessInstanceSaveListenerTest {
+
+    @Mock
+    MongoOperations mongoOperations;
+
+    @Test
+    public void verifyOperationsAreMovedAndLeftOutOfDocument() {
+        ProcessInstance instance = new ProcessInstance.Builder()
+                .processInstanceId("1234")
+                .operation("3001", OperationType.SUSPENSION, "Because", new Date(1393780082262l), "testuser")
+                .operation(null, OperationType.ACTIVATION, "Resumed", new Date(1393780085262l), "testuser")
+                .build();
+        DBObject dbo = new BasicDBObject("_id", "1234").append("operations", new BasicDBList());
+
+        new ProcessInstanceSaveListener(mongoOperations).onBeforeSave(instance, dbo);
+
+        ArgumentCaptor<ProcessInstanceOperation> captor = ArgumentCaptor.forClass(ProcessInstanceOperation.class);
+        Mockito.verify(mongoOperations, Mockito.times(2)).save(captor.capture());
+        List<ProcessInstanceOperation> saved = captor.getAllValues();
+        Assert.assertEquals("3001", saved.get(0).getId());
+        Assert.assertEquals("1234:1:1393780085262:ACTIVATION", saved.get(1).getId());
+        Assert.assertFalse(dbo.containsField("operations"));
+    }
+
+    @Test
+    public void verifyInstanceWithoutOperationsIsLeftAlone() {
+        ProcessInstance instance = new ProcessInstance.Builder()
+                .processInstanceId("1234")
+                .build();
+        DBObject dbo = new BasicDBObject("_id", "1234").append("operations", new BasicDBList());
+
+        new ProcessInstanceSaveListener(mongoOperations).onBeforeSave(instance, dbo);
+
+        Mockito.verify(mongoOperations, Mockito.never()).save(any(ProcessInstanceOperation.class));
+        Assert.assertFalse(dbo.containsField("operations"));
+        Assert.assertEquals("1234", dbo.get("_id"));
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.security;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.exception.ServiceUnavailableError;
+import piecework.model.AccessEvent;
+import piecework.model.Process;
+import piecework.model.User;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+public class AccessEventWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockEnvironment environment;
+    private MongoOperations mongoOperations;
+    private AccessEventWriter writer;
+
+    @Before
+    public void setup() {
+        this.environment = new MockEnvironment();
+        environment.setProperty("access.audit.flush.millis", "50");
+        // Only replay when the test asks for it
+        environment.setProperty("access.audit.spool.replay.seconds", "3600");
+
+        this.mongoOperations = Mockito.mock(MongoOperations.class);
+        // Stands in for the mapping converter, which needs a real mongo behind it
+        MongoConverter converter = Mockito.mock(MongoConverter.class);
+        Mockito.doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                AccessEvent event = (AccessEvent) invocation.getArguments()[0];
+                DBObject document = (DBObject) invocation.getArguments()[1];
+                document.put("processDefinitionKey", event.getProcessDefinitionKey());
+                document.put("secretId", event.getSecretId());
+                document.put("entityId", event.getEntityId());
+                document.put("accessDate", event.getAccessDate());
+                return null;
+            }
+        }).when(converter).write(any(AccessEvent.class), any(DBObject.class));
+        Mockito.when(mongoOperations.getConverter()).thenReturn(converter);
+        Mockito.when(mongoOperations.getCollectionName(AccessEvent.class)).thenReturn("access.event");
+    }
+
+    @After
+    public void teardown() {
+        if (writer != null)
+            writer.destroy();
+    }
+
+    @Test
+    public void verifyEventsAreWrittenTogether() throws Exception {
+        writer();
+        writer.write(events(20));
+
+        ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(mongoOperations, Mockito.times(1)).insert(captor.capture(), eq(AccessEvent.class));
+        Assert.assertEquals(20, captor.getValue().size());
+        Assert.assertEquals(20, writer.getWritten());
+    }
+
+    @Test(expected = ServiceUnavailableError.class)
+    public void verifyFailureIsReportedWithoutSpool() throws Exception {
+        Mockito.doThrow(new RuntimeException("Mongo is down")).when(mongoOperations).insert(anyCollection(), eq(AccessEvent.class));
+        writer();
+        try {
+            writer.write(events(2));
+        } finally {
+            Assert.assertEquals(2, writer.getFailed());
+        }
+    }
+
+    @Test
+    public void verifyEventsAreSpooledAndReplayed() throws Exception {
+        File spool = new File(folder.getRoot(), "audit/access.spool");
+        environment.setProperty("access.audit.spool.file", spool.getAbsolutePath());
+        Mockito.doThrow(new RuntimeException("Mongo is down")).when(mongoOperations).insert(anyCollection(), eq(AccessEvent.class));
+        writer();
+
+        writer.write(events(3));
+        writer.write(events(2));
+        Assert.assertEquals(5, writer.getSpooled());
+        Assert.assertEquals(0, writer.getFailed());
+        // The background thread may already have tried (and failed) to replay it
+        Assert.assertTrue(spool.exists() || new File(spool.getPath() + ".replaying").exists());
+
+        // Mongo is back
+        DBCollection collection = Mockito.mock(DBCollection.class);
+        Mockito.when(mongoOperations.getCollection("access.event")).thenReturn(collection);
+        writer.replay();
+
+        ArgumentCaptor<DBObject> captor = ArgumentCaptor.forClass(DBObject.class);
+        Mockito.verify(collection, Mockito.times(5)).save(captor.capture());
+        for (DBObject document : captor.getAllValues()) {
+            Assert.assertNotNull(document.get("_id"));
+            Assert.assertEquals("TEST", document.get("processDefinitionKey"));
+            Assert.assertEquals("testuser", document.get("entityId"));
+            Assert.assertTrue(document.get("accessDate") instanceof Date);
+        }
+        Assert.assertEquals(5, writer.getReplayed());
+        Assert.assertFalse(spool.exists());
+        Assert.assertFalse(new File(spool.getPath() + ".replaying").exists());
+    }
+
+    @Test
+    public void verifyAsyncEventsAreWrittenInBackground() throws Exception {
+        environment.setProperty("access.audit.durability", "async");
+        writer();
+        writer.write(events(3));
+        writer.write(events(4));
+        writer.destroy();
+
+        Assert.assertEquals(7, writer.getWritten());
+        Mockito.verify(mongoOperations, Mockito.atMost(2)).insert(anyCollection(), eq(AccessEvent.class));
+        writer = null;
+    }
+
+    @Test
+    public void verifyAsyncFallsBackToWritingWhenQueueIsFull() throws Exception {
+        environment.setProperty("access.audit.durability", "ASYNC");
+        environment.setProperty("access.audit.queue.capacity", "1");
+        environment.setProperty("access.audit.batch.size", "1");
+        environment.setProperty("access.audit.flush.millis", "1000");
+        environment.setProperty("access.audit.offer.timeout.millis", "1");
+        Mockito.doThrow(new RuntimeException("Mongo is down")).when(mongoOperations).insert(anyCollection(), eq(AccessEvent.class));
+        writer();
+
+        // The background thread holds on to what it can't write, so the queue backs up and the caller hears about it
+        boolean rejected = false;
+        for (int i = 0; i < 10 && !rejected; i++) {
+            try {
+                writer.write(events(5));
+            } catch (ServiceUnavailableError e) {
+                rejected = true;
+            }
+        }
+        Assert.assertTrue(rejected);
+    }
+
+    private void writer() {
+        this.writer = new AccessEventWriter();
+        this.writer.environment = environment;
+        this.writer.mongoOperations = mongoOperations;
+        this.writer.init();
+    }
+
+    private static List<AccessEvent> events(int count) {
+        Process process = new Process.Builder()
+                .processDefinitionKey("TEST")
+                .build();
+        User principal = new User.Builder()
+                .userId("testuser")
+                .build();
+        List<AccessEvent> events = new ArrayList<AccessEvent>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new AccessEvent(process, null, "secret" + i, "field" + i, "testing", principal, false));
+        }
+        return events;
+    }
+
+}
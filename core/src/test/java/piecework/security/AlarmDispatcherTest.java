@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.security;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author James Renfro
+ */
+public class AlarmDispatcherTest {
+
+    @Test
+    public void verifyRepeatedAlarmsAreSuppressed() throws Exception {
+        AlarmDispatcher dispatcher = new AlarmDispatcher(60000l, 10);
+        final AtomicInteger sent = new AtomicInteger();
+        Runnable alarm = new Runnable() {
+            @Override
+            public void run() {
+                sent.incrementAndGet();
+            }
+        };
+
+        Assert.assertTrue(dispatcher.dispatch("access:rod", alarm));
+        Assert.assertFalse(dispatcher.dispatch("access:rod", alarm));
+        Assert.assertFalse(dispatcher.dispatch("access:rod", alarm));
+        Assert.assertTrue(dispatcher.dispatch("access:jane", alarm));
+        dispatcher.shutdown(5000l);
+
+        Assert.assertEquals(2, sent.get());
+        Assert.assertEquals(2, dispatcher.getSent());
+        Assert.assertEquals(2, dispatcher.getSuppressed());
+    }
+
+    @Test
+    public void verifyAlarmsAreDroppedWhenQueueIsFull() throws Exception {
+        AlarmDispatcher dispatcher = new AlarmDispatcher(0l, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(dispatcher.dispatch(null, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // One fits in the queue behind the slow one, the next doesn't
+        Assert.assertTrue(dispatcher.dispatch(null, nothing));
+        Assert.assertFalse(dispatcher.dispatch(null, nothing));
+        Assert.assertEquals(1, dispatcher.getDropped());
+
+        release.countDown();
+        dispatcher.shutdown(5000l);
+        Assert.assertEquals(2, dispatcher.getSent());
+    }
+
+    @Test
+    public void verifyDroppedAlarmIsNotSuppressedLater() throws Exception {
+        AlarmDispatcher dispatcher = new AlarmDispatcher(60000l, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Assert.assertTrue(dispatcher.dispatch("slow", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger sent = new AtomicInteger();
+        Runnable alarm = new Runnable() {
+            @Override
+            public void run() {
+                sent.incrementAndGet();
+            }
+        };
+        Assert.assertTrue(dispatcher.dispatch("filler", alarm));
+        Assert.assertFalse(dispatcher.dispatch("tamper", alarm));
+        Assert.assertEquals(1, dispatcher.getDropped());
+
+        release.countDown();
+        // Once there's room again the same alarm goes out rather than being treated as a repeat
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getQueued() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue(dispatcher.dispatch("tamper", alarm));
+        dispatcher.shutdown(5000l);
+        Assert.assertEquals(2, sent.get());
+        Assert.assertEquals(0, dispatcher.getSuppressed());
+    }
+
+}
@@ -16,6 +16,7 @@
 package piecework.security;
 
 import junit.framework.Assert;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import piecework.exception.MaxSizeExceededException;
 
@@ -30,7 +31,15 @@ public class MaxSizeInputStreamTest {
     @Test(expected = MaxSizeExceededException.class)
     public void verifyExceeds() throws Exception {
         InputStream input = new MaxSizeInputStream(new ByteArrayInputStream("This is a test".getBytes()), 2l);
-        input.read();
+        IOUtils.toByteArray(input);
+    }
+
+    @Test(expected = MaxSizeExceededException.class)
+    public void verifyExceedsOneByteAtATime() throws Exception {
+        InputStream input = new MaxSizeInputStream(new ByteArrayInputStream("This is a test".getBytes()), 2l);
+        for (int i = 0; i < 3; i++) {
+            input.read();
+        }
     }
 
     @Test
@@ -39,4 +48,14 @@ public class MaxSizeInputStreamTest {
         input.read();
     }
 
+    @Test
+    public void verifyExactlyMaxDoesNotExceed() throws Exception {
+        MaxSizeInputStream input = new MaxSizeInputStream(new ByteArrayInputStream("This is a test".getBytes()), 14l);
+        // Single byte reads used to count the value of the byte rather than one
+        while (input.read() != -1);
+        Assert.assertEquals(14l, input.getSize());
+        Assert.assertEquals(-1, input.read(new byte[10], 0, 10));
+        Assert.assertEquals(14l, input.getSize());
+    }
+
 }
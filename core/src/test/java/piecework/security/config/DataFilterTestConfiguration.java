@@ -23,6 +23,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.env.Environment;
 import piecework.repository.config.MockRepositoryConfiguration;
+import piecework.security.AccessEventWriter;
 import piecework.security.AccessTracker;
 import piecework.security.data.DataFilterService;
 import piecework.service.CacheService;
@@ -38,6 +39,11 @@ import piecework.settings.UserInterfaceSettings;
 @Import({EncryptionTestConfiguration.class, MockRepositoryConfiguration.class})
 public class DataFilterTestConfiguration {
 
+    @Bean
+    public AccessEventWriter accessEventWriter() {
+        return new AccessEventWriter();
+    }
+
     @Bean
     public AccessTracker accessTracker() {
         return new AccessTracker();
@@ -19,7 +19,9 @@ import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -33,16 +35,17 @@ import piecework.model.User;
 import piecework.model.Value;
 import piecework.persistence.ProcessInstanceProvider;
 import piecework.persistence.test.ProcessInstanceProviderStub;
-import piecework.repository.AccessEventRepository;
 import piecework.security.EncryptionService;
 import piecework.security.config.DataFilterTestConfiguration;
 
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
-import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -60,7 +63,7 @@ public class DataFilterServiceTest {
     EncryptionService encryptionService;
 
     @Autowired
-    AccessEventRepository mockAccessEventRepository;
+    MongoOperations mockMongoOperations;
 
     @Test
     public void applicationContext() {
@@ -69,7 +72,7 @@ public class DataFilterServiceTest {
 
     @Test
     public void allInstanceDataDecryptedNoRestricted() throws PieceworkException {
-        reset(mockAccessEventRepository);
+        reset(mockMongoOperations);
         ManyMap<String, Value> original = new ManyMap<String, Value>();
         original.putOne("test-key-1", new User.Builder()
             .userId("test-value-1")
@@ -93,12 +96,12 @@ public class DataFilterServiceTest {
         Map<String, List<Value>> data = dataFilterService.allInstanceDataDecrypted(instanceProvider, "testing");
         Assert.assertEquals(original, data);
         Assert.assertEquals(3, data.size());
-        verify(mockAccessEventRepository, never()).save(any(AccessEvent.class));
+        verify(mockMongoOperations, never()).insert(anyCollection(), eq(AccessEvent.class));
     }
 
     @Test
     public void allInstanceDataDecryptedOneRestricted() throws Exception {
-        reset(mockAccessEventRepository);
+        reset(mockMongoOperations);
         ManyMap<String, Value> original = new ManyMap<String, Value>();
         original.putOne("test-key-1", new User.Builder()
                 .userId("test-value-1")
@@ -122,7 +125,9 @@ public class DataFilterServiceTest {
         Map<String, List<Value>> data = dataFilterService.allInstanceDataDecrypted(instanceProvider, "testing");
         Assert.assertEquals(3, data.size());
         Assert.assertEquals("test-value-3", data.get("test-key-3").iterator().next().toString());
-        verify(mockAccessEventRepository, times(1)).save(any(AccessEvent.class));
+        ArgumentCaptor<Collection> accessEvents = ArgumentCaptor.forClass(Collection.class);
+        verify(mockMongoOperations, times(1)).insert(accessEvents.capture(), eq(AccessEvent.class));
+        Assert.assertEquals(1, accessEvents.getValue().size());
     }
 
 
@@ -20,15 +20,17 @@ import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import piecework.exception.PieceworkException;
 import piecework.model.*;
 import piecework.model.Process;
 import piecework.persistence.TaskProvider;
 import piecework.persistence.test.TaskProviderStub;
-import piecework.repository.AccessEventRepository;
 import piecework.security.AccessTracker;
 import piecework.security.EncryptionService;
 import piecework.security.config.DataFilterTestConfiguration;
@@ -36,11 +38,13 @@ import piecework.security.config.DataFilterTestConfiguration;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -57,7 +61,7 @@ public class DecryptValuesFilterTest {
     AccessTracker accessTracker;
 
     @Autowired
-    AccessEventRepository mockAccessEventRepository;
+    MongoOperations mockMongoOperations;
 
     @Autowired
     EncryptionService encryptionService;
@@ -102,8 +106,8 @@ public class DecryptValuesFilterTest {
     }
 
     @Test
-    public void filterUnrestrictedValues() {
-        reset(mockAccessEventRepository);
+    public void filterUnrestrictedValues() throws PieceworkException {
+        reset(mockMongoOperations);
         List<Value> original = new ArrayList<Value>();
         original.add(new Value("test-value-1"));
         original.add(new Value("test-value-2"));
@@ -114,12 +118,13 @@ public class DecryptValuesFilterTest {
         Assert.assertEquals("test-value-1", iterator.next().toString());
         Assert.assertEquals("test-value-2", iterator.next().toString());
 
-        verify(mockAccessEventRepository, never()).save(any(AccessEvent.class));
+        filter.flush();
+        verify(mockMongoOperations, never()).insert(anyCollection(), eq(AccessEvent.class));
     }
 
     @Test
-    public void filterOneRestrictedOneUnrestrictedValues() throws UnsupportedEncodingException, GeneralSecurityException, InvalidCipherTextException {
-        reset(mockAccessEventRepository);
+    public void filterOneRestrictedOneUnrestrictedValues() throws UnsupportedEncodingException, GeneralSecurityException, InvalidCipherTextException, PieceworkException {
+        reset(mockMongoOperations);
 
         List<Value> original = new ArrayList<Value>();
         original.add(new Value("test-value-1"));
@@ -131,12 +136,17 @@ public class DecryptValuesFilterTest {
         Assert.assertEquals("test-value-1", iterator.next().toString());
         Assert.assertEquals("test-value-2", iterator.next().toString());
 
-        verify(mockAccessEventRepository, times(1)).save(any(AccessEvent.class));
+        // Nothing is recorded until the filter is flushed, and then all of it at once
+        verify(mockMongoOperations, never()).insert(anyCollection(), eq(AccessEvent.class));
+        filter.flush();
+        ArgumentCaptor<Collection> accessEvents = ArgumentCaptor.forClass(Collection.class);
+        verify(mockMongoOperations, times(1)).insert(accessEvents.capture(), eq(AccessEvent.class));
+        Assert.assertEquals(1, accessEvents.getValue().size());
     }
 
     @Test
-    public void filterMultipleRestrictedDifferentLengths() throws UnsupportedEncodingException, GeneralSecurityException, InvalidCipherTextException {
-        reset(mockAccessEventRepository);
+    public void filterMultipleRestrictedDifferentLengths() throws UnsupportedEncodingException, GeneralSecurityException, InvalidCipherTextException, PieceworkException {
+        reset(mockMongoOperations);
 
         List<Value> original = new ArrayList<Value>();
         original.add(encryptionService.encrypt("test-val-1"));
@@ -150,7 +160,12 @@ public class DecryptValuesFilterTest {
         Assert.assertEquals("test-value-2", iterator.next().toString());
         Assert.assertEquals("tv3", iterator.next().toString());
 
-        verify(mockAccessEventRepository, times(3)).save(any(AccessEvent.class));
+        // Nothing is recorded until the filter is flushed, and then all of it at once
+        verify(mockMongoOperations, never()).insert(anyCollection(), eq(AccessEvent.class));
+        filter.flush();
+        ArgumentCaptor<Collection> accessEvents = ArgumentCaptor.forClass(Collection.class);
+        verify(mockMongoOperations, times(1)).insert(accessEvents.capture(), eq(AccessEvent.class));
+        Assert.assertEquals(3, accessEvents.getValue().size());
     }
 
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.env.Environment;
+import piecework.repository.ProcessInstanceRepository;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BatchBackfillTest {
+
+    @InjectMocks
+    KeywordIndexService keywordIndexService;
+
+    @Mock
+    BackfillScheduler backfillScheduler;
+
+    @Mock
+    Environment environment;
+
+    @Mock
+    ProcessInstanceRepository processInstanceRepository;
+
+    @Before
+    public void setup() {
+        Mockito.doReturn(Boolean.TRUE)
+               .when(environment).getProperty("search.keywords.backfill", Boolean.class, Boolean.FALSE);
+        Mockito.doReturn(Integer.valueOf(2))
+               .when(environment).getProperty("search.keywords.backfill.batch.size", Integer.class, 500);
+    }
+
+    @Test
+    public void verifyBatchesPickUpWhereLastOneStopped() {
+        Mockito.when(processInstanceRepository.updateKeywords((String) isNull(), eq(2))).thenReturn("1002");
+        Mockito.when(processInstanceRepository.updateKeywords(eq("1002"), eq(2))).thenReturn("1004");
+        Mockito.when(processInstanceRepository.updateKeywords(eq("1004"), eq(2))).thenReturn(null);
+
+        keywordIndexService.init();
+        Mockito.verify(backfillScheduler).schedule(keywordIndexService);
+
+        keywordIndexService.backfill();
+        keywordIndexService.backfill();
+        Assert.assertEquals("1004", keywordIndexService.getLastProcessInstanceId());
+        Assert.assertFalse(keywordIndexService.isComplete());
+
+        keywordIndexService.backfill();
+        Assert.assertTrue(keywordIndexService.isComplete());
+
+        keywordIndexService.backfill();
+        Mockito.verify(processInstanceRepository, Mockito.times(3)).updateKeywords(Mockito.anyString(), anyInt());
+    }
+
+    @Test
+    public void verifyNothingRunsWhenTurnedOff() {
+        Mockito.doReturn(Boolean.FALSE)
+               .when(environment).getProperty("search.keywords.backfill", Boolean.class, Boolean.FALSE);
+
+        keywordIndexService.init();
+        keywordIndexService.backfill();
+
+        Mockito.verifyZeroInteractions(backfillScheduler, processInstanceRepository);
+        Assert.assertFalse(keywordIndexService.isComplete());
+    }
+
+    @Test
+    public void verifySchedulerRunsBatchesOnItsOwnThreadUntilComplete() throws Exception {
+        final String caller = Thread.currentThread().getName();
+        final String[] threads = new String[1];
+        BatchBackfill backfill = new BatchBackfill("Test backfill", "test.backfill") {
+            private int batches;
+
+            @Override
+            protected String backfill(String afterProcessInstanceId, int batchSize) {
+                threads[0] = Thread.currentThread().getName();
+                if (++batches == 1)
+                    throw new RuntimeException("First batch fails");
+                return null;
+            }
+        };
+        backfill.environment = environment;
+        Mockito.doReturn(Boolean.TRUE)
+               .when(environment).getProperty("test.backfill", Boolean.class, Boolean.FALSE);
+        Mockito.doReturn(Integer.valueOf(10))
+               .when(environment).getProperty("test.backfill.batch.size", Integer.class, 500);
+
+        BackfillScheduler scheduler = new BackfillScheduler();
+        scheduler.init();
+        try {
+            backfill.backfillScheduler = scheduler;
+            backfill.init();
+            long stop = System.currentTimeMillis() + 20000l;
+            while (!backfill.isComplete() && System.currentTimeMillis() < stop)
+                Thread.sleep(100l);
+        } finally {
+            scheduler.destroy();
+        }
+
+        Assert.assertTrue(backfill.isComplete());
+        Assert.assertEquals("batch-backfill", threads[0]);
+        Assert.assertFalse(caller.equals(threads[0]));
+    }
+
+}
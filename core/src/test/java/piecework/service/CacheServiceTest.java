@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import com.google.common.io.Files;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import junit.framework.Assert;
+import org.junit.*;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.cache.CacheStatistics;
+import piecework.enumeration.CacheName;
+import piecework.repository.concrete.EmbeddedMongoInstance;
+
+import java.util.Collections;
+
+/**
+ * The invalidation tests run two cache services, standing in for two nodes of a cluster,
+ * against the same embedded mongo, and are skipped when it can't be started.
+ *
+ * @author James Renfro
+ */
+public class CacheServiceTest {
+
+    private static final int PORT = 37027;
+    private static final String COLLECTION_NAME = "cache.invalidation.test";
+
+    private static EmbeddedMongoInstance mongoInstance;
+    private static MongoClient mongo;
+
+    private CacheService node1;
+    private CacheService node2;
+
+    @BeforeClass
+    public static void startMongo() throws Exception {
+        String storePath = Files.createTempDir().getAbsolutePath();
+        mongoInstance = new EmbeddedMongoInstance("127.0.0.1", PORT, "test", "", "", storePath);
+        try {
+            mongoInstance.startEmbeddedMongo();
+            mongo = new MongoClient(Collections.singletonList(new ServerAddress("127.0.0.1", PORT)));
+            mongo.getDB("test").command("ping").throwOnError();
+        } catch (Exception e) {
+            mongo = null;
+        }
+    }
+
+    @AfterClass
+    public static void stopMongo() {
+        if (mongo != null)
+            mongo.close();
+        if (mongoInstance != null)
+            mongoInstance.destroy();
+    }
+
+    @Before
+    public void setup() {
+        MongoTemplate mongoTemplate = null;
+        if (mongo != null) {
+            mongoTemplate = new MongoTemplate(mongo, "test");
+            mongoTemplate.dropCollection(COLLECTION_NAME);
+        }
+        this.node1 = node(mongoTemplate);
+        this.node2 = node(mongoTemplate);
+    }
+
+    @After
+    public void teardown() {
+        if (node1 != null)
+            node1.destroy();
+        if (node2 != null)
+            node2.destroy();
+    }
+
+    @Test
+    public void verifyStatistics() throws Exception {
+        Assert.assertNull(node1.get(CacheName.PROCESS, "demo"));
+        node1.put(CacheName.PROCESS, "demo", "value");
+        Assert.assertNotNull(node1.get(CacheName.PROCESS, "demo"));
+        Assert.assertNotNull(node1.get(CacheName.PROCESS, "demo"));
+        node1.evict(CacheName.PROCESS, "demo");
+
+        CacheStatistics statistics = node1.getStatistics(CacheName.PROCESS);
+        Assert.assertEquals("PROCESS", statistics.getCacheName());
+        Assert.assertEquals(2, statistics.getHits());
+        Assert.assertEquals(1, statistics.getMisses());
+        Assert.assertEquals(1, statistics.getPuts());
+        Assert.assertEquals(1, statistics.getLoads());
+        Assert.assertEquals(1, statistics.getEvictions());
+        Assert.assertEquals(2d / 3d, statistics.getHitRatio(), 0.0001d);
+
+        // Counters are kept separately for each cache
+        Assert.assertEquals(0, node1.getStatistics(CacheName.SCRIPT).getHits());
+        Assert.assertEquals(CacheName.values().length, node1.getStatistics().size());
+    }
+
+    @Test
+    public void verifyEvictionReachesOtherNode() throws Exception {
+        Assume.assumeNotNull(mongo);
+        node1.put(CacheName.PROCESS, "demo", "value1");
+        node2.put(CacheName.PROCESS, "demo", "value2");
+
+        node1.evict(CacheName.PROCESS, "demo");
+        node1.evict(CacheName.PROCESS, "demo");
+        node1.publish();
+
+        Assert.assertNull(node1.get(CacheName.PROCESS, "demo"));
+        Assert.assertTrue(waitForEviction(node2, CacheName.PROCESS, "demo"));
+
+        // Both evictions of the same key go out as a single event
+        Assert.assertEquals(1, node1.getInvalidationBus().getPublishedEvents());
+        Assert.assertEquals(1, node1.getInvalidationBus().getPublishedKeys());
+        Assert.assertEquals(1, node2.getInvalidationBus().getConsumedEvents());
+        Assert.assertEquals(0, node1.getInvalidationBus().getConsumedEvents());
+        Assert.assertTrue(node2.getInvalidationBus().getMaxLagMillis() >= node2.getInvalidationBus().getLastLagMillis());
+    }
+
+    @Test
+    public void verifyUpdateReplacesLocalAndEvictsOtherNode() throws Exception {
+        Assume.assumeNotNull(mongo);
+        node1.put(CacheName.PROCESS_DEPLOYMENT, "1", "original");
+        node2.put(CacheName.PROCESS_DEPLOYMENT, "1", "original");
+
+        node1.update(CacheName.PROCESS_DEPLOYMENT, "1", "updated");
+        node1.publish();
+
+        Assert.assertEquals("updated", node1.get(CacheName.PROCESS_DEPLOYMENT, "1").get());
+        Assert.assertTrue(waitForEviction(node2, CacheName.PROCESS_DEPLOYMENT, "1"));
+    }
+
+    @Test
+    public void verifyPutAndLocalCachesAreNotPublished() throws Exception {
+        Assume.assumeNotNull(mongo);
+        node1.put(CacheName.PROCESS, "demo", "value1");
+        node1.evict(CacheName.SCRIPT, "form.js");
+        node1.publish();
+
+        Assert.assertEquals(0, node1.getInvalidationBus().getPublishedEvents());
+    }
+
+    private static CacheService node(MongoTemplate mongoTemplate) {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("cache.invalidation.enabled", String.valueOf(mongoTemplate != null));
+        environment.setProperty("cache.invalidation.collection", COLLECTION_NAME);
+        environment.setProperty("cache.invalidation.collection.size", "1048576");
+
+        CacheService cacheService = new CacheService();
+        cacheService.cacheManager = new ConcurrentMapCacheManager();
+        cacheService.environment = environment;
+        cacheService.mongoOperations = mongoTemplate;
+        cacheService.init();
+        if (mongoTemplate != null)
+            Assert.assertNotNull(cacheService.getInvalidationBus());
+        return cacheService;
+    }
+
+    private static boolean waitForEviction(CacheService cacheService, CacheName cacheName, String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            if (cacheService.get(cacheName, key) == null)
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+}
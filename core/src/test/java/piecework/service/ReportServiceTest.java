@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.service;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mock.env.MockEnvironment;
+import piecework.Constants;
+import piecework.engine.StateChangeEvent;
+import piecework.enumeration.StateChangeType;
+import piecework.model.*;
+import piecework.model.Process;
+import piecework.persistence.test.ProcessInstanceProviderStub;
+import piecework.persistence.test.ProcessProviderStub;
+
+import java.util.*;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+
+/**
+ * @author James Renfro
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ReportServiceTest {
+
+    @Mock
+    MongoOperations operations;
+
+    private ReportService reportService;
+    private Process process;
+
+    @Before
+    public void setup() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setProperty("report.months", "2");
+        environment.setProperty("report.counters.backfill", "true");
+        environment.setProperty("report.counters.backfill.batch.size", "2");
+
+        this.reportService = new ReportService();
+        this.reportService.operations = operations;
+        this.reportService.environment = environment;
+        this.reportService.cutoffDelayMillis = 0;
+        this.reportService.init();
+        Mockito.when(operations.indexOps(anyString())).thenReturn(Mockito.mock(IndexOperations.class));
+
+        this.process = new Process.Builder()
+                .processDefinitionKey("TEST")
+                .build();
+    }
+
+    @Test
+    public void verifyListensToEveryProcess() {
+        Assert.assertNull(reportService.getProcessDefinitionKey());
+    }
+
+    @Test
+    public void verifyStartIncrementsCounter() throws Exception {
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.START_PROCESS)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .processInstanceId("123")
+                .build());
+
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(operations).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+        String id = ReportCounter.id("TEST", ReportCounter.STATUS, ReportService.month(new Date()), Constants.ProcessStatuses.OPEN);
+        Assert.assertEquals(id, queryCaptor.getValue().getQueryObject().get("_id"));
+        Assert.assertTrue(updateCaptor.getValue().getUpdateObject().toString().contains("$inc"));
+    }
+
+    @Test
+    public void verifyTaskCompletionCountedByDefinition() throws Exception {
+        Task task = new Task.Builder()
+                .taskInstanceId("1")
+                .taskDefinitionKey("approve")
+                .endTime(date(2013, 11, 15))
+                .build();
+
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.CREATE_TASK)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .task(task)
+                .build());
+        Mockito.verify(operations, Mockito.never()).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), anyString());
+
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_TASK)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .task(task)
+                .build());
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(operations).upsert(queryCaptor.capture(), any(Update.class), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+        Assert.assertEquals("TEST:task:2013-11:approve", queryCaptor.getValue().getQueryObject().get("_id"));
+    }
+
+    @Test
+    public void verifyReportFromCounters() throws Exception {
+        List<String> months = ReportService.months(new Date(), 2);
+        ReportCounter started = new ReportCounter("TEST", ReportCounter.STATUS, months.get(1), Constants.ProcessStatuses.OPEN);
+        started.increment(7);
+        ReportCounter completed = new ReportCounter("TEST", ReportCounter.STATUS, months.get(1), Constants.ProcessStatuses.COMPLETE);
+        completed.increment(3);
+        Mockito.doReturn(Arrays.asList(started, completed))
+               .when(operations).find(any(Query.class), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+
+        Report report = reportService.getReport(new ProcessProviderStub(process, null), "status");
+        Assert.assertEquals(Arrays.asList("Started", "Completed", "Cancelled"), report.getData().getLabels());
+        List<ChartDataset> datasets = report.getData().getDatasets();
+        Assert.assertEquals(2, datasets.size());
+        Assert.assertEquals(Arrays.asList(0, 0, 0), datasets.get(0).getData());
+        Assert.assertEquals(Arrays.asList(7, 3, 0), datasets.get(1).getData());
+    }
+
+    @Test
+    public void verifyReportFromRebuiltCountersOnceComplete() throws Exception {
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(stored).getCutoff();
+        Mockito.doReturn("report.counter.1").when(stored).getCounterCollection();
+        Mockito.doReturn(Boolean.TRUE).when(stored).isComplete();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+        List<String> months = ReportService.months(new Date(), 2);
+        ReportCounter started = new ReportCounter("TEST", ReportCounter.STATUS, months.get(1), Constants.ProcessStatuses.OPEN);
+        started.increment(4);
+        Mockito.doReturn(Collections.singletonList(started))
+               .when(operations).find(any(Query.class), eq(ReportCounter.class), eq("report.counter.1"));
+
+        Report report = reportService.getReport(new ProcessProviderStub(process, null), "status");
+        Assert.assertEquals(Arrays.asList(4, 0, 0), report.getData().getDatasets().get(1).getData());
+
+        // Events only go to the rebuilt counters from now on
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .processInstanceId("123")
+                .build());
+        Mockito.verify(operations).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq("report.counter.1"));
+        Mockito.verify(operations, Mockito.never()).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+    }
+
+    @Test
+    public void verifyMonths() {
+        Assert.assertEquals(Arrays.asList("2013-11", "2013-12", "2014-01"), ReportService.months(date(2014, 1, 31), 3));
+    }
+
+    @Test
+    public void verifyBackfillCountsInBatches() {
+        ProcessInstance completed = new ProcessInstance.Builder()
+                .processInstanceId("1")
+                .processDefinitionKey("TEST")
+                .processStatus(Constants.ProcessStatuses.COMPLETE)
+                .startTime(date(2013, 10, 1))
+                .endTime(date(2013, 11, 1))
+                .task(new Task.Builder()
+                        .taskInstanceId("1")
+                        .taskDefinitionKey("approve")
+                        .taskStatus(Constants.TaskStatuses.COMPLETE)
+                        .endTime(date(2013, 11, 1))
+                        .build())
+                .build();
+        ProcessInstance open = new ProcessInstance.Builder()
+                .processInstanceId("2")
+                .processDefinitionKey("TEST")
+                .processStatus(Constants.ProcessStatuses.OPEN)
+                .startTime(date(2013, 10, 2))
+                .build();
+        Mockito.when(operations.find(any(Query.class), eq(ProcessInstance.class)))
+               .thenReturn(Arrays.asList(completed, open), Collections.<ProcessInstance>emptyList());
+        ReportBackfill progressed = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(progressed).getCutoff();
+        Mockito.doReturn("2").when(progressed).getLastProcessInstanceId();
+        Mockito.doReturn("report.counter.1").when(progressed).getCounterCollection();
+        Mockito.when(operations.findById(ReportBackfill.ID, ReportBackfill.class)).thenReturn(null, progressed);
+        Mockito.when(operations.findAndModify(any(Query.class), any(Update.class), eq(ReportBackfill.class))).thenReturn(progressed);
+
+        reportService.backfill();
+        // Counted into a fresh collection, leaving the old counters to be read until it's done
+        ArgumentCaptor<ReportBackfill> insertCaptor = ArgumentCaptor.forClass(ReportBackfill.class);
+        Mockito.verify(operations).insert(insertCaptor.capture());
+        String collection = insertCaptor.getValue().getCounterCollection();
+        Assert.assertTrue(collection.startsWith(ReportBackfill.COUNTER_COLLECTION + "."));
+        Mockito.verify(operations).indexOps(collection);
+        Mockito.verify(operations, Mockito.never()).remove(any(Query.class), eq(ReportCounter.class));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(operations, Mockito.times(3)).upsert(queryCaptor.capture(), updateCaptor.capture(), eq(ReportCounter.class), eq(collection));
+        Map<Object, Object> countMap = new HashMap<Object, Object>();
+        for (int i = 0; i < 3; i++) {
+            Object id = queryCaptor.getAllValues().get(i).getQueryObject().get("_id");
+            Object inc = ((com.mongodb.DBObject)updateCaptor.getAllValues().get(i).getUpdateObject().get("$inc")).get("count");
+            countMap.put(id, inc);
+        }
+        Assert.assertEquals(2l, countMap.get("TEST:status:2013-10:open"));
+        Assert.assertEquals(1l, countMap.get("TEST:status:2013-11:complete"));
+        Assert.assertEquals(1l, countMap.get("TEST:task:2013-11:approve"));
+        Assert.assertFalse(reportService.isComplete());
+
+        // Each counter notes the batch it was counted for
+        Assert.assertEquals("2", ((com.mongodb.DBObject) updateCaptor.getAllValues().get(0).getUpdateObject().get("$set")).get("batchThrough"));
+
+        // The batch is claimed before it's counted, and where it got to is kept once it has been
+        ArgumentCaptor<Update> claimCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(operations).findAndModify(any(Query.class), claimCaptor.capture(), eq(ReportBackfill.class));
+        Assert.assertEquals("2", ((com.mongodb.DBObject) claimCaptor.getValue().getUpdateObject().get("$set")).get("batchThrough"));
+        ArgumentCaptor<Update> progressCaptor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(operations).updateFirst(any(Query.class), progressCaptor.capture(), eq(ReportBackfill.class));
+        Assert.assertEquals("2", ((com.mongodb.DBObject) progressCaptor.getValue().getUpdateObject().get("$set")).get("lastProcessInstanceId"));
+        Assert.assertTrue(((com.mongodb.DBObject) progressCaptor.getValue().getUpdateObject().get("$unset")).containsField("batchThrough"));
+
+        reportService.backfill();
+        Assert.assertTrue(reportService.isComplete());
+        reportService.backfill();
+        Mockito.verify(operations, Mockito.times(2)).find(any(Query.class), eq(ProcessInstance.class));
+        Mockito.verify(operations, Mockito.times(2)).findAndModify(any(Query.class), claimCaptor.capture(), eq(ReportBackfill.class));
+        Assert.assertEquals(Boolean.TRUE, ((com.mongodb.DBObject) claimCaptor.getValue().getUpdateObject().get("$set")).get("complete"));
+    }
+
+    @Test
+    public void verifyClaimedBatchIsCountedAgainWithinItsBounds() {
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(stored).getCutoff();
+        Mockito.doReturn("2").when(stored).getLastProcessInstanceId();
+        Mockito.doReturn("4").when(stored).getBatchThrough();
+        Mockito.doReturn("report.counter.1").when(stored).getCounterCollection();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+        ProcessInstance instance = new ProcessInstance.Builder()
+                .processInstanceId("3")
+                .processDefinitionKey("TEST")
+                .processStatus(Constants.ProcessStatuses.OPEN)
+                .startTime(date(2013, 10, 2))
+                .build();
+        Mockito.doReturn(Collections.singletonList(instance))
+               .when(operations).find(any(Query.class), eq(ProcessInstance.class));
+        Mockito.doThrow(new DuplicateKeyException("Counted already"))
+               .when(operations).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq("report.counter.1"));
+
+        reportService.backfill();
+
+        // Counted between the same bounds, without claiming anything new
+        ArgumentCaptor<Query> findCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(operations).find(findCaptor.capture(), eq(ProcessInstance.class));
+        com.mongodb.DBObject bounds = (com.mongodb.DBObject) findCaptor.getValue().getQueryObject().get("_id");
+        Assert.assertEquals("2", bounds.get("$gt"));
+        Assert.assertEquals("4", bounds.get("$lte"));
+        Mockito.verify(operations, Mockito.never()).findAndModify(any(Query.class), any(Update.class), eq(ReportBackfill.class));
+
+        // Only counters that haven't counted this batch yet are added to
+        ArgumentCaptor<Query> counterCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(operations).upsert(counterCaptor.capture(), any(Update.class), eq(ReportCounter.class), eq("report.counter.1"));
+        com.mongodb.DBObject batchThrough = (com.mongodb.DBObject) counterCaptor.getValue().getQueryObject().get("batchThrough");
+        Assert.assertEquals("4", ((com.mongodb.DBObject) batchThrough.get("$not")).get("$gte"));
+
+        ArgumentCaptor<Query> progressCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(operations).updateFirst(progressCaptor.capture(), any(Update.class), eq(ReportBackfill.class));
+        Assert.assertEquals("4", progressCaptor.getValue().getQueryObject().get("batchThrough"));
+        Assert.assertEquals("4", reportService.getLastProcessInstanceId());
+    }
+
+    @Test
+    public void verifyBatchClaimedElsewhereIsNotCounted() {
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(stored).getCutoff();
+        Mockito.doReturn("2").when(stored).getLastProcessInstanceId();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+        ProcessInstance instance = new ProcessInstance.Builder()
+                .processInstanceId("3")
+                .processDefinitionKey("TEST")
+                .processStatus(Constants.ProcessStatuses.OPEN)
+                .startTime(date(2013, 10, 2))
+                .build();
+        Mockito.doReturn(Collections.singletonList(instance))
+               .when(operations).find(any(Query.class), eq(ProcessInstance.class));
+
+        reportService.backfill();
+
+        Mockito.verify(operations).findAndModify(any(Query.class), any(Update.class), eq(ReportBackfill.class));
+        Mockito.verify(operations, Mockito.never()).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), anyString());
+        Mockito.verify(operations, Mockito.never()).updateFirst(any(Query.class), any(Update.class), eq(ReportBackfill.class));
+        Assert.assertFalse(reportService.isComplete());
+    }
+
+    @Test
+    public void verifyBackfillResumesWithoutStartingOver() {
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(stored).getCutoff();
+        Mockito.doReturn("5").when(stored).getLastProcessInstanceId();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+        Mockito.doReturn(Collections.<ProcessInstance>emptyList())
+               .when(operations).find(any(Query.class), eq(ProcessInstance.class));
+        Mockito.doReturn(stored).when(operations).findAndModify(any(Query.class), any(Update.class), eq(ReportBackfill.class));
+
+        reportService.backfill();
+
+        Mockito.verify(operations, Mockito.never()).remove(any(Query.class), eq(ReportCounter.class));
+        Mockito.verify(operations, Mockito.never()).insert(any(ReportBackfill.class));
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(operations).find(queryCaptor.capture(), eq(ProcessInstance.class));
+        Assert.assertEquals("5", ((com.mongodb.DBObject) queryCaptor.getValue().getQueryObject().get("_id")).get("$gt"));
+        Assert.assertTrue(reportService.isComplete());
+    }
+
+    @Test
+    public void verifyCompletedBackfillIsNotRepeated() {
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(date(2014, 1, 1)).when(stored).getCutoff();
+        Mockito.doReturn(Boolean.TRUE).when(stored).isComplete();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+
+        reportService.backfill();
+
+        Assert.assertTrue(reportService.isComplete());
+        Mockito.verify(operations, Mockito.never()).remove(any(Query.class), eq(ReportCounter.class));
+        Mockito.verify(operations, Mockito.never()).find(any(Query.class), eq(ProcessInstance.class));
+    }
+
+    @Test
+    public void verifyEventsFromBeforeCutoffAreLeftToBackfill() throws Exception {
+        Date cutoff = new Date();
+        ReportBackfill stored = Mockito.mock(ReportBackfill.class);
+        Mockito.doReturn(cutoff).when(stored).getCutoff();
+        Mockito.doReturn("report.counter.1").when(stored).getCounterCollection();
+        Mockito.doReturn(stored).when(operations).findById(ReportBackfill.ID, ReportBackfill.class);
+
+        // Raised just before the rebuild started, but only heard about afterwards
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .processInstanceId("123")
+                .date(new Date(cutoff.getTime() - 1000l))
+                .build());
+        Mockito.verify(operations).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+        Mockito.verify(operations, Mockito.never()).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq("report.counter.1"));
+
+        reportService.notify(new StateChangeEvent.Builder(StateChangeType.COMPLETE_PROCESS)
+                .instanceProvider(new ProcessInstanceProviderStub(process, null, null, null))
+                .processInstanceId("124")
+                .date(new Date(cutoff.getTime() + 1000l))
+                .build());
+        Mockito.verify(operations, Mockito.times(2)).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq(ReportBackfill.COUNTER_COLLECTION));
+        Mockito.verify(operations).upsert(any(Query.class), any(Update.class), eq(ReportCounter.class), eq("report.counter.1"));
+    }
+
+    @Test
+    public void verifyBackfillWaitsForCutoff() {
+        reportService.cutoffDelayMillis = 60000l;
+
+        reportService.backfill();
+
+        ArgumentCaptor<ReportBackfill> insertCaptor = ArgumentCaptor.forClass(ReportBackfill.class);
+        Mockito.verify(operations).insert(insertCaptor.capture());
+        Assert.assertTrue(insertCaptor.getValue().getCutoff().after(new Date()));
+        Mockito.verify(operations, Mockito.never()).find(any(Query.class), eq(ProcessInstance.class));
+        Mockito.verify(operations, Mockito.never()).findAndModify(any(Query.class), any(Update.class), eq(ReportBackfill.class));
+        Assert.assertFalse(reportService.isComplete());
+        Assert.assertNull(reportService.getLastProcessInstanceId());
+    }
+
+    private static Date date(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, 12, 0);
+        return calendar.getTime();
+    }
+
+}
@@ -19,16 +19,31 @@ import junit.framework.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.cache.support.SimpleValueWrapper;
+import piecework.content.ContentResource;
+import piecework.content.concrete.FileSystemContentProvider;
+import piecework.enumeration.CacheName;
+import piecework.enumeration.DataInjectionStrategy;
 import piecework.identity.IdentityHelper;
-import piecework.model.SearchResults;
+import piecework.model.*;
+import piecework.persistence.ProcessDeploymentProvider;
 import piecework.repository.ContentRepository;
 import piecework.settings.UserInterfaceSettings;
 import piecework.ui.CustomJaxbJsonProvider;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author James Renfro
@@ -57,6 +72,15 @@ public class UserInterfaceServiceTest {
     @Mock
     UserInterfaceSettings settings;
 
+    @Mock
+    FileSystemContentProvider fileSystemContentProvider;
+
+    @Mock
+    ContentResource contentResource;
+
+    @Mock
+    ProcessDeploymentProvider modelProvider;
+
     @Test
     public void verifySearchResultsHasPage() {
         Assert.assertTrue(userInterfaceService.hasPage(SearchResults.class));
@@ -67,4 +91,39 @@ public class UserInterfaceServiceTest {
         Assert.assertFalse(userInterfaceService.hasPage(BufferedInputStream.class));
     }
 
+    @Test
+    public void verifyRemoteFieldsAreParsedOnceAndCached() throws Exception {
+        ProcessDeployment deployment = new ProcessDeployment.Builder().remoteHost("http://localhost").build();
+        Container container = new Container.Builder().ordinal(1).build();
+        Action action = new Action(container, "/remote.html", DataInjectionStrategy.REMOTE);
+
+        when(modelProvider.contentProfile()).thenReturn(new ContentProfile.Builder().baseDirectory("remote").build());
+        when(modelProvider.deployment()).thenReturn(deployment);
+        when(fileSystemContentProvider.findByLocation(modelProvider, "file:remote.html")).thenReturn(contentResource);
+        when(contentResource.getLocation()).thenReturn("remote/remote.html");
+        when(contentResource.lastModified()).thenReturn(1000l);
+        when(contentResource.getInputStream()).thenReturn(new ByteArrayInputStream(("<html><body><form>" +
+                "<input type=\"text\" name=\"employeeName\" required>" +
+                "<textarea name=\"comments\"></textarea>" +
+                "</form></body></html>").getBytes()));
+
+        Set<Field> fields = userInterfaceService.getRemoteFields(modelProvider, action, container, container, null);
+        Assert.assertEquals(2, fields.size());
+
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(cacheService).put(eq(CacheName.REMOTE_FIELDS), eq("remote/remote.html::1000::1"), captor.capture());
+        Assert.assertSame(fields, captor.getValue());
+
+        when(cacheService.get(CacheName.REMOTE_FIELDS, "remote/remote.html::1000::1")).thenReturn(new SimpleValueWrapper(fields));
+        Assert.assertSame(fields, userInterfaceService.getRemoteFields(modelProvider, action, container, container, null));
+        verify(contentResource, times(1)).getInputStream();
+
+        // A page that changed on disk is parsed again under a new key
+        when(contentResource.lastModified()).thenReturn(2000l);
+        when(contentResource.getInputStream()).thenReturn(new ByteArrayInputStream("<html><body><input type=\"text\" name=\"other\"></body></html>".getBytes()));
+        Set<Field> changed = userInterfaceService.getRemoteFields(modelProvider, action, container, container, null);
+        Assert.assertEquals(1, changed.size());
+        verify(cacheService).put(eq(CacheName.REMOTE_FIELDS), eq("remote/remote.html::2000::1"), any());
+    }
+
 }
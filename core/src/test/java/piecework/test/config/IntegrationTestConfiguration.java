@@ -34,6 +34,7 @@ import piecework.identity.IdentityHelper;
 import piecework.persistence.ModelProviderFactory;
 import piecework.persistence.concrete.ModelRepositoryProviderFactory;
 import piecework.repository.config.MockRepositoryConfiguration;
+import piecework.security.AccessEventWriter;
 import piecework.security.AccessTracker;
 import piecework.security.Sanitizer;
 import piecework.security.data.UserInputSanitizer;
@@ -49,6 +50,11 @@ import java.net.URL;
 @ComponentScan(basePackages = {"piecework.command", "piecework.form", "piecework.manager", "piecework.resource", "piecework.service", "piecework.settings"})
 public class IntegrationTestConfiguration {
 
+    @Bean
+    public AccessEventWriter accessEventWriter() {
+        return new AccessEventWriter();
+    }
+
     @Bean
     public AccessTracker accessTracker() {
         return new AccessTracker();
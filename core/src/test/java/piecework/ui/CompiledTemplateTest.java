@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.ui;
+
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.SimpleHtmlSerializer;
+import org.htmlcleaner.TagNode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * @author James Renfro
+ */
+public class CompiledTemplateTest {
+
+    private static final String HTML = "<!DOCTYPE html><html><head><title>Example</title>" +
+            "<script src=\"js/example.js\"></script></head>" +
+            "<body class=\"example\"><!-- comment --><div id=\"main\">Some <b>bold</b> text</div></body></html>";
+
+    private CompiledTemplate template;
+
+    @Before
+    public void setup() throws Exception {
+        template = CompiledTemplate.compile("example", new ByteArrayInputStream(HTML.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void verifyCopySerializesLikeParsedTemplate() throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner(CompiledTemplate.cleanerProperties());
+        TagNode parsed = cleaner.clean(new ByteArrayInputStream(HTML.getBytes("UTF-8")));
+        String expected = new SimpleHtmlSerializer(cleaner.getProperties()).getAsString(parsed);
+
+        String actual = new SimpleHtmlSerializer(template.getProperties()).getAsString(template.copy());
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void verifyChangesToCopyDoNotReachTemplate() throws Exception {
+        SimpleHtmlSerializer serializer = new SimpleHtmlSerializer(template.getProperties());
+        String before = serializer.getAsString(template.copy());
+
+        TagNode copy = template.copy();
+        TagNode body = copy.findElementByName("body", true);
+        body.addAttribute("data-message", "Changed");
+        body.addChild(new TagNode("script"));
+        copy.findElementByName("script", true).removeFromTree();
+
+        Assert.assertFalse(before.equals(serializer.getAsString(copy)));
+        Assert.assertEquals(before, serializer.getAsString(template.copy()));
+    }
+
+}
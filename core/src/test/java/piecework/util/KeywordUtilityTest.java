@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * @author James Renfro
+ */
+public class KeywordUtilityTest {
+
+    @Test
+    public void verifyTokensSplitAndJoinPunctuation() {
+        Set<String> tokens = KeywordUtility.tokens("Budget 123-45-6789");
+        Assert.assertEquals(5, tokens.size());
+        Assert.assertTrue(tokens.contains("budget"));
+        Assert.assertTrue(tokens.contains("123456789"));
+        Assert.assertTrue(tokens.contains("123"));
+        Assert.assertTrue(tokens.contains("45"));
+        Assert.assertTrue(tokens.contains("6789"));
+    }
+
+    @Test
+    public void verifyTokensEmpty() {
+        Assert.assertTrue(KeywordUtility.tokens(null).isEmpty());
+        Assert.assertTrue(KeywordUtility.tokens("  -- ").isEmpty());
+    }
+
+    @Test
+    public void verifyPrefixPatterns() {
+        List<Pattern> patterns = KeywordUtility.prefixPatterns(Arrays.asList("John Smith", "33-4444", "  "));
+        Assert.assertEquals(3, patterns.size());
+        Assert.assertEquals("^john", patterns.get(0).pattern());
+        Assert.assertEquals("^smith", patterns.get(1).pattern());
+        Assert.assertEquals("^334444", patterns.get(2).pattern());
+    }
+
+    @Test
+    public void verifyPrefixRegexUsesFirstTerm() {
+        Assert.assertEquals("^johns", KeywordUtility.prefixRegex(" John's request"));
+        Assert.assertEquals("^john", KeywordUtility.prefixRegex("-- John"));
+    }
+
+    @Test
+    public void verifyPrefixRegexWithoutLettersOrDigits() {
+        Assert.assertNull(KeywordUtility.prefixRegex(" "));
+        Assert.assertNull(KeywordUtility.prefixRegex("!!!"));
+        Assert.assertNull(KeywordUtility.prefixRegex(" -- ?? "));
+        Assert.assertNull(KeywordUtility.prefixRegex(null));
+    }
+
+}
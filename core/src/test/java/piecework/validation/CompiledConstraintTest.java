@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.validation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import piecework.Constants;
+import piecework.common.ManyMap;
+import piecework.model.Constraint;
+import piecework.model.Field;
+import piecework.model.Value;
+import piecework.test.ExampleFactory;
+import piecework.util.ConstraintUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author James Renfro
+ */
+public class CompiledConstraintTest {
+
+    private static final String[] BUDGET_NUMBERS = { "100000", "100001", "200000" };
+    private static final String[] ACTION_TYPES = { "demote", "promote", "reprimand" };
+
+    @Test
+    public void testCompileNull() throws Exception {
+        Assert.assertNull(CompiledConstraint.compile(null));
+    }
+
+    @Test
+    public void testEvaluateDefaultValue() throws Exception {
+        Map<String, Field> fieldMap = fieldMap();
+        Field budgetNumber = ExampleFactory.budgetNumberField();
+
+        CompiledConstraint satisfied = CompiledConstraint.compile(new Constraint.Builder()
+                .type(Constants.ConstraintTypes.IS_ONLY_REQUIRED_WHEN)
+                .name(budgetNumber.getName())
+                .value("^100000$")
+                .build());
+        CompiledConstraint unsatisfied = CompiledConstraint.compile(new Constraint.Builder()
+                .type(Constants.ConstraintTypes.IS_ONLY_REQUIRED_WHEN)
+                .name(budgetNumber.getName())
+                .value("^100001$")
+                .build());
+
+        Assert.assertTrue(satisfied.evaluate(fieldMap, null));
+        Assert.assertFalse(unsatisfied.evaluate(fieldMap, null));
+        Assert.assertFalse(satisfied.evaluate(null, null));
+    }
+
+    @Test
+    public void testEvaluateAllValuesMustMatch() throws Exception {
+        Field budgetNumber = ExampleFactory.budgetNumberField();
+        CompiledConstraint constraint = CompiledConstraint.compile(new Constraint.Builder()
+                .name(budgetNumber.getName())
+                .value("^[0-9]+$")
+                .build());
+
+        ManyMap<String, Value> data = new ManyMap<String, Value>();
+        data.putOne(budgetNumber.getName(), new Value("100000"));
+        Assert.assertTrue(constraint.evaluate(null, data));
+
+        data.putOne(budgetNumber.getName(), new Value("abc"));
+        Assert.assertFalse(constraint.evaluate(null, data));
+    }
+
+    @Test
+    public void testNestedTreeMatchesConstraintUtil() throws Exception {
+        Map<String, Field> fieldMap = fieldMap();
+        Field actionType = ExampleFactory.actionTypeField();
+        Field budgetNumber = ExampleFactory.budgetNumberField();
+
+        // budget is 100001 and action is a promotion, or budget is 200000, or action is a demotion
+        Constraint constraint = new Constraint.Builder()
+                .type(Constants.ConstraintTypes.IS_ONLY_VISIBLE_WHEN)
+                .name(budgetNumber.getName())
+                .value("^100001$")
+                .and(new Constraint.Builder()
+                        .name(actionType.getName())
+                        .value("^promote$")
+                        .build())
+                .or(new Constraint.Builder()
+                        .name(budgetNumber.getName())
+                        .value("^200000$")
+                        .build())
+                .or(new Constraint.Builder()
+                        .name(actionType.getName())
+                        .value("^demote$")
+                        .or(new Constraint.Builder()
+                                .name(actionType.getName())
+                                .value("^reprimand$")
+                                .build())
+                        .build())
+                .build();
+
+        CompiledConstraint compiled = CompiledConstraint.compile(constraint);
+        for (String budgetNumberValue : BUDGET_NUMBERS) {
+            for (String actionTypeValue : ACTION_TYPES) {
+                ManyMap<String, Value> data = new ManyMap<String, Value>();
+                data.putOne(budgetNumber.getName(), new Value(budgetNumberValue));
+                data.putOne(actionType.getName(), new Value(actionTypeValue));
+
+                String message = budgetNumberValue + " " + actionTypeValue;
+                Assert.assertEquals(message, ConstraintUtil.evaluate(fieldMap, data, constraint), compiled.evaluate(fieldMap, data));
+                Assert.assertEquals(message, ConstraintUtil.evaluate(null, data, constraint), compiled.evaluate(null, data));
+            }
+        }
+
+        ManyMap<String, Value> data = new ManyMap<String, Value>();
+        data.putOne(budgetNumber.getName(), new Value("100001"));
+        data.putOne(actionType.getName(), new Value("promote"));
+        Assert.assertTrue(compiled.evaluate(fieldMap, data));
+
+        data = new ManyMap<String, Value>();
+        data.putOne(budgetNumber.getName(), new Value("100001"));
+        data.putOne(actionType.getName(), new Value("reprimand"));
+        Assert.assertFalse(compiled.evaluate(fieldMap, data));
+    }
+
+    @Test
+    public void testPatternsAreShared() throws Exception {
+        Assert.assertSame(ConstraintUtil.pattern("^(reprimand|promote)$"), ConstraintUtil.pattern("^(reprimand|promote)$"));
+        Assert.assertNull(ConstraintUtil.pattern(null));
+    }
+
+    private static Map<String, Field> fieldMap() {
+        Map<String, Field> fieldMap = new HashMap<String, Field>();
+        Field actionType = ExampleFactory.actionTypeField();
+        fieldMap.put(actionType.getName(), actionType);
+        Field budgetNumber = ExampleFactory.budgetNumberField();
+        fieldMap.put(budgetNumber.getName(), budgetNumber);
+        return fieldMap;
+    }
+
+}
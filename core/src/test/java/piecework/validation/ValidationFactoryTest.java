@@ -18,13 +18,18 @@ package piecework.validation;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import piecework.common.ManyMap;
+import piecework.content.ContentResource;
+import piecework.content.concrete.BasicContentResource;
 import piecework.enumeration.ActionType;
 import piecework.exception.BadRequestError;
 import piecework.exception.PieceworkException;
@@ -32,15 +37,19 @@ import piecework.model.*;
 import piecework.model.Process;
 import piecework.persistence.ProcessDeploymentProvider;
 import piecework.persistence.test.ProcessDeploymentProviderStub;
+import piecework.repository.ContentRepository;
 import piecework.submission.SubmissionTemplate;
 import piecework.test.config.IntegrationTestConfiguration;
 import piecework.util.ValidationUtility;
 import piecework.validation.config.ValidationConfiguration;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author James Renfro
@@ -52,6 +61,9 @@ public class ValidationFactoryTest {
     @Autowired
     ValidationFactory validationFactory;
 
+    @Autowired
+    ContentRepository contentRepository;
+
     @Test
     public void verifyApplicationContext() {
         Assert.assertTrue(true);
@@ -174,6 +186,140 @@ public class ValidationFactoryTest {
         Assert.assertNull(values);
     }
 
+    @Test
+    public void testValidateStoresAttachmentsInOrderByName() throws Exception {
+        final AtomicInteger saved = new AtomicInteger();
+        Mockito.doAnswer(new Answer<ContentResource>() {
+            @Override
+            public ContentResource answer(InvocationOnMock invocation) throws Throwable {
+                ContentResource contentResource = ContentResource.class.cast(invocation.getArguments()[1]);
+                return new BasicContentResource.Builder()
+                        .contentType("application/pdf")
+                        .name(contentResource.getName())
+                        .location("/TEST/" + contentResource.getName() + "-" + saved.incrementAndGet())
+                        .build();
+            }
+        }).when(contentRepository).save(Mockito.any(ProcessDeploymentProvider.class), Mockito.any(ContentResource.class));
+        Mockito.doAnswer(new Answer<ContentResource>() {
+            @Override
+            public ContentResource answer(InvocationOnMock invocation) throws Throwable {
+                return new BasicContentResource.Builder()
+                        .contentType("application/pdf")
+                        .location(String.class.cast(invocation.getArguments()[2]))
+                        .build();
+            }
+        }).when(contentRepository).replace(Mockito.any(ProcessDeploymentProvider.class), Mockito.any(ContentResource.class), Mockito.anyString());
+
+        Submission submission = new Submission.Builder()
+                .attachment(attachment("first.pdf"))
+                .attachment(attachment("second.pdf"))
+                .attachment(attachment("first.pdf"))
+                .attachment(attachment("third.pdf"))
+                .attachment(new File.Builder()
+                        .description("A comment")
+                        .build())
+                .actionType(ActionType.ATTACH)
+                .build();
+
+        ProcessDeployment deployment = new ProcessDeployment.Builder()
+                .deploymentId("1234")
+                .build();
+
+        Process process = new Process.Builder()
+                .processDefinitionKey("TEST")
+                .deploy(new ProcessDeploymentVersion(deployment), deployment)
+                .build();
+
+        SubmissionTemplate template = new SubmissionTemplate.Builder(process, deployment)
+                .allowAttachments()
+                .build();
+
+        ProcessDeploymentProvider modelProvider = new ProcessDeploymentProviderStub(process, deployment, Mockito.mock(User.class));
+        Validation validation = validationFactory.validate(modelProvider, submission, template, "v1", true);
+
+        // The second first.pdf is a new version of the first one rather than another attachment
+        List<Attachment> attachments = validation.getAttachments();
+        Assert.assertEquals(4, attachments.size());
+        Assert.assertEquals("first.pdf", attachments.get(0).getName());
+        Assert.assertEquals("second.pdf", attachments.get(1).getName());
+        Assert.assertEquals("third.pdf", attachments.get(2).getName());
+        Assert.assertNull(attachments.get(3).getLocation());
+        Assert.assertEquals(3, saved.get());
+
+        ArgumentCaptor<String> location = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(contentRepository).replace(Mockito.eq(modelProvider), Mockito.any(ContentResource.class), location.capture());
+        Assert.assertEquals(attachments.get(0).getLocation(), location.getValue());
+    }
+
+    @Test
+    public void testValidateDoesNotReplaceAttachmentsWhenStoringFails() throws Exception {
+        Mockito.reset(contentRepository);
+        final List<String> locations = Collections.synchronizedList(new ArrayList<String>());
+        Mockito.doAnswer(new Answer<ContentResource>() {
+            @Override
+            public ContentResource answer(InvocationOnMock invocation) throws Throwable {
+                ContentResource contentResource = ContentResource.class.cast(invocation.getArguments()[1]);
+                if (contentResource.getName().equals("second.pdf"))
+                    throw new BadRequestError();
+                String location = "/TEST/" + contentResource.getName();
+                locations.add(location);
+                return new BasicContentResource.Builder()
+                        .contentType("application/pdf")
+                        .name(contentResource.getName())
+                        .location(location)
+                        .build();
+            }
+        }).when(contentRepository).save(Mockito.any(ProcessDeploymentProvider.class), Mockito.any(ContentResource.class));
+
+        Submission submission = new Submission.Builder()
+                .attachment(attachment("first.pdf"))
+                .attachment(attachment("second.pdf"))
+                .attachment(attachment("first.pdf"))
+                .attachment(attachment("third.pdf"))
+                .actionType(ActionType.ATTACH)
+                .build();
+
+        ProcessDeployment deployment = new ProcessDeployment.Builder()
+                .deploymentId("1234")
+                .build();
+
+        Process process = new Process.Builder()
+                .processDefinitionKey("TEST")
+                .deploy(new ProcessDeploymentVersion(deployment), deployment)
+                .build();
+
+        SubmissionTemplate template = new SubmissionTemplate.Builder(process, deployment)
+                .allowAttachments()
+                .build();
+
+        ProcessDeploymentProvider modelProvider = new ProcessDeploymentProviderStub(process, deployment, Mockito.mock(User.class));
+        try {
+            validationFactory.validate(modelProvider, submission, template, "v1", true);
+            Assert.fail("Expected the submission to be rejected");
+        } catch (BadRequestError e) {
+            // expected
+        }
+
+        // The versions of first.pdf wait until every new file is stored, so they never happen
+        Mockito.verify(contentRepository, Mockito.never()).replace(Mockito.any(ProcessDeploymentProvider.class), Mockito.any(ContentResource.class), Mockito.anyString());
+        Assert.assertFalse(locations.contains("/TEST/first.pdf"));
+        for (String location : locations) {
+            Mockito.verify(contentRepository).expireByLocation(modelProvider, location);
+        }
+    }
+
+    private static File attachment(String name) {
+        ContentResource contentResource = new BasicContentResource.Builder()
+                .contentType("application/pdf")
+                .name(name)
+                .inputStream(new ByteArrayInputStream(name.getBytes()))
+                .build();
+        return new File.Builder()
+                .name(name)
+                .contentResource(contentResource)
+                .build();
+    }
+
 //    @Test
 //	public void testValidateFirstOfTwoSections() throws StatusCodeError {
 //        Process process = ExampleFactory.exampleProcess();
@@ -17,8 +17,12 @@ package piecework.engine.activiti;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 
+import javax.sql.DataSource;
+
 import org.activiti.bpmn.model.BpmnModel;
 import org.activiti.bpmn.model.FlowElement;
 import org.activiti.bpmn.model.ManualTask;
@@ -26,6 +30,8 @@ import org.activiti.engine.*;
 import org.activiti.engine.delegate.DelegateTask;
 import org.activiti.engine.history.*;
 import org.activiti.engine.impl.bpmn.diagram.ProcessDiagramGenerator;
+import org.activiti.engine.impl.persistence.entity.HistoricIdentityLinkEntity;
+import org.activiti.engine.impl.persistence.entity.IdentityLinkEntity;
 import org.activiti.engine.query.Query;
 import org.activiti.engine.repository.Deployment;
 import org.activiti.engine.repository.ProcessDefinition;
@@ -37,6 +43,9 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
 
 import piecework.Constants;
@@ -69,6 +78,12 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
 
     private static final Logger LOG = Logger.getLogger(ActivitiEngineProxy.class);
 
+    // Keeps the IN clause for identity links well under the limits databases put on them
+    private static final int IDENTITY_LINK_BATCH_SIZE = 500;
+
+    @Autowired(required=false)
+    DataSource dataSource;
+
     @Autowired
     IdentityHelper helper;
 
@@ -526,10 +541,36 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
         if (LOG.isDebugEnabled())
             time = System.currentTimeMillis();
 
-        List<?> activitiTasks = query.list();
-        int size = activitiTasks.size();
+        int firstResult = criteria.getFirstResult() != null ? criteria.getFirstResult().intValue() : 0;
+        boolean isPaged = criteria.getMaxResults() != null;
+
+        List<?> activitiTasks = isPaged ? query.listPage(firstResult, criteria.getMaxResults().intValue()) : query.list();
+        int size = activitiTasks != null ? activitiTasks.size() : 0;
+        long total = isPaged ? query.count() : size;
+
+        if (activitiTasks != null && !activitiTasks.isEmpty()) {
+            // Look up the identity links for all the tasks at once, and then all the users they refer to
+            boolean isHistoric = !(activitiTasks.get(0) instanceof org.activiti.engine.task.Task);
+            Map<String, String> assigneeMap = new HashMap<String, String>();
+            for (Object instance : activitiTasks) {
+                if (instance instanceof org.activiti.engine.task.Task) {
+                    org.activiti.engine.task.Task activitiTask = org.activiti.engine.task.Task.class.cast(instance);
+                    assigneeMap.put(activitiTask.getId(), activitiTask.getAssignee());
+                } else if (instance != null) {
+                    HistoricTaskInstance historicTask = HistoricTaskInstance.class.cast(instance);
+                    assigneeMap.put(historicTask.getId(), historicTask.getAssignee());
+                }
+            }
+            ManyMap<String, TaskIdentityLink> identityLinkMap = identityLinks(assigneeMap, isHistoric);
+            Set<String> userIds = new HashSet<String>();
+            for (List<TaskIdentityLink> identityLinks : identityLinkMap.values()) {
+                for (TaskIdentityLink identityLink : identityLinks) {
+                    if (identityLink.userId != null)
+                        userIds.add(identityLink.userId);
+                }
+            }
+            Map<String, User> userMap = users(userIds);
 
-        if (activitiTasks != null) {
             ManyMap<String, Process> processMap = proxyHelper.getProcessDefinitionIdMap(criteria.getProcesses());
             for (Object instance : activitiTasks) {
                 String engineProcessInstanceId;
@@ -540,7 +581,7 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
                     List<Process> processes = processMap.get(activitiTask.getProcessDefinitionId());
                     if (processes != null) {
                         for (Process process : processes) {
-                            resultsBuilder.task(convert(activitiTask, process, true));
+                            resultsBuilder.task(convert(activitiTask, process, true, identityLinkMap.get(activitiTask.getId()), userMap));
                         }
                     }
                 } else {
@@ -552,7 +593,7 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
                     List<Process> processes = processMap.get(historicTask.getProcessDefinitionId());
                     if (processes != null) {
                         for (Process process : processes) {
-                            resultsBuilder.task(convert(historicTask, process, true));
+                            resultsBuilder.task(convert(historicTask, process, true, identityLinkMap.get(historicTask.getId()), userMap));
                         }
                     }
                 }
@@ -564,9 +605,9 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
             LOG.debug("Searching for tasks took " + (System.currentTimeMillis() - time) + " ms");
         }
 
-        resultsBuilder.firstResult(0);
+        resultsBuilder.firstResult(firstResult);
         resultsBuilder.maxResults(size);
-        resultsBuilder.total(size);
+        resultsBuilder.total(total);
 
         return resultsBuilder.build();
     }
@@ -585,6 +626,11 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
     }
 
     private Task convert(org.activiti.engine.task.Task instance, Process process, boolean includeDetails) {
+        List<TaskIdentityLink> identityLinks = includeDetails ? identityLinks(Collections.singletonMap(instance.getId(), instance.getAssignee()), false).get(instance.getId()) : null;
+        return convert(instance, process, includeDetails, identityLinks, users(userIds(identityLinks, includeDetails ? null : instance.getAssignee())));
+    }
+
+    private Task convert(org.activiti.engine.task.Task instance, Process process, boolean includeDetails, List<TaskIdentityLink> identityLinks, Map<String, User> userMap) {
         Task.Builder taskBuilder = new Task.Builder()
                 .taskInstanceId(instance.getId())
                 .taskDefinitionKey(instance.getTaskDefinitionKey())
@@ -612,29 +658,32 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
             taskBuilder.active();
 
         if (includeDetails) {
-            List<IdentityLink> identityLinks = processEngine.getTaskService().getIdentityLinksForTask(instance.getId());
-
             if (identityLinks != null && !identityLinks.isEmpty()) {
-                for (IdentityLink identityLink : identityLinks) {
-                    String type = identityLink.getType();
+                for (TaskIdentityLink identityLink : identityLinks) {
+                    String type = identityLink.type;
 
                     if (type == null)
                         continue;
 
-                    if (type.equals(IdentityLinkType.ASSIGNEE) && identityLink.getUserId() != null)
-                        taskBuilder.assignee(userDetailsService.getUser(identityLink.getUserId()));
-                    else if (type.equals(IdentityLinkType.CANDIDATE) && identityLink.getUserId() != null)
-                        taskBuilder.candidateAssignee(userDetailsService.getUser(identityLink.getUserId()));
+                    if (type.equals(IdentityLinkType.ASSIGNEE) && identityLink.userId != null)
+                        taskBuilder.assignee(user(userMap, identityLink.userId));
+                    else if (type.equals(IdentityLinkType.CANDIDATE) && identityLink.userId != null)
+                        taskBuilder.candidateAssignee(user(userMap, identityLink.userId));
                 }
             }
         } else if (StringUtils.isNotEmpty(instance.getAssignee())) {
-            taskBuilder.assignee(userDetailsService.getUser(instance.getAssignee()));
+            taskBuilder.assignee(user(userMap, instance.getAssignee()));
         }
 
         return taskBuilder.build();
     }
 
     private Task convert(HistoricTaskInstance instance, Process process, boolean includeDetails) {
+        List<TaskIdentityLink> identityLinks = includeDetails ? identityLinks(Collections.singletonMap(instance.getId(), instance.getAssignee()), true).get(instance.getId()) : null;
+        return convert(instance, process, includeDetails, identityLinks, users(userIds(identityLinks, includeDetails ? null : instance.getAssignee())));
+    }
+
+    private Task convert(HistoricTaskInstance instance, Process process, boolean includeDetails, List<TaskIdentityLink> identityLinks, Map<String, User> userMap) {
         Task.Builder taskBuilder = new Task.Builder()
                 .taskInstanceId(instance.getId())
                 .taskDefinitionKey(instance.getTaskDefinitionKey())
@@ -658,23 +707,21 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
             taskBuilder.taskStatus(Constants.TaskStatuses.OPEN);
 
         if (includeDetails) {
-            List<HistoricIdentityLink> identityLinks = processEngine.getHistoryService().getHistoricIdentityLinksForTask(instance.getId());
-
             if (identityLinks != null && !identityLinks.isEmpty()) {
-                for (HistoricIdentityLink identityLink : identityLinks) {
-                    String type = identityLink.getType();
+                for (TaskIdentityLink identityLink : identityLinks) {
+                    String type = identityLink.type;
 
                     if (type == null)
                         continue;
 
-                    if (type.equals(IdentityLinkType.ASSIGNEE) && identityLink.getUserId() != null)
-                        taskBuilder.assignee(userDetailsService.getUser(identityLink.getUserId()));
-                    else if (type.equals(IdentityLinkType.CANDIDATE) && identityLink.getUserId() != null)
-                        taskBuilder.candidateAssignee(userDetailsService.getUser(identityLink.getUserId()));
+                    if (type.equals(IdentityLinkType.ASSIGNEE) && identityLink.userId != null)
+                        taskBuilder.assignee(user(userMap, identityLink.userId));
+                    else if (type.equals(IdentityLinkType.CANDIDATE) && identityLink.userId != null)
+                        taskBuilder.candidateAssignee(user(userMap, identityLink.userId));
                 }
             }
         } else if (StringUtils.isNotEmpty(instance.getAssignee())) {
-            taskBuilder.assignee(userDetailsService.getUser(instance.getAssignee()));
+            taskBuilder.assignee(user(userMap, instance.getAssignee()));
         }
 
         return taskBuilder.build();
@@ -992,4 +1039,107 @@ public class ActivitiEngineProxy implements ProcessEngineProxy {
     public String getKey() {
         return "activiti";
     }
+
+    /*
+     * Identity links for each of the given tasks, which are mapped to their assignees, by task id.
+     * With more than one task they're read straight from the identity link table in a single query
+     * per batch, since the task and history services only return them one task at a time. The
+     * table has no row for the assignee -- the services make that link up from the task -- so
+     * it's added here the same way.
+     */
+    private ManyMap<String, TaskIdentityLink> identityLinks(Map<String, String> assigneeMap, boolean isHistoric) {
+        final ManyMap<String, TaskIdentityLink> identityLinkMap = new ManyMap<String, TaskIdentityLink>();
+        if (assigneeMap == null || assigneeMap.isEmpty())
+            return identityLinkMap;
+
+        Set<String> taskIds = assigneeMap.keySet();
+        if (dataSource == null || taskIds.size() == 1) {
+            for (String taskId : taskIds) {
+                if (isHistoric) {
+                    List<HistoricIdentityLink> identityLinks = processEngine.getHistoryService().getHistoricIdentityLinksForTask(taskId);
+                    if (identityLinks != null) {
+                        for (HistoricIdentityLink identityLink : identityLinks) {
+                            identityLinkMap.putOne(taskId, new TaskIdentityLink(identityLink.getType(), identityLink.getUserId()));
+                        }
+                    }
+                } else {
+                    List<IdentityLink> identityLinks = processEngine.getTaskService().getIdentityLinksForTask(taskId);
+                    if (identityLinks != null) {
+                        for (IdentityLink identityLink : identityLinks) {
+                            identityLinkMap.putOne(taskId, new TaskIdentityLink(identityLink.getType(), identityLink.getUserId()));
+                        }
+                    }
+                }
+            }
+            return identityLinkMap;
+        }
+
+        ManagementService managementService = processEngine.getManagementService();
+        String tableName = managementService.getTableName(isHistoric ? HistoricIdentityLinkEntity.class : IdentityLinkEntity.class);
+        String sql = "select TASK_ID_, TYPE_, USER_ID_ from " + tableName + " where TASK_ID_ in (:taskIds)";
+        NamedParameterJdbcTemplate template = new NamedParameterJdbcTemplate(dataSource);
+
+        List<String> remaining = new ArrayList<String>(taskIds);
+        for (int i = 0; i < remaining.size(); i += IDENTITY_LINK_BATCH_SIZE) {
+            List<String> batch = remaining.subList(i, Math.min(remaining.size(), i + IDENTITY_LINK_BATCH_SIZE));
+            template.query(sql, new MapSqlParameterSource("taskIds", batch), new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet resultSet) throws SQLException {
+                    identityLinkMap.putOne(resultSet.getString("TASK_ID_"), new TaskIdentityLink(resultSet.getString("TYPE_"), resultSet.getString("USER_ID_")));
+                }
+            });
+        }
+        for (Map.Entry<String, String> entry : assigneeMap.entrySet()) {
+            if (StringUtils.isNotEmpty(entry.getValue()))
+                identityLinkMap.putOne(entry.getKey(), new TaskIdentityLink(IdentityLinkType.ASSIGNEE, entry.getValue()));
+        }
+        return identityLinkMap;
+    }
+
+    private static Set<String> userIds(List<TaskIdentityLink> identityLinks, String assignee) {
+        Set<String> userIds = new HashSet<String>();
+        if (identityLinks != null) {
+            for (TaskIdentityLink identityLink : identityLinks) {
+                if (identityLink.userId != null)
+                    userIds.add(identityLink.userId);
+            }
+        }
+        if (StringUtils.isNotEmpty(assignee))
+            userIds.add(assignee);
+        return userIds;
+    }
+
+    private Map<String, User> users(Set<String> userIds) {
+        Map<String, User> userMap = new HashMap<String, User>();
+        if (userIds.isEmpty())
+            return userMap;
+        Map<String, User> found = userDetailsService.findUsers(userIds);
+        if (found != null)
+            userMap.putAll(found);
+        return userMap;
+    }
+
+    /*
+     * Anyone the bulk lookup didn't return (say, because their id differs in case) is looked up
+     * on their own, and remembered for the rest of the conversion
+     */
+    private User user(Map<String, User> userMap, String userId) {
+        if (userMap.containsKey(userId))
+            return userMap.get(userId);
+        User user = userDetailsService.getUser(userId);
+        userMap.put(userId, user);
+        return user;
+    }
+
+    private static class TaskIdentityLink {
+
+        private final String type;
+        private final String userId;
+
+        private TaskIdentityLink(String type, String userId) {
+            this.type = type;
+            this.userId = userId;
+        }
+    }
+
 }
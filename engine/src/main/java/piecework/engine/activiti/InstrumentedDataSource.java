@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine.activiti;
+
+import org.apache.log4j.Logger;
+import org.apache.tomcat.jdbc.pool.DataSourceProxy;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import piecework.common.LatencyHistogram;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits in front of the engine's connection pool and keeps track of how long callers wait to
+ * check a connection out and how long they hold on to it before handing it back. Connections
+ * held longer than the hold warning are logged, which is usually the first sign of a leak --
+ * the pool itself logs (and optionally reclaims) connections that are never returned. The
+ * numbers are exported over JMX through InstrumentedDataSourceMBean.
+ *
+ * @author James Renfro
+ */
+public class InstrumentedDataSource extends DelegatingDataSource implements InstrumentedDataSourceMBean {
+
+    private static final Logger LOG = Logger.getLogger(InstrumentedDataSource.class);
+
+    private final LatencyHistogram waitHistogram = new LatencyHistogram();
+    private final LatencyHistogram holdHistogram = new LatencyHistogram();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong longHeld = new AtomicLong();
+    private volatile long holdWarningMillis = 30000l;
+
+    public InstrumentedDataSource() {
+        super();
+    }
+
+    public InstrumentedDataSource(DataSource targetDataSource) {
+        super(targetDataSource);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.currentTimeMillis();
+        try {
+            return instrument(getTargetDataSource().getConnection(), start);
+        } catch (SQLException e) {
+            failed.incrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.currentTimeMillis();
+        try {
+            return instrument(getTargetDataSource().getConnection(username, password), start);
+        } catch (SQLException e) {
+            failed.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public LatencyHistogram getWaitHistogram() {
+        return waitHistogram;
+    }
+
+    public LatencyHistogram getHoldHistogram() {
+        return holdHistogram;
+    }
+
+    /*
+     * Connections that have been checked out through this data source and not yet closed
+     */
+    @Override
+    public int getOpen() {
+        return open.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getLongHeld() {
+        return longHeld.get();
+    }
+
+    @Override
+    public long getCheckouts() {
+        return waitHistogram.getCount();
+    }
+
+    @Override
+    public double getMeanWaitMillis() {
+        return waitHistogram.getMeanMillis();
+    }
+
+    @Override
+    public long getWaitMillis95() {
+        return waitHistogram.getPercentileMillis(95);
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return waitHistogram.getMaxMillis();
+    }
+
+    @Override
+    public double getMeanHoldMillis() {
+        return holdHistogram.getMeanMillis();
+    }
+
+    @Override
+    public long getHoldMillis95() {
+        return holdHistogram.getPercentileMillis(95);
+    }
+
+    @Override
+    public long getMaxHoldMillis() {
+        return holdHistogram.getMaxMillis();
+    }
+
+    /*
+     * Connections sitting idle in the pool, or -1 when the target isn't a pool
+     */
+    @Override
+    public int getIdle() {
+        DataSource target = getTargetDataSource();
+        return target instanceof DataSourceProxy ? ((DataSourceProxy) target).getIdle() : -1;
+    }
+
+    /*
+     * Callers currently waiting for a connection, or -1 when the target isn't a pool
+     */
+    @Override
+    public int getWaiting() {
+        DataSource target = getTargetDataSource();
+        return target instanceof DataSourceProxy ? ((DataSourceProxy) target).getWaitCount() : -1;
+    }
+
+    @Override
+    public long getHoldWarningMillis() {
+        return holdWarningMillis;
+    }
+
+    @Override
+    public void setHoldWarningMillis(long holdWarningMillis) {
+        this.holdWarningMillis = holdWarningMillis;
+    }
+
+    private Connection instrument(Connection connection, long start) {
+        long checkedOut = System.currentTimeMillis();
+        waitHistogram.record(checkedOut - start);
+        open.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new ConnectionHandler(connection, checkedOut));
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final long checkedOut;
+        private boolean closed;
+
+        private ConnectionHandler(Connection connection, long checkedOut) {
+            this.connection = connection;
+            this.checkedOut = checkedOut;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals"))
+                return Boolean.valueOf(proxy == args[0]);
+            if (name.equals("hashCode"))
+                return Integer.valueOf(System.identityHashCode(proxy));
+            if (name.equals("close"))
+                released();
+
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+
+        private synchronized void released() {
+            // Closing twice is allowed by the spec, only count it once
+            if (closed)
+                return;
+            closed = true;
+            open.decrementAndGet();
+            long held = System.currentTimeMillis() - checkedOut;
+            holdHistogram.record(held);
+            if (holdWarningMillis > 0 && held > holdWarningMillis) {
+                longHeld.incrementAndGet();
+                LOG.warn("Connection was held for " + held + " ms before being returned to the pool");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine.activiti;
+
+/**
+ * What InstrumentedDataSource shows over JMX, where it's exported as
+ * piecework:type=DataSource,name=activiti. Times are in milliseconds, and the percentiles are
+ * the upper bound of the histogram bucket they fall into.
+ *
+ * @author James Renfro
+ */
+public interface InstrumentedDataSourceMBean {
+
+    int getOpen();
+
+    int getIdle();
+
+    int getWaiting();
+
+    long getFailed();
+
+    long getLongHeld();
+
+    long getCheckouts();
+
+    double getMeanWaitMillis();
+
+    long getWaitMillis95();
+
+    long getMaxWaitMillis();
+
+    double getMeanHoldMillis();
+
+    long getHoldMillis95();
+
+    long getMaxHoldMillis();
+
+    long getHoldWarningMillis();
+
+    void setHoldWarningMillis(long holdWarningMillis);
+
+}
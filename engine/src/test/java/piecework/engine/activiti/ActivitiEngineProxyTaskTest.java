@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine.activiti;
+
+import junit.framework.Assert;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.TaskService;
+import org.activiti.engine.impl.cfg.StandaloneProcessEngineConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import piecework.Constants;
+import piecework.common.ManyMap;
+import piecework.engine.test.ExampleFactory;
+import piecework.model.Process;
+import piecework.model.Task;
+import piecework.model.User;
+import piecework.service.IdentityService;
+import piecework.task.TaskCriteria;
+import piecework.task.TaskResults;
+
+import javax.sql.DataSource;
+import java.util.*;
+
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+
+/**
+ * Runs findTasks and findTask against a real engine on an in-memory H2 database, so the
+ * identity links that are read straight from the engine's tables get checked against what
+ * the task and history services would have returned.
+ *
+ * @author James Renfro
+ */
+public class ActivitiEngineProxyTaskTest {
+
+    private static int databases;
+
+    private ActivitiEngineProxy engineProxy;
+    private ProcessEngine processEngine;
+    private DataSource dataSource;
+    private IdentityService identityService;
+    private Process process;
+
+    @Before
+    public void setup() {
+        dataSource = new SimpleDriverDataSource(new org.h2.Driver(), "jdbc:h2:mem:tasks" + (databases++) + ";DB_CLOSE_DELAY=1000", "sa", "");
+        ProcessEngineConfiguration configuration = new StandaloneProcessEngineConfiguration()
+                .setDataSource(dataSource)
+                .setDatabaseSchemaUpdate(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_CREATE_DROP)
+                .setJobExecutorActivate(false)
+                .setHistory("audit");
+        processEngine = configuration.buildProcessEngine();
+        processEngine.getRepositoryService()
+                .createDeployment()
+                .addClasspathResource("META-INF/example.bpmn20.xml")
+                .deploy();
+        String processDefinitionId = processEngine.getRepositoryService()
+                .createProcessDefinitionQuery()
+                .processDefinitionKey("example")
+                .singleResult()
+                .getId();
+
+        process = ExampleFactory.exampleProcess();
+        ManyMap<String, Process> processMap = new ManyMap<String, Process>();
+        processMap.putOne(processDefinitionId, process);
+        ActivitiEngineProxyHelper proxyHelper = Mockito.mock(ActivitiEngineProxyHelper.class);
+        Mockito.when(proxyHelper.getProcessDefinitionIdMap(anySetOf(Process.class))).thenReturn(processMap);
+
+        identityService = Mockito.mock(IdentityService.class);
+        Mockito.when(identityService.findUsers(anySetOf(String.class))).thenAnswer(new Answer<Map<String, User>>() {
+            @Override
+            public Map<String, User> answer(InvocationOnMock invocation) throws Throwable {
+                Map<String, User> userMap = new HashMap<String, User>();
+                for (Object userId : (Set<?>) invocation.getArguments()[0]) {
+                    userMap.put(userId.toString(), new User.Builder().userId(userId.toString()).build());
+                }
+                return userMap;
+            }
+        });
+        Mockito.when(identityService.getUser(anyString())).thenAnswer(new Answer<User>() {
+            @Override
+            public User answer(InvocationOnMock invocation) throws Throwable {
+                return new User.Builder().userId(invocation.getArguments()[0].toString()).build();
+            }
+        });
+
+        engineProxy = new ActivitiEngineProxy();
+        engineProxy.processEngine = processEngine;
+        engineProxy.dataSource = dataSource;
+        engineProxy.proxyHelper = proxyHelper;
+        engineProxy.userDetailsService = identityService;
+    }
+
+    @After
+    public void teardown() {
+        processEngine.close();
+    }
+
+    @Test
+    public void verifyIdentityLinksForMoreTasksThanOneBatch() throws Exception {
+        List<String> taskIds = start(501);
+        TaskService taskService = processEngine.getTaskService();
+        for (int i = 0; i < taskIds.size(); i++) {
+            taskService.setAssignee(taskIds.get(i), "assignee" + (i % 2));
+            taskService.addCandidateUser(taskIds.get(i), "candidate" + (i % 3));
+        }
+
+        TaskResults results = engineProxy.findTasks(new TaskCriteria.Builder().process(process).build());
+
+        Assert.assertEquals(501, results.getTasks().size());
+        Assert.assertEquals(501, results.getTotal());
+        for (Task task : results.getTasks()) {
+            int i = taskIds.indexOf(task.getTaskInstanceId());
+            Assert.assertEquals("assignee" + (i % 2), task.getAssignee().getUserId());
+            Assert.assertEquals(1, task.getCandidateAssignees().size());
+            Assert.assertEquals("candidate" + (i % 3), task.getCandidateAssignees().get(0).getUserId());
+        }
+        Mockito.verify(identityService).findUsers(anySetOf(String.class));
+        Mockito.verify(identityService, Mockito.never()).getUser(anyString());
+    }
+
+    @Test
+    public void verifyIdentityLinksForCompletedTasks() throws Exception {
+        List<String> taskIds = start(3);
+        TaskService taskService = processEngine.getTaskService();
+        for (String taskId : taskIds) {
+            taskService.setAssignee(taskId, "reviewer");
+            taskService.addCandidateUser(taskId, "backup");
+            taskService.complete(taskId);
+        }
+        for (org.activiti.engine.task.Task next : taskService.createTaskQuery().list()) {
+            taskService.complete(next.getId());
+        }
+
+        TaskResults results = engineProxy.findTasks(new TaskCriteria.Builder()
+                .process(process)
+                .processStatus(Constants.ProcessStatuses.COMPLETE)
+                .build());
+
+        Assert.assertEquals(6, results.getTasks().size());
+        int reviewed = 0;
+        for (Task task : results.getTasks()) {
+            if (taskIds.contains(task.getTaskInstanceId())) {
+                Assert.assertEquals("reviewer", task.getAssignee().getUserId());
+                Assert.assertEquals(1, task.getCandidateAssignees().size());
+                Assert.assertEquals("backup", task.getCandidateAssignees().get(0).getUserId());
+                reviewed++;
+            } else {
+                Assert.assertNull(task.getAssignee());
+                Assert.assertTrue(task.getCandidateAssignees() == null || task.getCandidateAssignees().isEmpty());
+            }
+        }
+        Assert.assertEquals(3, reviewed);
+    }
+
+    @Test
+    public void verifySingleTaskUsesTaskService() throws Exception {
+        List<String> taskIds = start(2);
+        TaskService taskService = processEngine.getTaskService();
+        taskService.setAssignee(taskIds.get(0), "reviewer");
+        taskService.addCandidateUser(taskIds.get(0), "backup");
+
+        Task task = engineProxy.findTask(process, process.getDeployment(), taskIds.get(0), true);
+        Assert.assertEquals("reviewer", task.getAssignee().getUserId());
+        Assert.assertEquals("backup", task.getCandidateAssignees().get(0).getUserId());
+
+        // Without a data source every task goes through the task service, with the same results
+        engineProxy.dataSource = null;
+        TaskResults results = engineProxy.findTasks(new TaskCriteria.Builder().process(process).build());
+        Assert.assertEquals(2, results.getTasks().size());
+        for (Task found : results.getTasks()) {
+            if (found.getTaskInstanceId().equals(taskIds.get(0))) {
+                Assert.assertEquals("reviewer", found.getAssignee().getUserId());
+                Assert.assertEquals("backup", found.getCandidateAssignees().get(0).getUserId());
+            } else {
+                Assert.assertNull(found.getAssignee());
+            }
+        }
+    }
+
+    @Test
+    public void verifyTasksArePaged() throws Exception {
+        start(5);
+
+        TaskResults results = engineProxy.findTasks(new TaskCriteria.Builder()
+                .process(process)
+                .firstResult(Integer.valueOf(2))
+                .maxResults(Integer.valueOf(2))
+                .build());
+
+        Assert.assertEquals(2, results.getTasks().size());
+        Assert.assertEquals(2, results.getFirstResult());
+        Assert.assertEquals(2, results.getMaxResults());
+        Assert.assertEquals(5, results.getTotal());
+
+        results = engineProxy.findTasks(new TaskCriteria.Builder()
+                .process(process)
+                .firstResult(Integer.valueOf(4))
+                .maxResults(Integer.valueOf(2))
+                .build());
+
+        Assert.assertEquals(1, results.getTasks().size());
+        Assert.assertEquals(5, results.getTotal());
+
+        results = engineProxy.findTasks(new TaskCriteria.Builder().process(process).build());
+
+        Assert.assertEquals(5, results.getTasks().size());
+        Assert.assertEquals(0, results.getFirstResult());
+        Assert.assertEquals(5, results.getTotal());
+    }
+
+    /*
+     * Starts so many instances of the example process, and returns the ids of their first tasks in the same order
+     */
+    private List<String> start(int count) {
+        // The gateway after the first task needs to know which review comes next
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("level", "high");
+        List<String> taskIds = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String processInstanceId = processEngine.getRuntimeService().startProcessInstanceByKey("example", "instance" + i, variables).getId();
+            taskIds.add(processEngine.getTaskService().createTaskQuery().processInstanceId(processInstanceId).singleResult().getId());
+        }
+        return taskIds;
+    }
+
+}
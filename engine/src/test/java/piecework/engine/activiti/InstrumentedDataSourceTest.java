@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine.activiti;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.jmx.export.MBeanExporter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Collections;
+
+/**
+ * @author James Renfro
+ */
+public class InstrumentedDataSourceTest {
+
+    @Test
+    public void verifyCheckoutsAreExportedOverJmx() throws Exception {
+        DataSource target = Mockito.mock(DataSource.class);
+        Mockito.when(target.getConnection()).thenReturn(Mockito.mock(Connection.class));
+        InstrumentedDataSource dataSource = new InstrumentedDataSource(target);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("piecework:type=DataSource,name=test");
+        MBeanExporter exporter = new MBeanExporter();
+        exporter.setServer(server);
+        exporter.setBeans(Collections.<String, Object>singletonMap(name.toString(), dataSource));
+        exporter.afterPropertiesSet();
+        try {
+            Connection first = dataSource.getConnection();
+            Connection second = dataSource.getConnection();
+            first.close();
+            first.close();
+
+            Assert.assertEquals(Integer.valueOf(1), server.getAttribute(name, "Open"));
+            Assert.assertEquals(Long.valueOf(2), server.getAttribute(name, "Checkouts"));
+            Assert.assertEquals(Integer.valueOf(-1), server.getAttribute(name, "Idle"));
+            Assert.assertEquals(Long.valueOf(0), server.getAttribute(name, "LongHeld"));
+            Assert.assertEquals(Long.valueOf(30000), server.getAttribute(name, "HoldWarningMillis"));
+
+            second.close();
+            Assert.assertEquals(Integer.valueOf(0), server.getAttribute(name, "Open"));
+        } finally {
+            exporter.destroy();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 University of Washington
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package piecework.engine.activiti;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.TaskService;
+import org.activiti.engine.impl.cfg.StandaloneProcessEngineConfiguration;
+import org.activiti.engine.task.Task;
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Starts a batch of instances of the example process and completes their first task from
+ * several threads, once against a SimpleDriverDataSource (a new physical connection for every
+ * use, which is what the engine used to run on) and once against the pool, and logs the
+ * throughput of each. H2 connections are much cheaper to open than MySQL ones over SSL, so the
+ * gap in production is wider than what this shows. Not part of the build -- run it by hand with
+ *
+ * mvn test -Dtest=PooledDataSourceBenchmark
+ *
+ * after removing the @Ignore.
+ *
+ * @author James Renfro
+ */
+@Ignore
+public class PooledDataSourceBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(PooledDataSourceBenchmark.class);
+
+    private static final int INSTANCES = 2000;
+    private static final int THREADS = 8;
+
+    @Test
+    public void compareTaskCompleteThroughput() throws Exception {
+        SimpleDriverDataSource simple = new SimpleDriverDataSource(new org.h2.Driver(), url("simple"), "sa", "");
+        double unpooled = completeTasks("unpooled", simple);
+
+        org.apache.tomcat.jdbc.pool.DataSource pool = new org.apache.tomcat.jdbc.pool.DataSource();
+        pool.setDriverClassName("org.h2.Driver");
+        pool.setUrl(url("pooled"));
+        pool.setUsername("sa");
+        pool.setPassword("");
+        pool.setMaxActive(THREADS * 2);
+        pool.setMaxIdle(THREADS * 2);
+        pool.setJdbcInterceptors("ConnectionState;StatementFinalizer;StatementCache(prepared=true,callable=false,max=50)");
+        InstrumentedDataSource instrumented = new InstrumentedDataSource(pool);
+        double pooled;
+        try {
+            pooled = completeTasks("pooled", instrumented);
+        } finally {
+            pool.close();
+        }
+
+        LOG.info("Pooled throughput is " + String.format("%.2f", pooled / unpooled) + "x unpooled");
+        LOG.info("Pool wait: " + instrumented.getWaitHistogram());
+        LOG.info("Pool hold: " + instrumented.getHoldHistogram());
+    }
+
+    private double completeTasks(String name, DataSource dataSource) throws Exception {
+        ProcessEngineConfiguration configuration = new StandaloneProcessEngineConfiguration()
+                .setProcessEngineName(name)
+                .setDataSource(dataSource)
+                .setDatabaseSchemaUpdate(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE)
+                .setJobExecutorActivate(false);
+        ProcessEngine processEngine = configuration.buildProcessEngine();
+        try {
+            processEngine.getRepositoryService().createDeployment()
+                    .addClasspathResource("META-INF/example.bpmn20.xml")
+                    .deploy();
+
+            for (int i = 0; i < INSTANCES; i++) {
+                processEngine.getRuntimeService().startProcessInstanceByKey("example", Collections.<String, Object>singletonMap("level", "high"));
+            }
+            List<Task> tasks = processEngine.getTaskService().createTaskQuery().taskDefinitionKey("usertask1").list();
+
+            final TaskService taskService = processEngine.getTaskService();
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            List<Callable<Object>> work = new ArrayList<Callable<Object>>(tasks.size());
+            for (final Task task : tasks) {
+                work.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        taskService.complete(task.getId());
+                        return null;
+                    }
+                });
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                for (Future<Object> future : executor.invokeAll(work)) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            long time = Math.max(1, System.currentTimeMillis() - start);
+            double throughput = tasks.size() * 1000d / time;
+            LOG.info("Completed " + tasks.size() + " tasks " + name + " in " + time + " ms, " + String.format("%.1f", throughput) + " tasks/s");
+            return throughput;
+        } finally {
+            processEngine.close();
+        }
+    }
+
+    private static String url(String name) {
+        return "jdbc:h2:mem:benchmark-" + name + ";DB_CLOSE_DELAY=-1";
+    }
+
+}